@@ -0,0 +1,255 @@
+package smarthome.client;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded, virtualized log view used for the results of the SmartHomeGUI tabs.
+ * Lines are kept in a fixed-size ring buffer, so the oldest lines are dropped once the capacity is reached
+ * and memory stays flat however long streams keep running. Being a JList with fixed cell sizes, only the
+ * visible rows are rendered. Appends are thread-safe and applied in one batch per timer tick while the view is
+ * displayed, and a filter field is installed in the enclosing scroll pane header to only show lines containing
+ * the given text. At most capacity texts wait for the next tick, older ones would only be overwritten anyway.
+ */
+public class BoundedLogView extends JList<String> {
+
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final int DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+
+    private final LogModel model;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<String> pendingText = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Timer flushTimer;
+    private final JPanel filterPanel = new JPanel(new BorderLayout(5, 0));
+    private final JTextField filterText = new JTextField();
+
+    public BoundedLogView() {
+        this(DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public BoundedLogView(int capacity, int flushIntervalMillis) {
+        this.model = new LogModel(capacity);
+        this.capacity = capacity;
+        setModel(model);
+
+        // Fixed cell sizes let the list lay out and paint only the visible rows without measuring every line
+        setFixedCellHeight(getFontMetrics(getFont()).getHeight() + 2);
+        setFixedCellWidth(1);
+        setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+
+        filterPanel.add(new JLabel("Filter:"), BorderLayout.WEST);
+        filterPanel.add(filterText, BorderLayout.CENTER);
+        filterText.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                setFilter(filterText.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                setFilter(filterText.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                setFilter(filterText.getText());
+            }
+        });
+
+        // Started and stopped with the view being displayed, so a discarded view doesn't keep ticking
+        flushTimer = new Timer(flushIntervalMillis, e -> flush());
+    }
+
+    /**
+     * Queue text to be shown on the next timer tick. Safe to call from any thread.
+     * The text is split into one row per line. Once capacity texts are waiting, the oldest one is dropped.
+     */
+    public void append(String text) {
+        pendingText.add(text);
+        if (pendingCount.incrementAndGet() > capacity && pendingText.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Only show the lines containing the given text (case insensitive), an empty filter shows everything.
+     */
+    public void setFilter(String filter) {
+        model.setFilter(filter);
+        scrollToEnd();
+    }
+
+    /**
+     * Number of lines currently held by the ring buffer, regardless of the filter.
+     */
+    public int getLineCount() {
+        return model.getLineCount();
+    }
+
+    /**
+     * Apply all queued text to the model. Must be called on the event dispatch thread.
+     */
+    public void flush() {
+        if (pendingText.isEmpty()) {
+            return;
+        }
+
+        // Only follow the new lines if the user is looking at the end of the log
+        boolean atEnd = isScrolledToEnd();
+
+        String text;
+        while ((text = pendingText.poll()) != null) {
+            pendingCount.decrementAndGet();
+            int start = 0;
+            int end;
+            while ((end = text.indexOf('\n', start)) >= 0) {
+                model.add(text.substring(start, end));
+                start = end + 1;
+            }
+            if (start < text.length()) {
+                model.add(text.substring(start));
+            }
+        }
+        model.fireChanged();
+
+        if (atEnd) {
+            scrollToEnd();
+        }
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    /**
+     * Install the filter field as the column header of the enclosing scroll pane, the same way JTable installs its header,
+     * and start applying the appended text.
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        Container parent = SwingUtilities.getUnwrappedParent(this);
+        if (parent instanceof JViewport && parent.getParent() instanceof JScrollPane) {
+            ((JScrollPane) parent.getParent()).setColumnHeaderView(filterPanel);
+        }
+        flushTimer.start();
+    }
+
+    /**
+     * Stop the timer once the view is no longer displayed, the appended text waits in the bounded queue meanwhile.
+     */
+    @Override
+    public void removeNotify() {
+        flushTimer.stop();
+        super.removeNotify();
+    }
+
+    private boolean isScrolledToEnd() {
+        Rectangle visible = getVisibleRect();
+        return visible.y + visible.height >= getHeight() - getFixedCellHeight();
+    }
+
+    private void scrollToEnd() {
+        int size = model.getSize();
+        if (size > 0) {
+            ensureIndexIsVisible(size - 1);
+        }
+    }
+
+    /**
+     * Ring buffer of lines addressed by a global sequence number, plus a ring of the sequence numbers
+     * matching the current filter, so both appending and filtering new lines are O(1).
+     */
+    private static class LogModel extends AbstractListModel<String> {
+
+        private final String[] lines;
+        private final long[] matches;
+
+        // Sequence number of the next line to be added
+        private long nextSequence;
+        // Sequence numbers of the matching lines are stored from matchesStart to matchesEnd (exclusive)
+        private long matchesStart;
+        private long matchesEnd;
+
+        private String filter = "";
+
+        LogModel(int capacity) {
+            this.lines = new String[capacity];
+            this.matches = new long[capacity];
+        }
+
+        int getLineCount() {
+            return (int) Math.min(nextSequence, lines.length);
+        }
+
+        private long oldestSequence() {
+            return Math.max(0, nextSequence - lines.length);
+        }
+
+        void add(String line) {
+            lines[(int) (nextSequence % lines.length)] = line;
+            nextSequence++;
+
+            // Drop the matches of lines that were just overwritten
+            long oldest = oldestSequence();
+            while (matchesStart < matchesEnd && matches[(int) (matchesStart % matches.length)] < oldest) {
+                matchesStart++;
+            }
+
+            if (!filter.isEmpty() && matchesFilter(line)) {
+                matches[(int) (matchesEnd % matches.length)] = nextSequence - 1;
+                matchesEnd++;
+            }
+        }
+
+        void setFilter(String newFilter) {
+            filter = newFilter == null ? "" : newFilter.trim().toLowerCase(Locale.ROOT);
+            matchesStart = 0;
+            matchesEnd = 0;
+
+            if (!filter.isEmpty()) {
+                for (long sequence = oldestSequence(); sequence < nextSequence; sequence++) {
+                    if (matchesFilter(lines[(int) (sequence % lines.length)])) {
+                        matches[(int) (matchesEnd % matches.length)] = sequence;
+                        matchesEnd++;
+                    }
+                }
+            }
+            fireChanged();
+        }
+
+        private boolean matchesFilter(String line) {
+            return line.toLowerCase(Locale.ROOT).contains(filter);
+        }
+
+        void fireChanged() {
+            fireContentsChanged(this, 0, Math.max(getSize() - 1, 0));
+        }
+
+        @Override
+        public int getSize() {
+            if (filter.isEmpty()) {
+                return getLineCount();
+            }
+            return (int) (matchesEnd - matchesStart);
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            long sequence;
+            if (filter.isEmpty()) {
+                sequence = oldestSequence() + index;
+            } else {
+                sequence = matches[(int) ((matchesStart + index) % matches.length)];
+            }
+            return lines[(int) (sequence % lines.length)];
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package smarthome.client;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.*;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarthome.common.HotPathMarshaller;
+import smarthome.common.SnappyCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A pool of ManagedChannels to the same server that behaves like a single Channel.
+ * Every new call is placed on one of the pooled connections, picked either round-robin
+ * or by the lowest number of calls currently in flight, so a single HTTP/2 connection
+ * is no longer a throughput cap or a head-of-line bottleneck for long streams.
+ */
+public class ChannelPool extends Channel {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChannelPool.class);
+
+    // Strategy used to pick the channel for each new call
+    public enum PickStrategy {
+        ROUND_ROBIN,
+        LEAST_LOADED
+    }
+
+    private final List<ManagedChannel> channels;
+    private final PickStrategy pickStrategy;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final AtomicIntegerArray inFlightCalls;
+    // Encoding of the requests of each compressed method, and the smallest request worth compressing
+    private final Map<String, String> methodEncodings;
+    private final int minCompressedMessageSize;
+    private final boolean hotPathMarshallers;
+
+    private ChannelPool(List<ManagedChannel> channels, PickStrategy pickStrategy, Map<String, String> methodEncodings,
+                        int minCompressedMessageSize, boolean hotPathMarshallers) {
+        this.channels = Collections.unmodifiableList(channels);
+        this.pickStrategy = pickStrategy;
+        this.inFlightCalls = new AtomicIntegerArray(channels.size());
+        this.methodEncodings = methodEncodings;
+        this.minCompressedMessageSize = minCompressedMessageSize;
+        this.hotPathMarshallers = hotPathMarshallers;
+    }
+
+    public static Builder newBuilder(String host, int port) {
+        return new Builder(host, port);
+    }
+
+    /**
+     * Builder for a pool of channels to a server embedded in this JVM, see EmbeddedSmartHomeServer.
+     * The connection settings don't apply to the in-process transport and are ignored.
+     */
+    public static Builder newInProcessBuilder(String serverName) {
+        return new Builder(serverName);
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+    /**
+     * Number of calls currently in flight on the channel at the given pool index.
+     */
+    public int getInFlightCalls(int index) {
+        return inFlightCalls.get(index);
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions) {
+        if (hotPathMarshallers) {
+            methodDescriptor = HotPathMarshaller.withHotPathMarshallers(methodDescriptor);
+        }
+
+        int index = pickIndex();
+
+        String encoding = methodEncodings.get(methodDescriptor.getFullMethodName());
+        if (encoding != null) {
+            callOptions = callOptions.withCompression(encoding);
+        }
+
+        // Wrap the call so it counts as in flight from its start until it closes, whatever the outcome.
+        // A call that is never started is never closed either, so it isn't counted
+        ClientCall<ReqT, RespT> call = channels.get(index).newCall(methodDescriptor, callOptions);
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(ReqT message) {
+                // Small requests would barely shrink, only compress the large ones
+                if (encoding != null && message instanceof MessageLite) {
+                    super.setMessageCompression(((MessageLite) message).getSerializedSize() >= minCompressedMessageSize);
+                }
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                inFlightCalls.incrementAndGet(index);
+                try {
+                    super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                        @Override
+                        public void onClose(Status status, Metadata trailers) {
+                            inFlightCalls.decrementAndGet(index);
+                            super.onClose(status, trailers);
+                        }
+                    }, headers);
+                } catch (RuntimeException e) {
+                    inFlightCalls.decrementAndGet(index);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    @Override
+    public String authority() {
+        return channels.get(0).authority();
+    }
+
+    private int pickIndex() {
+        int size = channels.size();
+        if (size == 1) {
+            return 0;
+        }
+
+        // Start from the round-robin position so ties between equally loaded channels are spread out
+        int start = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % size;
+        if (pickStrategy == PickStrategy.ROUND_ROBIN) {
+            return start;
+        }
+
+        int bestIndex = start;
+        int bestLoad = inFlightCalls.get(start);
+        for (int i = 1; i < size && bestLoad > 0; i++) {
+            int index = (start + i) % size;
+            int load = inFlightCalls.get(index);
+            if (load < bestLoad) {
+                bestIndex = index;
+                bestLoad = load;
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * Shut down all pooled channels, waiting up to the given time for in-flight calls to finish
+     * before forcing the remaining ones to close.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            for (ManagedChannel channel : channels) {
+                long remaining = deadline - System.nanoTime();
+                if (!channel.awaitTermination(Math.max(remaining, 0), TimeUnit.NANOSECONDS)) {
+                    channel.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while shutting down channel pool");
+            for (ManagedChannel channel : channels) {
+                channel.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isTerminated() {
+        for (ManagedChannel channel : channels) {
+            if (!channel.isTerminated()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builder for the pool and the connection settings shared by all its channels.
+     */
+    public static class Builder {
+        private final String host;
+        private final int port;
+        // Name of the embedded server to reach through the in-process transport instead of host and port
+        private final String inProcessName;
+        private int poolSize = 1;
+        private PickStrategy pickStrategy = PickStrategy.ROUND_ROBIN;
+        private long keepAliveTimeMillis = TimeUnit.SECONDS.toMillis(30);
+        private long keepAliveTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+        private long idleTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+        private final Map<String, String> methodEncodings = new HashMap<>();
+        private int minCompressedMessageSize = 256;
+        private boolean hotPathMarshallers;
+
+        private Builder(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.inProcessName = null;
+        }
+
+        private Builder(String inProcessName) {
+            this.host = null;
+            this.port = -1;
+            this.inProcessName = inProcessName;
+        }
+
+        public Builder poolSize(int poolSize) {
+            if (poolSize < 1) {
+                throw new IllegalArgumentException("poolSize must be at least 1");
+            }
+            this.poolSize = poolSize;
+            return this;
+        }
+
+        public Builder pickStrategy(PickStrategy pickStrategy) {
+            this.pickStrategy = pickStrategy;
+            return this;
+        }
+
+        public Builder keepAliveTime(long keepAliveTime, TimeUnit unit) {
+            this.keepAliveTimeMillis = unit.toMillis(keepAliveTime);
+            return this;
+        }
+
+        public Builder keepAliveTimeout(long keepAliveTimeout, TimeUnit unit) {
+            this.keepAliveTimeoutMillis = unit.toMillis(keepAliveTimeout);
+            return this;
+        }
+
+        public Builder idleTimeout(long idleTimeout, TimeUnit unit) {
+            this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+            return this;
+        }
+
+        /**
+         * Compress the requests of the method with the given encoding, "gzip" or "snappy" (see SnappyCodec).
+         * The server must support the encoding, or the calls fail with UNIMPLEMENTED.
+         * Ignored by in-process pools, the in-process transport never compresses messages.
+         */
+        public Builder methodCompression(MethodDescriptor<?, ?> method, String encoding) {
+            methodEncodings.put(method.getFullMethodName(), encoding);
+            return this;
+        }
+
+        /**
+         * Only compress the requests of at least the given serialized size, 256 bytes by default.
+         */
+        public Builder minCompressedMessageSize(int minCompressedMessageSize) {
+            this.minCompressedMessageSize = minCompressedMessageSize;
+            return this;
+        }
+
+        /**
+         * Marshal the hottest calls with HotPathMarshaller instead of the generated marshallers, off by default.
+         * The bytes on the wire are the same, but an in-process server only takes the messages as objects when it
+         * uses the same marshallers, see EmbeddedSmartHomeServer.
+         */
+        public Builder hotPathMarshallers(boolean hotPathMarshallers) {
+            this.hotPathMarshallers = hotPathMarshallers;
+            return this;
+        }
+
+        public ChannelPool build() {
+            List<ManagedChannel> channels = new ArrayList<>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                if (inProcessName != null) {
+                    // Same codecs as the network channels, so calls naming snappy find it
+                    channels.add(InProcessChannelBuilder.forName(inProcessName)
+                            .compressorRegistry(SnappyCodec.compressorRegistry())
+                            .decompressorRegistry(SnappyCodec.decompressorRegistry())
+                            .build());
+                    continue;
+                }
+                channels.add(ManagedChannelBuilder
+                        .forAddress(host, port)
+                        .usePlaintext()
+                        .keepAliveTime(keepAliveTimeMillis, TimeUnit.MILLISECONDS)
+                        .keepAliveTimeout(keepAliveTimeoutMillis, TimeUnit.MILLISECONDS)
+                        .keepAliveWithoutCalls(false)
+                        .idleTimeout(idleTimeoutMillis, TimeUnit.MILLISECONDS)
+                        // Advertise snappy next to gzip, the server picks the encoding of its large responses
+                        .compressorRegistry(SnappyCodec.compressorRegistry())
+                        .decompressorRegistry(SnappyCodec.decompressorRegistry())
+                        .build());
+            }
+
+            if (inProcessName != null) {
+                logger.info("Created channel pool of {} channel(s) to in-process server '{}' using {}", poolSize, inProcessName, pickStrategy);
+                // Messages are handed over in memory, compressing them would only cost CPU
+                return new ChannelPool(channels, pickStrategy, new HashMap<>(), minCompressedMessageSize, hotPathMarshallers);
+            }
+            logger.info("Created channel pool of {} channel(s) to {}:{} using {}", poolSize, host, port, pickStrategy);
+            return new ChannelPool(channels, pickStrategy, new HashMap<>(methodEncodings), minCompressedMessageSize, hotPathMarshallers);
+        }
+    }
+}
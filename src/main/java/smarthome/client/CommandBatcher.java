@@ -0,0 +1,111 @@
+package smarthome.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers outgoing commands of a single RPC type and hands them to a BatchSender in one go.
+ * A batch is flushed as soon as it reaches the maximum size, or when its oldest command
+ * has waited for the configured latency budget, whichever comes first.
+ */
+public class CommandBatcher<T, R> {
+
+    /**
+     * Sends a whole batch of commands, completing the future at the same index as each command.
+     */
+    public interface BatchSender<T, R> {
+        void send(List<T> commands, List<CompletableFuture<R>> futures);
+    }
+
+    private final BatchSender<T, R> sender;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService scheduler;
+
+    // Commands and futures of the batch currently being filled, guarded by this
+    private List<T> commands = new ArrayList<>();
+    private List<CompletableFuture<R>> futures = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    public CommandBatcher(BatchSender<T, R> sender, int maxBatchSize, long maxDelayMillis, ScheduledExecutorService scheduler) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.sender = sender;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Queue a command for the next batch and return a future resolved from that batch's result.
+     */
+    public CompletableFuture<R> submit(T command) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        List<T> fullCommands = null;
+        List<CompletableFuture<R>> fullFutures = null;
+
+        synchronized (this) {
+            commands.add(command);
+            futures.add(future);
+
+            if (commands.size() >= maxBatchSize) {
+                // The batch is full, take it out and send it outside the lock
+                fullCommands = commands;
+                fullFutures = futures;
+                resetBatch();
+            } else if (scheduledFlush == null) {
+                // First command of a new batch starts the latency budget
+                scheduledFlush = scheduler.schedule(this::flush, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (fullCommands != null) {
+            send(fullCommands, fullFutures);
+        }
+        return future;
+    }
+
+    /**
+     * Send whatever is currently buffered without waiting for the batch to fill up.
+     */
+    public void flush() {
+        List<T> pendingCommands;
+        List<CompletableFuture<R>> pendingFutures;
+
+        synchronized (this) {
+            if (commands.isEmpty()) {
+                return;
+            }
+            pendingCommands = commands;
+            pendingFutures = futures;
+            resetBatch();
+        }
+
+        send(pendingCommands, pendingFutures);
+    }
+
+    private void resetBatch() {
+        commands = new ArrayList<>(maxBatchSize);
+        futures = new ArrayList<>(maxBatchSize);
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private void send(List<T> batchCommands, List<CompletableFuture<R>> batchFutures) {
+        try {
+            sender.send(batchCommands, batchFutures);
+        } catch (RuntimeException e) {
+            // Never leave callers waiting on a batch that could not be sent
+            for (CompletableFuture<R> future : batchFutures) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package smarthome.client;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hash ring mapping keys to nodes.
+ * Every node is placed on the ring at a number of virtual positions, a key belongs to the first node found
+ * clockwise from the key's hash. Adding or removing a node only moves the keys between it and its neighbours,
+ * about 1/n of all keys, and the virtual positions keep the share of each node close to even.
+ * Not thread-safe, guarded by the owner.
+ */
+public class ConsistentHashRing<N> {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+    private final int virtualNodes;
+    private final NavigableMap<Integer, N> ring = new TreeMap<>();
+    private final Set<N> nodes = new LinkedHashSet<>();
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Copy a ring, e.g. to compare the owners of the keys before and after a node change.
+     */
+    public ConsistentHashRing(ConsistentHashRing<N> ring) {
+        this.virtualNodes = ring.virtualNodes;
+        this.ring.putAll(ring.ring);
+        this.nodes.addAll(ring.nodes);
+    }
+
+    /**
+     * Add a node at its virtual positions, the node's string form identifies it on the ring.
+     */
+    public void addNode(N node) {
+        if (!nodes.add(node)) {
+            return;
+        }
+        placeNode(node);
+    }
+
+    public void removeNode(N node) {
+        if (!nodes.remove(node)) {
+            return;
+        }
+        // Place the remaining nodes again, so a position the removed node won on a collision goes back to the other node
+        ring.clear();
+        for (N remainingNode : nodes) {
+            placeNode(remainingNode);
+        }
+    }
+
+    /**
+     * Get the node owning the key, or null if the ring is empty.
+     */
+    public N nodeFor(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Integer, N> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public Set<N> getNodes() {
+        return Collections.unmodifiableSet(nodes);
+    }
+
+    private void placeNode(N node) {
+        for (int i = 0; i < virtualNodes; i++) {
+            // On the rare hash collision the node with the lowest string form gets the position,
+            // so the ring is the same whatever the order the nodes were added in
+            ring.merge(hash(node + "#" + i), node, (current, added) -> current.toString().compareTo(added.toString()) <= 0 ? current : added);
+        }
+    }
+
+    private static int hash(String key) {
+        return HASH_FUNCTION.hashString(key, StandardCharsets.UTF_8).asInt();
+    }
+}
@@ -0,0 +1,138 @@
+package smarthome.client;
+
+import java.util.Arrays;
+
+/**
+ * Time series kept as a fixed number of time buckets holding the min and max value of the points
+ * that fell into them. Adding a point is O(1) and memory does not grow with the number of points: when a point
+ * lands past the last bucket, neighbouring buckets are merged in pairs and the bucket width doubles.
+ * Rendering then only walks the buckets, whether the series holds a hundred points or millions.
+ * All methods are thread-safe.
+ */
+public class DecimatedSeries {
+
+    public static final int DEFAULT_BUCKET_COUNT = 2048;
+    public static final long DEFAULT_INITIAL_BUCKET_WIDTH_MILLIS = 100;
+
+    private final int bucketCount;
+    private final long initialBucketWidthMillis;
+
+    private final int[] min;
+    private final int[] max;
+    private final boolean[] filled;
+
+    private long originMillis;
+    private long bucketWidthMillis;
+    // Number of buckets from the origin up to the latest filled one
+    private int usedBuckets;
+    private long pointCount;
+
+    public DecimatedSeries() {
+        this(DEFAULT_BUCKET_COUNT, DEFAULT_INITIAL_BUCKET_WIDTH_MILLIS);
+    }
+
+    public DecimatedSeries(int bucketCount, long initialBucketWidthMillis) {
+        this.bucketCount = bucketCount;
+        this.initialBucketWidthMillis = initialBucketWidthMillis;
+        this.min = new int[bucketCount];
+        this.max = new int[bucketCount];
+        this.filled = new boolean[bucketCount];
+        clear();
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(filled, false);
+        bucketWidthMillis = initialBucketWidthMillis;
+        usedBuckets = 0;
+        pointCount = 0;
+    }
+
+    /**
+     * Add a point, points older than the first one are folded into the first bucket.
+     */
+    public synchronized void add(long timeMillis, int value) {
+        if (pointCount == 0) {
+            originMillis = timeMillis;
+        }
+        pointCount++;
+
+        long index = Math.max(0, (timeMillis - originMillis) / bucketWidthMillis);
+        while (index >= bucketCount) {
+            mergeBuckets();
+            index = (timeMillis - originMillis) / bucketWidthMillis;
+        }
+
+        int i = (int) index;
+        if (!filled[i]) {
+            filled[i] = true;
+            min[i] = value;
+            max[i] = value;
+        } else {
+            min[i] = Math.min(min[i], value);
+            max[i] = Math.max(max[i], value);
+        }
+        usedBuckets = Math.max(usedBuckets, i + 1);
+    }
+
+    /**
+     * Halve the resolution: bucket i becomes the merge of buckets 2i and 2i + 1.
+     */
+    private void mergeBuckets() {
+        for (int i = 0; i < bucketCount / 2; i++) {
+            int left = 2 * i;
+            int right = left + 1;
+
+            if (filled[left] && filled[right]) {
+                min[i] = Math.min(min[left], min[right]);
+                max[i] = Math.max(max[left], max[right]);
+            } else {
+                int source = filled[left] ? left : right;
+                min[i] = min[source];
+                max[i] = max[source];
+            }
+            filled[i] = filled[left] || filled[right];
+        }
+        Arrays.fill(filled, bucketCount / 2, bucketCount, false);
+
+        usedBuckets = (usedBuckets + 1) / 2;
+        bucketWidthMillis *= 2;
+    }
+
+    public synchronized long getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Reduce the series to the given number of columns spread over the time window from startMillis to endMillis.
+     * Fills the min and max of each column and returns which columns hold any point.
+     */
+    public synchronized boolean[] decimate(long startMillis, long endMillis, int columns, int[] columnMin, int[] columnMax) {
+        boolean[] columnFilled = new boolean[columns];
+        long span = Math.max(1, endMillis - startMillis);
+
+        for (int i = 0; i < usedBuckets; i++) {
+            if (!filled[i]) {
+                continue;
+            }
+            long bucketStart = originMillis + i * bucketWidthMillis;
+            int column = (int) Math.min(columns - 1, Math.max(0, (bucketStart - startMillis) * columns / span));
+            if (!columnFilled[column]) {
+                columnFilled[column] = true;
+                columnMin[column] = min[i];
+                columnMax[column] = max[i];
+            } else {
+                columnMin[column] = Math.min(columnMin[column], min[i]);
+                columnMax[column] = Math.max(columnMax[column], max[i]);
+            }
+        }
+        return columnFilled;
+    }
+
+    public synchronized long getStartMillis() {
+        return originMillis;
+    }
+
+    public synchronized long getEndMillis() {
+        return originMillis + usedBuckets * bucketWidthMillis;
+    }
+}
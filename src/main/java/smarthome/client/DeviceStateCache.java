@@ -0,0 +1,421 @@
+package smarthome.client;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarthome.generated.climate.ClimateDevicesState;
+import smarthome.generated.climate.ClimateDevicesStateChange;
+import smarthome.generated.general.ChangeType;
+import smarthome.generated.general.WatchRequest;
+import smarthome.generated.lighting.LightingDeviceChange;
+import smarthome.generated.lighting.LightingDeviceDetails;
+import smarthome.generated.security.DoorStateChange;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Local read-through cache of the lighting, climate and door states.
+ * The cache subscribes to the watch streams of the three services and applies every pushed change,
+ * so reads are served from memory instead of a round trip to the server.
+ * Each pushed change carries the service version: a jump in the version, a dropped stream or a reconnect
+ * marks the cached entries as stale until the cache has caught up. On reconnect only the changes after the
+ * cached version are fetched, the server falls back to a fresh snapshot when it no longer has all of them.
+ */
+public class DeviceStateCache implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceStateCache.class);
+
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long SYNC_TIMEOUT_MILLIS = 2000;
+
+    private final SmartHomeClient smartHomeClient;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<Integer, LightingDeviceDetails> lightingDevices = new ConcurrentHashMap<>();
+    private final Map<Integer, Boolean> doorLockedStates = new ConcurrentHashMap<>();
+    private final Map<Integer, ClimateDevicesState> climateDevicesStates = new ConcurrentHashMap<>();
+
+    private final FeedSubscription<LightingDeviceChange> lightingSubscription;
+    private final FeedSubscription<ClimateDevicesStateChange> climateSubscription;
+    private final FeedSubscription<DoorStateChange> securitySubscription;
+
+    private volatile boolean closed;
+
+    public DeviceStateCache(SmartHomeClient smartHomeClient) {
+        this.smartHomeClient = smartHomeClient;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smarthome-cache-reconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.lightingSubscription = new FeedSubscription<LightingDeviceChange>("lighting",
+                smartHomeClient::watchLightingDevices, smartHomeClient::getLightingDeviceChangesSince) {
+            @Override
+            long versionOf(LightingDeviceChange change) {
+                return change.getVersion();
+            }
+
+            @Override
+            ChangeType typeOf(LightingDeviceChange change) {
+                return change.getChangeType();
+            }
+
+            @Override
+            void reset() {
+                lightingDevices.clear();
+            }
+
+            @Override
+            void apply(LightingDeviceChange change) {
+                int deviceNumber = change.getLightingDeviceDetails().getLightingDevice().getDeviceNumber();
+                if (change.getChangeType() == ChangeType.REMOVE) {
+                    lightingDevices.remove(deviceNumber);
+                } else {
+                    lightingDevices.put(deviceNumber, change.getLightingDeviceDetails());
+                }
+            }
+        };
+
+        this.climateSubscription = new FeedSubscription<ClimateDevicesStateChange>("climate",
+                smartHomeClient::watchClimateDevicesState, smartHomeClient::getClimateDevicesStateChangesSince) {
+            @Override
+            long versionOf(ClimateDevicesStateChange change) {
+                return change.getVersion();
+            }
+
+            @Override
+            ChangeType typeOf(ClimateDevicesStateChange change) {
+                return change.getChangeType();
+            }
+
+            @Override
+            void reset() {
+                climateDevicesStates.clear();
+            }
+
+            @Override
+            void apply(ClimateDevicesStateChange change) {
+                climateDevicesStates.put(change.getClimateDevicesState().getZoneId(), change.getClimateDevicesState());
+            }
+        };
+
+        this.securitySubscription = new FeedSubscription<DoorStateChange>("security",
+                smartHomeClient::watchDoorStates, smartHomeClient::getDoorStateChangesSince) {
+            @Override
+            long versionOf(DoorStateChange change) {
+                return change.getVersion();
+            }
+
+            @Override
+            ChangeType typeOf(DoorStateChange change) {
+                return change.getChangeType();
+            }
+
+            @Override
+            void reset() {
+                doorLockedStates.clear();
+            }
+
+            @Override
+            void apply(DoorStateChange change) {
+                int doorNumber = change.getDoorState().getDoorNumber();
+                if (change.getChangeType() == ChangeType.REMOVE) {
+                    doorLockedStates.remove(doorNumber);
+                } else {
+                    doorLockedStates.put(doorNumber, change.getDoorState().getLocked());
+                }
+            }
+        };
+    }
+
+    /**
+     * Open the watch streams. Reads block until the first snapshot of the matching service has arrived.
+     */
+    public void start() {
+        lightingSubscription.subscribe();
+        climateSubscription.subscribe();
+        securitySubscription.subscribe();
+    }
+
+    /**
+     * Get the cached details of a lighting device, or null if the device is not registered.
+     */
+    public LightingDeviceDetails getLightingDevice(int deviceNumber) {
+        lightingSubscription.awaitFresh();
+        return lightingDevices.get(deviceNumber);
+    }
+
+    /**
+     * Get the cached details of all lighting devices.
+     */
+    public Collection<LightingDeviceDetails> getLightingDevices() {
+        lightingSubscription.awaitFresh();
+        return new ArrayList<>(lightingDevices.values());
+    }
+
+    /**
+     * Get the cached locked state of a door, or null if the door is not registered.
+     */
+    public Boolean isDoorLocked(int doorNumber) {
+        securitySubscription.awaitFresh();
+        return doorLockedStates.get(doorNumber);
+    }
+
+    /**
+     * Get the climate devices state of the default zone from the cache, falling back to the server while the cache is stale.
+     */
+    public ClimateDevicesState getClimateDevicesState() {
+        return getClimateDevicesState(SmartHomeClient.DEFAULT_ZONE_ID);
+    }
+
+    /**
+     * Get the climate devices state of a zone from the cache, falling back to the server while the cache is stale
+     * or the zone was never pushed.
+     */
+    public ClimateDevicesState getClimateDevicesState(int zoneId) {
+        ClimateDevicesState cachedState = climateDevicesStates.get(zoneId);
+        if (climateSubscription.isFresh() && cachedState != null) {
+            return cachedState;
+        }
+        return smartHomeClient.getClimateDevicesState(zoneId);
+    }
+
+    public boolean isFresh() {
+        return lightingSubscription.isFresh() && climateSubscription.isFresh() && securitySubscription.isFresh();
+    }
+
+    /**
+     * Close the watch streams and stop reconnecting.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        lightingSubscription.cancel();
+        climateSubscription.cancel();
+        securitySubscription.cancel();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * One watch stream and the version of the state it has applied so far.
+     */
+    private abstract class FeedSubscription<C> {
+
+        private final String name;
+        private final BiConsumer<Long, StreamObserver<C>> openStream;
+        private final BiConsumer<Long, StreamObserver<C>> fetchChangesSince;
+
+        // Guarded by this
+        private long version = -1;
+        private ClientCallStreamObserver<WatchRequest> requestStream;
+        private CompletableFuture<Void> synced = new CompletableFuture<>();
+
+        private volatile boolean fresh;
+
+        FeedSubscription(String name, BiConsumer<Long, StreamObserver<C>> openStream,
+                         BiConsumer<Long, StreamObserver<C>> fetchChangesSince) {
+            this.name = name;
+            this.openStream = openStream;
+            this.fetchChangesSince = fetchChangesSince;
+        }
+
+        abstract long versionOf(C change);
+
+        abstract ChangeType typeOf(C change);
+
+        abstract void reset();
+
+        abstract void apply(C change);
+
+        boolean isFresh() {
+            return fresh;
+        }
+
+        /**
+         * Open the watch stream, resuming from the cached version when the cache is fresh.
+         */
+        void subscribe() {
+            long fromVersion;
+            synchronized (this) {
+                fromVersion = fresh ? version : 0;
+            }
+
+            openStream.accept(fromVersion, new ClientResponseObserver<WatchRequest, C>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<WatchRequest> stream) {
+                    synchronized (FeedSubscription.this) {
+                        requestStream = stream;
+                    }
+                }
+
+                @Override
+                public void onNext(C change) {
+                    onChange(change);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    if (closed) {
+                        return;
+                    }
+                    logger.warn("The {} watch stream failed: {}", name, t.getMessage());
+                    markStaleAndReconnect();
+                }
+
+                @Override
+                public void onCompleted() {
+                    logger.info("The {} watch stream was completed by the server", name);
+                    markStaleAndReconnect();
+                }
+            });
+        }
+
+        private synchronized void onChange(C change) {
+            long changeVersion = versionOf(change);
+
+            if (typeOf(change) == ChangeType.RESET) {
+                // A new snapshot replaces everything cached before, including entries from a previous connection
+                if (changeVersion < version) {
+                    logger.info("The {} version went back from {} to {}, the server was restarted", name, version, changeVersion);
+                }
+                reset();
+                version = changeVersion;
+                markFresh();
+                return;
+            }
+
+            if (!fresh || changeVersion < version) {
+                // Not synced yet or an old change, nothing to apply
+                return;
+            }
+
+            if (typeOf(change) == ChangeType.HEARTBEAT) {
+                // Nothing changed, unless the server is at a newer version than the cache
+                if (changeVersion > version) {
+                    logger.warn("The {} cache missed changes between versions {} and {}, resyncing", name, version, changeVersion);
+                    requestStream.cancel("Missed changes, resubscribing", null);
+                }
+                return;
+            }
+
+            if (changeVersion == version || changeVersion == version + 1) {
+                // Either a snapshot entry or the next change in sequence
+                apply(change);
+                version = changeVersion;
+            } else {
+                // The version jumped, some changes were missed, so resync from a new snapshot
+                logger.warn("The {} cache missed changes between versions {} and {}, resyncing", name, version, changeVersion);
+                requestStream.cancel("Missed changes, resubscribing", null);
+            }
+        }
+
+        /**
+         * Fetch the changes missed since the cached version, then resume the watch stream from there.
+         * Without a cached version the watch stream starts with a full snapshot instead.
+         */
+        private void catchUp() {
+            long fromVersion;
+            synchronized (this) {
+                fromVersion = version;
+            }
+            if (fromVersion <= 0) {
+                subscribe();
+                return;
+            }
+
+            logger.info("Catching up the {} cache from version {}", name, fromVersion);
+            fetchChangesSince.accept(fromVersion, new StreamObserver<C>() {
+                @Override
+                public void onNext(C change) {
+                    onCatchUpChange(change);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    if (closed) {
+                        return;
+                    }
+                    logger.warn("The {} catch up failed: {}", name, t.getMessage());
+                    markStaleAndReconnect();
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (closed) {
+                        return;
+                    }
+                    markFresh();
+                    subscribe();
+                }
+            });
+        }
+
+        private synchronized void onCatchUpChange(C change) {
+            long changeVersion = versionOf(change);
+
+            if (typeOf(change) == ChangeType.RESET) {
+                // The missed changes are gone from the server, a full snapshot follows
+                reset();
+                version = changeVersion;
+            } else if (changeVersion == version || changeVersion == version + 1) {
+                apply(change);
+                version = changeVersion;
+            }
+        }
+
+        private synchronized void markFresh() {
+            fresh = true;
+            synced.complete(null);
+        }
+
+        private synchronized void markStale() {
+            fresh = false;
+            if (synced.isDone()) {
+                synced = new CompletableFuture<>();
+            }
+        }
+
+        private void markStaleAndReconnect() {
+            markStale();
+            if (!closed) {
+                scheduler.schedule(this::catchUp, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Wait until the cache holds a fresh snapshot of this service, failing with UNAVAILABLE on timeout.
+         */
+        void awaitFresh() {
+            if (fresh) {
+                return;
+            }
+
+            CompletableFuture<Void> currentSync;
+            synchronized (this) {
+                currentSync = synced;
+            }
+            try {
+                currentSync.get(SYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Status.CANCELLED.withDescription("Interrupted while waiting for the " + name + " state").asRuntimeException();
+            } catch (ExecutionException | TimeoutException e) {
+                throw Status.UNAVAILABLE.withDescription("The " + name + " state cache is not in sync with the server").asRuntimeException();
+            }
+        }
+
+        synchronized void cancel() {
+            if (requestStream != null) {
+                requestStream.cancel("Device state cache closed", null);
+            }
+        }
+    }
+}
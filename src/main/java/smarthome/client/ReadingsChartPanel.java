@@ -0,0 +1,219 @@
+package smarthome.client;
+
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarthome.generated.climate.ClimateReading;
+
+import javax.swing.*;
+import java.awt.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Live chart of the temperature and humidity readings.
+ * The panel subscribes once to the readings stream, which starts with the latest past readings and then pushes
+ * every new one, and adds each reading to a DecimatedSeries. Painting walks the min/max of each pixel column,
+ * so the cost of a repaint does not depend on the number of readings and the history is never fetched again.
+ */
+public class ReadingsChartPanel extends JPanel {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadingsChartPanel.class);
+
+    public static final int DEFAULT_HISTORY_READINGS = 10_000;
+    private static final int REPAINT_INTERVAL_MILLIS = 200;
+    private static final int RECONNECT_DELAY_MILLIS = 1000;
+
+    private static final int MARGIN_LEFT = 50;
+    private static final int MARGIN_RIGHT = 20;
+    private static final int MARGIN_TOP = 30;
+    private static final int MARGIN_BOTTOM = 30;
+
+    private static final Color TEMPERATURE_COLOR = new Color(200, 60, 40);
+    private static final Color HUMIDITY_COLOR = new Color(40, 100, 200);
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final DecimatedSeries temperatureSeries = new DecimatedSeries();
+    private final DecimatedSeries humiditySeries = new DecimatedSeries();
+
+    // Set by the stream callbacks, the repaint timer only repaints when new readings arrived
+    private volatile boolean dirty;
+    private volatile String status = "Not connected";
+
+    private SmartHomeClient smartHomeClient;
+
+    public ReadingsChartPanel() {
+        setBackground(Color.WHITE);
+        setPreferredSize(new Dimension(600, 300));
+
+        new Timer(REPAINT_INTERVAL_MILLIS, e -> {
+            if (dirty) {
+                dirty = false;
+                repaint();
+            }
+        }).start();
+    }
+
+    /**
+     * Start following the readings of the given client, reconnecting if the stream fails.
+     */
+    public void watch(SmartHomeClient smartHomeClient) {
+        this.smartHomeClient = smartHomeClient;
+        subscribe();
+    }
+
+    private void subscribe() {
+        // The stream starts over with the past readings, so drop what was charted before
+        temperatureSeries.clear();
+        humiditySeries.clear();
+        dirty = true;
+
+        smartHomeClient.watchReadings(DEFAULT_HISTORY_READINGS, new StreamObserver<ClimateReading>() {
+            @Override
+            public void onNext(ClimateReading reading) {
+                status = "Live";
+                if (reading.hasTemperatureReading()) {
+                    addPoint(temperatureSeries, reading.getTemperatureReading().getTime(), reading.getTemperatureReading().getTemperature());
+                } else if (reading.hasHumidityReading()) {
+                    addPoint(humiditySeries, reading.getHumidityReading().getTime(), reading.getHumidityReading().getHumidity());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.warn("The readings stream failed: {}", t.getMessage());
+                status = "Disconnected, reconnecting...";
+                dirty = true;
+                SwingUtilities.invokeLater(() -> {
+                    Timer reconnectTimer = new Timer(RECONNECT_DELAY_MILLIS, e -> subscribe());
+                    reconnectTimer.setRepeats(false);
+                    reconnectTimer.start();
+                });
+            }
+
+            @Override
+            public void onCompleted() {
+                status = "Stream completed by the server";
+                dirty = true;
+            }
+        });
+    }
+
+    private void addPoint(DecimatedSeries series, String time, int value) {
+        long timeMillis;
+        try {
+            timeMillis = Instant.parse(time).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            timeMillis = System.currentTimeMillis();
+        }
+        series.add(timeMillis, value);
+        dirty = true;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Graphics2D g2 = (Graphics2D) g;
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+        int plotWidth = getWidth() - MARGIN_LEFT - MARGIN_RIGHT;
+        int plotHeight = getHeight() - MARGIN_TOP - MARGIN_BOTTOM;
+        if (plotWidth <= 0 || plotHeight <= 0) {
+            return;
+        }
+
+        // Legend and status
+        g2.setColor(TEMPERATURE_COLOR);
+        g2.drawString("Temperature (" + temperatureSeries.getPointCount() + " readings)", MARGIN_LEFT, 18);
+        g2.setColor(HUMIDITY_COLOR);
+        g2.drawString("Humidity (" + humiditySeries.getPointCount() + " readings)", MARGIN_LEFT + 220, 18);
+        g2.setColor(Color.GRAY);
+        g2.drawString(status, MARGIN_LEFT + 420, 18);
+
+        // Decimate both series over their common time window to one min/max pair per pixel column
+        long start = Math.min(startOf(temperatureSeries), startOf(humiditySeries));
+        long end = Math.max(endOf(temperatureSeries), endOf(humiditySeries));
+        int[] temperatureMin = new int[plotWidth];
+        int[] temperatureMax = new int[plotWidth];
+        boolean[] temperatureColumns = temperatureSeries.decimate(start, end, plotWidth, temperatureMin, temperatureMax);
+        int[] humidityMin = new int[plotWidth];
+        int[] humidityMax = new int[plotWidth];
+        boolean[] humidityColumns = humiditySeries.decimate(start, end, plotWidth, humidityMin, humidityMax);
+
+        // Shared value axis covering both series
+        int low = Integer.MAX_VALUE;
+        int high = Integer.MIN_VALUE;
+        for (int x = 0; x < plotWidth; x++) {
+            if (temperatureColumns[x]) {
+                low = Math.min(low, temperatureMin[x]);
+                high = Math.max(high, temperatureMax[x]);
+            }
+            if (humidityColumns[x]) {
+                low = Math.min(low, humidityMin[x]);
+                high = Math.max(high, humidityMax[x]);
+            }
+        }
+
+        g2.setColor(Color.LIGHT_GRAY);
+        g2.drawRect(MARGIN_LEFT, MARGIN_TOP, plotWidth, plotHeight);
+        if (low > high) {
+            g2.setColor(Color.GRAY);
+            g2.drawString("No readings yet", MARGIN_LEFT + 10, MARGIN_TOP + 20);
+            return;
+        }
+        if (low == high) {
+            low--;
+            high++;
+        }
+
+        // Axis labels
+        g2.setColor(Color.DARK_GRAY);
+        g2.drawString(String.valueOf(high), 10, MARGIN_TOP + 5);
+        g2.drawString(String.valueOf(low), 10, MARGIN_TOP + plotHeight);
+        g2.drawString(TIME_FORMAT.format(Instant.ofEpochMilli(start)), MARGIN_LEFT, getHeight() - 10);
+        String endLabel = TIME_FORMAT.format(Instant.ofEpochMilli(end));
+        g2.drawString(endLabel, MARGIN_LEFT + plotWidth - g2.getFontMetrics().stringWidth(endLabel), getHeight() - 10);
+
+        drawColumns(g2, TEMPERATURE_COLOR, temperatureColumns, temperatureMin, temperatureMax, low, high, plotHeight);
+        drawColumns(g2, HUMIDITY_COLOR, humidityColumns, humidityMin, humidityMax, low, high, plotHeight);
+    }
+
+    private static long startOf(DecimatedSeries series) {
+        return series.getPointCount() == 0 ? Long.MAX_VALUE : series.getStartMillis();
+    }
+
+    private static long endOf(DecimatedSeries series) {
+        return series.getPointCount() == 0 ? Long.MIN_VALUE : series.getEndMillis();
+    }
+
+    /**
+     * Draw one vertical min/max line per pixel column, joined to the previous filled column.
+     */
+    private void drawColumns(Graphics2D g2, Color color, boolean[] columns, int[] columnMin, int[] columnMax,
+                             int low, int high, int plotHeight) {
+        g2.setColor(color);
+        int previousX = -1;
+        int previousY = 0;
+        for (int x = 0; x < columns.length; x++) {
+            if (!columns[x]) {
+                continue;
+            }
+            int px = MARGIN_LEFT + x;
+            int yMin = toY(columnMin[x], low, high, plotHeight);
+            int yMax = toY(columnMax[x], low, high, plotHeight);
+            if (previousX >= 0) {
+                g2.drawLine(previousX, previousY, px, (yMin + yMax) / 2);
+            }
+            g2.drawLine(px, yMin, px, yMax);
+            previousX = px;
+            previousY = (yMin + yMax) / 2;
+        }
+    }
+
+    private static int toY(int value, int low, int high, int plotHeight) {
+        return MARGIN_TOP + plotHeight - (int) ((long) (value - low) * plotHeight / (high - low));
+    }
+}
@@ -0,0 +1,314 @@
+package smarthome.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarthome.generated.climate.ClimateDevicesState;
+import smarthome.generated.climate.ClimateDevicesStateChange;
+import smarthome.generated.climate.HumidifierDehumidifierState;
+import smarthome.generated.climate.HumidityReading;
+import smarthome.generated.climate.TargetClimateSetting;
+import smarthome.generated.climate.TemperatureReading;
+import smarthome.generated.general.ChangeType;
+import smarthome.generated.general.DeviceState;
+import smarthome.generated.general.OperationResponse;
+import smarthome.generated.home.HomeSnapshotEntry;
+import smarthome.generated.lighting.LightingDeviceDetails;
+import smarthome.generated.security.DoorState;
+import smarthome.generated.security.SecurityDeviceType;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Routes the calls of a home spread over several SmartHomeServer nodes.
+ * Each node owns a partition of the lighting devices, doors and climate zones picked by consistent hashing
+ * of the device number or zone id, so every call goes to the single node holding that device.
+ * When a node joins or leaves, the devices whose owner changed are moved to their new node with their state,
+ * calls wait while the move is running. Nodes are given as "host:port", e.g. several servers on localhost
+ * started with "SmartHomeServer 50051", "SmartHomeServer 50052" and so on.
+ * Climate zones can't be removed from a server, so a node keeps a stale copy of every zone moved away from it,
+ * e.g. zone 0 which every server creates on start. Calls are never routed to these copies and they are never
+ * moved again, but they still show in that node's own snapshots and watch streams.
+ */
+public class ShardedSmartHomeClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedSmartHomeClient.class);
+
+    // Guarded by lock: routed calls hold the read lock, rebalancing holds the write lock
+    private final ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+    private final Map<String, SmartHomeClient> nodes = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public ShardedSmartHomeClient(Collection<String> nodeAddresses) {
+        for (String nodeAddress : nodeAddresses) {
+            nodes.put(nodeAddress, newClient(nodeAddress));
+            ring.addNode(nodeAddress);
+        }
+    }
+
+    /**
+     * Add a node and move to it the devices it now owns.
+     */
+    public void addNode(String nodeAddress) {
+        lock.writeLock().lock();
+        try {
+            if (nodes.containsKey(nodeAddress)) {
+                return;
+            }
+            nodes.put(nodeAddress, newClient(nodeAddress));
+            ConsistentHashRing<String> previousRing = new ConsistentHashRing<>(ring);
+            ring.addNode(nodeAddress);
+
+            // Only keys that now belong to the new node move, all of them come from the existing nodes
+            for (String source : new ArrayList<>(nodes.keySet())) {
+                if (!source.equals(nodeAddress)) {
+                    rebalance(source, previousRing);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Move the devices of a node to their new owners and stop using the node.
+     */
+    public void removeNode(String nodeAddress) {
+        lock.writeLock().lock();
+        try {
+            if (!nodes.containsKey(nodeAddress) || nodes.size() == 1) {
+                return;
+            }
+            ConsistentHashRing<String> previousRing = new ConsistentHashRing<>(ring);
+            ring.removeNode(nodeAddress);
+            rebalance(nodeAddress, previousRing);
+            nodes.remove(nodeAddress).shutdown(5, TimeUnit.SECONDS);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Set<String> getNodes() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<>(ring.getNodes());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the node owning a lighting device.
+     */
+    public String getLightingNode(int deviceNumber) {
+        return route(lightingKey(deviceNumber), node -> node);
+    }
+
+    /**
+     * Get the node owning a door or security device.
+     */
+    public String getSecurityNode(int deviceNumber) {
+        return route(securityKey(deviceNumber), node -> node);
+    }
+
+    /**
+     * Get the node owning a climate zone.
+     */
+    public String getClimateNode(int zoneId) {
+        return route(climateKey(zoneId), node -> node);
+    }
+
+    // Methods to interact with the lighting service
+
+    public LightingDeviceDetails setLightingState(int deviceNumber, DeviceState state) {
+        return routeLighting(deviceNumber, client -> client.setLightingState(deviceNumber, state));
+    }
+
+    public LightingDeviceDetails setLightingBrightness(int deviceNumber, int brightness) {
+        return routeLighting(deviceNumber, client -> client.setLightingBrightness(deviceNumber, brightness));
+    }
+
+    public LightingDeviceDetails registerLightingDevice(int deviceNumber, int roomNumber) {
+        return routeLighting(deviceNumber, client -> client.registerLightingDevice(deviceNumber, roomNumber));
+    }
+
+    public LightingDeviceDetails deregisterLightingDevice(int deviceNumber) {
+        return routeLighting(deviceNumber, client -> client.deregisterLightingDevice(deviceNumber));
+    }
+
+    // Methods to interact with the climate service
+
+    public OperationResponse setTargetClimateSettings(int zoneId, int targetTemperature, int targetHumidity) {
+        return routeClimate(zoneId, client -> client.setTargetClimateSettings(zoneId, targetTemperature, targetHumidity));
+    }
+
+    public ClimateDevicesState respondToTemperatureReading(int zoneId, int temperature) {
+        return routeClimate(zoneId, client -> client.respondToTemperatureReading(zoneId, temperature));
+    }
+
+    public ClimateDevicesState respondToHumidityReading(int zoneId, int humidity) {
+        return routeClimate(zoneId, client -> client.respondToHumidityReading(zoneId, humidity));
+    }
+
+    public ClimateDevicesState setHeatingState(int zoneId, DeviceState state) {
+        return routeClimate(zoneId, client -> client.setHeatingState(zoneId, state));
+    }
+
+    public ClimateDevicesState setACState(int zoneId, DeviceState state) {
+        return routeClimate(zoneId, client -> client.setACState(zoneId, state));
+    }
+
+    public ClimateDevicesState setHumidifierDehumidifierState(int zoneId, HumidifierDehumidifierState state) {
+        return routeClimate(zoneId, client -> client.setHumidifierDehumidifierState(zoneId, state));
+    }
+
+    public ClimateDevicesState getClimateDevicesState(int zoneId) {
+        return routeClimate(zoneId, client -> client.getClimateDevicesState(zoneId));
+    }
+
+    public Iterator<TemperatureReading> getTemperatureHistory(int zoneId) {
+        return routeClimate(zoneId, client -> client.getTemperatureHistory(zoneId));
+    }
+
+    public Iterator<HumidityReading> getHumidityHistory(int zoneId) {
+        return routeClimate(zoneId, client -> client.getHumidityHistory(zoneId));
+    }
+
+    // Methods to interact with the security service
+
+    public OperationResponse lockDoor(int doorNumber) {
+        return routeSecurity(doorNumber, client -> client.lockDoor(doorNumber));
+    }
+
+    public OperationResponse unlockDoor(int doorNumber) {
+        return routeSecurity(doorNumber, client -> client.unlockDoor(doorNumber));
+    }
+
+    public OperationResponse registerSecurityDevice(int deviceNumber, SecurityDeviceType deviceType) {
+        return routeSecurity(deviceNumber, client -> client.registerSecurityDevice(deviceNumber, deviceType));
+    }
+
+    public OperationResponse deregisterSecurityDevice(int deviceNumber, SecurityDeviceType deviceType) {
+        return routeSecurity(deviceNumber, client -> client.deregisterSecurityDevice(deviceNumber, deviceType));
+    }
+
+    /**
+     * Shut down the clients of all nodes.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        lock.writeLock().lock();
+        try {
+            for (SmartHomeClient client : nodes.values()) {
+                client.shutdown(timeout, unit);
+            }
+            nodes.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private <T> T routeLighting(int deviceNumber, Function<SmartHomeClient, T> call) {
+        return route(lightingKey(deviceNumber), node -> call.apply(nodes.get(node)));
+    }
+
+    private <T> T routeClimate(int zoneId, Function<SmartHomeClient, T> call) {
+        return route(climateKey(zoneId), node -> call.apply(nodes.get(node)));
+    }
+
+    private <T> T routeSecurity(int deviceNumber, Function<SmartHomeClient, T> call) {
+        return route(securityKey(deviceNumber), node -> call.apply(nodes.get(node)));
+    }
+
+    private <T> T route(String key, Function<String, T> call) {
+        lock.readLock().lock();
+        try {
+            return call.apply(ring.nodeFor(key));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Move the devices of the source node that it no longer owns to their owner. Must hold the write lock.
+     * Lights and doors move with their state. Climate zones move with their device states and targets, their
+     * readings history stays on the source node since no RPC writes it.
+     * A zone only moves when the source owned it under the previous ring: the stale copies the source kept of
+     * zones moved away earlier must never overwrite the live state of their owner.
+     */
+    private void rebalance(String source, ConsistentHashRing<String> previousRing) {
+        SmartHomeClient sourceClient = nodes.get(source);
+        int movedDevices = 0;
+
+        // Read the whole snapshot first, moving a device takes several calls and the snapshot stream has a deadline
+        List<HomeSnapshotEntry> snapshot = new ArrayList<>();
+        sourceClient.getHomeSnapshot().forEachRemaining(snapshot::add);
+
+        for (HomeSnapshotEntry entry : snapshot) {
+
+            if (entry.hasLightingDeviceChange() && entry.getLightingDeviceChange().getChangeType() == ChangeType.UPSERT) {
+                LightingDeviceDetails details = entry.getLightingDeviceChange().getLightingDeviceDetails();
+                int deviceNumber = details.getLightingDevice().getDeviceNumber();
+                String owner = ring.nodeFor(lightingKey(deviceNumber));
+                if (!owner.equals(source)) {
+                    SmartHomeClient ownerClient = nodes.get(owner);
+                    ownerClient.registerLightingDevice(deviceNumber, details.getLightingDevice().getRoomNumber());
+                    ownerClient.setLightingState(deviceNumber, details.getLightingDeviceState());
+                    ownerClient.setLightingBrightness(deviceNumber, Math.round(details.getBrightness()));
+                    sourceClient.deregisterLightingDevice(deviceNumber);
+                    movedDevices++;
+                }
+            } else if (entry.hasDoorStateChange() && entry.getDoorStateChange().getChangeType() == ChangeType.UPSERT) {
+                DoorState doorState = entry.getDoorStateChange().getDoorState();
+                String owner = ring.nodeFor(securityKey(doorState.getDoorNumber()));
+                if (!owner.equals(source)) {
+                    // Doors are registered locked
+                    SmartHomeClient ownerClient = nodes.get(owner);
+                    ownerClient.registerSecurityDevice(doorState.getDoorNumber(), SecurityDeviceType.DOOR);
+                    if (!doorState.getLocked()) {
+                        ownerClient.unlockDoor(doorState.getDoorNumber());
+                    }
+                    sourceClient.deregisterSecurityDevice(doorState.getDoorNumber(), SecurityDeviceType.DOOR);
+                    movedDevices++;
+                }
+            } else if (entry.hasClimateDevicesStateChange() && entry.getClimateDevicesStateChange().getChangeType() == ChangeType.UPSERT) {
+                ClimateDevicesStateChange change = entry.getClimateDevicesStateChange();
+                ClimateDevicesState state = change.getClimateDevicesState();
+                String owner = ring.nodeFor(climateKey(state.getZoneId()));
+                String previousOwner = previousRing.nodeFor(climateKey(state.getZoneId()));
+                if (source.equals(previousOwner) && !owner.equals(source)) {
+                    SmartHomeClient ownerClient = nodes.get(owner);
+                    if (change.hasTargetClimateSetting()) {
+                        TargetClimateSetting targets = change.getTargetClimateSetting();
+                        ownerClient.setTargetClimateSettings(state.getZoneId(), targets.getTargetTemperature(), targets.getTargetHumidity());
+                    }
+                    ownerClient.setHeatingState(state.getZoneId(), state.getHeatingState());
+                    ownerClient.setACState(state.getZoneId(), state.getAcState());
+                    ownerClient.setHumidifierDehumidifierState(state.getZoneId(), state.getHumidityDeviceState());
+                    movedDevices++;
+                }
+            }
+        }
+        logger.info("Moved {} devices and zones away from node {}", movedDevices, source);
+    }
+
+    private static SmartHomeClient newClient(String nodeAddress) {
+        int separator = nodeAddress.lastIndexOf(':');
+        return new SmartHomeClient(nodeAddress.substring(0, separator), Integer.parseInt(nodeAddress.substring(separator + 1)));
+    }
+
+    // Each service hashes its own numbers, so a light and a door with the same number can live on different nodes
+    private static String lightingKey(int deviceNumber) {
+        return "lighting:" + deviceNumber;
+    }
+
+    private static String securityKey(int deviceNumber) {
+        return "security:" + deviceNumber;
+    }
+
+    private static String climateKey(int zoneId) {
+        return "climate:" + zoneId;
+    }
+}
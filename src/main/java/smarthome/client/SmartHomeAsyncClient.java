@@ -0,0 +1,316 @@
+package smarthome.client;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.CallCredentials;
+import io.grpc.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarthome.generated.climate.*;
+import smarthome.generated.general.DeviceState;
+import smarthome.generated.general.OperationResponse;
+import smarthome.generated.lighting.*;
+import smarthome.generated.security.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking counterpart of the SmartHomeClient unary wrappers.
+ * Every call is issued on the gRPC future stubs and returns immediately with a CompletableFuture,
+ * so a single thread can keep thousands of commands in flight.
+ * Instances are immutable, use withDeadlineAfter() and withExecutor() to derive a configured copy.
+ */
+public class SmartHomeAsyncClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmartHomeAsyncClient.class);
+
+    public static final long DEFAULT_DEADLINE_MILLIS = 2000;
+
+    private final Channel channel;
+    private final CallCredentials credentials;
+    private final long deadlineMillis;
+    private final Executor executor;
+
+    private final LightingServiceGrpc.LightingServiceFutureStub lightingServiceFutureStub;
+    private final ClimateServiceGrpc.ClimateServiceFutureStub climateServiceFutureStub;
+    private final SecurityServiceGrpc.SecurityServiceFutureStub securityServiceFutureStub;
+
+    public SmartHomeAsyncClient(Channel channel, CallCredentials credentials) {
+        this(channel, credentials, DEFAULT_DEADLINE_MILLIS, MoreExecutors.directExecutor());
+    }
+
+    private SmartHomeAsyncClient(Channel channel, CallCredentials credentials, long deadlineMillis, Executor executor) {
+        this.channel = channel;
+        this.credentials = credentials;
+        this.deadlineMillis = deadlineMillis;
+        this.executor = executor;
+
+        this.lightingServiceFutureStub = LightingServiceGrpc
+                .newFutureStub(channel)
+                .withCallCredentials(credentials);
+        this.climateServiceFutureStub = ClimateServiceGrpc
+                .newFutureStub(channel)
+                .withCallCredentials(credentials);
+        this.securityServiceFutureStub = SecurityServiceGrpc
+                .newFutureStub(channel)
+                .withCallCredentials(credentials);
+    }
+
+    /**
+     * Returns a copy of this client whose calls use the given deadline instead of the default 2 seconds.
+     */
+    public SmartHomeAsyncClient withDeadlineAfter(long duration, TimeUnit unit) {
+        return new SmartHomeAsyncClient(channel, credentials, unit.toMillis(duration), executor);
+    }
+
+    /**
+     * Returns a copy of this client whose futures are completed on the given executor.
+     * By default futures are completed directly on the gRPC transport thread.
+     */
+    public SmartHomeAsyncClient withExecutor(Executor executor) {
+        return new SmartHomeAsyncClient(channel, credentials, deadlineMillis, executor);
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Adapts a gRPC ListenableFuture into a CompletableFuture completed on the configured executor.
+     * Cancelling the returned future also cancels the underlying RPC.
+     */
+    private <T> CompletableFuture<T> toCompletableFuture(ListenableFuture<T> listenableFuture) {
+        CompletableFuture<T> completableFuture = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                listenableFuture.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        Futures.addCallback(listenableFuture, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                completableFuture.complete(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                completableFuture.completeExceptionally(t);
+            }
+        }, executor);
+
+        return completableFuture;
+    }
+
+    // Methods to interact with the lighting service
+
+    // UNARY (Async) - Wrapper method to call lighting service: setLightingState
+    public CompletableFuture<LightingDeviceDetails> setLightingState(int deviceNumber, DeviceState state) {
+        logger.debug("Setting lighting state {} for device number: {}", state, deviceNumber);
+        return toCompletableFuture(lightingServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).setLightingState(
+                LightingStateRequest.newBuilder()
+                        .setDeviceNumber(deviceNumber)
+                        .setLightingState(state)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call lighting service: setLightingBrightness
+    public CompletableFuture<LightingDeviceDetails> setLightingBrightness(int deviceNumber, int brightness) {
+        logger.debug("Setting lighting brightness {} for device number: {}", brightness, deviceNumber);
+        return toCompletableFuture(lightingServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).setLightingBrightness(
+                LightingBrightnessRequest.newBuilder()
+                        .setDeviceNumber(deviceNumber)
+                        .setBrightness(brightness)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call lighting service: registerLightingDevice
+    public CompletableFuture<LightingDeviceDetails> registerLightingDevice(int deviceNumber, int roomNumber) {
+        logger.debug("Registering lighting device number: {} in room number: {}", deviceNumber, roomNumber);
+        return toCompletableFuture(lightingServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).registerLightingDevice(
+                LightingDevice.newBuilder()
+                        .setDeviceNumber(deviceNumber)
+                        .setRoomNumber(roomNumber)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call lighting service: deregisterLightingDevice
+    public CompletableFuture<LightingDeviceDetails> deregisterLightingDevice(int deviceNumber) {
+        logger.debug("Deregistering lighting device number: {}", deviceNumber);
+        return toCompletableFuture(lightingServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).deregisterLightingDevice(
+                LightingDevice.newBuilder()
+                        .setDeviceNumber(deviceNumber)
+                        .build()
+        ));
+    }
+
+    // Methods to interact with the climate service
+
+    // UNARY (Async) - Wrapper method to call climate service: setTargetClimateSettings
+    public CompletableFuture<OperationResponse> setTargetClimateSettings(int targetTemperature, int targetHumidity) {
+        return setTargetClimateSettings(SmartHomeClient.DEFAULT_ZONE_ID, targetTemperature, targetHumidity);
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: setTargetClimateSettings (Zone)
+    public CompletableFuture<OperationResponse> setTargetClimateSettings(int zoneId, int targetTemperature, int targetHumidity) {
+        logger.debug("Setting target climate settings of zone {}: temperature {} and humidity {}", zoneId, targetTemperature, targetHumidity);
+        return toCompletableFuture(climateServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).setTargetClimateSettings(
+                TargetClimateSetting.newBuilder()
+                        .setTargetTemperature(targetTemperature)
+                        .setTargetHumidity(targetHumidity)
+                        .setZoneId(zoneId)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: respondToHumidityReading
+    public CompletableFuture<ClimateDevicesState> respondToHumidityReading(int humidity) {
+        return respondToHumidityReading(SmartHomeClient.DEFAULT_ZONE_ID, humidity);
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: respondToHumidityReading (Zone)
+    public CompletableFuture<ClimateDevicesState> respondToHumidityReading(int zoneId, int humidity) {
+        logger.debug("Sending to server humidity reading of zone {}: {}", zoneId, humidity);
+        return toCompletableFuture(climateServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).respondToHumidityReading(
+                HumidityChangeEvent.newBuilder()
+                        .setHumidity(humidity)
+                        .setZoneId(zoneId)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: respondToTemperatureReading
+    public CompletableFuture<ClimateDevicesState> respondToTemperatureReading(int temperature) {
+        return respondToTemperatureReading(SmartHomeClient.DEFAULT_ZONE_ID, temperature);
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: respondToTemperatureReading (Zone)
+    public CompletableFuture<ClimateDevicesState> respondToTemperatureReading(int zoneId, int temperature) {
+        logger.debug("Sending to server temperature reading of zone {}: {}", zoneId, temperature);
+        return toCompletableFuture(climateServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).respondToTemperatureReading(
+                TemperatureChangeEvent.newBuilder()
+                        .setTemperature(temperature)
+                        .setZoneId(zoneId)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: setHeatingState
+    public CompletableFuture<ClimateDevicesState> setHeatingState(DeviceState state) {
+        return setHeatingState(SmartHomeClient.DEFAULT_ZONE_ID, state);
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: setHeatingState (Zone)
+    public CompletableFuture<ClimateDevicesState> setHeatingState(int zoneId, DeviceState state) {
+        logger.debug("Setting heating state of zone {}: {}", zoneId, state);
+        return toCompletableFuture(climateServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).setHeatingState(
+                HeatingStateRequest.newBuilder()
+                        .setHeatingState(state)
+                        .setZoneId(zoneId)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: setACState
+    public CompletableFuture<ClimateDevicesState> setACState(DeviceState state) {
+        return setACState(SmartHomeClient.DEFAULT_ZONE_ID, state);
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: setACState (Zone)
+    public CompletableFuture<ClimateDevicesState> setACState(int zoneId, DeviceState state) {
+        logger.debug("Setting AC state of zone {}: {}", zoneId, state);
+        return toCompletableFuture(climateServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).setACState(
+                ACStateRequest.newBuilder()
+                        .setAcState(state)
+                        .setZoneId(zoneId)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: setHumidifierDehumidifierState
+    public CompletableFuture<ClimateDevicesState> setHumidifierDehumidifierState(HumidifierDehumidifierState state) {
+        return setHumidifierDehumidifierState(SmartHomeClient.DEFAULT_ZONE_ID, state);
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: setHumidifierDehumidifierState (Zone)
+    public CompletableFuture<ClimateDevicesState> setHumidifierDehumidifierState(int zoneId, HumidifierDehumidifierState state) {
+        logger.debug("Setting humidifier/dehumidifier state of zone {}: {}", zoneId, state);
+        return toCompletableFuture(climateServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).setHumidifierDehumidifierState(
+                HumidifierDehumidifierStateRequest.newBuilder()
+                        .setState(state)
+                        .setZoneId(zoneId)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: getClimateDevicesState
+    public CompletableFuture<ClimateDevicesState> getClimateDevicesState() {
+        return getClimateDevicesState(SmartHomeClient.DEFAULT_ZONE_ID);
+    }
+
+    // UNARY (Async) - Wrapper method to call climate service: getClimateDevicesState (Zone)
+    public CompletableFuture<ClimateDevicesState> getClimateDevicesState(int zoneId) {
+        logger.debug("Getting climate devices state of zone {}", zoneId);
+        return toCompletableFuture(climateServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).getClimateDevicesState(
+                ClimateDevicesStateRequest.newBuilder()
+                        .setZoneId(zoneId)
+                        .build()
+        ));
+    }
+
+    // Methods to interact with the security service
+
+    // UNARY (Async) - Wrapper method to call security service: lockDoor
+    public CompletableFuture<OperationResponse> lockDoor(int doorNumber) {
+        logger.debug("Locking door number: {}", doorNumber);
+        return toCompletableFuture(securityServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).lockDoor(
+                LockDoorRequest.newBuilder()
+                        .setDoorNumber(doorNumber)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call security service: unlockDoor
+    public CompletableFuture<OperationResponse> unlockDoor(int doorNumber) {
+        logger.debug("Unlocking door number: {}", doorNumber);
+        return toCompletableFuture(securityServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).unlockDoor(
+                UnlockDoorRequest.newBuilder()
+                        .setDoorNumber(doorNumber)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call security service: registerSecurityDevice
+    public CompletableFuture<OperationResponse> registerSecurityDevice(int deviceNumber, SecurityDeviceType deviceType) {
+        logger.debug("Registering security device number: {} of type: {}", deviceNumber, deviceType);
+        return toCompletableFuture(securityServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).registerSecurityDevice(
+                SecurityDevice.newBuilder()
+                        .setDeviceNumber(deviceNumber)
+                        .setDeviceType(deviceType)
+                        .build()
+        ));
+    }
+
+    // UNARY (Async) - Wrapper method to call security service: deregisterSecurityDevice
+    public CompletableFuture<OperationResponse> deregisterSecurityDevice(int deviceNumber) {
+        logger.debug("Deregistering security device number: {}", deviceNumber);
+        return toCompletableFuture(securityServiceFutureStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).deregisterSecurityDevice(
+                SecurityDevice.newBuilder()
+                        .setDeviceNumber(deviceNumber)
+                        .build()
+        ));
+    }
+
+}
@@ -0,0 +1,220 @@
+package smarthome.client;
+
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarthome.common.FailedCommand;
+import smarthome.generated.climate.SensorReading;
+import smarthome.generated.general.OperationResponse;
+import smarthome.generated.lighting.LightingDevice;
+import smarthome.generated.security.LockDoorRequest;
+import smarthome.generated.security.UnlockDoorRequest;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+
+/**
+ * Auto-batching layer on top of SmartHomeClient for hubs that forward commands one at a time.
+ * Commands are buffered per RPC type and flushed when a batch is full or its latency budget expires.
+ * Door and light commands are sent over the existing client streams (lockDoors, unlockDoors, turnOffLights),
+ * sensor readings of all zones are sent over the climate ingestReadings stream.
+ * When the server fails a stream at one command (see FailedCommand), the commands before it succeed, that command
+ * fails and the commands after it, which the server dropped, are sent again in a new batch.
+ */
+public class SmartHomeBatchingClient implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmartHomeBatchingClient.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 20;
+    // Time a batch stream has to complete, as the deadline of the unary calls of SmartHomeClient
+    public static final long DEFAULT_DEADLINE_MILLIS = 2000;
+
+    private final SmartHomeClient smartHomeClient;
+    private final ScheduledExecutorService scheduler;
+
+    private final CommandBatcher<LockDoorRequest, OperationResponse> lockDoorBatcher;
+    private final CommandBatcher<UnlockDoorRequest, OperationResponse> unlockDoorBatcher;
+    private final CommandBatcher<LightingDevice, OperationResponse> turnOffLightBatcher;
+    private final CommandBatcher<SensorReading, OperationResponse> sensorReadingBatcher;
+
+    public SmartHomeBatchingClient(SmartHomeClient smartHomeClient) {
+        this(smartHomeClient, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public SmartHomeBatchingClient(SmartHomeClient smartHomeClient, int maxBatchSize, long maxDelayMillis) {
+        this(smartHomeClient, maxBatchSize, maxDelayMillis, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    /**
+     * Create a batching client whose batch streams fail with DEADLINE_EXCEEDED unless completed within deadlineMillis.
+     */
+    public SmartHomeBatchingClient(SmartHomeClient smartHomeClient, int maxBatchSize, long maxDelayMillis, long deadlineMillis) {
+        this.smartHomeClient = smartHomeClient;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smarthome-batch-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.lockDoorBatcher = new CommandBatcher<>(
+                new ClientStreamSender<>("lockDoors", responseObserver -> smartHomeClient.lockDoors(responseObserver, deadlineMillis)),
+                maxBatchSize, maxDelayMillis, scheduler);
+        this.unlockDoorBatcher = new CommandBatcher<>(
+                new ClientStreamSender<>("unlockDoors", responseObserver -> smartHomeClient.unlockDoors(responseObserver, deadlineMillis)),
+                maxBatchSize, maxDelayMillis, scheduler);
+        this.turnOffLightBatcher = new CommandBatcher<>(
+                new ClientStreamSender<>("turnOffLights", responseObserver -> smartHomeClient.turnOffLights(responseObserver, deadlineMillis)),
+                maxBatchSize, maxDelayMillis, scheduler);
+        this.sensorReadingBatcher = new CommandBatcher<>(
+                new ClientStreamSender<>("ingestReadings", responseObserver -> smartHomeClient.ingestReadings(responseObserver, deadlineMillis)),
+                maxBatchSize, maxDelayMillis, scheduler);
+    }
+
+    // Batched lock of a single door, resolved with the OperationResponse of the lockDoors stream it was sent on
+    public CompletableFuture<OperationResponse> lockDoor(int doorNumber) {
+        return lockDoorBatcher.submit(LockDoorRequest.newBuilder().setDoorNumber(doorNumber).build());
+    }
+
+    // Batched unlock of a single door, resolved with the OperationResponse of the unlockDoors stream it was sent on
+    public CompletableFuture<OperationResponse> unlockDoor(int doorNumber) {
+        return unlockDoorBatcher.submit(UnlockDoorRequest.newBuilder().setDoorNumber(doorNumber).build());
+    }
+
+    // Batched turn off of a single light, resolved with the OperationResponse of the turnOffLights stream it was sent on
+    public CompletableFuture<OperationResponse> turnOffLight(int deviceNumber) {
+        return turnOffLightBatcher.submit(LightingDevice.newBuilder().setDeviceNumber(deviceNumber).build());
+    }
+
+    // Batched temperature reading of the default zone, resolved with the OperationResponse of the ingestReadings stream it was sent on
+    public CompletableFuture<OperationResponse> respondToTemperatureReading(int temperature) {
+        return respondToTemperatureReading(SmartHomeClient.DEFAULT_ZONE_ID, temperature);
+    }
+
+    // Batched temperature reading of a zone, resolved with the OperationResponse of the ingestReadings stream it was sent on
+    public CompletableFuture<OperationResponse> respondToTemperatureReading(int zoneId, int temperature) {
+        return sensorReadingBatcher.submit(SensorReading.newBuilder()
+                .setZoneId(zoneId)
+                .setTemperature(temperature)
+                .setTimestampMillis(System.currentTimeMillis())
+                .build());
+    }
+
+    // Batched humidity reading of the default zone, resolved with the OperationResponse of the ingestReadings stream it was sent on
+    public CompletableFuture<OperationResponse> respondToHumidityReading(int humidity) {
+        return respondToHumidityReading(SmartHomeClient.DEFAULT_ZONE_ID, humidity);
+    }
+
+    // Batched humidity reading of a zone, resolved with the OperationResponse of the ingestReadings stream it was sent on
+    public CompletableFuture<OperationResponse> respondToHumidityReading(int zoneId, int humidity) {
+        return sensorReadingBatcher.submit(SensorReading.newBuilder()
+                .setZoneId(zoneId)
+                .setHumidity(humidity)
+                .setTimestampMillis(System.currentTimeMillis())
+                .build());
+    }
+
+    /**
+     * Send all buffered commands immediately.
+     */
+    public void flush() {
+        lockDoorBatcher.flush();
+        unlockDoorBatcher.flush();
+        turnOffLightBatcher.flush();
+        sensorReadingBatcher.flush();
+    }
+
+    /**
+     * Flush the remaining commands and stop the flush timer.
+     */
+    @Override
+    public void close() {
+        flush();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Sends a batch over one client stream and resolves every command of the batch with the single
+     * OperationResponse the server returns when the stream is completed.
+     */
+    private static class ClientStreamSender<T> implements CommandBatcher.BatchSender<T, OperationResponse> {
+
+        private final String operationName;
+        private final Function<StreamObserver<OperationResponse>, StreamObserver<T>> openStream;
+
+        ClientStreamSender(String operationName, Function<StreamObserver<OperationResponse>, StreamObserver<T>> openStream) {
+            this.operationName = operationName;
+            this.openStream = openStream;
+        }
+
+        @Override
+        public void send(List<T> commands, List<CompletableFuture<OperationResponse>> futures) {
+            logger.debug("Sending batch of {} commands over {} stream", commands.size(), operationName);
+
+            StreamObserver<T> requestObserver = openStream.apply(new StreamObserver<OperationResponse>() {
+                private OperationResponse response;
+
+                @Override
+                public void onNext(OperationResponse operationResponse) {
+                    response = operationResponse;
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    long failedIndex = FailedCommand.indexOf(t);
+                    if (failedIndex < 0 || failedIndex >= commands.size()) {
+                        // No failed command given (e.g. deadline exceeded), the whole batch fails
+                        for (CompletableFuture<OperationResponse> future : futures) {
+                            future.completeExceptionally(t);
+                        }
+                        return;
+                    }
+                    resolvePartially((int) failedIndex, t, commands, futures);
+                }
+
+                @Override
+                public void onCompleted() {
+                    for (CompletableFuture<OperationResponse> future : futures) {
+                        future.complete(response);
+                    }
+                }
+            });
+
+            for (T command : commands) {
+                requestObserver.onNext(command);
+            }
+            requestObserver.onCompleted();
+        }
+
+        /**
+         * Resolve a batch the server failed at the given command: it applied the commands before it and dropped
+         * the ones after it, which are sent again.
+         */
+        private void resolvePartially(int failedIndex, Throwable t, List<T> commands, List<CompletableFuture<OperationResponse>> futures) {
+            OperationResponse applied = OperationResponse.newBuilder()
+                    .setIsSuccessful(true)
+                    .setOperationName(operationName)
+                    .setMessage("Applied, the batch failed at a later command")
+                    .build();
+            for (int i = 0; i < failedIndex; i++) {
+                futures.get(i).complete(applied);
+            }
+            futures.get(failedIndex).completeExceptionally(t);
+
+            if (failedIndex + 1 < commands.size()) {
+                logger.debug("Sending again {} commands dropped after a failed {} command",
+                        commands.size() - failedIndex - 1, operationName);
+                try {
+                    send(commands.subList(failedIndex + 1, commands.size()), futures.subList(failedIndex + 1, futures.size()));
+                } catch (RuntimeException e) {
+                    for (CompletableFuture<OperationResponse> future : futures.subList(failedIndex + 1, futures.size())) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+    }
+}
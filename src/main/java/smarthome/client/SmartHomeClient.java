@@ -1,16 +1,20 @@
 package smarthome.client;
 
 import io.grpc.Context;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.stub.StreamObserver;
+import io.jsonwebtoken.JwtBuilder;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import smarthome.generated.climate.*;
+import smarthome.generated.general.ChangesSinceRequest;
 import smarthome.generated.general.DeviceState;
 import smarthome.generated.general.OperationResponse;
+import smarthome.generated.general.WatchRequest;
+import smarthome.generated.home.HomeServiceGrpc;
+import smarthome.generated.home.HomeSnapshotEntry;
+import smarthome.generated.home.HomeSnapshotRequest;
 import smarthome.generated.lighting.*;
 import smarthome.generated.security.*;
 
@@ -30,19 +34,64 @@ public class SmartHomeClient {
     private final SecurityServiceGrpc.SecurityServiceBlockingStub securityServiceBlockingStub;
     private final SecurityServiceGrpc.SecurityServiceStub securityServiceStub;
 
+    private final HomeServiceGrpc.HomeServiceBlockingStub homeServiceBlockingStub;
+
+    private final SmartHomeAsyncClient asyncClient;
+
     private final Context.CancellableContext cancellableContext;
 
     public static final String JWT_SIGNING_KEY = "5idSuLeuVN5xGHVbwQyExrr1HWSBTfndgLtF5m3UzTo=";
 
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_PORT = 50051;
+    // Climate zone used by the wrappers that take no zoneId
+    public static final int DEFAULT_ZONE_ID = 0;
+
+    private final ChannelPool channel;
+
     public SmartHomeClient() {
-        ManagedChannel channel = ManagedChannelBuilder
-                .forAddress("localhost", 50051)
-                .usePlaintext()
-                .build();
+        this(DEFAULT_HOST, DEFAULT_PORT);
+    }
+
+    public SmartHomeClient(String host, int port) {
+        this(ChannelPool.newBuilder(host, port).build());
+    }
+
+    /**
+     * Creates a client of a server embedded in this JVM under the given name, see EmbeddedSmartHomeServer.
+     */
+    public static SmartHomeClient forInProcessServer(String serverName) {
+        return new SmartHomeClient(ChannelPool.newInProcessBuilder(serverName).build());
+    }
+
+    /**
+     * Creates a client whose calls are spread over the given pool of channels.
+     * The client owns the pool and closes it on shutdown().
+     */
+    public SmartHomeClient(ChannelPool channel) {
+        this(channel, null);
+    }
+
+    /**
+     * Creates a client of the given home on a server hosting several homes, e.g. one started with --multi-home.
+     */
+    public SmartHomeClient(String host, int port, String homeId) {
+        this(ChannelPool.newBuilder(host, port).build(), homeId);
+    }
+
+    /**
+     * Creates a client of the given home whose calls are spread over the given pool of channels.
+     * Without a homeId the server picks the home from the client ID.
+     */
+    public SmartHomeClient(ChannelPool channel, String homeId) {
+        this.channel = channel;
 
         // Implemented authentication on client side using JWT token sent with every request
-        BearerToken credentials = new BearerToken(Jwts.builder()
-                .setSubject("SmartHomeClientGUI")
+        JwtBuilder token = Jwts.builder().setSubject("SmartHomeClientGUI");
+        if (homeId != null) {
+            token.claim("homeId", homeId);
+        }
+        BearerToken credentials = new BearerToken(token
                 .signWith(SignatureAlgorithm.HS256, JWT_SIGNING_KEY)
                 .compact());
 
@@ -67,9 +116,31 @@ public class SmartHomeClient {
                 .newStub(channel)
                 .withCallCredentials(credentials);
 
+        this.homeServiceBlockingStub = HomeServiceGrpc
+                .newBlockingStub(channel)
+                .withCallCredentials(credentials);
+
+        this.asyncClient = new SmartHomeAsyncClient(channel, credentials);
+
         this.cancellableContext = Context.current().withCancellation();
     }
 
+    /**
+     * Returns the non-blocking API sharing this client's channel and credentials.
+     * Use withDeadlineAfter() and withExecutor() on the returned client to configure deadlines and callback threads.
+     */
+    public SmartHomeAsyncClient async() {
+        return asyncClient;
+    }
+
+    /**
+     * Gracefully shut down the client's channels, forcing them closed if calls are still running after the timeout.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        logger.info("Shutting down smart home client");
+        channel.shutdown(timeout, unit);
+    }
+
     public void cancelOperation() {
         if (cancellableContext.isCancelled()) {
             logger.info("Operation cancelled");
@@ -138,111 +209,275 @@ public class SmartHomeClient {
         );
     }
 
+    // Client Streaming - turnOffLights failing with DEADLINE_EXCEEDED unless completed within the deadline
+    public StreamObserver<LightingDevice> turnOffLights(StreamObserver<OperationResponse> responseObserver, long deadlineMillis) {
+        return lightingServiceStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).turnOffLights(responseObserver);
+    }
+
+    // Server Streaming - Wrapper method to call lighting service: watchLightingDevices
+    public void watchLightingDevices(StreamObserver<LightingDeviceChange> responseObserver) {
+        watchLightingDevices(0, responseObserver);
+    }
+
+    // Server Streaming - Wrapper method to call lighting service: watchLightingDevices (Resume)
+    public void watchLightingDevices(long fromVersion, StreamObserver<LightingDeviceChange> responseObserver) {
+        logger.info("Watching lighting devices state changes from version {}", fromVersion);
+        lightingServiceStub.watchLightingDevices(
+                WatchRequest.newBuilder()
+                        .setFromVersion(fromVersion)
+                        .build(),
+                responseObserver
+        );
+    }
+
+    // Server Streaming - Wrapper method to call lighting service: getChangesSince
+    public void getLightingDeviceChangesSince(long version, StreamObserver<LightingDeviceChange> responseObserver) {
+        logger.info("Getting lighting devices changes since version {}", version);
+        lightingServiceStub.withDeadlineAfter(2, TimeUnit.SECONDS).getChangesSince(
+                ChangesSinceRequest.newBuilder()
+                        .setVersion(version)
+                        .build(),
+                responseObserver
+        );
+    }
+
     // Methods to interact with the climate service
 
     // UNARY - Wrapper method to call climate service: setTargetClimateSettings
     public OperationResponse setTargetClimateSettings(int targetTemperature, int targetHumidity) {
-        logger.info("Setting target climate settings: temperature {} and humidity {}", targetTemperature, targetHumidity);
+        return setTargetClimateSettings(DEFAULT_ZONE_ID, targetTemperature, targetHumidity);
+    }
+
+    // UNARY - Wrapper method to call climate service: setTargetClimateSettings (Zone)
+    public OperationResponse setTargetClimateSettings(int zoneId, int targetTemperature, int targetHumidity) {
+        logger.info("Setting target climate settings of zone {}: temperature {} and humidity {}", zoneId, targetTemperature, targetHumidity);
         return climateServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).setTargetClimateSettings(
                 TargetClimateSetting.newBuilder()
                         .setTargetTemperature(targetTemperature)
                         .setTargetHumidity(targetHumidity)
+                        .setZoneId(zoneId)
                         .build()
         );
     }
 
     // UNARY - Wrapper method to call climate service: respondToHumidityReading
     public ClimateDevicesState respondToHumidityReading(int humidity) {
-        logger.info("Sending to server humidity reading: {}", humidity);
+        return respondToHumidityReading(DEFAULT_ZONE_ID, humidity);
+    }
+
+    // UNARY - Wrapper method to call climate service: respondToHumidityReading (Zone)
+    public ClimateDevicesState respondToHumidityReading(int zoneId, int humidity) {
+        logger.info("Sending to server humidity reading of zone {}: {}", zoneId, humidity);
         return climateServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).respondToHumidityReading(
                 HumidityChangeEvent.newBuilder()
                         .setHumidity(humidity)
+                        .setZoneId(zoneId)
                         .build()
         );
     }
 
     // UNARY - Wrapper method to call climate service: respondToTemperatureReading
     public ClimateDevicesState respondToTemperatureReading(int temperature) {
-        logger.info("Sending to server temperature reading: {}", temperature);
+        return respondToTemperatureReading(DEFAULT_ZONE_ID, temperature);
+    }
+
+    // UNARY - Wrapper method to call climate service: respondToTemperatureReading (Zone)
+    public ClimateDevicesState respondToTemperatureReading(int zoneId, int temperature) {
+        logger.info("Sending to server temperature reading of zone {}: {}", zoneId, temperature);
         return climateServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).respondToTemperatureReading(
                 TemperatureChangeEvent.newBuilder()
                         .setTemperature(temperature)
+                        .setZoneId(zoneId)
                         .build()
         );
     }
 
     // UNARY - Wrapper method to call climate service: setHeatingState
     public ClimateDevicesState setHeatingState(DeviceState state) {
-        logger.info("Setting heating state: {}", state);
+        return setHeatingState(DEFAULT_ZONE_ID, state);
+    }
+
+    // UNARY - Wrapper method to call climate service: setHeatingState (Zone)
+    public ClimateDevicesState setHeatingState(int zoneId, DeviceState state) {
+        logger.info("Setting heating state of zone {}: {}", zoneId, state);
         return climateServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).setHeatingState(
                 HeatingStateRequest.newBuilder()
                         .setHeatingState(state)
+                        .setZoneId(zoneId)
                         .build()
         );
     }
 
     // UNARY - Wrapper method to call climate service: setACState
     public ClimateDevicesState setACState(DeviceState state) {
-        logger.info("Setting AC state: {}", state);
+        return setACState(DEFAULT_ZONE_ID, state);
+    }
+
+    // UNARY - Wrapper method to call climate service: setACState (Zone)
+    public ClimateDevicesState setACState(int zoneId, DeviceState state) {
+        logger.info("Setting AC state of zone {}: {}", zoneId, state);
         return climateServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).setACState(
                 ACStateRequest.newBuilder()
                         .setAcState(state)
+                        .setZoneId(zoneId)
                         .build()
         );
     }
 
     // UNARY - Wrapper method to call climate service: setHumidifierDehumidifierState
     public ClimateDevicesState setHumidifierDehumidifierState(HumidifierDehumidifierState state) {
-        logger.info("Setting humidifier/dehumidifier state: {}", state);
+        return setHumidifierDehumidifierState(DEFAULT_ZONE_ID, state);
+    }
+
+    // UNARY - Wrapper method to call climate service: setHumidifierDehumidifierState (Zone)
+    public ClimateDevicesState setHumidifierDehumidifierState(int zoneId, HumidifierDehumidifierState state) {
+        logger.info("Setting humidifier/dehumidifier state of zone {}: {}", zoneId, state);
         return climateServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).setHumidifierDehumidifierState(
                 HumidifierDehumidifierStateRequest.newBuilder()
                         .setState(state)
+                        .setZoneId(zoneId)
                         .build()
         );
     }
 
     // UNARY - Wrapper method to call climate service: getClimateDevicesState
     public ClimateDevicesState getClimateDevicesState() {
-        logger.info("Getting climate devices state");
+        return getClimateDevicesState(DEFAULT_ZONE_ID);
+    }
+
+    // UNARY - Wrapper method to call climate service: getClimateDevicesState (Zone)
+    public ClimateDevicesState getClimateDevicesState(int zoneId) {
+        logger.info("Getting climate devices state of zone {}", zoneId);
         return climateServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).getClimateDevicesState(
-                ClimateDevicesStateRequest.newBuilder().build()
+                ClimateDevicesStateRequest.newBuilder()
+                        .setZoneId(zoneId)
+                        .build()
         );
     }
 
     // Server Streaming - Wrapper method to call climate service: getTemperatureHistory (Sync)
     public Iterator<TemperatureReading> getTemperatureHistory() {
-        logger.info("Getting temperature history");
+        return getTemperatureHistory(DEFAULT_ZONE_ID);
+    }
+
+    // Server Streaming - Wrapper method to call climate service: getTemperatureHistory (Sync, Zone)
+    public Iterator<TemperatureReading> getTemperatureHistory(int zoneId) {
+        logger.info("Getting temperature history of zone {}", zoneId);
         return climateServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).getTemperatureHistory(
-                TemperatureHistoryRequest.newBuilder().build()
+                TemperatureHistoryRequest.newBuilder()
+                        .setZoneId(zoneId)
+                        .build()
         );
     }
 
     // Server Streaming - Wrapper method to call climate service: getTemperatureHistory (Async)
     public void getTemperatureHistoryAsync(StreamObserver<TemperatureReading> responseObserver) {
-        logger.info("Getting temperature history asynchronously");
+        getTemperatureHistoryAsync(DEFAULT_ZONE_ID, responseObserver);
+    }
+
+    // Server Streaming - Wrapper method to call climate service: getTemperatureHistory (Async, Zone)
+    public void getTemperatureHistoryAsync(int zoneId, StreamObserver<TemperatureReading> responseObserver) {
+        logger.info("Getting temperature history of zone {} asynchronously", zoneId);
         climateServiceStub.withDeadlineAfter(5, TimeUnit.SECONDS).getTemperatureHistory(
-                TemperatureHistoryRequest.newBuilder().build(),
+                TemperatureHistoryRequest.newBuilder()
+                        .setZoneId(zoneId)
+                        .build(),
                 responseObserver
         );
     }
 
     // Server Streaming - Wrapper method to call climate service: getHumidityHistory
     public Iterator<HumidityReading> getHumidityHistory() {
-        logger.info("Getting humidity history");
+        return getHumidityHistory(DEFAULT_ZONE_ID);
+    }
+
+    // Server Streaming - Wrapper method to call climate service: getHumidityHistory (Zone)
+    public Iterator<HumidityReading> getHumidityHistory(int zoneId) {
+        logger.info("Getting humidity history of zone {}", zoneId);
         return climateServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).getHumidityHistory(
-                HumidityHistoryRequest.newBuilder().build()
+                HumidityHistoryRequest.newBuilder()
+                        .setZoneId(zoneId)
+                        .build()
         );
     }
 
     // Server Streaming - Wrapper method to call climate service: getHumidityHistory (Async)
     public void getHumidityHistoryAsync(StreamObserver<HumidityReading> responseObserver) {
-        logger.info("Getting humidity history asynchronously");
+        getHumidityHistoryAsync(DEFAULT_ZONE_ID, responseObserver);
+    }
+
+    // Server Streaming - Wrapper method to call climate service: getHumidityHistory (Async, Zone)
+    public void getHumidityHistoryAsync(int zoneId, StreamObserver<HumidityReading> responseObserver) {
+        logger.info("Getting humidity history of zone {} asynchronously", zoneId);
         climateServiceStub.withDeadlineAfter(5, TimeUnit.SECONDS).getHumidityHistory(
-                HumidityHistoryRequest.newBuilder().build(),
+                HumidityHistoryRequest.newBuilder()
+                        .setZoneId(zoneId)
+                        .build(),
+                responseObserver
+        );
+    }
+
+    // Server Streaming - Wrapper method to call climate service: watchClimateDevicesState
+    public void watchClimateDevicesState(StreamObserver<ClimateDevicesStateChange> responseObserver) {
+        watchClimateDevicesState(0, responseObserver);
+    }
+
+    // Server Streaming - Wrapper method to call climate service: watchClimateDevicesState (Resume)
+    public void watchClimateDevicesState(long fromVersion, StreamObserver<ClimateDevicesStateChange> responseObserver) {
+        logger.info("Watching climate devices state changes from version {}", fromVersion);
+        climateServiceStub.watchClimateDevicesState(
+                WatchRequest.newBuilder()
+                        .setFromVersion(fromVersion)
+                        .build(),
                 responseObserver
         );
     }
 
+    // Server Streaming - Wrapper method to call climate service: getChangesSince
+    public void getClimateDevicesStateChangesSince(long version, StreamObserver<ClimateDevicesStateChange> responseObserver) {
+        logger.info("Getting climate devices changes since version {}", version);
+        climateServiceStub.withDeadlineAfter(2, TimeUnit.SECONDS).getChangesSince(
+                ChangesSinceRequest.newBuilder()
+                        .setVersion(version)
+                        .build(),
+                responseObserver
+        );
+    }
+
+    // Server Streaming - Wrapper method to call climate service: watchReadings
+    public void watchReadings(int maxNoOfHistoryReadings, StreamObserver<ClimateReading> responseObserver) {
+        watchReadings(DEFAULT_ZONE_ID, maxNoOfHistoryReadings, responseObserver);
+    }
+
+    // Server Streaming - Wrapper method to call climate service: watchReadings (Zone)
+    public void watchReadings(int zoneId, int maxNoOfHistoryReadings, StreamObserver<ClimateReading> responseObserver) {
+        logger.info("Watching temperature and humidity readings of zone {}, starting with up to {} past readings", zoneId, maxNoOfHistoryReadings);
+        climateServiceStub.watchReadings(
+                ReadingsWatchRequest.newBuilder()
+                        .setMaxNoOfHistoryReadings(maxNoOfHistoryReadings)
+                        .setZoneId(zoneId)
+                        .build(),
+                responseObserver
+        );
+    }
+
+    // Client Streaming - Wrapper method to call climate service: ingestReadings
+    public StreamObserver<SensorReading> ingestReadings(StreamObserver<OperationResponse> responseObserver) {
+        logger.info("Setting up sensor readings ingestion stream");
+        return climateServiceStub.ingestReadings(responseObserver);
+    }
+
+    // Client Streaming - ingestReadings failing with DEADLINE_EXCEEDED unless completed within the deadline
+    public StreamObserver<SensorReading> ingestReadings(StreamObserver<OperationResponse> responseObserver, long deadlineMillis) {
+        return climateServiceStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).ingestReadings(responseObserver);
+    }
+
+    // Bi-Directional Streaming - Wrapper method to call climate service: streamReadings
+    public StreamObserver<SensorReading> streamReadings(StreamObserver<ClimateDevicesState> responseObserver) {
+        logger.info("Setting up sensor readings stream with device state changes");
+        return climateServiceStub.streamReadings(responseObserver);
+    }
+
     // Methods to interact with the security service
 
     // UNARY - Wrapper method to call security service: lockDoor
@@ -286,6 +521,17 @@ public class SmartHomeClient {
         );
     }
 
+    // UNARY - Wrapper method to call security service: deregisterSecurityDevice (Type)
+    public OperationResponse deregisterSecurityDevice(int deviceNumber, SecurityDeviceType deviceType) {
+        logger.info("Deregistering security device number: {} of type: {}", deviceNumber, deviceType);
+        return securityServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).deregisterSecurityDevice(
+                SecurityDevice.newBuilder()
+                        .setDeviceNumber(deviceNumber)
+                        .setDeviceType(deviceType)
+                        .build()
+        );
+    }
+
     // Server Streaming - Wrapper method to call security service: respondToSecurityEvent
     public void respondToSecurityEvent(SecurityEvent securityEvent, StreamObserver<SecurityEventAction> responseObserver) {
         logger.info("Responding to security event: {}", securityEvent);
@@ -298,10 +544,57 @@ public class SmartHomeClient {
         return securityServiceStub.lockDoors(responseObserver);
     }
 
+    // Client Streaming - lockDoors failing with DEADLINE_EXCEEDED unless completed within the deadline
+    public StreamObserver<LockDoorRequest> lockDoors(StreamObserver<OperationResponse> responseObserver, long deadlineMillis) {
+        return securityServiceStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).lockDoors(responseObserver);
+    }
+
     // Client Streaming - Wrapper method to call security service: unlockDoors
     public StreamObserver<UnlockDoorRequest> unlockDoors(StreamObserver<OperationResponse> responseObserver) {
         logger.info("Setting up unlock doors response observer");
         return securityServiceStub.unlockDoors(responseObserver);
     }
 
+    // Client Streaming - unlockDoors failing with DEADLINE_EXCEEDED unless completed within the deadline
+    public StreamObserver<UnlockDoorRequest> unlockDoors(StreamObserver<OperationResponse> responseObserver, long deadlineMillis) {
+        return securityServiceStub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS).unlockDoors(responseObserver);
+    }
+
+    // Server Streaming - Wrapper method to call security service: watchDoorStates
+    public void watchDoorStates(StreamObserver<DoorStateChange> responseObserver) {
+        watchDoorStates(0, responseObserver);
+    }
+
+    // Server Streaming - Wrapper method to call security service: watchDoorStates (Resume)
+    public void watchDoorStates(long fromVersion, StreamObserver<DoorStateChange> responseObserver) {
+        logger.info("Watching door states changes from version {}", fromVersion);
+        securityServiceStub.watchDoorStates(
+                WatchRequest.newBuilder()
+                        .setFromVersion(fromVersion)
+                        .build(),
+                responseObserver
+        );
+    }
+
+    // Server Streaming - Wrapper method to call security service: getChangesSince
+    public void getDoorStateChangesSince(long version, StreamObserver<DoorStateChange> responseObserver) {
+        logger.info("Getting door states changes since version {}", version);
+        securityServiceStub.withDeadlineAfter(2, TimeUnit.SECONDS).getChangesSince(
+                ChangesSinceRequest.newBuilder()
+                        .setVersion(version)
+                        .build(),
+                responseObserver
+        );
+    }
+
+    // Methods to interact with the home service
+
+    // Server Streaming - Wrapper method to call home service: getHomeSnapshot (Sync)
+    public Iterator<HomeSnapshotEntry> getHomeSnapshot() {
+        logger.info("Getting home snapshot");
+        return homeServiceBlockingStub.withDeadlineAfter(2, TimeUnit.SECONDS).getHomeSnapshot(
+                HomeSnapshotRequest.newBuilder().build()
+        );
+    }
+
 }
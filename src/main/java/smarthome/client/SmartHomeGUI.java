@@ -7,7 +7,6 @@ package smarthome.client;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import smarthome.generated.climate.ClimateDevicesState;
 import smarthome.generated.climate.HumidifierDehumidifierState;
 import smarthome.generated.climate.HumidityReading;
 import smarthome.generated.climate.TemperatureReading;
@@ -18,8 +17,13 @@ import smarthome.generated.lighting.LightingDeviceDetails;
 import smarthome.generated.lighting.MotionEvent;
 import smarthome.generated.security.*;
 
+import javax.swing.*;
 import java.util.Iterator;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /**
  *
@@ -35,12 +39,35 @@ public class SmartHomeGUI extends javax.swing.JFrame {
     private StreamObserver<LockDoorRequest> lockDoorsRequestObserver;
     private StreamObserver<UnlockDoorRequest> unlockDoorsRequestObserver;
 
+    // All gRPC calls run on this executor so the event dispatch thread never blocks on the network
+    private final ExecutorService backgroundExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "smarthome-gui-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * Creates new form SmartHomeGUI
      */
     public SmartHomeGUI() {
         initComponents();
         this.smartHomeClient = new SmartHomeClient();
+        climateChartPanel.watch(smartHomeClient);
+    }
+
+    /**
+     * Run a blocking gRPC call on the background executor and hand its result or failure
+     * back to the event dispatch thread.
+     */
+    private <T> void callInBackground(Callable<T> call, Consumer<T> onSuccess, Consumer<Exception> onError) {
+        backgroundExecutor.execute(() -> {
+            try {
+                T result = call.call();
+                SwingUtilities.invokeLater(() -> onSuccess.accept(result));
+            } catch (Exception e) {
+                SwingUtilities.invokeLater(() -> onError.accept(e));
+            }
+        });
     }
 
     /**
@@ -60,7 +87,7 @@ public class SmartHomeGUI extends javax.swing.JFrame {
         jTabbedPane1 = new javax.swing.JTabbedPane();
         jPanel1 = new javax.swing.JPanel();
         jScrollPane1 = new javax.swing.JScrollPane();
-        resultLightingTextArea = new javax.swing.JTextArea();
+        lightingLog = new smarthome.client.BoundedLogView();
         jLabel1 = new javax.swing.JLabel();
         jSeparator1 = new javax.swing.JSeparator();
         jSeparator2 = new javax.swing.JSeparator();
@@ -105,7 +132,7 @@ public class SmartHomeGUI extends javax.swing.JFrame {
         turnOffLightsCloseClientStreamButton = new javax.swing.JButton();
         jPanel2 = new javax.swing.JPanel();
         jScrollPane2 = new javax.swing.JScrollPane();
-        resultClimateTextArea = new javax.swing.JTextArea();
+        climateLog = new smarthome.client.BoundedLogView();
         jLabel18 = new javax.swing.JLabel();
         jPanel4 = new javax.swing.JPanel();
         jLabel19 = new javax.swing.JLabel();
@@ -154,7 +181,7 @@ public class SmartHomeGUI extends javax.swing.JFrame {
         jPanel3 = new javax.swing.JPanel();
         jLabel32 = new javax.swing.JLabel();
         jScrollPane3 = new javax.swing.JScrollPane();
-        resultSecurityTextArea = new javax.swing.JTextArea();
+        securityLog = new smarthome.client.BoundedLogView();
         jPanel7 = new javax.swing.JPanel();
         jLabel33 = new javax.swing.JLabel();
         jLabel34 = new javax.swing.JLabel();
@@ -198,13 +225,11 @@ public class SmartHomeGUI extends javax.swing.JFrame {
         respondToSecurityEventSendEventButton = new javax.swing.JButton();
         jSeparator12 = new javax.swing.JSeparator();
         jSeparator13 = new javax.swing.JSeparator();
+        climateChartPanel = new smarthome.client.ReadingsChartPanel();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
 
-        resultLightingTextArea.setEditable(false);
-        resultLightingTextArea.setColumns(20);
-        resultLightingTextArea.setRows(5);
-        jScrollPane1.setViewportView(resultLightingTextArea);
+        jScrollPane1.setViewportView(lightingLog);
 
         jLabel1.setText("Results:");
 
@@ -552,10 +577,7 @@ public class SmartHomeGUI extends javax.swing.JFrame {
 
         jTabbedPane1.addTab("Lighting Service", jPanel1);
 
-        resultClimateTextArea.setEditable(false);
-        resultClimateTextArea.setColumns(20);
-        resultClimateTextArea.setRows(5);
-        jScrollPane2.setViewportView(resultClimateTextArea);
+        jScrollPane2.setViewportView(climateLog);
 
         jLabel18.setText("Results:");
 
@@ -959,10 +981,7 @@ public class SmartHomeGUI extends javax.swing.JFrame {
 
         jLabel32.setText("Results:");
 
-        resultSecurityTextArea.setEditable(false);
-        resultSecurityTextArea.setColumns(20);
-        resultSecurityTextArea.setRows(5);
-        jScrollPane3.setViewportView(resultSecurityTextArea);
+        jScrollPane3.setViewportView(securityLog);
 
         jLabel33.setText("Lock Door:");
 
@@ -1339,6 +1358,7 @@ public class SmartHomeGUI extends javax.swing.JFrame {
         );
 
         jTabbedPane1.addTab("Security Service", jPanel3);
+        jTabbedPane1.addTab("Climate Charts", climateChartPanel);
 
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
         getContentPane().setLayout(layout);
@@ -1371,9 +1391,9 @@ public class SmartHomeGUI extends javax.swing.JFrame {
                     .setMotionState(motionDetected)
                     .build());
 
-            resultLightingTextArea.append("Sent Motion Sensor input '" + motionDetected + "' for room: " + roomNumber + "\n");
+            lightingLog.append("Sent Motion Sensor input '" + motionDetected + "' for room: " + roomNumber + "\n");
         } catch (Exception e) {
-            resultLightingTextArea.append("Error sending motion sensor input due to: " + e.getMessage() + "\n");
+            lightingLog.append("Error sending motion sensor input due to: " + e.getMessage() + "\n");
         }
     }//GEN-LAST:event_respondToMotionSensorSendButtonActionPerformed
 
@@ -1385,32 +1405,38 @@ public class SmartHomeGUI extends javax.swing.JFrame {
                     .setDeviceNumber(deviceNumber)
                     .build());
 
-            resultLightingTextArea.append("Sent Turn Off Lights request for device: " + deviceNumber + "\n");
+            lightingLog.append("Sent Turn Off Lights request for device: " + deviceNumber + "\n");
         } catch (Exception e) {
-            resultLightingTextArea.append("Error sending turn off lights request due to: " + e.getMessage() + "\n");
+            lightingLog.append("Error sending turn off lights request due to: " + e.getMessage() + "\n");
         }
     }//GEN-LAST:event_turnOffLightsSendButtonActionPerformed
 
     private void registerLightingDeviceButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_registerLightingDeviceButtonActionPerformed
+        Consumer<Exception> onError = e -> lightingLog.append("Error registering lighting device due to: " + e.getMessage() + "\n");
 
         try {
             int deviceNumber = Integer.parseInt(registerLightingDeviceNumberText.getText());
             int roomNumber = Integer.parseInt(registerLightingRoomNumberText.getText());
 
-            LightingDeviceDetails lightingDeviceDetails = smartHomeClient.registerLightingDevice(deviceNumber, roomNumber);
-
-            resultLightingTextArea.append("Successfully Registered Lighting Device: "
-                    + lightingDeviceDetails.toString().replace("\n", "")
-                    + "\n");
+            callInBackground(() -> smartHomeClient.registerLightingDevice(deviceNumber, roomNumber),
+                    lightingDeviceDetails -> lightingLog.append("Successfully Registered Lighting Device: "
+                            + lightingDeviceDetails.toString().replace("\n", "")
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultLightingTextArea.append("Error registering lighting device due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
 
     }//GEN-LAST:event_registerLightingDeviceButtonActionPerformed
 
     private void setLightingDeviceStateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_setLightingDeviceStateButtonActionPerformed
+        String deviceNumberText = setLightingStateDeviceNumberText.getText();
+        Consumer<Exception> onError = e -> lightingLog.append("Error setting lighting device state for device '"
+                + deviceNumberText + "' due to : "
+                + e.getMessage() + "\n");
+
         try {
-            int deviceNumber = Integer.parseInt(setLightingStateDeviceNumberText.getText());
+            int deviceNumber = Integer.parseInt(deviceNumberText);
             DeviceState deviceState;
             if (setLightingStateRadioButtonOn.isSelected()) {
                 deviceState = DeviceState.ON;
@@ -1420,46 +1446,49 @@ public class SmartHomeGUI extends javax.swing.JFrame {
                 throw new IllegalArgumentException("No lighting state On/Off selected, please select the desired lighting state");
             }
 
-            LightingDeviceDetails lightingDeviceDetails = smartHomeClient.setLightingState(deviceNumber, deviceState);
-
-            resultLightingTextArea.append("Successfully Set Lighting Device '"
-                    + lightingDeviceDetails.getLightingDevice().getDeviceNumber()
-                    + "' State to: " + deviceState + "\n");
+            callInBackground(() -> smartHomeClient.setLightingState(deviceNumber, deviceState),
+                    lightingDeviceDetails -> lightingLog.append("Successfully Set Lighting Device '"
+                            + lightingDeviceDetails.getLightingDevice().getDeviceNumber()
+                            + "' State to: " + deviceState + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultLightingTextArea.append("Error setting lighting device state for device '"
-                    + setLightingStateDeviceNumberText.getText() + "' due to : "
-                    + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_setLightingDeviceStateButtonActionPerformed
 
     private void deregisterLightingDeviceButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_deregisterLightingDeviceButtonActionPerformed
+        Consumer<Exception> onError = e -> lightingLog.append("Error deregistering lighting device due to: " + e.getMessage() + "\n");
+
         try {
             int deviceNumber = Integer.parseInt(deregisterLightingDeviceNumberText.getText());
 
-            LightingDeviceDetails lightingDeviceDetails = smartHomeClient.deregisterLightingDevice(deviceNumber);
-
-            resultLightingTextArea.append("Successfully Deregistered Lighting Device: "
-                    + lightingDeviceDetails.toString().replace("\n", "")
-                    + "\n");
+            callInBackground(() -> smartHomeClient.deregisterLightingDevice(deviceNumber),
+                    lightingDeviceDetails -> lightingLog.append("Successfully Deregistered Lighting Device: "
+                            + lightingDeviceDetails.toString().replace("\n", "")
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultLightingTextArea.append("Error deregistering lighting device due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_deregisterLightingDeviceButtonActionPerformed
 
     private void setLightingDeviceBrightnessButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_setLightingDeviceBrightnessButtonActionPerformed
+        String deviceNumberText = setLightingBrightnessDeviceNumberText.getText();
+        Consumer<Exception> onError = e -> lightingLog.append("Error setting lighting device brightness for device '"
+                + deviceNumberText + "' due to : "
+                + e.getMessage() + "\n");
+
         try {
-            int deviceNumber = Integer.parseInt(setLightingBrightnessDeviceNumberText.getText());
+            int deviceNumber = Integer.parseInt(deviceNumberText);
             int brightness = Integer.parseInt(setLightingBrightnessDeviceBrightnessText.getText());
 
-            LightingDeviceDetails lightingDeviceDetails = smartHomeClient.setLightingBrightness(deviceNumber, brightness);
-
-            resultLightingTextArea.append("Successfully Set Lighting Device '"
-                    + lightingDeviceDetails.getLightingDevice().getDeviceNumber()
-                    + "' Brightness to: " + brightness + "\n");
+            callInBackground(() -> smartHomeClient.setLightingBrightness(deviceNumber, brightness),
+                    lightingDeviceDetails -> lightingLog.append("Successfully Set Lighting Device '"
+                            + lightingDeviceDetails.getLightingDevice().getDeviceNumber()
+                            + "' Brightness to: " + brightness + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultLightingTextArea.append("Error setting lighting device brightness for device '"
-                    + setLightingBrightnessDeviceNumberText.getText() + "' due to : "
-                    + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_setLightingDeviceBrightnessButtonActionPerformed
 
@@ -1468,11 +1497,11 @@ public class SmartHomeGUI extends javax.swing.JFrame {
             @Override
             public void onNext(LightingDeviceDetails lightingDeviceDetails) {
                 if (lightingDeviceDetails.getLightingDeviceState() == DeviceState.ON) {
-                    resultLightingTextArea.append("Motion Sensor Turned on light device: (device:"
+                    lightingLog.append("Motion Sensor Turned on light device: (device:"
                             + lightingDeviceDetails.getLightingDevice().getDeviceNumber()
                             + ", room=" + lightingDeviceDetails.getLightingDevice().getRoomNumber() + ") \n");
                 } else {
-                    resultLightingTextArea.append("Motion Sensor Turned off light device: (device:"
+                    lightingLog.append("Motion Sensor Turned off light device: (device:"
                             + lightingDeviceDetails.getLightingDevice().getDeviceNumber()
                             + ", room=" + lightingDeviceDetails.getLightingDevice().getRoomNumber() + ") \n");
                 }
@@ -1480,16 +1509,16 @@ public class SmartHomeGUI extends javax.swing.JFrame {
 
             @Override
             public void onError(Throwable t) {
-                resultLightingTextArea.append("Error in Motion Sensor stream: " + t.getMessage() + "\n");
+                lightingLog.append("Error in Motion Sensor stream: " + t.getMessage() + "\n");
                 smartHomeClient.cancelOperation();
             }
 
             @Override
             public void onCompleted() {
-                resultLightingTextArea.append("Motion Sensor stream completed.\n");
+                lightingLog.append("Motion Sensor stream completed.\n");
             }
         });
-        resultLightingTextArea.append("Motion Sensor bi-stream opened.\n");
+        lightingLog.append("Motion Sensor bi-stream opened.\n");
     }//GEN-LAST:event_respondToMotionSensorOpenBiStreamButtonActionPerformed
 
     private void respondToMotionSensorCloseBiStreamButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_respondToMotionSensorCloseBiStreamButtonActionPerformed
@@ -1497,29 +1526,29 @@ public class SmartHomeGUI extends javax.swing.JFrame {
             this.motionEventsRequestObserver.onCompleted();
             this.motionEventsRequestObserver = null;
         }
-        resultLightingTextArea.append("Motion Sensor stream closed.\n");
+        lightingLog.append("Motion Sensor stream closed.\n");
     }//GEN-LAST:event_respondToMotionSensorCloseBiStreamButtonActionPerformed
 
     private void turnOffLightsOpenClientStreamButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_turnOffLightsOpenClientStreamButtonActionPerformed
         this.turnOffLightsRequestObserver = smartHomeClient.turnOffLights(new StreamObserver<OperationResponse>() {
             @Override
             public void onNext(OperationResponse operationResponse) {
-                resultLightingTextArea.append("Turn Off Lights Response: "
+                lightingLog.append("Turn Off Lights Response: "
                         + operationResponse.toString().replace("\n", "") + "\n");
             }
 
             @Override
             public void onError(Throwable t) {
-                resultLightingTextArea.append("Error in Turn Off Lights stream: " + t.getMessage() + "\n");
+                lightingLog.append("Error in Turn Off Lights stream: " + t.getMessage() + "\n");
                 smartHomeClient.cancelOperation();
             }
 
             @Override
             public void onCompleted() {
-                resultLightingTextArea.append("Turn Off Lights stream completed.\n");
+                lightingLog.append("Turn Off Lights stream completed.\n");
             }
         });
-        resultLightingTextArea.append("Turn Off Lights client stream opened.\n");
+        lightingLog.append("Turn Off Lights client stream opened.\n");
     }//GEN-LAST:event_turnOffLightsOpenClientStreamButtonActionPerformed
 
     private void turnOffLightsCloseClientStreamButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_turnOffLightsCloseClientStreamButtonActionPerformed
@@ -1527,59 +1556,67 @@ public class SmartHomeGUI extends javax.swing.JFrame {
             this.turnOffLightsRequestObserver.onCompleted();
             this.turnOffLightsRequestObserver = null;
         }
-        resultLightingTextArea.append("Turn Off Lights stream closed.\n");
+        lightingLog.append("Turn Off Lights stream closed.\n");
     }//GEN-LAST:event_turnOffLightsCloseClientStreamButtonActionPerformed
 
     private void setTargetClimateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_setTargetClimateButtonActionPerformed
+        Consumer<Exception> onError = e -> climateLog.append("Error setting target climate settings due to: " + e.getMessage() + "\n");
+
         try {
             int targetTemperature = Integer.parseInt(setTargetClimateTempText.getText());
             int targetHumidity = Integer.parseInt(setTargetClimateHumidityText.getText());
 
-            OperationResponse operationResponse = smartHomeClient.setTargetClimateSettings(targetTemperature, targetHumidity);
-
-            resultClimateTextArea.append("Successfully Set Target Climate settings: "
-                    + operationResponse.getMessage()
-                    + "\n");
+            callInBackground(() -> smartHomeClient.setTargetClimateSettings(targetTemperature, targetHumidity),
+                    operationResponse -> climateLog.append("Successfully Set Target Climate settings: "
+                            + operationResponse.getMessage()
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultClimateTextArea.append("Error setting target climate settings due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_setTargetClimateButtonActionPerformed
 
     private void respondToTempSensorSendButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_respondToTempSensorSendButtonActionPerformed
+        Consumer<Exception> onError = e -> climateLog.append("Error sending temperature sensor input due to: " + e.getMessage() + "\n");
+
         try {
             int temperatureReading = Integer.parseInt(respondToTempSensorTempText.getText());
 
-            ClimateDevicesState climateDevicesState = smartHomeClient.respondToTemperatureReading(temperatureReading);
-
-            resultClimateTextArea.append("Successfully Responded to Temperature Sensor input '" + temperatureReading
-                    + "' and now current devices state became: "
-                    + "[Heating: " + climateDevicesState.getHeatingState()
-                    + ", AirConditioner: " + climateDevicesState.getAcState()
-                    + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
-                    + "\n");
+            callInBackground(() -> smartHomeClient.respondToTemperatureReading(temperatureReading),
+                    climateDevicesState -> climateLog.append("Successfully Responded to Temperature Sensor input '" + temperatureReading
+                            + "' and now current devices state became: "
+                            + "[Heating: " + climateDevicesState.getHeatingState()
+                            + ", AirConditioner: " + climateDevicesState.getAcState()
+                            + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultClimateTextArea.append("Error sending temperature sensor input due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_respondToTempSensorSendButtonActionPerformed
 
     private void respondToHumiditySensorSendButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_respondToHumiditySensorSendButtonActionPerformed
+        Consumer<Exception> onError = e -> climateLog.append("Error sending humidity sensor input due to: " + e.getMessage() + "\n");
+
         try {
             int humidityReading = Integer.parseInt(respondToHumiditySensorHumidityText.getText());
 
-            ClimateDevicesState climateDevicesState = smartHomeClient.respondToHumidityReading(humidityReading);
-
-            resultClimateTextArea.append("Successfully Responded to Humidity Sensor input '" + humidityReading
-                    + "' and now current devices state became: "
-                    + "[Heating: " + climateDevicesState.getHeatingState()
-                    + ", AirConditioner: " + climateDevicesState.getAcState()
-                    + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
-                    + "\n");
+            callInBackground(() -> smartHomeClient.respondToHumidityReading(humidityReading),
+                    climateDevicesState -> climateLog.append("Successfully Responded to Humidity Sensor input '" + humidityReading
+                            + "' and now current devices state became: "
+                            + "[Heating: " + climateDevicesState.getHeatingState()
+                            + ", AirConditioner: " + climateDevicesState.getAcState()
+                            + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultClimateTextArea.append("Error sending humidity sensor input due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_respondToHumiditySensorSendButtonActionPerformed
 
     private void setHeatingStateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_setHeatingStateButtonActionPerformed
+        Consumer<Exception> onError = e -> climateLog.append("Error setting heating state due to: " + e.getMessage() + "\n");
+
         try {
             DeviceState deviceState;
             if (setHeatingStateRadioButtonOn.isSelected()) {
@@ -1590,19 +1627,21 @@ public class SmartHomeGUI extends javax.swing.JFrame {
                 throw new IllegalArgumentException("No heating state On/Off selected, please select the desired heating state");
             }
 
-            ClimateDevicesState climateDevicesState = smartHomeClient.setHeatingState(deviceState);
-
-            resultClimateTextArea.append("Successfully Set Heating State to: " + deviceState + ", now devices state became: "
-                    + "[Heating: " + climateDevicesState.getHeatingState()
-                    + ", AirConditioner: " + climateDevicesState.getAcState()
-                    + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
-                    + "\n");
+            callInBackground(() -> smartHomeClient.setHeatingState(deviceState),
+                    climateDevicesState -> climateLog.append("Successfully Set Heating State to: " + deviceState + ", now devices state became: "
+                            + "[Heating: " + climateDevicesState.getHeatingState()
+                            + ", AirConditioner: " + climateDevicesState.getAcState()
+                            + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultClimateTextArea.append("Error setting heating state due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_setHeatingStateButtonActionPerformed
 
     private void setACStateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_setACStateButtonActionPerformed
+        Consumer<Exception> onError = e -> climateLog.append("Error setting AC state due to: " + e.getMessage() + "\n");
+
         try {
             DeviceState deviceState;
             if (setACStateRadioButtonOn.isSelected()) {
@@ -1613,19 +1652,21 @@ public class SmartHomeGUI extends javax.swing.JFrame {
                 throw new IllegalArgumentException("No AC state On/Off selected, please select the desired AC state");
             }
 
-            ClimateDevicesState climateDevicesState = smartHomeClient.setACState(deviceState);
-
-            resultClimateTextArea.append("Successfully Set AC State to: " + deviceState + ", now devices state became: "
-                    + "[Heating: " + climateDevicesState.getHeatingState()
-                    + ", AirConditioner: " + climateDevicesState.getAcState()
-                    + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
-                    + "\n");
+            callInBackground(() -> smartHomeClient.setACState(deviceState),
+                    climateDevicesState -> climateLog.append("Successfully Set AC State to: " + deviceState + ", now devices state became: "
+                            + "[Heating: " + climateDevicesState.getHeatingState()
+                            + ", AirConditioner: " + climateDevicesState.getAcState()
+                            + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultClimateTextArea.append("Error setting AC state due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_setACStateButtonActionPerformed
 
     private void setHumidifierDehumidifierStateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_setHumidifierDehumidifierStateButtonActionPerformed
+        Consumer<Exception> onError = e -> climateLog.append("Error setting humidifier/dehumidifier state due to: " + e.getMessage() + "\n");
+
         try {
             HumidifierDehumidifierState humidifierDehumidifierState;
             if (setHumidifierDehumidiferStateRadioButtonHumidifier.isSelected()) {
@@ -1638,45 +1679,48 @@ public class SmartHomeGUI extends javax.swing.JFrame {
                 throw new IllegalArgumentException("No humidifier/dehumidifier state selected, please select the desired state");
             }
 
-            ClimateDevicesState climateDevicesState = smartHomeClient.setHumidifierDehumidifierState(humidifierDehumidifierState);
-
-            resultClimateTextArea.append("Successfully Set Humidifier/Dehumidifier State to: " + humidifierDehumidifierState + ", now devices state became: "
-                    + "[Heating: " + climateDevicesState.getHeatingState()
-                    + ", AirConditioner: " + climateDevicesState.getAcState()
-                    + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
-                    + "\n");
+            callInBackground(() -> smartHomeClient.setHumidifierDehumidifierState(humidifierDehumidifierState),
+                    climateDevicesState -> climateLog.append("Successfully Set Humidifier/Dehumidifier State to: " + humidifierDehumidifierState + ", now devices state became: "
+                            + "[Heating: " + climateDevicesState.getHeatingState()
+                            + ", AirConditioner: " + climateDevicesState.getAcState()
+                            + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultClimateTextArea.append("Error setting humidifier/dehumidifier state due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_setHumidifierDehumidifierStateButtonActionPerformed
 
     private void getClimateDevicesStateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_getClimateDevicesStateButtonActionPerformed
-        try {
-            ClimateDevicesState climateDevicesState = smartHomeClient.getClimateDevicesState();
+        Consumer<Exception> onError = e -> climateLog.append("Error getting climate devices state due to: " + e.getMessage() + "\n");
 
-            resultClimateTextArea.append("Successfully Retrieved Current Climate Devices State: "
-                    + "[Heating: " + climateDevicesState.getHeatingState()
-                    + ", AirConditioner: " + climateDevicesState.getAcState()
-                    + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
-                    + "\n");
+        try {
+            callInBackground(() -> smartHomeClient.getClimateDevicesState(),
+                    climateDevicesState -> climateLog.append("Successfully Retrieved Current Climate Devices State: "
+                            + "[Heating: " + climateDevicesState.getHeatingState()
+                            + ", AirConditioner: " + climateDevicesState.getAcState()
+                            + ", Humidifier/Dehumidifier: " + climateDevicesState.getHumidityDeviceState() + "]"
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultClimateTextArea.append("Error getting climate devices state due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_getClimateDevicesStateButtonActionPerformed
 
     private void getClimateTemperatureHistorySyncButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_getClimateTemperatureHistorySyncButtonActionPerformed
-        try {
-            Iterator<TemperatureReading> temperatureHistory = smartHomeClient.getTemperatureHistory();
-
-            StringBuilder sb = new StringBuilder();
-            while (temperatureHistory.hasNext()) {
-                TemperatureReading temperatureReading = temperatureHistory.next();
-                sb.append(temperatureReading.toString().replace("\n", " ")).append("\n");
-            }
-            resultClimateTextArea.append("Successfully Retrieved Temperature History: \n" + sb);
-        } catch (Exception e) {
-            resultClimateTextArea.append("Error getting temperature history due to: " + e.getMessage() + "\n");
-        }
+        // The whole stream is drained on the background executor, only the final text goes to the UI
+        callInBackground(() -> {
+                    Iterator<TemperatureReading> temperatureHistory = smartHomeClient.getTemperatureHistory();
+
+                    StringBuilder sb = new StringBuilder();
+                    while (temperatureHistory.hasNext()) {
+                        TemperatureReading temperatureReading = temperatureHistory.next();
+                        sb.append(temperatureReading.toString().replace("\n", " ")).append("\n");
+                    }
+                    return sb;
+                },
+                sb -> climateLog.append("Successfully Retrieved Temperature History: \n" + sb),
+                e -> climateLog.append("Error getting temperature history due to: " + e.getMessage() + "\n"));
     }//GEN-LAST:event_getClimateTemperatureHistorySyncButtonActionPerformed
 
     private void getClimateTemperatureHistoryAsyncButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_getClimateTemperatureHistoryAsyncButtonActionPerformed
@@ -1684,40 +1728,41 @@ public class SmartHomeGUI extends javax.swing.JFrame {
             smartHomeClient.getTemperatureHistoryAsync(new StreamObserver<TemperatureReading>() {
                 @Override
                 public void onNext(TemperatureReading temperatureReading) {
-                    resultClimateTextArea.append("Received Temperature Reading: "
+                    climateLog.append("Received Temperature Reading: "
                             + temperatureReading.toString().replace("\n", " ") + "\n");
                 }
 
                 @Override
                 public void onError(Throwable t) {
-                    resultClimateTextArea.append("Error in Temperature History stream: " + t.getMessage() + "\n");
+                    climateLog.append("Error in Temperature History stream: " + t.getMessage() + "\n");
                     smartHomeClient.cancelOperation();
                 }
 
                 @Override
                 public void onCompleted() {
-                    resultClimateTextArea.append("Temperature History stream completed.\n");
+                    climateLog.append("Temperature History stream completed.\n");
                 }
             });
-            resultClimateTextArea.append("Temperature History async stream opened.\n");
+            climateLog.append("Temperature History async stream opened.\n");
         } catch (Exception e) {
-            resultClimateTextArea.append("Error opening temperature history async stream due to: " + e.getMessage() + "\n");
+            climateLog.append("Error opening temperature history async stream due to: " + e.getMessage() + "\n");
         }
     }//GEN-LAST:event_getClimateTemperatureHistoryAsyncButtonActionPerformed
 
     private void getClimateHumidityHistorySyncButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_getClimateHumidityHistorySyncButtonActionPerformed
-        try {
-            Iterator<HumidityReading> humidityHistory = smartHomeClient.getHumidityHistory();
-
-            StringBuilder sb = new StringBuilder();
-            while (humidityHistory.hasNext()) {
-                HumidityReading humidityReading = humidityHistory.next();
-                sb.append(humidityReading.toString().replace("\n", " ")).append("\n");
-            }
-            resultClimateTextArea.append("Successfully Retrieved Humidity History: \n" + sb);
-        } catch (Exception e) {
-            resultClimateTextArea.append("Error getting humidity history due to: " + e.getMessage() + "\n");
-        }
+        // The whole stream is drained on the background executor, only the final text goes to the UI
+        callInBackground(() -> {
+                    Iterator<HumidityReading> humidityHistory = smartHomeClient.getHumidityHistory();
+
+                    StringBuilder sb = new StringBuilder();
+                    while (humidityHistory.hasNext()) {
+                        HumidityReading humidityReading = humidityHistory.next();
+                        sb.append(humidityReading.toString().replace("\n", " ")).append("\n");
+                    }
+                    return sb;
+                },
+                sb -> climateLog.append("Successfully Retrieved Humidity History: \n" + sb),
+                e -> climateLog.append("Error getting humidity history due to: " + e.getMessage() + "\n"));
     }//GEN-LAST:event_getClimateHumidityHistorySyncButtonActionPerformed
 
     private void getClimateHumidityHistoryAsyncButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_getClimateHumidityHistoryAsyncButtonActionPerformed
@@ -1725,83 +1770,91 @@ public class SmartHomeGUI extends javax.swing.JFrame {
             smartHomeClient.getHumidityHistoryAsync(new StreamObserver<HumidityReading>() {
                 @Override
                 public void onNext(HumidityReading humidityReading) {
-                    resultClimateTextArea.append("Received Humidity Reading: "
+                    climateLog.append("Received Humidity Reading: "
                             + humidityReading.toString().replace("\n", " ") + "\n");
                 }
 
                 @Override
                 public void onError(Throwable t) {
-                    resultClimateTextArea.append("Error in Humidity History stream: " + t.getMessage() + "\n");
+                    climateLog.append("Error in Humidity History stream: " + t.getMessage() + "\n");
                     smartHomeClient.cancelOperation();
                 }
 
                 @Override
                 public void onCompleted() {
-                    resultClimateTextArea.append("Humidity History stream completed.\n");
+                    climateLog.append("Humidity History stream completed.\n");
                 }
             });
-            resultClimateTextArea.append("Humidity History async stream opened.\n");
+            climateLog.append("Humidity History async stream opened.\n");
         } catch (Exception e) {
-            resultClimateTextArea.append("Error opening humidity history async stream due to: " + e.getMessage() + "\n");
+            climateLog.append("Error opening humidity history async stream due to: " + e.getMessage() + "\n");
         }
     }//GEN-LAST:event_getClimateHumidityHistoryAsyncButtonActionPerformed
 
     private void registerSecurityDeviceButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_registerSecurityDeviceButtonActionPerformed
+        Consumer<Exception> onError = e -> securityLog.append("Error registering security device due to: " + e.getMessage() + "\n");
+
         try {
             int deviceNumber = Integer.parseInt(registerSecurityDeviceDeviceNumberText.getText());
             SecurityDeviceType deviceType = SecurityDeviceType.valueOf(
                     Objects.requireNonNull(registerSecurityDeviceDeviceTypeCombo.getSelectedItem()).toString()
             );
 
-            OperationResponse operationResponse = smartHomeClient.registerSecurityDevice(deviceNumber, deviceType);
-
-            resultSecurityTextArea.append("Successfully Registered '" + deviceType + "' Security Device with number '"
-                    + deviceNumber + "': " + operationResponse.getMessage()
-                    + "\n");
+            callInBackground(() -> smartHomeClient.registerSecurityDevice(deviceNumber, deviceType),
+                    operationResponse -> securityLog.append("Successfully Registered '" + deviceType + "' Security Device with number '"
+                            + deviceNumber + "': " + operationResponse.getMessage()
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultSecurityTextArea.append("Error registering security device due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_registerSecurityDeviceButtonActionPerformed
 
     private void deregisterSecurityDeviceButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_deregisterSecurityDeviceButtonActionPerformed
+        Consumer<Exception> onError = e -> securityLog.append("Error deregistering security device due to: " + e.getMessage() + "\n");
+
         try {
             int deviceNumber = Integer.parseInt(deregisterSecurityDeviceDeviceNumberText.getText());
 
-            OperationResponse operationResponse = smartHomeClient.deregisterSecurityDevice(deviceNumber);
-
-            resultSecurityTextArea.append("Successfully Deregistered Security Device with number '"
-                    + deviceNumber + "': " + operationResponse.getMessage()
-                    + "\n");
+            callInBackground(() -> smartHomeClient.deregisterSecurityDevice(deviceNumber),
+                    operationResponse -> securityLog.append("Successfully Deregistered Security Device with number '"
+                            + deviceNumber + "': " + operationResponse.getMessage()
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultSecurityTextArea.append("Error deregistering security device due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_deregisterSecurityDeviceButtonActionPerformed
 
     private void lockDoorButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_lockDoorButtonActionPerformed
+        Consumer<Exception> onError = e -> securityLog.append("Error locking door due to: " + e.getMessage() + "\n");
+
         try {
             int doorNumber = Integer.parseInt(lockDoorDoorNumberText.getText());
 
-            OperationResponse operationResponse = smartHomeClient.lockDoor(doorNumber);
-
-            resultSecurityTextArea.append("Successfully Locked Door with number '"
-                    + doorNumber + "': " + operationResponse.getMessage()
-                    + "\n");
+            callInBackground(() -> smartHomeClient.lockDoor(doorNumber),
+                    operationResponse -> securityLog.append("Successfully Locked Door with number '"
+                            + doorNumber + "': " + operationResponse.getMessage()
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultSecurityTextArea.append("Error locking door due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_lockDoorButtonActionPerformed
 
     private void unlockDoorButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_unlockDoorButtonActionPerformed
+        Consumer<Exception> onError = e -> securityLog.append("Error unlocking door due to: " + e.getMessage() + "\n");
+
         try {
             int doorNumber = Integer.parseInt(unlockDoorDoorNumberText.getText());
 
-            OperationResponse operationResponse = smartHomeClient.unlockDoor(doorNumber);
-
-            resultSecurityTextArea.append("Successfully Unlocked Door with number '"
-                    + doorNumber + "': " + operationResponse.getMessage()
-                    + "\n");
+            callInBackground(() -> smartHomeClient.unlockDoor(doorNumber),
+                    operationResponse -> securityLog.append("Successfully Unlocked Door with number '"
+                            + doorNumber + "': " + operationResponse.getMessage()
+                            + "\n"),
+                    onError);
         } catch (Exception e) {
-            resultSecurityTextArea.append("Error unlocking door due to: " + e.getMessage() + "\n");
+            onError.accept(e);
         }
     }//GEN-LAST:event_unlockDoorButtonActionPerformed
 
@@ -1817,24 +1870,24 @@ public class SmartHomeGUI extends javax.swing.JFrame {
             smartHomeClient.respondToSecurityEvent(securityEvent, new StreamObserver<SecurityEventAction>() {
                 @Override
                 public void onNext(SecurityEventAction securityEventAction) {
-                    resultSecurityTextArea.append("Received Security Action: "
+                    securityLog.append("Received Security Action: "
                             + securityEventAction.toString().replace("\n", " ") + "\n");
                 }
 
                 @Override
                 public void onError(Throwable t) {
-                    resultSecurityTextArea.append("Error in Security Event stream: " + t.getMessage() + "\n");
+                    securityLog.append("Error in Security Event stream: " + t.getMessage() + "\n");
                     smartHomeClient.cancelOperation();
                 }
 
                 @Override
                 public void onCompleted() {
-                    resultSecurityTextArea.append("Security Event stream completed.\n");
+                    securityLog.append("Security Event stream completed.\n");
                 }
             });
-            resultSecurityTextArea.append("Sent Security Event: " + securityEvent.toString().replace("\n", " ") + "\n");
+            securityLog.append("Sent Security Event: " + securityEvent.toString().replace("\n", " ") + "\n");
         } catch (Exception e) {
-            resultSecurityTextArea.append("Error sending security event due to: " + e.getMessage() + "\n");
+            securityLog.append("Error sending security event due to: " + e.getMessage() + "\n");
         }
     }//GEN-LAST:event_respondToSecurityEventSendEventButtonActionPerformed
 
@@ -1842,22 +1895,22 @@ public class SmartHomeGUI extends javax.swing.JFrame {
         this.lockDoorsRequestObserver = smartHomeClient.lockDoors(new StreamObserver<OperationResponse>() {
             @Override
             public void onNext(OperationResponse operationResponse) {
-                resultSecurityTextArea.append("Lock Doors Response: "
+                securityLog.append("Lock Doors Response: "
                         + operationResponse.toString().replace("\n", " ") + "\n");
             }
 
             @Override
             public void onError(Throwable t) {
-                resultSecurityTextArea.append("Error in Lock Doors stream: " + t.getMessage() + "\n");
+                securityLog.append("Error in Lock Doors stream: " + t.getMessage() + "\n");
                 smartHomeClient.cancelOperation();
             }
 
             @Override
             public void onCompleted() {
-                resultSecurityTextArea.append("Lock Doors stream completed.\n");
+                securityLog.append("Lock Doors stream completed.\n");
             }
         });
-        resultSecurityTextArea.append("Lock Doors client stream opened.\n");
+        securityLog.append("Lock Doors client stream opened.\n");
     }//GEN-LAST:event_lockDoorsOpenClientStreamButtonActionPerformed
 
     private void lockDoorsLockButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_lockDoorsLockButtonActionPerformed
@@ -1868,9 +1921,9 @@ public class SmartHomeGUI extends javax.swing.JFrame {
                     .setDoorNumber(doorNumber)
                     .build());
 
-            resultSecurityTextArea.append("Sent Lock Door request for door: " + doorNumber + "\n");
+            securityLog.append("Sent Lock Door request for door: " + doorNumber + "\n");
         } catch (Exception e) {
-            resultSecurityTextArea.append("Error sending lock door request due to: " + e.getMessage() + "\n");
+            securityLog.append("Error sending lock door request due to: " + e.getMessage() + "\n");
         }
     }//GEN-LAST:event_lockDoorsLockButtonActionPerformed
 
@@ -1879,29 +1932,29 @@ public class SmartHomeGUI extends javax.swing.JFrame {
             this.lockDoorsRequestObserver.onCompleted();
             this.lockDoorsRequestObserver = null;
         }
-        resultSecurityTextArea.append("Lock Doors stream closed.\n");
+        securityLog.append("Lock Doors stream closed.\n");
     }//GEN-LAST:event_lockDoorsCloseClientStreamButtonActionPerformed
 
     private void unlockDoorsOpenClientStreamButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_unlockDoorsOpenClientStreamButtonActionPerformed
         this.unlockDoorsRequestObserver = smartHomeClient.unlockDoors(new StreamObserver<OperationResponse>() {
             @Override
             public void onNext(OperationResponse operationResponse) {
-                resultSecurityTextArea.append("Unlock Doors Response: "
+                securityLog.append("Unlock Doors Response: "
                         + operationResponse.toString().replace("\n", " ") + "\n");
             }
 
             @Override
             public void onError(Throwable t) {
-                resultSecurityTextArea.append("Error in Unlock Doors stream: " + t.getMessage() + "\n");
+                securityLog.append("Error in Unlock Doors stream: " + t.getMessage() + "\n");
                 smartHomeClient.cancelOperation();
             }
 
             @Override
             public void onCompleted() {
-                resultSecurityTextArea.append("Unlock Doors stream completed.\n");
+                securityLog.append("Unlock Doors stream completed.\n");
             }
         });
-        resultSecurityTextArea.append("Unlock Doors client stream opened.\n");
+        securityLog.append("Unlock Doors client stream opened.\n");
     }//GEN-LAST:event_unlockDoorsOpenClientStreamButtonActionPerformed
 
     private void unlockDoorsUnlockButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_unlockDoorsUnlockButtonActionPerformed
@@ -1912,9 +1965,9 @@ public class SmartHomeGUI extends javax.swing.JFrame {
                     .setDoorNumber(doorNumber)
                     .build());
 
-            resultSecurityTextArea.append("Sent Unlock Door request for door: " + doorNumber + "\n");
+            securityLog.append("Sent Unlock Door request for door: " + doorNumber + "\n");
         } catch (Exception e) {
-            resultSecurityTextArea.append("Error sending unlock door request due to: " + e.getMessage() + "\n");
+            securityLog.append("Error sending unlock door request due to: " + e.getMessage() + "\n");
         }
     }//GEN-LAST:event_unlockDoorsUnlockButtonActionPerformed
 
@@ -1923,7 +1976,7 @@ public class SmartHomeGUI extends javax.swing.JFrame {
             this.unlockDoorsRequestObserver.onCompleted();
             this.unlockDoorsRequestObserver = null;
         }
-        resultSecurityTextArea.append("Unlock Doors stream closed.\n");
+        securityLog.append("Unlock Doors stream closed.\n");
     }//GEN-LAST:event_unlockDoorsCloseClientStreamButtonActionPerformed
 
     /**
@@ -2045,8 +2098,9 @@ public class SmartHomeGUI extends javax.swing.JFrame {
     private javax.swing.JSeparator jSeparator8;
     private javax.swing.JSeparator jSeparator9;
     private javax.swing.JTabbedPane jTabbedPane1;
-    private javax.swing.JTextArea resultClimateTextArea;
-    private javax.swing.JTextArea resultSecurityTextArea;
+    private smarthome.client.ReadingsChartPanel climateChartPanel;
+    private smarthome.client.BoundedLogView climateLog;
+    private smarthome.client.BoundedLogView securityLog;
     private javax.swing.JButton lockDoorButton;
     private javax.swing.JTextField lockDoorDoorNumberText;
     private javax.swing.JButton lockDoorsCloseClientStreamButton;
@@ -2073,7 +2127,7 @@ public class SmartHomeGUI extends javax.swing.JFrame {
     private javax.swing.JButton respondToSecurityEventSendEventButton;
     private javax.swing.JButton respondToTempSensorSendButton;
     private javax.swing.JTextField respondToTempSensorTempText;
-    private javax.swing.JTextArea resultLightingTextArea;
+    private smarthome.client.BoundedLogView lightingLog;
     private javax.swing.JButton setACStateButton;
     private javax.swing.ButtonGroup setACStateButtonGroup;
     private javax.swing.JRadioButton setACStateRadioButtonOff;
@@ -0,0 +1,43 @@
+package smarthome.common;
+
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+/**
+ * Index of the message that failed a client stream, carried in the trailers of the error.
+ * The server applied every message of the stream before it and none after it, so a client that sent a batch
+ * of commands over the stream knows which of them took effect.
+ */
+public final class FailedCommand {
+
+    public static final Metadata.Key<String> INDEX_KEY = Metadata.Key.of("smarthome-failed-command", Metadata.ASCII_STRING_MARSHALLER);
+
+    private FailedCommand() {
+    }
+
+    /**
+     * Error failing a client stream at the message with the given index, counted from 0.
+     */
+    public static StatusRuntimeException at(Status status, long index) {
+        Metadata trailers = new Metadata();
+        trailers.put(INDEX_KEY, Long.toString(index));
+        return status.asRuntimeException(trailers);
+    }
+
+    /**
+     * Get the index of the failed message from the error of a client stream, or -1 if the server didn't send one.
+     */
+    public static long indexOf(Throwable t) {
+        Metadata trailers = Status.trailersFromThrowable(t);
+        String index = trailers != null ? trailers.get(INDEX_KEY) : null;
+        if (index == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(index);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package smarthome.common;
+
+import com.google.common.collect.MapMaker;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import io.grpc.*;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.lighting.LightingServiceGrpc;
+import smarthome.generated.security.SecurityServiceGrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Protobuf marshaller of the hottest calls: setLightingState, lockDoor, unlockDoor and the sensor reading streams.
+ * Messages are encoded through a scratch array of the thread straight into the transport's buffer, and parsed
+ * from it, instead of allocating a stream encoder and its buffer for every message like the generated marshaller.
+ * The encoded bytes of the responses the services reuse, e.g. the lock responses of each door, are remembered
+ * so they are only encoded once. Like the generated marshaller, a message passed through the in-process
+ * transport is handed over as is.
+ * It is off by default: SmartHomeServer binds it with --hot-path-marshallers and ChannelPool uses it once built with
+ * hotPathMarshallers(true), see bindHotMethods() and withHotPathMarshallers(). The bytes on the wire are the same
+ * either way, but a message passed through the in-process transport is only handed over as is when both ends use
+ * the same marshaller.
+ */
+public final class HotPathMarshaller<T extends MessageLite> implements MethodDescriptor.PrototypeMarshaller<T> {
+
+    // Larger messages are encoded and parsed the usual way
+    private static final int SCRATCH_SIZE = 4096;
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+
+    // Methods using the marshaller, and whether their responses are reused instances
+    private static final Map<String, Boolean> HOT_METHODS = new HashMap<>();
+
+    static {
+        HOT_METHODS.put(LightingServiceGrpc.getSetLightingStateMethod().getFullMethodName(), false);
+        HOT_METHODS.put(SecurityServiceGrpc.getLockDoorMethod().getFullMethodName(), true);
+        HOT_METHODS.put(SecurityServiceGrpc.getUnlockDoorMethod().getFullMethodName(), true);
+        HOT_METHODS.put(ClimateServiceGrpc.getIngestReadingsMethod().getFullMethodName(), false);
+        HOT_METHODS.put(ClimateServiceGrpc.getStreamReadingsMethod().getFullMethodName(), false);
+    }
+
+    // Hot path version of each hot method, built on first use
+    private static final ConcurrentMap<String, MethodDescriptor<?, ?>> hotMethodDescriptors = new ConcurrentHashMap<>();
+
+    private final T prototype;
+    private final Parser<T> parser;
+    // Encoded bytes of reused messages, by identity and dropped with the message, null if messages aren't reused
+    private final ConcurrentMap<T, byte[]> encodedMessages;
+
+    @SuppressWarnings("unchecked")
+    private HotPathMarshaller(T prototype, boolean reusedMessages) {
+        this.prototype = prototype;
+        this.parser = (Parser<T>) prototype.getParserForType();
+        this.encodedMessages = reusedMessages ? new MapMaker().weakKeys().makeMap() : null;
+    }
+
+    /**
+     * Get the method with hot path marshallers if it is one of the hot methods, otherwise the method itself.
+     */
+    @SuppressWarnings("unchecked")
+    public static <ReqT, RespT> MethodDescriptor<ReqT, RespT> withHotPathMarshallers(MethodDescriptor<ReqT, RespT> method) {
+        Boolean reusedResponses = HOT_METHODS.get(method.getFullMethodName());
+        if (reusedResponses == null) {
+            return method;
+        }
+        return (MethodDescriptor<ReqT, RespT>) hotMethodDescriptors.computeIfAbsent(method.getFullMethodName(), name -> method.toBuilder(
+                marshallerOf(method.getRequestMarshaller(), false),
+                marshallerOf(method.getResponseMarshaller(), reusedResponses)
+        ).build());
+    }
+
+    /**
+     * Get the service definition whose hot methods use hot path marshallers.
+     */
+    public static ServerServiceDefinition bindHotMethods(ServerServiceDefinition service) {
+        // The generated service descriptor only accepts its own method descriptors
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(service.getServiceDescriptor().getName());
+        for (ServerMethodDefinition<?, ?> method : service.getMethods()) {
+            builder.addMethod(withHotPathMarshallers(method));
+        }
+        return builder.build();
+    }
+
+    private static <ReqT, RespT> ServerMethodDefinition<ReqT, RespT> withHotPathMarshallers(ServerMethodDefinition<ReqT, RespT> method) {
+        MethodDescriptor<ReqT, RespT> descriptor = withHotPathMarshallers(method.getMethodDescriptor());
+        if (descriptor == method.getMethodDescriptor()) {
+            return method;
+        }
+        return ServerMethodDefinition.create(descriptor, method.getServerCallHandler());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> MethodDescriptor.Marshaller<T> marshallerOf(MethodDescriptor.Marshaller<T> generated, boolean reusedMessages) {
+        T prototype = ((MethodDescriptor.PrototypeMarshaller<T>) generated).getMessagePrototype();
+        return (MethodDescriptor.Marshaller<T>) new HotPathMarshaller<>((MessageLite) prototype, reusedMessages);
+    }
+
+    @Override
+    public T getMessagePrototype() {
+        return prototype;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Class<T> getMessageClass() {
+        return (Class<T>) prototype.getClass();
+    }
+
+    @Override
+    public InputStream stream(T value) {
+        return new MessageStream<>(value, parser, encodedMessages);
+    }
+
+    @Override
+    public T parse(InputStream stream) {
+        // The in-process transport hands over the stream of the sender's own marshaller
+        if (stream instanceof MessageStream && ((MessageStream<?>) stream).parser == parser) {
+            @SuppressWarnings("unchecked")
+            T message = (T) ((MessageStream<?>) stream).message;
+            return message;
+        }
+
+        try {
+            int size = stream instanceof KnownLength ? stream.available() : -1;
+            if (size < 0 || size > SCRATCH_SIZE) {
+                return parser.parseFrom(stream);
+            }
+
+            byte[] buffer = scratch.get();
+            int read = 0;
+            while (read < size) {
+                int count = stream.read(buffer, read, size - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != size) {
+                throw Status.INTERNAL.withDescription("Message of " + size + " bytes ended after " + read + " bytes").asRuntimeException();
+            }
+            return parser.parseFrom(buffer, 0, size);
+        } catch (InvalidProtocolBufferException e) {
+            throw Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+        } catch (IOException e) {
+            throw Status.INTERNAL.withDescription("Failed to read the message").withCause(e).asRuntimeException();
+        }
+    }
+
+    /**
+     * Stream of a message, drained by the transport straight into its buffer. Only reading it byte by byte,
+     * e.g. to copy a message between channels, allocates its encoded bytes.
+     */
+    private static final class MessageStream<T extends MessageLite> extends InputStream implements Drainable, KnownLength {
+
+        final T message;
+        final Parser<T> parser;
+        private final ConcurrentMap<T, byte[]> encodedMessages;
+        // Bytes not drained yet, read() encodes the message into it on first use
+        private ByteArrayInputStream remaining;
+        private boolean drained;
+
+        MessageStream(T message, Parser<T> parser, ConcurrentMap<T, byte[]> encodedMessages) {
+            this.message = message;
+            this.parser = parser;
+            this.encodedMessages = encodedMessages;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            if (drained) {
+                return 0;
+            }
+            drained = true;
+            if (remaining != null) {
+                int size = remaining.available();
+                byte[] bytes = new byte[size];
+                remaining.read(bytes, 0, size);
+                target.write(bytes);
+                return size;
+            }
+
+            byte[] encoded = encodedMessages != null ? encodedMessages.get(message) : null;
+            if (encoded != null) {
+                target.write(encoded);
+                return encoded.length;
+            }
+
+            int size = message.getSerializedSize();
+            if (size > SCRATCH_SIZE || encodedMessages != null) {
+                // Reused messages are worth keeping, the rest are too large for the scratch array
+                encoded = message.toByteArray();
+                if (encodedMessages != null) {
+                    encodedMessages.put(message, encoded);
+                }
+                target.write(encoded);
+                return size;
+            }
+
+            byte[] buffer = scratch.get();
+            CodedOutputStream output = CodedOutputStream.newInstance(buffer, 0, size);
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+            target.write(buffer, 0, size);
+            return size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return remaining().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return remaining().read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            if (drained) {
+                return 0;
+            }
+            return remaining != null ? remaining.available() : message.getSerializedSize();
+        }
+
+        private ByteArrayInputStream remaining() {
+            if (remaining == null) {
+                remaining = new ByteArrayInputStream(drained ? new byte[0] : message.toByteArray());
+            }
+            return remaining;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package smarthome.common;
+
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+import org.iq80.snappy.SnappyFramedInputStream;
+import org.iq80.snappy.SnappyFramedOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Snappy message encoding for gRPC, in the framing format of the Snappy specification.
+ * Compresses less than gzip but several times faster, for large streams on a fast network where gzip would
+ * cost more CPU than the bandwidth it saves.
+ * Client and server register it in their registries, see compressorRegistry() and decompressorRegistry().
+ */
+public final class SnappyCodec implements Codec {
+
+    public static final String MESSAGE_ENCODING = "snappy";
+    public static final String GZIP_MESSAGE_ENCODING = "gzip";
+
+    public static final SnappyCodec INSTANCE = new SnappyCodec();
+
+    private SnappyCodec() {
+    }
+
+    @Override
+    public String getMessageEncoding() {
+        return MESSAGE_ENCODING;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream os) throws IOException {
+        return new SnappyFramedOutputStream(os);
+    }
+
+    @Override
+    public InputStream decompress(InputStream is) throws IOException {
+        return new SnappyFramedInputStream(is, true);
+    }
+
+    /**
+     * Compressors for the messages sent: gzip and snappy.
+     */
+    public static CompressorRegistry compressorRegistry() {
+        CompressorRegistry registry = CompressorRegistry.newEmptyInstance();
+        registry.register(new Codec.Gzip());
+        registry.register(INSTANCE);
+        return registry;
+    }
+
+    /**
+     * Decompressors of the messages received, advertised to the other side so it can pick one: gzip and snappy.
+     */
+    public static DecompressorRegistry decompressorRegistry() {
+        return DecompressorRegistry.getDefaultInstance().with(INSTANCE, true);
+    }
+}
@@ -17,6 +17,10 @@ public class AuthorizationServerInterceptor implements ServerInterceptor {
     public static final Metadata.Key<String> AUTHORIZATION_METADATA_KEY = Metadata.Key.of("Authorization", ASCII_STRING_MARSHALLER);
     public static final Context.Key<String> CLIENT_ID_CONTEXT_KEY = Context.key("clientId");
 
+    // Home the client belongs to, taken from the token's "homeId" claim and otherwise the client ID
+    public static final String HOME_ID_CLAIM = "homeId";
+    public static final Context.Key<String> HOME_ID_CONTEXT_KEY = Context.key("homeId");
+
     private final JwtParser parser = Jwts.parser().setSigningKey(JWT_SIGNING_KEY);
 
     /**
@@ -37,7 +41,11 @@ public class AuthorizationServerInterceptor implements ServerInterceptor {
             try {
                 String token = value.substring(BEARER_TYPE.length()).trim();
                 Jws<Claims> claims = parser.parseClaimsJws(token);
-                Context ctx = Context.current().withValue(CLIENT_ID_CONTEXT_KEY, claims.getBody().getSubject());
+                String clientId = claims.getBody().getSubject();
+                String homeId = claims.getBody().get(HOME_ID_CLAIM, String.class);
+                Context ctx = Context.current()
+                        .withValue(CLIENT_ID_CONTEXT_KEY, clientId)
+                        .withValue(HOME_ID_CONTEXT_KEY, homeId != null ? homeId : clientId);
                 return Contexts.interceptCall(ctx, serverCall, metadata, serverCallHandler);
             } catch (Exception e) {
                 status = Status.UNAUTHENTICATED.withDescription(e.getMessage()).withCause(e);
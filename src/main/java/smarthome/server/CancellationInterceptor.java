@@ -0,0 +1,41 @@
+package smarthome.server;
+
+import io.grpc.*;
+import smarthome.server.services.WastedWork;
+
+public class CancellationInterceptor implements ServerInterceptor {
+
+    /**
+     * Intercepts the all calls incoming to any of the server services and skips the handler of those whose client
+     * is already gone when the request is handed over, e.g. calls that waited in the executor queue past their
+     * deadline. The handlers check for cancellation themselves while streaming.
+     */
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata headers,
+            ServerCallHandler<ReqT, RespT> next
+    ) {
+        // The server cancels the call's context when the client cancels or the deadline expires
+        if (Context.current().isCancelled()) {
+            WastedWork.callCancelled(0);
+            return new ServerCall.Listener<ReqT>() {};
+        }
+
+        // Calls with a single request run their handler when the request is complete
+        if (!call.getMethodDescriptor().getType().clientSendsOneMessage()) {
+            return next.startCall(call, headers);
+        }
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(next.startCall(call, headers)) {
+            @Override
+            public void onHalfClose() {
+                if (Context.current().isCancelled()) {
+                    WastedWork.callCancelled(0);
+                    return;
+                }
+                super.onHalfClose();
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+package smarthome.server;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compresses the responses of the configured streaming methods, e.g. history and snapshot streams.
+ * Each method has its own encoding (gzip or snappy, see SnappyCodec), used only when the client advertised it
+ * in its grpc-accept-encoding header, otherwise the responses are sent uncompressed.
+ * gRPC compresses every message on its own, so only the messages of at least minMessageSize bytes are
+ * compressed: smaller ones would barely shrink, or even grow, for the CPU spent. Unary calls are left alone.
+ */
+public class CompressionInterceptor implements ServerInterceptor {
+
+    public static final int DEFAULT_MIN_MESSAGE_SIZE = 256;
+
+    private final Map<String, String> methodEncodings;
+    private final int minMessageSize;
+
+    private CompressionInterceptor(Builder builder) {
+        this.methodEncodings = new HashMap<>(builder.methodEncodings);
+        this.minMessageSize = builder.minMessageSize;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Intercepts the all calls incoming to any of the server services and sets the compression of the responses
+     * of the configured methods.
+     */
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata headers,
+            ServerCallHandler<ReqT, RespT> next
+    ) {
+        String encoding = methodEncodings.get(call.getMethodDescriptor().getFullMethodName());
+        if (encoding == null || call.getMethodDescriptor().getType().serverSendsOneMessage()) {
+            return next.startCall(call, headers);
+        }
+
+        // gRPC falls back to no compression if the client doesn't accept the encoding
+        call.setCompression(encoding);
+        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                // Protobuf remembers the size, the marshaller doesn't compute it again
+                boolean large = !(message instanceof MessageLite) || ((MessageLite) message).getSerializedSize() >= minMessageSize;
+                super.setMessageCompression(large);
+                super.sendMessage(message);
+            }
+        }, headers);
+    }
+
+    /**
+     * Builder for the encoding of each method and the size threshold.
+     */
+    public static class Builder {
+        private final Map<String, String> methodEncodings = new HashMap<>();
+        private int minMessageSize = DEFAULT_MIN_MESSAGE_SIZE;
+
+        private Builder() {
+        }
+
+        /**
+         * Compress the responses of the server streaming method with the given encoding, e.g. "gzip" or "snappy".
+         */
+        public Builder methodCompression(MethodDescriptor<?, ?> method, String encoding) {
+            methodEncodings.put(method.getFullMethodName(), encoding);
+            return this;
+        }
+
+        /**
+         * Only compress the messages of at least the given serialized size.
+         */
+        public Builder minMessageSize(int minMessageSize) {
+            if (minMessageSize < 0) {
+                throw new IllegalArgumentException("minMessageSize must not be negative");
+            }
+            this.minMessageSize = minMessageSize;
+            return this;
+        }
+
+        public CompressionInterceptor build() {
+            return new CompressionInterceptor(this);
+        }
+    }
+}
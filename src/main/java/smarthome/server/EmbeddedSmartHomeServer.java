@@ -0,0 +1,112 @@
+package smarthome.server;
+
+import com.google.common.io.ByteStreams;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessServerBuilder;
+import smarthome.common.HotPathMarshaller;
+import smarthome.server.services.climate.ClimateService;
+import smarthome.server.services.home.HomeService;
+import smarthome.server.services.lighting.LightingService;
+import smarthome.server.services.security.SecurityService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the smart home services inside the JVM of the software using them, e.g. a hub running the controller logic
+ * itself. The server is only reachable through gRPC's in-process transport under its name, see
+ * ChannelPool.newInProcessBuilder(name), so calls skip the sockets, Netty and HTTP/2 framing altogether and the
+ * handlers run on the calling thread.
+ * With zero serialization the request and response messages are handed over as objects, otherwise they are
+ * encoded and parsed again as over the network, e.g. to check the behavior of a remote server.
+ * Calls are authorized like on SmartHomeServer, but not logged, rate limited or shed: the only caller is the
+ * embedding software.
+ */
+public class EmbeddedSmartHomeServer {
+
+    // Encodes messages that must not be passed as objects, see ServerInterceptors.useMarshalledMessages()
+    private static final MethodDescriptor.Marshaller<byte[]> BYTES_MARSHALLER = new MethodDescriptor.Marshaller<byte[]>() {
+        @Override
+        public InputStream stream(byte[] value) {
+            return new ByteArrayInputStream(value);
+        }
+
+        @Override
+        public byte[] parse(InputStream stream) {
+            try {
+                return ByteStreams.toByteArray(stream);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    private final String name;
+    private final LightingService lightingService = new LightingService();
+    private final ClimateService climateService = new ClimateService();
+    private final SecurityService securityService = new SecurityService();
+    private final HomeService homeService = new HomeService(lightingService, climateService, securityService);
+    private final Server server;
+
+    public EmbeddedSmartHomeServer(String name, boolean zeroSerialization) {
+        this(name, zeroSerialization, false);
+    }
+
+    /**
+     * Create a server that marshals the hottest calls with HotPathMarshaller when asked to. With zero serialization,
+     * the pools of the clients must be built with the same hotPathMarshallers setting, or the messages of those
+     * calls are serialized to switch marshallers.
+     */
+    public EmbeddedSmartHomeServer(String name, boolean zeroSerialization, boolean hotPathMarshallers) {
+        this.name = name;
+
+        // Handlers don't block, so they run right on the caller's thread instead of being handed to a pool
+        InProcessServerBuilder serverBuilder = InProcessServerBuilder.forName(name).directExecutor();
+        List<ServerServiceDefinition> services = Arrays.asList(
+                lightingService.bindService(),
+                climateService.bindService(),
+                securityService.bindService(),
+                homeService.bindService());
+        for (ServerServiceDefinition service : services) {
+            if (hotPathMarshallers) {
+                service = HotPathMarshaller.bindHotMethods(service);
+            }
+            // The last interceptor runs first, as on SmartHomeServer
+            ServerServiceDefinition intercepted = ServerInterceptors.intercept(service,
+                    new CancellationInterceptor(),
+                    new AuthorizationServerInterceptor());
+            serverBuilder.addService(zeroSerialization
+                    ? intercepted
+                    : ServerInterceptors.useMarshalledMessages(intercepted, BYTES_MARSHALLER));
+        }
+        this.server = serverBuilder.build();
+    }
+
+    public EmbeddedSmartHomeServer start() throws IOException {
+        server.start();
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Stop the server and the climate control, waiting up to the given time for the running calls to finish.
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        server.shutdown();
+        climateService.shutdown();
+        if (!server.awaitTermination(timeout, unit)) {
+            server.shutdownNow();
+        }
+    }
+}
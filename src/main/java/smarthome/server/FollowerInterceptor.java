@@ -0,0 +1,67 @@
+package smarthome.server;
+
+import io.grpc.*;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.home.HomeServiceGrpc;
+import smarthome.generated.lighting.LightingServiceGrpc;
+import smarthome.generated.security.SecurityServiceGrpc;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class FollowerInterceptor implements ServerInterceptor {
+
+    // Methods that only read the state, the only ones a follower serves
+    private static final Set<String> READ_ONLY_METHODS = new HashSet<>(Arrays.asList(
+            LightingServiceGrpc.getWatchLightingDevicesMethod().getFullMethodName(),
+            LightingServiceGrpc.getGetChangesSinceMethod().getFullMethodName(),
+            ClimateServiceGrpc.getGetClimateDevicesStateMethod().getFullMethodName(),
+            ClimateServiceGrpc.getGetTemperatureHistoryMethod().getFullMethodName(),
+            ClimateServiceGrpc.getGetHumidityHistoryMethod().getFullMethodName(),
+            ClimateServiceGrpc.getWatchClimateDevicesStateMethod().getFullMethodName(),
+            ClimateServiceGrpc.getWatchReadingsMethod().getFullMethodName(),
+            ClimateServiceGrpc.getGetChangesSinceMethod().getFullMethodName(),
+            SecurityServiceGrpc.getRespondToSecurityEventMethod().getFullMethodName(),
+            SecurityServiceGrpc.getWatchDoorStatesMethod().getFullMethodName(),
+            SecurityServiceGrpc.getGetChangesSinceMethod().getFullMethodName(),
+            HomeServiceGrpc.getGetHomeSnapshotMethod().getFullMethodName()
+    ));
+
+    private final FollowerReplicator replicator;
+    private final long maxStalenessMillis;
+
+    public FollowerInterceptor(FollowerReplicator replicator, long maxStalenessMillis) {
+        this.replicator = replicator;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    /**
+     * Intercepts the all calls incoming to a follower server: writes are rejected until the follower is promoted,
+     * and reads are rejected while the follower is further behind the primary than the maximum staleness.
+     */
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata headers,
+            ServerCallHandler<ReqT, RespT> next
+    ) {
+        if (replicator.isPromoted()) {
+            return next.startCall(call, headers);
+        }
+
+        Status status;
+        long stalenessMillis = replicator.getStalenessMillis();
+        if (!READ_ONLY_METHODS.contains(call.getMethodDescriptor().getFullMethodName())) {
+            status = Status.FAILED_PRECONDITION.withDescription("This server is a read-only follower, send writes to the primary");
+        } else if (stalenessMillis > maxStalenessMillis) {
+            status = Status.UNAVAILABLE.withDescription("This follower is " + stalenessMillis + " ms behind the primary");
+        } else {
+            return next.startCall(call, headers);
+        }
+
+        // Close the call with an error status without reaching the service
+        call.close(status, new Metadata());
+        return new ServerCall.Listener<ReqT>() {};
+    }
+}
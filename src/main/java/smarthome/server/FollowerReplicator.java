@@ -0,0 +1,457 @@
+package smarthome.server;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarthome.client.ChannelPool;
+import smarthome.client.SmartHomeClient;
+import smarthome.generated.climate.ClimateDevicesStateChange;
+import smarthome.generated.climate.ClimateReading;
+import smarthome.generated.general.ChangeType;
+import smarthome.generated.lighting.LightingDeviceChange;
+import smarthome.generated.security.DoorStateChange;
+import smarthome.server.services.ChangeFeed;
+import smarthome.server.services.climate.ClimateService;
+import smarthome.server.services.lighting.LightingService;
+import smarthome.server.services.security.SecurityService;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps the services of a follower server in sync with a primary server.
+ * The follower follows the change feeds of the primary's lighting, climate and security services, which are
+ * the primary's mutation log, and the readings of every climate zone, and applies them in order to its own
+ * services. After a dropped stream it catches up from the last applied version, or from a new snapshot when
+ * the primary no longer has the missed changes.
+ * The primary sends a heartbeat with its version on every feed each second, so the follower knows how stale it is
+ * even when nothing changes: its staleness is the time since a feed last applied a change or a heartbeat of the
+ * version it holds. A feed that stays silent for a few heartbeats is reconnected, since its stream may be stuck
+ * behind a dead connection, which the keepalive of the replication channel detects on its own only later.
+ * Once the follower has been stale for the promotion delay, it stops following and is promoted to a primary
+ * accepting writes.
+ * A follower that never synced all feeds is never promoted on its own, it would take over with an empty state.
+ */
+public class FollowerReplicator {
+
+    private static final Logger logger = LoggerFactory.getLogger(FollowerReplicator.class);
+
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long PROMOTION_CHECK_MILLIS = 500;
+    // A feed without a change or a heartbeat for this long is reconnected
+    private static final long SILENT_FEED_MILLIS = 5 * ChangeFeed.HEARTBEAT_INTERVAL_MILLIS;
+    // Keepalive pings of the replication channel, the primary permits pings this often
+    private static final long KEEPALIVE_MILLIS = 10_000;
+    private static final long KEEPALIVE_TIMEOUT_MILLIS = 5_000;
+
+    private final SmartHomeClient primaryClient;
+    private final ClimateService climateService;
+    private final long promoteAfterMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final ReplicatedFeed<LightingDeviceChange> lightingFeed;
+    private final ReplicatedFeed<ClimateDevicesStateChange> climateFeed;
+    private final ReplicatedFeed<DoorStateChange> securityFeed;
+
+    // Readings stream of every zone known from the climate feed
+    private final Map<Integer, ReadingsStream> readingsStreams = new ConcurrentHashMap<>();
+
+    private volatile boolean promoted;
+    // Set once the refusal to promote a follower that never synced has been logged, so it is logged once
+    private boolean promotionRefusalLogged;
+
+    /**
+     * Follow the primary at the given address. A promoteAfterMillis of 0 or less never promotes the follower.
+     */
+    public FollowerReplicator(String primaryHost, int primaryPort,
+                              LightingService lightingService,
+                              ClimateService climateService,
+                              SecurityService securityService,
+                              long promoteAfterMillis) {
+        this.primaryClient = new SmartHomeClient(ChannelPool.newBuilder(primaryHost, primaryPort)
+                .keepAliveTime(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(KEEPALIVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .build());
+        this.climateService = climateService;
+        this.promoteAfterMillis = promoteAfterMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smarthome-replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.lightingFeed = new ReplicatedFeed<>("lighting",
+                primaryClient::watchLightingDevices,
+                primaryClient::getLightingDeviceChangesSince,
+                LightingDeviceChange::getVersion,
+                LightingDeviceChange::getChangeType,
+                lightingService::applyReplicatedChange);
+
+        this.climateFeed = new ReplicatedFeed<>("climate",
+                primaryClient::watchClimateDevicesState,
+                primaryClient::getClimateDevicesStateChangesSince,
+                ClimateDevicesStateChange::getVersion,
+                ClimateDevicesStateChange::getChangeType,
+                change -> {
+                    climateService.applyReplicatedChange(change);
+                    if (change.getChangeType() == ChangeType.UPSERT) {
+                        followReadings(change.getClimateDevicesState().getZoneId());
+                    }
+                });
+
+        this.securityFeed = new ReplicatedFeed<>("security",
+                primaryClient::watchDoorStates,
+                primaryClient::getDoorStateChangesSince,
+                DoorStateChange::getVersion,
+                DoorStateChange::getChangeType,
+                securityService::applyReplicatedChange);
+    }
+
+    /**
+     * Start following the primary.
+     */
+    public void start() {
+        lightingFeed.subscribe();
+        climateFeed.subscribe();
+        securityFeed.subscribe();
+
+        scheduler.scheduleWithFixedDelay(this::reconnectSilentFeeds,
+                ChangeFeed.HEARTBEAT_INTERVAL_MILLIS, ChangeFeed.HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (promoteAfterMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::checkPromotion, PROMOTION_CHECK_MILLIS, PROMOTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    /**
+     * Time since the follower was last known to hold the primary's state, i.e. since the least recently confirmed
+     * change feed applied a change or a heartbeat of the primary's version.
+     */
+    public long getStalenessMillis() {
+        long now = System.currentTimeMillis();
+        return Math.max(lightingFeed.getStalenessMillis(now),
+                Math.max(climateFeed.getStalenessMillis(now), securityFeed.getStalenessMillis(now)));
+    }
+
+    /**
+     * Stop following the primary and accept writes from now on.
+     */
+    public synchronized void promote() {
+        if (promoted) {
+            return;
+        }
+        promoted = true;
+        logger.warn("Promoting this follower to primary, {} ms behind the last known state of the old primary", getStalenessMillis());
+
+        lightingFeed.cancel();
+        climateFeed.cancel();
+        securityFeed.cancel();
+        for (ReadingsStream readingsStream : readingsStreams.values()) {
+            readingsStream.cancel();
+        }
+        scheduler.shutdownNow();
+        primaryClient.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Whether every change feed has been in sync with the primary at least once.
+     */
+    public boolean hasSynced() {
+        return lightingFeed.hasSynced() && climateFeed.hasSynced() && securityFeed.hasSynced();
+    }
+
+    private void checkPromotion() {
+        if (getStalenessMillis() < promoteAfterMillis) {
+            return;
+        }
+        if (!hasSynced()) {
+            if (!promotionRefusalLogged) {
+                promotionRefusalLogged = true;
+                logger.error("Not promoting this follower: the primary has been unreachable for {} ms but it never synced "
+                        + "with it, so it has none of its state. Waiting for the primary", getStalenessMillis());
+            }
+            return;
+        }
+        promote();
+    }
+
+    private void reconnectSilentFeeds() {
+        long now = System.currentTimeMillis();
+        lightingFeed.reconnectIfSilent(now);
+        climateFeed.reconnectIfSilent(now);
+        securityFeed.reconnectIfSilent(now);
+    }
+
+    private void followReadings(int zoneId) {
+        if (!promoted && !readingsStreams.containsKey(zoneId)) {
+            ReadingsStream readingsStream = new ReadingsStream(zoneId);
+            if (readingsStreams.putIfAbsent(zoneId, readingsStream) == null) {
+                readingsStream.subscribe();
+            }
+        }
+    }
+
+    /**
+     * One change feed of the primary and the version of it applied so far.
+     */
+    private class ReplicatedFeed<C> {
+
+        private final String name;
+        private final BiConsumer<Long, StreamObserver<C>> openWatch;
+        private final BiConsumer<Long, StreamObserver<C>> fetchChangesSince;
+        private final ToLongFunction<C> versionOf;
+        private final Function<C, ChangeType> typeOf;
+        private final Consumer<C> apply;
+
+        // Guarded by this
+        private long version = -1;
+        private ClientCallStreamObserver<?> stream;
+
+        private volatile boolean synced;
+        private volatile boolean everSynced;
+        // When the feed last held the primary's version, confirmed by a change, a heartbeat or a catch up
+        private volatile long confirmedAtMillis = System.currentTimeMillis();
+
+        ReplicatedFeed(String name,
+                       BiConsumer<Long, StreamObserver<C>> openWatch,
+                       BiConsumer<Long, StreamObserver<C>> fetchChangesSince,
+                       ToLongFunction<C> versionOf,
+                       Function<C, ChangeType> typeOf,
+                       Consumer<C> apply) {
+            this.name = name;
+            this.openWatch = openWatch;
+            this.fetchChangesSince = fetchChangesSince;
+            this.versionOf = versionOf;
+            this.typeOf = typeOf;
+            this.apply = apply;
+        }
+
+        long getStalenessMillis(long now) {
+            return Math.max(0, now - confirmedAtMillis);
+        }
+
+        boolean hasSynced() {
+            return everSynced;
+        }
+
+        /**
+         * Open the watch stream, resuming from the applied version once the feed is in sync.
+         */
+        void subscribe() {
+            long fromVersion;
+            synchronized (this) {
+                fromVersion = synced ? version : 0;
+            }
+
+            openWatch.accept(fromVersion, new ClientResponseObserver<Object, C>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<Object> requestStream) {
+                    synchronized (ReplicatedFeed.this) {
+                        stream = requestStream;
+                    }
+                }
+
+                @Override
+                public void onNext(C change) {
+                    onChange(change, false);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.warn("Replication of the {} feed failed: {}", name, t.getMessage());
+                    markUnsyncedAndReconnect();
+                }
+
+                @Override
+                public void onCompleted() {
+                    logger.info("The primary completed the {} feed", name);
+                    markUnsyncedAndReconnect();
+                }
+            });
+        }
+
+        /**
+         * Apply the changes missed since the applied version, then resume the watch stream from there.
+         */
+        private void catchUp() {
+            long fromVersion;
+            synchronized (this) {
+                fromVersion = version;
+            }
+            if (promoted) {
+                return;
+            }
+            if (fromVersion <= 0) {
+                subscribe();
+                return;
+            }
+
+            fetchChangesSince.accept(fromVersion, new StreamObserver<C>() {
+                @Override
+                public void onNext(C change) {
+                    onChange(change, true);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.warn("Catching up the {} feed failed: {}", name, t.getMessage());
+                    markUnsyncedAndReconnect();
+                }
+
+                @Override
+                public void onCompleted() {
+                    markSynced();
+                    subscribe();
+                }
+            });
+        }
+
+        private synchronized void onChange(C change, boolean catchingUp) {
+            if (promoted) {
+                return;
+            }
+            long changeVersion = versionOf.applyAsLong(change);
+
+            if (typeOf.apply(change) == ChangeType.RESET) {
+                // A new snapshot of the primary follows
+                apply.accept(change);
+                version = changeVersion;
+                if (!catchingUp) {
+                    markSynced();
+                }
+                return;
+            }
+
+            if ((!synced && !catchingUp) || changeVersion < version) {
+                // Not synced yet or an old change, nothing to apply
+                return;
+            }
+
+            if (typeOf.apply(change) == ChangeType.HEARTBEAT) {
+                if (changeVersion == version) {
+                    // Nothing changed on the primary since the last applied change
+                    confirmedAtMillis = System.currentTimeMillis();
+                } else if (stream != null) {
+                    logger.warn("The {} feed is at version {} but the primary at {}, catching up", name, version, changeVersion);
+                    stream.cancel("Missed changes, catching up", null);
+                }
+                return;
+            }
+
+            if (changeVersion == version || changeVersion == version + 1) {
+                // Either a snapshot entry or the next change in sequence
+                apply.accept(change);
+                version = changeVersion;
+                if (!catchingUp) {
+                    confirmedAtMillis = System.currentTimeMillis();
+                }
+            } else if (stream != null) {
+                // The version jumped, catch up with the missed changes
+                logger.warn("The {} feed missed changes between versions {} and {}, catching up", name, version, changeVersion);
+                stream.cancel("Missed changes, catching up", null);
+            }
+        }
+
+        private synchronized void markSynced() {
+            synced = true;
+            everSynced = true;
+            confirmedAtMillis = System.currentTimeMillis();
+        }
+
+        private void markUnsyncedAndReconnect() {
+            synchronized (this) {
+                synced = false;
+            }
+            if (!promoted) {
+                scheduler.schedule(this::catchUp, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Cancel the watch stream of a synced feed that got neither a change nor a heartbeat for a while,
+         * its error handler then catches up and resubscribes.
+         */
+        synchronized void reconnectIfSilent(long now) {
+            if (synced && stream != null && now - confirmedAtMillis > SILENT_FEED_MILLIS) {
+                logger.warn("The {} feed got no heartbeat for {} ms, reconnecting", name, now - confirmedAtMillis);
+                stream.cancel("No heartbeat from the primary", null);
+            }
+        }
+
+        synchronized void cancel() {
+            if (stream != null) {
+                stream.cancel("Follower promoted", null);
+            }
+        }
+    }
+
+    /**
+     * The readings stream of one zone. It has no versions, so every reconnect starts again from the full history.
+     */
+    private class ReadingsStream {
+
+        private final int zoneId;
+
+        // Guarded by this
+        private ClientCallStreamObserver<?> stream;
+
+        ReadingsStream(int zoneId) {
+            this.zoneId = zoneId;
+        }
+
+        void subscribe() {
+            if (promoted) {
+                return;
+            }
+
+            // The primary sends the whole history first
+            climateService.clearReplicatedReadings(zoneId);
+            primaryClient.watchReadings(zoneId, 0, new ClientResponseObserver<Object, ClimateReading>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<Object> requestStream) {
+                    synchronized (ReadingsStream.this) {
+                        stream = requestStream;
+                    }
+                }
+
+                @Override
+                public void onNext(ClimateReading reading) {
+                    if (!promoted) {
+                        climateService.applyReplicatedReading(zoneId, reading);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    reconnect();
+                }
+
+                @Override
+                public void onCompleted() {
+                    reconnect();
+                }
+            });
+        }
+
+        private void reconnect() {
+            if (!promoted) {
+                scheduler.schedule(this::subscribe, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void cancel() {
+            if (stream != null) {
+                stream.cancel("Follower promoted", null);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package smarthome.server;
+
+import io.grpc.ServerServiceDefinition;
+import smarthome.server.services.climate.ClimateControlEngine;
+import smarthome.server.services.climate.ClimateService;
+import smarthome.server.services.home.HomeService;
+import smarthome.server.services.lighting.LightingService;
+import smarthome.server.services.security.SecurityService;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The lighting, climate and security state of one home on a multi-home server.
+ * Each home has its own service instances, so homes never share a map, a lock or a change feed, and a home's
+ * watchers only see the changes of that home. The climate service, which runs a control tick, and the bound
+ * service definitions are only created once the home uses them, so idle homes stay cheap.
+ */
+class HomePartition {
+
+    private final String homeId;
+    private final ScheduledExecutorService controlScheduler;
+    private final ScheduledExecutorService flushScheduler;
+    private final int maxClimateZones;
+
+    private final LightingService lightingService = new LightingService();
+    private final SecurityService securityService = new SecurityService();
+
+    // Created on first use, guarded by this
+    private ClimateService climateService;
+    private HomeService homeService;
+
+    // Bound on first use, binding twice in a race is harmless since both definitions call the same service
+    private volatile ServerServiceDefinition lightingDefinition;
+    private volatile ServerServiceDefinition climateDefinition;
+    private volatile ServerServiceDefinition securityDefinition;
+    private volatile ServerServiceDefinition homeDefinition;
+
+    HomePartition(String homeId, ScheduledExecutorService controlScheduler, ScheduledExecutorService flushScheduler,
+                  int maxLightingDevices, int maxSecurityDevices, int maxClimateZones) {
+        this.homeId = homeId;
+        this.controlScheduler = controlScheduler;
+        this.flushScheduler = flushScheduler;
+        this.maxClimateZones = maxClimateZones;
+        lightingService.setMaxDevices(maxLightingDevices);
+        securityService.setMaxDevices(maxSecurityDevices);
+    }
+
+    String getHomeId() {
+        return homeId;
+    }
+
+    synchronized ClimateService getClimateService() {
+        if (climateService == null) {
+            climateService = new ClimateService(new ClimateControlEngine(), controlScheduler, flushScheduler);
+            climateService.setMaxZones(maxClimateZones);
+        }
+        return climateService;
+    }
+
+    synchronized HomeService getHomeService() {
+        if (homeService == null) {
+            homeService = new HomeService(lightingService, getClimateService(), securityService);
+        }
+        return homeService;
+    }
+
+    ServerServiceDefinition getLightingDefinition() {
+        if (lightingDefinition == null) {
+            lightingDefinition = lightingService.bindService();
+        }
+        return lightingDefinition;
+    }
+
+    ServerServiceDefinition getClimateDefinition() {
+        if (climateDefinition == null) {
+            climateDefinition = getClimateService().bindService();
+        }
+        return climateDefinition;
+    }
+
+    ServerServiceDefinition getSecurityDefinition() {
+        if (securityDefinition == null) {
+            securityDefinition = securityService.bindService();
+        }
+        return securityDefinition;
+    }
+
+    ServerServiceDefinition getHomeDefinition() {
+        if (homeDefinition == null) {
+            homeDefinition = getHomeService().bindService();
+        }
+        return homeDefinition;
+    }
+
+    /**
+     * Stop the climate control tick of the home.
+     */
+    synchronized void shutdown() {
+        if (climateService != null) {
+            climateService.shutdown();
+        }
+    }
+}
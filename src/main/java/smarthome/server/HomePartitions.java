@@ -0,0 +1,141 @@
+package smarthome.server;
+
+import io.grpc.*;
+import io.grpc.util.TransmitStatusRuntimeExceptionInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.home.HomeServiceGrpc;
+import smarthome.generated.lighting.LightingServiceGrpc;
+import smarthome.generated.security.SecurityServiceGrpc;
+import smarthome.server.services.climate.ClimateService;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+
+/**
+ * Hosts many homes on one server, each in its own HomePartition.
+ * The home of a call is the one of the client's token, see AuthorizationServerInterceptor.HOME_ID_CONTEXT_KEY,
+ * and a home's partition is created on its first call. Every home is limited in the number of devices and zones
+ * it can register, and the server in the number of homes, calls over a limit fail with RESOURCE_EXHAUSTED.
+ * Homes share nothing but the scheduler running their climate control ticks, so calls of different homes
+ * never contend and the server scales with the number of cores.
+ */
+public class HomePartitions {
+
+    private static final Logger logger = LoggerFactory.getLogger(HomePartitions.class);
+
+    public static final int DEFAULT_MAX_HOMES = 1_000_000;
+    public static final int DEFAULT_MAX_LIGHTING_DEVICES = 1000;
+    public static final int DEFAULT_MAX_SECURITY_DEVICES = 1000;
+    public static final int DEFAULT_MAX_CLIMATE_ZONES = 100;
+
+    // Home of the calls made without a home, e.g. if the authorization interceptor is not installed
+    public static final String DEFAULT_HOME_ID = "default";
+
+    private final ConcurrentMap<String, HomePartition> partitions = new ConcurrentHashMap<>();
+
+    private final int maxHomes;
+    private final int maxLightingDevices;
+    private final int maxSecurityDevices;
+    private final int maxClimateZones;
+
+    // Run the climate control ticks and the ingestion flushes of every home
+    private final ScheduledExecutorService controlScheduler;
+    private final ScheduledExecutorService flushScheduler;
+
+    public HomePartitions() {
+        this(DEFAULT_MAX_HOMES, DEFAULT_MAX_LIGHTING_DEVICES, DEFAULT_MAX_SECURITY_DEVICES, DEFAULT_MAX_CLIMATE_ZONES);
+    }
+
+    public HomePartitions(int maxHomes, int maxLightingDevices, int maxSecurityDevices, int maxClimateZones) {
+        this.maxHomes = maxHomes;
+        this.maxLightingDevices = maxLightingDevices;
+        this.maxSecurityDevices = maxSecurityDevices;
+        this.maxClimateZones = maxClimateZones;
+        this.controlScheduler = ClimateService.newDaemonScheduler("climate-control-tick", Runtime.getRuntime().availableProcessors());
+        this.flushScheduler = ClimateService.newDaemonScheduler("climate-ingest-flush", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Get the service definitions to add to the server, each call is routed to the partition of the caller's home.
+     */
+    public List<ServerServiceDefinition> bindServices() {
+        return Arrays.asList(
+                route(LightingServiceGrpc.getServiceDescriptor(), HomePartition::getLightingDefinition),
+                // A climate call for a zone beyond the limit throws, the exception's status is sent to the client
+                ServerInterceptors.intercept(
+                        route(ClimateServiceGrpc.getServiceDescriptor(), HomePartition::getClimateDefinition),
+                        TransmitStatusRuntimeExceptionInterceptor.instance()),
+                route(SecurityServiceGrpc.getServiceDescriptor(), HomePartition::getSecurityDefinition),
+                route(HomeServiceGrpc.getServiceDescriptor(), HomePartition::getHomeDefinition));
+    }
+
+    /**
+     * Get the partition of a home, creating it on first use. Returns null when the server has no room for a new home.
+     */
+    HomePartition getPartition(String homeId) {
+        HomePartition partition = partitions.get(homeId);
+        if (partition != null) {
+            return partition;
+        }
+        if (partitions.size() >= maxHomes) {
+            return null;
+        }
+
+        HomePartition newPartition = new HomePartition(homeId, controlScheduler, flushScheduler, maxLightingDevices, maxSecurityDevices, maxClimateZones);
+        partition = partitions.putIfAbsent(homeId, newPartition);
+        if (partition != null) {
+            return partition;
+        }
+        logger.debug("Created the partition of home '{}'", homeId);
+        return newPartition;
+    }
+
+    public int getHomeCount() {
+        return partitions.size();
+    }
+
+    /**
+     * Stop the climate control of every home, e.g. when the server shuts down.
+     */
+    public void shutdown() {
+        for (HomePartition partition : partitions.values()) {
+            partition.shutdown();
+        }
+        controlScheduler.shutdownNow();
+        flushScheduler.shutdownNow();
+    }
+
+    private ServerServiceDefinition route(ServiceDescriptor descriptor, Function<HomePartition, ServerServiceDefinition> definitionOf) {
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(descriptor);
+        for (MethodDescriptor<?, ?> method : descriptor.getMethods()) {
+            addRoutedMethod(builder, method, definitionOf);
+        }
+        return builder.build();
+    }
+
+    private <ReqT, RespT> void addRoutedMethod(ServerServiceDefinition.Builder builder,
+                                               MethodDescriptor<ReqT, RespT> method,
+                                               Function<HomePartition, ServerServiceDefinition> definitionOf) {
+        String methodName = method.getFullMethodName();
+
+        builder.addMethod(method, (call, headers) -> {
+            String homeId = AuthorizationServerInterceptor.HOME_ID_CONTEXT_KEY.get();
+            HomePartition partition = getPartition(homeId != null ? homeId : DEFAULT_HOME_ID);
+            if (partition == null) {
+                call.close(Status.RESOURCE_EXHAUSTED.withDescription("No more than " + maxHomes + " homes allowed"), new Metadata());
+                return new ServerCall.Listener<ReqT>() {};
+            }
+
+            // Hand the call to the same method of the home's own service
+            @SuppressWarnings("unchecked")
+            ServerMethodDefinition<ReqT, RespT> target = (ServerMethodDefinition<ReqT, RespT>) definitionOf.apply(partition).getMethod(methodName);
+            return target.getServerCallHandler().startCall(call, headers);
+        });
+    }
+}
@@ -0,0 +1,283 @@
+package smarthome.server;
+
+import io.grpc.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.home.HomeServiceGrpc;
+import smarthome.generated.lighting.LightingServiceGrpc;
+import smarthome.generated.security.SecurityServiceGrpc;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+
+/**
+ * Adaptive concurrency limit for the server, so an overloaded server rejects the calls it can't serve early
+ * instead of getting slower for everyone until their deadlines expire.
+ * The limit follows a gradient of the handler latency, in the spirit of TCP Vegas: every window the average
+ * latency of the window is compared to the long-term latency, the limit shrinks when calls get slower than
+ * usual and grows by about its square root while they don't. The limit also shrinks whenever tasks queue up
+ * in the server executor, which means the handlers can't keep up however fast each of them is.
+ * Low-priority calls (history, snapshots and catch-up reads) are rejected once the server is at 3/4 of its limit,
+ * so the rest keeps room for lighting, climate and security commands. A client can set its own priority with the
+ * smarthome-priority header. Long-lived watch streams are not counted.
+ */
+public class LoadSheddingInterceptor implements ServerInterceptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadSheddingInterceptor.class);
+
+    public static final Metadata.Key<String> PRIORITY_METADATA_KEY = Metadata.Key.of("smarthome-priority", ASCII_STRING_MARSHALLER);
+    public static final String LOW_PRIORITY = "low";
+    public static final String HIGH_PRIORITY = "high";
+
+    // Methods served at low priority unless the client says otherwise
+    private static final Set<String> LOW_PRIORITY_METHODS = new HashSet<>(Arrays.asList(
+            ClimateServiceGrpc.getGetTemperatureHistoryMethod().getFullMethodName(),
+            ClimateServiceGrpc.getGetHumidityHistoryMethod().getFullMethodName(),
+            LightingServiceGrpc.getGetChangesSinceMethod().getFullMethodName(),
+            ClimateServiceGrpc.getGetChangesSinceMethod().getFullMethodName(),
+            SecurityServiceGrpc.getGetChangesSinceMethod().getFullMethodName(),
+            HomeServiceGrpc.getGetHomeSnapshotMethod().getFullMethodName()
+    ));
+
+    // Streams that stay open for the client's whole session
+    private static final Set<String> LONG_LIVED_METHODS = new HashSet<>(Arrays.asList(
+            LightingServiceGrpc.getWatchLightingDevicesMethod().getFullMethodName(),
+            ClimateServiceGrpc.getWatchClimateDevicesStateMethod().getFullMethodName(),
+            ClimateServiceGrpc.getWatchReadingsMethod().getFullMethodName(),
+            SecurityServiceGrpc.getWatchDoorStatesMethod().getFullMethodName()
+    ));
+
+    // Share of the limit low-priority calls can use
+    private static final double LOW_PRIORITY_SHARE = 0.75;
+    // Calls may take this much longer than the long-term latency before the limit shrinks
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // Weight of a window's latency in the long-term latency, and of a new limit in the current one
+    private static final double LONG_TERM_SMOOTHING = 0.02;
+    private static final double LIMIT_SMOOTHING = 0.2;
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_WINDOW_SAMPLES = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final ThreadPoolExecutor executor;
+    private final int maxQueuedTasks;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+    // Usual time the service takes to handle a call of each method once it has the request,
+    // a call with less time left before its deadline would time out anyway
+    private final ConcurrentMap<String, MethodLatency> methodLatencies = new ConcurrentHashMap<>();
+
+    // Current window and latency estimates, guarded by this
+    private double estimatedLimit;
+    private long windowStartNanos = System.nanoTime();
+    private long windowLatencyNanos;
+    private int windowSamples;
+    private int windowMaxInFlight;
+    private double longTermLatencyNanos;
+
+    /**
+     * Limit the concurrent calls between minLimit and maxLimit, starting at initialLimit.
+     * The executor is the one the server runs its handlers on, its queue holding more than maxQueuedTasks
+     * shrinks the limit; it can be null to only watch latency.
+     */
+    public LoadSheddingInterceptor(int initialLimit, int minLimit, int maxLimit, ThreadPoolExecutor executor, int maxQueuedTasks) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.executor = executor;
+        this.maxQueuedTasks = maxQueuedTasks;
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+    }
+
+    /**
+     * Intercepts the all calls incoming to any of the server services and rejects those over the current limit
+     * for their priority.
+     */
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata headers,
+            ServerCallHandler<ReqT, RespT> next
+    ) {
+        String methodName = call.getMethodDescriptor().getFullMethodName();
+        if (LONG_LIVED_METHODS.contains(methodName) || !call.getMethodDescriptor().getType().clientSendsOneMessage()) {
+            return next.startCall(call, headers);
+        }
+
+        // Low-priority calls leave the top of the limit to the others
+        String priority = headers.get(PRIORITY_METADATA_KEY);
+        boolean lowPriority = priority != null ? priority.equals(LOW_PRIORITY) : LOW_PRIORITY_METHODS.contains(methodName);
+        int currentLimit = limit;
+        int allowed = lowPriority ? Math.max(1, (int) (currentLimit * LOW_PRIORITY_SHARE)) : currentLimit;
+
+        // Don't start work for a call that can't finish before its deadline
+        MethodLatency methodLatency = methodLatencies.get(methodName);
+        if (methodLatency == null) {
+            methodLatency = methodLatencies.computeIfAbsent(methodName, name -> new MethodLatency());
+        }
+        Deadline deadline = Context.current().getDeadline();
+        if (deadline != null && deadline.timeRemaining(TimeUnit.NANOSECONDS) < methodLatency.latencyNanos) {
+            call.close(Status.DEADLINE_EXCEEDED.withDescription("Not enough time left to serve the call before its deadline"), new Metadata());
+            return new ServerCall.Listener<ReqT>() {};
+        }
+
+        int running = inFlight.incrementAndGet();
+        if (running > allowed) {
+            inFlight.decrementAndGet();
+            Metadata trailers = new Metadata();
+            trailers.put(RateLimitInterceptor.RETRY_PUSHBACK_METADATA_KEY, String.valueOf(TimeUnit.NANOSECONDS.toMillis(WINDOW_NANOS)));
+            call.close(Status.RESOURCE_EXHAUSTED.withDescription("Server overloaded, limit of " + allowed + " concurrent calls reached"), trailers);
+            return new ServerCall.Listener<ReqT>() {};
+        }
+
+        MeasuredCall<ReqT, RespT> measuredCall = new MeasuredCall<>(call, methodLatency, running);
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(measuredCall, headers);
+        } catch (RuntimeException e) {
+            measuredCall.finish();
+            throw e;
+        }
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onHalfClose() {
+                // The request is complete and handed to the service now
+                measuredCall.handlerStartNanos = System.nanoTime();
+                super.onHalfClose();
+            }
+
+            @Override
+            public void onCancel() {
+                measuredCall.finish();
+                super.onCancel();
+            }
+        };
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Add the latency of a finished call to the window, and update the limit once the window is over.
+     */
+    private synchronized void onSample(long latencyNanos, int inFlightAtStart) {
+        windowLatencyNanos += latencyNanos;
+        windowSamples++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlightAtStart);
+
+        long now = System.nanoTime();
+        if (now - windowStartNanos < WINDOW_NANOS || windowSamples < MIN_WINDOW_SAMPLES) {
+            return;
+        }
+
+        double shortTermLatency = (double) windowLatencyNanos / windowSamples;
+        if (longTermLatencyNanos == 0) {
+            longTermLatencyNanos = shortTermLatency;
+        } else if (longTermLatencyNanos > 2 * shortTermLatency) {
+            // Calls got much faster, e.g. after an overload, catch up quickly
+            longTermLatencyNanos = (longTermLatencyNanos + shortTermLatency) / 2;
+        } else {
+            longTermLatencyNanos += (shortTermLatency - longTermLatencyNanos) * LONG_TERM_SMOOTHING;
+        }
+
+        // Shrink by up to half when the calls get slower than usual, otherwise grow by the square root of the limit
+        double gradient = Math.max(0.5, Math.min(1.0, LATENCY_TOLERANCE * longTermLatencyNanos / shortTermLatency));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+
+        // Tasks waiting for an executor thread mean the handlers can't keep up
+        if (executor != null && executor.getQueue().size() > maxQueuedTasks) {
+            newLimit = Math.min(newLimit, estimatedLimit * 0.9);
+        }
+
+        // Don't grow a limit the calls don't even reach
+        if (newLimit > estimatedLimit && windowMaxInFlight < estimatedLimit / 2) {
+            newLimit = estimatedLimit;
+        }
+
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit + (newLimit - estimatedLimit) * LIMIT_SMOOTHING));
+        int previousLimit = limit;
+        limit = (int) estimatedLimit;
+        if (limit != previousLimit) {
+            logger.debug("Concurrency limit {} -> {}, latency {} us, long-term {} us", previousLimit, limit,
+                    (long) shortTermLatency / 1000, (long) longTermLatencyNanos / 1000);
+        }
+
+        windowStartNanos = now;
+        windowLatencyNanos = 0;
+        windowSamples = 0;
+        windowMaxInFlight = 0;
+    }
+
+    /**
+     * Admitted call, measured from its start for the limit and from the service receiving its request for
+     * the method's latency, and releasing its slot once closed or cancelled.
+     */
+    private final class MeasuredCall<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+        private final long startNanos = System.nanoTime();
+        private final MethodLatency methodLatency;
+        private final int inFlightAtStart;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        volatile long handlerStartNanos;
+
+        MeasuredCall(ServerCall<ReqT, RespT> call, MethodLatency methodLatency, int inFlightAtStart) {
+            super(call);
+            this.methodLatency = methodLatency;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            super.close(status, trailers);
+            // Failed calls may have been cut short, only successful ones tell how long a call takes
+            if (finish() && status.isOk()) {
+                long now = System.nanoTime();
+                if (handlerStartNanos != 0) {
+                    methodLatency.onSample(now - handlerStartNanos);
+                }
+                onSample(now - startNanos, inFlightAtStart);
+            }
+        }
+
+        /**
+         * Release the call's slot, returns false if it was already released.
+         */
+        boolean finish() {
+            if (finished.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Usual time taken by the service for the calls of a method, a moving average of the successful calls.
+     */
+    private static final class MethodLatency {
+        volatile long latencyNanos;
+
+        void onSample(long sampleNanos) {
+            // Racing updates may lose a sample, which doesn't matter for an average
+            long current = latencyNanos;
+            latencyNanos = current == 0 ? sampleNanos : current + (sampleNanos - current) / 16;
+        }
+    }
+}
@@ -20,13 +20,20 @@ public class LoggingInterceptor implements ServerInterceptor {
         logger.info("Method: {}", call.getMethodDescriptor().getFullMethodName());
         logger.info("Headers: {}", headers);
 
+        // Client streams can carry many messages per second (e.g. sensor readings), only log those at debug level
+        boolean streamingRequest = !call.getMethodDescriptor().getType().clientSendsOneMessage();
+
         // Log the request and its parameters
         return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(
                 next.startCall(call, headers)
         ) {
             @Override
             public void onMessage(ReqT message) {
-                logger.info("Request Parameters: {}", message);
+                if (streamingRequest) {
+                    logger.debug("Request Parameters: {}", message);
+                } else {
+                    logger.info("Request Parameters: {}", message);
+                }
                 super.onMessage(message);
             }
         };
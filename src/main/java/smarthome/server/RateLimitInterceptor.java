@@ -0,0 +1,366 @@
+package smarthome.server;
+
+import io.grpc.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+
+/**
+ * Admission control for all calls to the server, so a single misbehaving client cannot starve the others.
+ * <ul>
+ * <li>Every client ID has a token bucket per method. Each call takes a token, and for the methods given their own
+ * limit each message of a client stream (e.g. motion events or door locks) takes one too.</li>
+ * <li>At most maxConcurrentCalls unary calls run at once.</li>
+ * <li>Unary calls are shed CoDel-style when the server is queueing: once the delay between the start of a call
+ * and its request being handed to the service has stayed above the target for a whole interval, calls waiting
+ * longer than the target are rejected until the delay drops below it again.</li>
+ * </ul>
+ * Rejected calls fail with RESOURCE_EXHAUSTED and carry a grpc-retry-pushback-ms trailer telling the client
+ * when to retry. The hot path takes no lock: buckets are lock-free and only created on a client's first call.
+ * Must run after the AuthorizationServerInterceptor, which sets the client ID.
+ */
+public class RateLimitInterceptor implements ServerInterceptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(RateLimitInterceptor.class);
+
+    public static final Metadata.Key<String> RETRY_PUSHBACK_METADATA_KEY = Metadata.Key.of("grpc-retry-pushback-ms", ASCII_STRING_MARSHALLER);
+
+    // Bucket of every method called by every client, created on first use
+    private final ConcurrentMap<String, ConcurrentMap<String, TokenBucket>> buckets = new ConcurrentHashMap<>();
+
+    private final Limit defaultLimit;
+    private final Map<String, Limit> methodLimits;
+
+    private final int maxConcurrentCalls;
+    private final AtomicInteger concurrentCalls = new AtomicInteger();
+
+    private final long targetQueueDelayNanos;
+    private final long shedIntervalNanos;
+    // Time at which the queue delay will have been above the target for a whole interval, 0 while below it
+    private final AtomicLong aboveTargetUntilNanos = new AtomicLong();
+
+    private RateLimitInterceptor(Builder builder) {
+        this.defaultLimit = builder.defaultLimit;
+        this.methodLimits = new HashMap<>(builder.methodLimits);
+        this.maxConcurrentCalls = builder.maxConcurrentCalls;
+        this.targetQueueDelayNanos = builder.targetQueueDelayNanos;
+        this.shedIntervalNanos = builder.shedIntervalNanos;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Intercepts the all calls incoming to any of the server services and rejects those over the client's rate,
+     * the concurrency limit or waiting too long in a queue.
+     */
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+            ServerCall<ReqT, RespT> call,
+            Metadata headers,
+            ServerCallHandler<ReqT, RespT> next
+    ) {
+        long startNanos = System.nanoTime();
+        MethodDescriptor<ReqT, RespT> method = call.getMethodDescriptor();
+        String methodName = method.getFullMethodName();
+        Limit methodLimit = methodLimits.get(methodName);
+
+        // Take a token of the client's bucket for this method
+        TokenBucket bucket = null;
+        Limit limit = methodLimit != null ? methodLimit : defaultLimit;
+        if (limit != null) {
+            String clientId = AuthorizationServerInterceptor.CLIENT_ID_CONTEXT_KEY.get();
+            bucket = getBucket(clientId != null ? clientId : "", methodName, limit);
+            long waitNanos = bucket.tryAcquire(startNanos);
+            if (waitNanos > 0) {
+                return reject(call, "Rate limit of " + methodName + " exceeded", waitNanos);
+            }
+        }
+
+        AdmittedCall<ReqT, RespT> admittedCall = new AdmittedCall<>(call);
+        boolean unary = method.getType() == MethodDescriptor.MethodType.UNARY;
+
+        // Long-lived streams are not counted, they would hold the slots of short calls for their whole life
+        if (unary) {
+            if (concurrentCalls.incrementAndGet() > maxConcurrentCalls) {
+                concurrentCalls.decrementAndGet();
+                return reject(call, "Too many concurrent calls", shedIntervalNanos);
+            }
+            admittedCall.counted = true;
+        }
+
+        TokenBucket messageBucket = methodLimit != null && !method.getType().clientSendsOneMessage() ? bucket : null;
+
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(admittedCall, headers);
+        } catch (RuntimeException e) {
+            admittedCall.release();
+            throw e;
+        }
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            // Set once the interceptor rejected the admitted call and cancelled the service's listener
+            private boolean rejected;
+
+            @Override
+            public void onMessage(ReqT message) {
+                if (admittedCall.isClosed()) {
+                    return;
+                }
+                // Every message of a limited client stream takes a token
+                if (messageBucket != null) {
+                    long waitNanos = messageBucket.tryAcquire(System.nanoTime());
+                    if (waitNanos > 0) {
+                        admittedCall.reject(Status.RESOURCE_EXHAUSTED.withDescription("Rate limit of " + methodName + " exceeded"), waitNanos);
+                        cancelService();
+                        return;
+                    }
+                }
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onHalfClose() {
+                if (admittedCall.isClosed()) {
+                    return;
+                }
+                // The request of a unary call is handed to the service now, shed it if it waited too long
+                if (unary && shouldShed(System.nanoTime() - startNanos)) {
+                    admittedCall.reject(Status.RESOURCE_EXHAUSTED.withDescription("Server overloaded"), shedIntervalNanos);
+                    cancelService();
+                    return;
+                }
+                super.onHalfClose();
+            }
+
+            @Override
+            public void onCancel() {
+                admittedCall.release();
+                if (!rejected) {
+                    super.onCancel();
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                admittedCall.release();
+                if (!rejected) {
+                    super.onComplete();
+                }
+            }
+
+            /**
+             * Tell the service its call was cancelled, so it drops what it built for the stream.
+             */
+            private void cancelService() {
+                rejected = true;
+                try {
+                    super.onCancel();
+                } catch (RuntimeException e) {
+                    // The service tried to respond on the rejected call
+                    logger.debug("Service failed to handle the rejection of {}: {}", methodName, e.getMessage());
+                }
+            }
+        };
+    }
+
+    public int getConcurrentCalls() {
+        return concurrentCalls.get();
+    }
+
+    private TokenBucket getBucket(String clientId, String methodName, Limit limit) {
+        ConcurrentMap<String, TokenBucket> clientBuckets = buckets.get(clientId);
+        if (clientBuckets == null) {
+            clientBuckets = buckets.computeIfAbsent(clientId, id -> new ConcurrentHashMap<>());
+        }
+        TokenBucket bucket = clientBuckets.get(methodName);
+        if (bucket == null) {
+            bucket = clientBuckets.computeIfAbsent(methodName, name -> new TokenBucket(limit));
+        }
+        return bucket;
+    }
+
+    /**
+     * Whether a call that waited the given delay should be shed: only once the delay of every call has stayed
+     * above the target for a whole interval, so a short burst is absorbed by the queue.
+     */
+    private boolean shouldShed(long queueDelayNanos) {
+        if (queueDelayNanos < targetQueueDelayNanos) {
+            aboveTargetUntilNanos.set(0);
+            return false;
+        }
+
+        long now = System.nanoTime();
+        long aboveTargetUntil = aboveTargetUntilNanos.get();
+        if (aboveTargetUntil == 0) {
+            aboveTargetUntilNanos.compareAndSet(0, now + shedIntervalNanos);
+            return false;
+        }
+        if (now - aboveTargetUntil >= 0) {
+            logger.debug("Shedding a call that waited {} ms", TimeUnit.NANOSECONDS.toMillis(queueDelayNanos));
+            return true;
+        }
+        return false;
+    }
+
+    private static <ReqT, RespT> ServerCall.Listener<ReqT> reject(ServerCall<ReqT, RespT> call, String description, long retryAfterNanos) {
+        call.close(Status.RESOURCE_EXHAUSTED.withDescription(description), retryPushback(retryAfterNanos));
+        return new ServerCall.Listener<ReqT>() {};
+    }
+
+    private static Metadata retryPushback(long retryAfterNanos) {
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_PUSHBACK_METADATA_KEY, String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toMillis(retryAfterNanos))));
+        return trailers;
+    }
+
+    /**
+     * Admitted call, closed only once whether the service or the interceptor closes it first,
+     * and releasing its concurrency slot when it ends.
+     */
+    private final class AdmittedCall<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicBoolean released = new AtomicBoolean();
+        // Set before the call is started, when it holds a concurrency slot
+        private boolean counted;
+
+        AdmittedCall(ServerCall<ReqT, RespT> call) {
+            super(call);
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            if (closed.compareAndSet(false, true)) {
+                super.close(status, trailers);
+            }
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+            if (!closed.get()) {
+                super.sendMessage(message);
+            }
+        }
+
+        boolean isClosed() {
+            return closed.get();
+        }
+
+        void reject(Status status, long retryAfterNanos) {
+            close(status, retryPushback(retryAfterNanos));
+            release();
+        }
+
+        void release() {
+            if (counted && released.compareAndSet(false, true)) {
+                concurrentCalls.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Rate and burst of a token bucket.
+     */
+    private static final class Limit {
+        final long intervalNanos;
+        final long burstNanos;
+
+        Limit(double permitsPerSecond, int burst) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            this.burstNanos = intervalNanos * burst;
+        }
+    }
+
+    /**
+     * Lock-free token bucket, kept as the time at which it would be full again (the GCRA form of a token bucket),
+     * so taking a token is a single compare-and-set.
+     */
+    private static final class TokenBucket {
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong fullAtNanos = new AtomicLong(System.nanoTime());
+
+        TokenBucket(Limit limit) {
+            this.intervalNanos = limit.intervalNanos;
+            this.burstNanos = limit.burstNanos;
+        }
+
+        /**
+         * Take a token, returns 0 when taken or else the time to wait for the next token.
+         */
+        long tryAcquire(long now) {
+            while (true) {
+                long fullAt = fullAtNanos.get();
+                long nextFullAt = Math.max(fullAt - now, 0) + now + intervalNanos;
+                long waitNanos = nextFullAt - now - burstNanos;
+                if (waitNanos > 0) {
+                    return waitNanos;
+                }
+                if (fullAtNanos.compareAndSet(fullAt, nextFullAt)) {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    public static class Builder {
+        private Limit defaultLimit;
+        private final Map<String, Limit> methodLimits = new HashMap<>();
+        private int maxConcurrentCalls = Integer.MAX_VALUE;
+        private long targetQueueDelayNanos = Long.MAX_VALUE;
+        private long shedIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private Builder() {
+        }
+
+        /**
+         * Limit the calls of each client to each method without a limit of its own.
+         */
+        public Builder defaultLimit(double callsPerSecond, int burst) {
+            this.defaultLimit = new Limit(callsPerSecond, burst);
+            return this;
+        }
+
+        /**
+         * Limit the calls of each client to the method, and the messages of each call for client streams.
+         */
+        public Builder methodLimit(MethodDescriptor<?, ?> method, double permitsPerSecond, int burst) {
+            methodLimits.put(method.getFullMethodName(), new Limit(permitsPerSecond, burst));
+            return this;
+        }
+
+        public Builder maxConcurrentCalls(int maxConcurrentCalls) {
+            if (maxConcurrentCalls < 1) {
+                throw new IllegalArgumentException("maxConcurrentCalls must be at least 1");
+            }
+            this.maxConcurrentCalls = maxConcurrentCalls;
+            return this;
+        }
+
+        /**
+         * Shed unary calls once their queue delay stayed above the target for the interval.
+         */
+        public Builder targetQueueDelay(long targetQueueDelay, long interval, TimeUnit unit) {
+            this.targetQueueDelayNanos = unit.toNanos(targetQueueDelay);
+            this.shedIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        public RateLimitInterceptor build() {
+            return new RateLimitInterceptor(this);
+        }
+    }
+}
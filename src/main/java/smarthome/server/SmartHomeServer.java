@@ -2,38 +2,190 @@ package smarthome.server;
 
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import smarthome.common.HotPathMarshaller;
+import smarthome.common.SnappyCodec;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.home.HomeServiceGrpc;
+import smarthome.generated.lighting.LightingServiceGrpc;
+import smarthome.generated.security.SecurityServiceGrpc;
+import smarthome.server.services.ChangeFeed;
+import smarthome.server.services.WastedWork;
 import smarthome.server.services.climate.ClimateService;
+import smarthome.server.services.home.HomeService;
 import smarthome.server.services.lighting.LightingService;
 import smarthome.server.services.security.SecurityService;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SmartHomeServer {
+
+    // Tasks each handler thread may have waiting before the transport threads run the handlers themselves
+    private static final int MAX_QUEUED_HANDLER_TASKS_PER_THREAD = 64;
+
     public static void main(String[] args) {
-        // Initialize the services
-        LightingService lightingService = new LightingService();
-        ClimateService climateService = new ClimateService();
-        SecurityService securityService = new SecurityService();
+        // The port can be given as the first argument, e.g. to run several nodes of a sharded home on one machine
+        int port = args.length > 0 && !args[0].startsWith("--") ? Integer.parseInt(args[0]) : 50051;
+
+        // A follower replicates the state of a primary and only serves reads: --follow host:port,
+        // optionally --max-staleness millis and --promote-after millis to take over when the primary is gone
+        String primaryAddress = option(args, "--follow", null);
+        long maxStalenessMillis = Long.parseLong(option(args, "--max-staleness", "5000"));
+        long promoteAfterMillis = Long.parseLong(option(args, "--promote-after", "0"));
+
+        // With --multi-home every home gets its own isolated state, picked by the client's token,
+        // optionally --max-homes count to limit the number of homes
+        boolean multiHome = flag(args, "--multi-home");
+        int maxHomes = Integer.parseInt(option(args, "--max-homes", String.valueOf(HomePartitions.DEFAULT_MAX_HOMES)));
+        if (multiHome && primaryAddress != null) {
+            System.out.println("A multi-home server cannot be a follower, replication only covers a single home");
+            return;
+        }
+        // Calls per second each client may make to each method, --rate-limit 0 turns the admission control off
+        double callsPerSecond = Double.parseDouble(option(args, "--rate-limit", "1000"));
+        // The adaptive concurrency limit sheds load when the server gets slower, --no-load-shedding turns it off
+        boolean loadShedding = !flag(args, "--no-load-shedding");
+        // Encoding of the large messages of history and bulk state streams: gzip, snappy or none,
+        // optionally --compression-min-size bytes for the smallest message worth compressing
+        String compression = option(args, "--compression", SnappyCodec.GZIP_MESSAGE_ENCODING);
+        int compressionMinSize = Integer.parseInt(option(args, "--compression-min-size", String.valueOf(CompressionInterceptor.DEFAULT_MIN_MESSAGE_SIZE)));
+        if (!compression.equals(SnappyCodec.GZIP_MESSAGE_ENCODING) && !compression.equals(SnappyCodec.MESSAGE_ENCODING) && !compression.equals("none")) {
+            System.out.println("Unknown compression " + compression + ", use gzip, snappy or none");
+            return;
+        }
+        // --hot-path-marshallers marshals the hottest calls without intermediate buffers, see HotPathMarshaller
+        boolean hotPathMarshallers = flag(args, "--hot-path-marshallers");
+
+        // Initialize the services, a multi-home server creates the services of each home on its first call
+        HomePartitions homePartitions = multiHome ? new HomePartitions(maxHomes,
+                HomePartitions.DEFAULT_MAX_LIGHTING_DEVICES,
+                HomePartitions.DEFAULT_MAX_SECURITY_DEVICES,
+                HomePartitions.DEFAULT_MAX_CLIMATE_ZONES) : null;
+        LightingService lightingService = multiHome ? null : new LightingService();
+        ClimateService climateService = multiHome ? null : new ClimateService();
+        SecurityService securityService = multiHome ? null : new SecurityService();
 
-        int port = 50051;
+        // Handlers run on a bounded pool, the depth of its queue tells the load shedding the server is behind.
+        // The queue is bounded too: once it is full the transport thread runs the handler itself and stops reading
+        // new calls meanwhile, so the clients are held back by flow control instead of filling the heap
+        int handlerThreads = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor handlerExecutor = new ThreadPoolExecutor(handlerThreads, handlerThreads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_HANDLER_TASKS_PER_THREAD * handlerThreads),
+                new ThreadPoolExecutor.CallerRunsPolicy());
 
+        boolean started = false;
         try {
             // Create and start the gRPC server
-            Server server = ServerBuilder.forPort(port)
-                    .addService(lightingService)
-                    .addService(climateService)
-                    .addService(securityService)
+            // Followers ping the primary every 10 s to detect a dead connection, permit pings twice as often
+            ServerBuilder<?> serverBuilder = NettyServerBuilder.forPort(port)
+                    .permitKeepAliveTime(5, TimeUnit.SECONDS)
+                    .executor(handlerExecutor)
+                    .compressorRegistry(SnappyCodec.compressorRegistry())
+                    .decompressorRegistry(SnappyCodec.decompressorRegistry());
+            List<ServerServiceDefinition> serviceDefinitions = homePartitions != null
+                    ? homePartitions.bindServices()
+                    : Arrays.asList(
+                            lightingService.bindService(),
+                            climateService.bindService(),
+                            securityService.bindService(),
+                            new HomeService(lightingService, climateService, securityService).bindService());
+            for (ServerServiceDefinition serviceDefinition : serviceDefinitions) {
+                serverBuilder.addService(hotPathMarshallers ? HotPathMarshaller.bindHotMethods(serviceDefinition) : serviceDefinition);
+            }
+
+            // Added first so it runs last, right before the handler
+            serverBuilder.intercept(new CancellationInterceptor());
+
+            if (!compression.equals("none")) {
+                serverBuilder.intercept(CompressionInterceptor.newBuilder()
+                        .methodCompression(ClimateServiceGrpc.getGetTemperatureHistoryMethod(), compression)
+                        .methodCompression(ClimateServiceGrpc.getGetHumidityHistoryMethod(), compression)
+                        .methodCompression(HomeServiceGrpc.getGetHomeSnapshotMethod(), compression)
+                        .methodCompression(LightingServiceGrpc.getGetChangesSinceMethod(), compression)
+                        .methodCompression(ClimateServiceGrpc.getGetChangesSinceMethod(), compression)
+                        .methodCompression(SecurityServiceGrpc.getGetChangesSinceMethod(), compression)
+                        .minMessageSize(compressionMinSize)
+                        .build());
+            }
+
+            FollowerReplicator replicator = null;
+            if (primaryAddress != null) {
+                int separator = primaryAddress.lastIndexOf(':');
+                replicator = new FollowerReplicator(
+                        primaryAddress.substring(0, separator),
+                        Integer.parseInt(primaryAddress.substring(separator + 1)),
+                        lightingService, climateService, securityService,
+                        promoteAfterMillis);
+                serverBuilder.intercept(new FollowerInterceptor(replicator, maxStalenessMillis));
+            }
+
+            if (callsPerSecond > 0) {
+                // Streams of motion events and door locks are limited per message as well
+                double messagesPerSecond = callsPerSecond / 5;
+                serverBuilder.intercept(RateLimitInterceptor.newBuilder()
+                        .defaultLimit(callsPerSecond, (int) (callsPerSecond * 2))
+                        .methodLimit(LightingServiceGrpc.getRespondToMotionDetectionMethod(), messagesPerSecond, (int) (messagesPerSecond * 2))
+                        .methodLimit(SecurityServiceGrpc.getLockDoorsMethod(), messagesPerSecond, (int) (messagesPerSecond * 2))
+                        .methodLimit(SecurityServiceGrpc.getUnlockDoorsMethod(), messagesPerSecond, (int) (messagesPerSecond * 2))
+                        .maxConcurrentCalls(512)
+                        .targetQueueDelay(20, 100, TimeUnit.MILLISECONDS)
+                        .build());
+            }
+
+            if (loadShedding) {
+                // Added right before the authorization so it runs right after it: calls without a valid token never
+                // take a slot of the limit, the others are rejected before any other work is done for them
+                serverBuilder.intercept(new LoadSheddingInterceptor(100, 8, 1000, handlerExecutor, 4 * handlerThreads));
+            }
+
+            serverBuilder
                     .intercept(new AuthorizationServerInterceptor())
-                    .intercept(new LoggingInterceptor())
+                    .intercept(new LoggingInterceptor());
+
+            Server server = serverBuilder
                     .build()
                     .start();
+            started = true;
 
-            System.out.println("Smart Home Server started, listening on port: " + port);
+            // The watchers of every feed get a heartbeat while nothing changes, so followers can tell how stale they are
+            ScheduledExecutorService heartbeatScheduler = homePartitions == null ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "smarthome-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }) : null;
+            if (heartbeatScheduler != null) {
+                heartbeatScheduler.scheduleWithFixedDelay(() -> {
+                    lightingService.sendHeartbeat();
+                    climateService.sendHeartbeat();
+                    securityService.sendHeartbeat();
+                }, ChangeFeed.HEARTBEAT_INTERVAL_MILLIS, ChangeFeed.HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
+            if (replicator != null) {
+                replicator.start();
+                System.out.println("Smart Home Server started as a follower of " + primaryAddress + ", listening on port: " + port);
+            } else if (homePartitions != null) {
+                System.out.println("Smart Home Server started for multiple homes, listening on port: " + port);
+            } else {
+                System.out.println("Smart Home Server started, listening on port: " + port);
+            }
 
             // for graceful shutdown
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("Shutting down smart home server...");
                 server.shutdown();
+                if (heartbeatScheduler != null) {
+                    heartbeatScheduler.shutdown();
+                }
+                shutdownServices(climateService, homePartitions);
 
                 try {
                     // Wait for the server to terminate
@@ -45,6 +197,8 @@ public class SmartHomeServer {
                     server.shutdownNow();
                 }
 
+                handlerExecutor.shutdown();
+                System.out.println("Work wasted on cancelled calls: " + WastedWork.summary());
                 System.out.println("Server shut down.");
             }));
 
@@ -57,7 +211,50 @@ public class SmartHomeServer {
         } catch (InterruptedException e) {
             System.out.println("Server interrupted: " + e.getMessage());
             throw new RuntimeException(e);
+
+        } finally {
+            // Without a server nothing else stops the threads of the pool and the services
+            if (!started) {
+                handlerExecutor.shutdown();
+                shutdownServices(climateService, homePartitions);
+            }
         }
 
     }
+
+    /**
+     * Stop the schedulers of the services of a single home or of every home.
+     */
+    private static void shutdownServices(ClimateService climateService, HomePartitions homePartitions) {
+        if (climateService != null) {
+            climateService.shutdown();
+        }
+        if (homePartitions != null) {
+            homePartitions.shutdown();
+        }
+    }
+
+    /**
+     * Get the value following the given option in the arguments, or the default value if the option is missing.
+     */
+    private static String option(String[] args, String name, String defaultValue) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Whether the given option without value is in the arguments.
+     */
+    private static boolean flag(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
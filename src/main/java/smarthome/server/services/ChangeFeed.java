@@ -0,0 +1,454 @@
+package smarthome.server.services;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import smarthome.generated.general.ChangeType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongFunction;
+
+/**
+ * Versioned feed of state changes pushed to every subscribed client stream.
+ * The feed's monitor is also the lock that guards the owning service's state: services mutate their state
+ * and publish the matching change while holding it, so the version order is exactly the order in which
+ * changes were applied and a subscriber's initial snapshot can never miss or repeat a change.
+ * The last published changes are kept in a bounded log, so a client that knows the version it has seen can
+ * catch up with only the changes it missed, and falls back to a full snapshot once they left the log.
+ * The snapshot is kept up to date by the publisher from the changes themselves, the latest change of every entity,
+ * so readers never build it. It is copied on write, and only once a reader took it, so publishing without readers
+ * copies nothing.
+ * A subscriber whose transport is not ready gets its changes queued and sent once it is, so a slow client never
+ * blocks the publisher. A subscriber that falls more than MAX_PENDING_CHANGES behind is disconnected with
+ * RESOURCE_EXHAUSTED and resumes from the last version it applied.
+ */
+public class ChangeFeed<T> {
+
+    public static final int DEFAULT_LOG_SIZE = 1024;
+
+    // How often the server sends a heartbeat on every watch stream
+    public static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+
+    // Changes queued for a subscriber that is not ready before it is disconnected, as many as the log keeps
+    // so the disconnected subscriber can usually catch up without a snapshot
+    public static final int MAX_PENDING_CHANGES = DEFAULT_LOG_SIZE;
+
+    private static final int INITIAL_LOG_SIZE = 16;
+    private static final Object[] EMPTY_LOG = new Object[0];
+
+    // Version of the last published change, written while holding this and readable without it
+    private volatile long version;
+
+    // Version the feed started at, taken from the clock so the versions of a restarted server are always newer
+    // than the ones its clients have seen, and a client can never catch up from another server's history
+    private final long initialVersion;
+
+    // How the changes map to snapshot entries, null for feeds without a snapshot
+    private final EntryType<T> entryType;
+    // Snapshot at the current version, updated by publish() and guarded by this until a reader shares it
+    private volatile Snapshot<T> snapshot;
+    // Slot of every entity's entry in the snapshot, guarded by this
+    private final IntMap<Integer> entrySlots = new IntMap<>();
+
+    // Ring of the last published changes, the change of version v is at v % log.length, guarded by this.
+    // It grows up to maxLogSize as changes are published, so a feed that rarely changes stays small
+    private Object[] log = EMPTY_LOG;
+    private final int maxLogSize;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create a feed keeping the default number of last changes and a snapshot of the entries of the given type.
+     */
+    public ChangeFeed(EntryType<T> entryType) {
+        this(DEFAULT_LOG_SIZE, entryType);
+    }
+
+    /**
+     * Create a feed keeping the given number of last changes, 0 for feeds whose clients never catch up,
+     * and no snapshot: subscribers get the one built by the service.
+     */
+    public ChangeFeed(int logSize) {
+        this(logSize, null);
+    }
+
+    private ChangeFeed(int logSize, EntryType<T> entryType) {
+        this.maxLogSize = logSize;
+        this.entryType = entryType;
+        this.initialVersion = System.currentTimeMillis() << 20;
+        this.version = initialVersion;
+        this.snapshot = new Snapshot<>(initialVersion, EMPTY_LOG, 0, entryType);
+    }
+
+    /**
+     * Current version of the state guarded by this feed.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the RESET entry followed by the latest change of every entity, all at the current version.
+     */
+    public List<T> snapshot() {
+        return currentSnapshot().getChanges();
+    }
+
+    /**
+     * Get the immutable snapshot at the current version. Only the first reader after a change takes the lock,
+     * to mark the snapshot shared so the next change copies it instead of updating it.
+     */
+    public Snapshot<T> currentSnapshot() {
+        if (entryType == null) {
+            throw new IllegalStateException("The feed keeps no snapshot");
+        }
+        Snapshot<T> current = snapshot;
+        if (current.shared) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            current.shared = true;
+            return current;
+        }
+    }
+
+    /**
+     * Build the change for the next version and push it to all subscribers.
+     * Must be called while holding the feed's lock together with the state mutation it describes.
+     */
+    public synchronized long publish(LongFunction<T> changeFactory) {
+        version++;
+        T change = changeFactory.apply(version);
+        if (maxLogSize > 0) {
+            if (log.length < maxLogSize && version - initialVersion > log.length) {
+                growLog();
+            }
+            log[(int) (version % log.length)] = change;
+        }
+        if (entryType != null) {
+            updateSnapshot(change);
+        }
+
+        for (Subscriber subscriber : subscribers) {
+            subscriber.send(change);
+        }
+        return version;
+    }
+
+    /**
+     * Push a change built for the current version to all subscribers, without a new version and without logging it,
+     * so a subscriber that has seen every change knows it is still up to date while nothing changes.
+     * Subscribers that still have changes queued skip it, their next change tells them more.
+     */
+    public synchronized void heartbeat(LongFunction<T> heartbeatFactory) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        T heartbeat = heartbeatFactory.apply(version);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.sendIfIdle(heartbeat);
+        }
+    }
+
+    /**
+     * Send the snapshot built for the current version and then register the observer for every later change.
+     * The observer is removed when the client cancels its stream. Must be called from the call's handler,
+     * which is the only place the transport readiness handler can be set.
+     */
+    public synchronized void subscribe(StreamObserver<T> observer, LongFunction<List<T>> snapshotFactory) {
+        List<T> snapshot = snapshotFactory.apply(version);
+        for (int i = 0; i < snapshot.size(); i++) {
+            // A client gone while the snapshot is sent is never registered
+            if (WastedWork.isCancelled(observer)) {
+                WastedWork.callCancelled(snapshot.size() - i);
+                return;
+            }
+            observer.onNext(snapshot.get(i));
+        }
+        Subscriber subscriber = new Subscriber(observer);
+        subscribers.add(subscriber);
+
+        if (subscriber.callObserver != null) {
+            subscriber.callObserver.setOnCancelHandler(subscriber::remove);
+            subscriber.callObserver.setOnReadyHandler(subscriber::drain);
+        }
+    }
+
+    /**
+     * Send the changes published after fromVersion, or the snapshot when they are no longer all in the log,
+     * e.g. for a fromVersion of 0, and then register the observer for every later change.
+     */
+    public synchronized void subscribe(StreamObserver<T> observer, long fromVersion) {
+        subscribe(observer, version -> changesSince(fromVersion));
+    }
+
+    /**
+     * Get the changes published after fromVersion, oldest first. When the log no longer holds all of them,
+     * or fromVersion is newer than the feed (e.g. the server was restarted), the snapshot is returned instead,
+     * which starts with a RESET entry telling the client to drop its state.
+     */
+    public synchronized List<T> changesSince(long fromVersion) {
+        long loggedChanges = Math.min(version - initialVersion, log.length);
+        if (fromVersion < version - loggedChanges || fromVersion > version) {
+            return snapshot();
+        }
+
+        List<T> changes = new ArrayList<>((int) (version - fromVersion));
+        for (long changeVersion = fromVersion + 1; changeVersion <= version; changeVersion++) {
+            @SuppressWarnings("unchecked")
+            T change = (T) log[(int) (changeVersion % log.length)];
+            changes.add(change);
+        }
+        return changes;
+    }
+
+    /**
+     * Complete and remove all subscriber streams, e.g. when the server shuts down.
+     */
+    public synchronized void close() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.complete();
+        }
+        subscribers.clear();
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Apply a published change to the snapshot, in place while no reader has it and on a copy once one has.
+     * Must hold this.
+     */
+    private void updateSnapshot(T change) {
+        Snapshot<T> current = snapshot;
+        Object[] entries = current.entries;
+        int size = current.size;
+
+        ChangeType changeType = entryType.typeOf(change);
+        if (changeType == ChangeType.RESET) {
+            entrySlots.clear();
+            entries = EMPTY_LOG;
+            size = 0;
+        } else if (changeType == ChangeType.REMOVE) {
+            Integer slot = entrySlots.remove(entryType.keyOf(change));
+            if (slot != null) {
+                if (current.shared) {
+                    entries = Arrays.copyOf(entries, size);
+                }
+                // Move the last entry into the removed one's slot
+                size--;
+                if (slot != size) {
+                    @SuppressWarnings("unchecked")
+                    T last = (T) entries[size];
+                    entries[slot] = last;
+                    entrySlots.put(entryType.keyOf(last), slot);
+                }
+                entries[size] = null;
+            }
+        } else if (changeType == ChangeType.UPSERT) {
+            int key = entryType.keyOf(change);
+            Integer slot = entrySlots.get(key);
+            if (slot != null) {
+                if (current.shared) {
+                    entries = entries.clone();
+                }
+                entries[slot] = change;
+            } else {
+                if (current.shared || size == entries.length) {
+                    entries = Arrays.copyOf(entries, Math.max(INITIAL_LOG_SIZE, size < entries.length ? entries.length : size * 2));
+                }
+                entrySlots.put(key, size);
+                entries[size++] = change;
+            }
+        }
+
+        if (current.shared) {
+            snapshot = new Snapshot<>(version, entries, size, entryType);
+        } else {
+            // No reader has seen the snapshot yet, so it is still this publisher's to update
+            current.version = version;
+            current.entries = entries;
+            current.size = size;
+            snapshot = current;
+        }
+    }
+
+    /**
+     * Double the log, moving the logged changes to their position in the larger ring. Must hold this.
+     */
+    private void growLog() {
+        Object[] grownLog = new Object[Math.min(Math.max(INITIAL_LOG_SIZE, log.length * 2), maxLogSize)];
+        // Called before the change of the current version is stored, the log is full with the previous ones
+        for (long changeVersion = version - log.length; changeVersion < version; changeVersion++) {
+            grownLog[(int) (changeVersion % grownLog.length)] = log[(int) (changeVersion % log.length)];
+        }
+        log = grownLog;
+    }
+
+    /**
+     * A subscribed client stream and the changes waiting for its transport to be ready.
+     * Changes are pushed by the publisher and drained by the transport's readiness handler, both holding this,
+     * so the stream is never written concurrently and always in version order.
+     */
+    private final class Subscriber {
+        final StreamObserver<T> observer;
+        // The same observer when it is a server call, whose readiness is checked before every change
+        final ServerCallStreamObserver<T> callObserver;
+
+        // Guarded by this
+        private final ArrayDeque<T> pending = new ArrayDeque<>();
+        private boolean closed;
+
+        Subscriber(StreamObserver<T> observer) {
+            this.observer = observer;
+            this.callObserver = observer instanceof ServerCallStreamObserver ? (ServerCallStreamObserver<T>) observer : null;
+        }
+
+        synchronized void send(T change) {
+            if (closed) {
+                return;
+            }
+            if (pending.isEmpty() && isReady()) {
+                deliver(change);
+            } else if (pending.size() < MAX_PENDING_CHANGES) {
+                pending.add(change);
+            } else {
+                // Too far behind to keep buffering, the client resumes from the last change it applied
+                closed = true;
+                pending.clear();
+                subscribers.remove(this);
+                try {
+                    observer.onError(Status.RESOURCE_EXHAUSTED
+                            .withDescription("The watcher fell " + MAX_PENDING_CHANGES + " changes behind, resume from the last applied version.")
+                            .asRuntimeException());
+                } catch (RuntimeException ignored) {
+                    // The stream is already closed on the client side
+                }
+            }
+        }
+
+        synchronized void sendIfIdle(T change) {
+            if (!closed && pending.isEmpty() && isReady()) {
+                deliver(change);
+            }
+        }
+
+        /**
+         * Send the queued changes while the transport is ready for more.
+         */
+        synchronized void drain() {
+            while (!closed && !pending.isEmpty() && isReady()) {
+                deliver(pending.poll());
+            }
+        }
+
+        synchronized void complete() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.clear();
+            try {
+                observer.onCompleted();
+            } catch (RuntimeException ignored) {
+                // The stream is already closed on the client side
+            }
+        }
+
+        synchronized void remove() {
+            closed = true;
+            pending.clear();
+            subscribers.remove(this);
+        }
+
+        private boolean isReady() {
+            return callObserver == null || callObserver.isReady();
+        }
+
+        private void deliver(T change) {
+            try {
+                observer.onNext(change);
+            } catch (RuntimeException e) {
+                // The client stream is gone, stop pushing to it
+                remove();
+            }
+        }
+    }
+
+    /**
+     * How the changes of a feed map to the entries of its snapshot: one per entity, the latest change of it.
+     */
+    public interface EntryType<T> {
+
+        /**
+         * Key of the entity the change is about, e.g. the device number.
+         */
+        int keyOf(T change);
+
+        ChangeType typeOf(T change);
+
+        /**
+         * The same change at the given version.
+         */
+        T withVersion(T change, long version);
+
+        /**
+         * The RESET entry starting a snapshot at the given version.
+         */
+        T reset(long version);
+    }
+
+    /**
+     * Snapshot of the state at a version. It is immutable once shared with a reader, until then only the publisher
+     * holding the feed's lock sees it.
+     */
+    public static final class Snapshot<T> {
+        private long version;
+        private Object[] entries;
+        private int size;
+        private final EntryType<T> entryType;
+
+        // Set by the first reader while holding the feed's lock, the publisher copies the entries from then on
+        private volatile boolean shared;
+        // The entries at the snapshot's version, built by the first reader that needs them
+        private volatile List<T> changes;
+
+        Snapshot(long version, Object[] entries, int size, EntryType<T> entryType) {
+            this.version = version;
+            this.entries = entries;
+            this.size = size;
+            this.entryType = entryType;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the RESET entry followed by every entry, all carrying the snapshot's version.
+         * Built without any lock, concurrent first readers may both build it.
+         */
+        public List<T> getChanges() {
+            List<T> built = changes;
+            if (built == null) {
+                List<T> list = new ArrayList<>(size + 1);
+                list.add(entryType.reset(version));
+                for (int i = 0; i < size; i++) {
+                    @SuppressWarnings("unchecked")
+                    T entry = (T) entries[i];
+                    list.add(entryType.withVersion(entry, version));
+                }
+                built = Collections.unmodifiableList(list);
+                changes = built;
+            }
+            return built;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package smarthome.server.services;
+
+import java.util.Arrays;
+
+/**
+ * Slot index of a hash table keyed by int, e.g. by device number, with open addressing. Subclasses store their
+ * rows column by column in arrays of the table's capacity, one row per slot, and only move them when told to.
+ * Keys are spread over the table with a multiplicative hash and collisions are resolved by linear probing,
+ * removals shift the following rows back so lookups never cross tombstones. The table doubles once more than
+ * MAX_LOAD of its slots are used.
+ * Not thread-safe. The iteration order of the slots is unspecified.
+ */
+public abstract class IntKeyTable {
+
+    protected static final int MIN_CAPACITY = 8;
+    // The table is grown when more than this share of its slots is used
+    private static final float MAX_LOAD = 0.6f;
+
+    private int[] keys;
+    private boolean[] used;
+    private int mask;
+    private int shift;
+    private int size;
+    private int resizeThreshold;
+
+    /**
+     * Create a table holding the given number of rows without growing. The subclass allocates its columns
+     * with capacity() once this constructor returns.
+     */
+    protected IntKeyTable(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Number of slots, the length of every column.
+     */
+    protected final int capacity() {
+        return keys.length;
+    }
+
+    protected final boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    protected final int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Get the slot of the key, or -1 if the table has no such key.
+     */
+    protected final int slotOf(int key) {
+        for (int slot = homeSlotOf(key); used[slot]; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the slot of the key, adding the key in a free slot if the table has none. The row of a new slot is
+     * whatever clearRow() left in it, or the default values of a new column.
+     */
+    protected final int addSlot(int key) {
+        int slot = slotOf(key);
+        if (slot >= 0) {
+            return slot;
+        }
+
+        // Grow first, so the slot returned stays valid
+        if (size + 1 > resizeThreshold) {
+            resize(keys.length * 2);
+        }
+        slot = homeSlotOf(key);
+        while (used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        used[slot] = true;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Free the slot, moving back the rows of the probe run after it that could sit in it.
+     */
+    protected final void removeSlot(int freeSlot) {
+        for (int slot = (freeSlot + 1) & mask; used[slot]; slot = (slot + 1) & mask) {
+            int home = homeSlotOf(keys[slot]);
+            // The row can move to the free slot unless its home lies cyclically after the free slot
+            boolean movable = freeSlot <= slot
+                    ? home <= freeSlot || home > slot
+                    : home <= freeSlot && home > slot;
+            if (movable) {
+                keys[freeSlot] = keys[slot];
+                moveRow(slot, freeSlot);
+                freeSlot = slot;
+            }
+        }
+        used[freeSlot] = false;
+        clearRow(freeSlot);
+        size--;
+    }
+
+    /**
+     * Free every slot, keeping the table's capacity. The subclass clears its columns.
+     */
+    protected final void clearSlots() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * Copy the row of a slot to another slot of the same columns.
+     */
+    protected abstract void moveRow(int from, int to);
+
+    /**
+     * Drop the row of a slot that was freed, e.g. so its objects can be collected.
+     */
+    protected abstract void clearRow(int slot);
+
+    /**
+     * Allocate columns of the given capacity and copy every used row of the old columns to its new slot,
+     * newSlots[oldSlot] being -1 for the free slots.
+     */
+    protected abstract void resizeRows(int capacity, int[] newSlots);
+
+    private int homeSlotOf(int key) {
+        // Fibonacci hashing, so keys that differ only in their high bits still spread over the table
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+
+        int[] newSlots = new int[oldKeys.length];
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (!oldUsed[oldSlot]) {
+                newSlots[oldSlot] = -1;
+                continue;
+            }
+            int slot = homeSlotOf(oldKeys[oldSlot]);
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[oldSlot];
+            used[slot] = true;
+            newSlots[oldSlot] = slot;
+        }
+        resizeRows(capacity, newSlots);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        resizeThreshold = (int) (capacity * MAX_LOAD);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,156 @@
+package smarthome.server.services;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Map from int keys, e.g. device numbers, to non-null values, stored in flat arrays with open addressing.
+ * Unlike a HashMap with Integer keys it allocates nothing on lookup and no entry per mapping, and a lookup
+ * reads flat arrays instead of chasing an entry and its boxed key. The slots are indexed by IntKeyTable,
+ * this class only keeps the column of values.
+ * Not thread-safe: the services guard their maps with their change feed lock. The iteration order is unspecified.
+ */
+public final class IntMap<V> extends IntKeyTable {
+
+    // Value of each slot, null for a free slot
+    private Object[] values;
+
+    public IntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Create a map holding the given number of entries without growing.
+     */
+    public IntMap(int expectedSize) {
+        super(expectedSize);
+        values = new Object[capacity()];
+    }
+
+    public boolean containsKey(int key) {
+        return slotOf(key) >= 0;
+    }
+
+    /**
+     * Get the value of the key, or null if the map has none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = slotOf(key);
+        return slot >= 0 ? (V) values[slot] : null;
+    }
+
+    /**
+     * Set the value of the key, returns its previous value or null if it had none.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("IntMap values must not be null");
+        }
+
+        // A new slot has no value yet
+        int slot = addSlot(key);
+        V previous = (V) values[slot];
+        values[slot] = value;
+        return previous;
+    }
+
+    /**
+     * Remove the key, returns its value or null if it had none.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            return null;
+        }
+        V previous = (V) values[slot];
+        removeSlot(slot);
+        return previous;
+    }
+
+    /**
+     * Remove every entry, keeping the table's capacity.
+     */
+    public void clear() {
+        clearSlots();
+        Arrays.fill(values, null);
+    }
+
+    /**
+     * Call the consumer with every entry of the map. The consumer may replace the value of an existing key,
+     * but not add or remove keys.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> consumer) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (isUsed(slot)) {
+                consumer.accept(keyAt(slot), (V) values[slot]);
+            }
+        }
+    }
+
+    /**
+     * Get the values of the map. While iterating, the value of an existing key may be replaced, but no key
+     * added or removed.
+     */
+    public Iterable<V> values() {
+        return () -> new Iterator<V>() {
+            private int slot = nextUsedSlot(0);
+
+            @Override
+            public boolean hasNext() {
+                return slot < values.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if (slot >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                V value = (V) values[slot];
+                slot = nextUsedSlot(slot + 1);
+                return value;
+            }
+        };
+    }
+
+    /**
+     * Receives the entries of a map, see forEach().
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    @Override
+    protected void moveRow(int from, int to) {
+        values[to] = values[from];
+    }
+
+    @Override
+    protected void clearRow(int slot) {
+        values[slot] = null;
+    }
+
+    @Override
+    protected void resizeRows(int capacity, int[] newSlots) {
+        Object[] oldValues = values;
+        values = new Object[capacity];
+        for (int oldSlot = 0; oldSlot < newSlots.length; oldSlot++) {
+            if (newSlots[oldSlot] >= 0) {
+                values[newSlots[oldSlot]] = oldValues[oldSlot];
+            }
+        }
+    }
+
+    private int nextUsedSlot(int slot) {
+        while (slot < values.length && !isUsed(slot)) {
+            slot++;
+        }
+        return slot;
+    }
+}
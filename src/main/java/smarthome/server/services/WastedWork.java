@@ -0,0 +1,73 @@
+package smarthome.server.services;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the work the services skipped or threw away because a client cancelled its call or the call's deadline
+ * expired, shared by all services of the server.
+ * Handlers check isCancelled() before and during their work, so a call whose client is gone stops instead of
+ * building and sending responses nobody reads.
+ */
+public final class WastedWork {
+
+    // Calls stopped before their end because the client was gone
+    private static final LongAdder cancelledCalls = new LongAdder();
+    // Response messages not built or not sent because of the cancellation
+    private static final LongAdder skippedMessages = new LongAdder();
+    // Request messages received but dropped without being applied, e.g. the buffered readings of an ingestion stream
+    private static final LongAdder discardedRequests = new LongAdder();
+
+    private WastedWork() {
+    }
+
+    /**
+     * Whether the client of the call cancelled it or its deadline expired.
+     */
+    public static boolean isCancelled(StreamObserver<?> responseObserver) {
+        return responseObserver instanceof ServerCallStreamObserver
+                && ((ServerCallStreamObserver<?>) responseObserver).isCancelled();
+    }
+
+    /**
+     * Record a call stopped because it was cancelled, with the number of response messages it didn't send.
+     */
+    public static void callCancelled(long skippedMessageCount) {
+        cancelledCalls.increment();
+        skippedMessages.add(skippedMessageCount);
+    }
+
+    /**
+     * Record response messages not sent on a cancelled call that is stopped elsewhere.
+     */
+    public static void messagesSkipped(long count) {
+        skippedMessages.add(count);
+    }
+
+    /**
+     * Record request messages dropped because their call was cancelled.
+     */
+    public static void requestsDiscarded(long count) {
+        discardedRequests.add(count);
+    }
+
+    public static long getCancelledCalls() {
+        return cancelledCalls.sum();
+    }
+
+    public static long getSkippedMessages() {
+        return skippedMessages.sum();
+    }
+
+    public static long getDiscardedRequests() {
+        return discardedRequests.sum();
+    }
+
+    public static String summary() {
+        return "cancelled calls: " + getCancelledCalls()
+                + ", skipped responses: " + getSkippedMessages()
+                + ", discarded requests: " + getDiscardedRequests();
+    }
+}
@@ -0,0 +1,104 @@
+package smarthome.server.services.climate;
+
+import smarthome.generated.climate.HumidifierDehumidifierState;
+import smarthome.generated.general.DeviceState;
+
+import static smarthome.server.services.climate.ControlStrategy.*;
+
+/**
+ * Drives the climate devices of the zones from their latest readings using pluggable control strategies.
+ * A device pair only switches once it has been running for the minimum on time or idle for the minimum
+ * off time, so the devices never flap faster than that whatever the readings do.
+ * Every step is O(1) for one zone, it runs when a reading arrives and on the periodic tick over all zones,
+ * which applies the switches that were held back by the minimum times.
+ * Devices a client switched by hand are left alone until the targets of their zone are set again.
+ */
+public class ClimateControlEngine {
+
+    public static final double DEFAULT_TEMPERATURE_DEADBAND = 0.5;
+    public static final double DEFAULT_HUMIDITY_DEADBAND = 2;
+    public static final long DEFAULT_MIN_ON_MILLIS = 10_000;
+    public static final long DEFAULT_MIN_OFF_MILLIS = 10_000;
+
+    private final ControlStrategy temperatureStrategy;
+    private final ControlStrategy humidityStrategy;
+    private final long minOnMillis;
+    private final long minOffMillis;
+
+    public ClimateControlEngine() {
+        this(new HysteresisControlStrategy(DEFAULT_TEMPERATURE_DEADBAND),
+                new HysteresisControlStrategy(DEFAULT_HUMIDITY_DEADBAND),
+                DEFAULT_MIN_ON_MILLIS,
+                DEFAULT_MIN_OFF_MILLIS);
+    }
+
+    public ClimateControlEngine(ControlStrategy temperatureStrategy, ControlStrategy humidityStrategy,
+                                long minOnMillis, long minOffMillis) {
+        this.temperatureStrategy = temperatureStrategy;
+        this.humidityStrategy = humidityStrategy;
+        this.minOnMillis = minOnMillis;
+        this.minOffMillis = minOffMillis;
+    }
+
+    /**
+     * Run the control loops of a zone that has readings. Must be called while holding the zone lock.
+     */
+    void control(ClimateZone zone, long nowMillis) {
+        controlTemperature(zone, nowMillis);
+        controlHumidity(zone, nowMillis);
+    }
+
+    void controlTemperature(ClimateZone zone, long nowMillis) {
+        if (!zone.hasTemperatureReading || zone.temperatureOverridden) {
+            return;
+        }
+        if (zone.temperatureLoop == null) {
+            zone.temperatureLoop = temperatureStrategy.newControlLoop();
+        }
+
+        int currentDemand = zone.heatingState == DeviceState.ON ? DEMAND_INCREASE
+                : zone.acState == DeviceState.ON ? DEMAND_DECREASE
+                : DEMAND_NONE;
+        int demand = zone.temperatureLoop.update(zone.latestTemperature, zone.targetTemperature, currentDemand, nowMillis);
+        if (demand == currentDemand || !canSwitch(currentDemand, zone.temperatureSwitchedAtMillis, nowMillis)) {
+            return;
+        }
+
+        zone.setTemperatureDeviceStates(
+                demand == DEMAND_INCREASE ? DeviceState.ON : DeviceState.OFF,
+                demand == DEMAND_DECREASE ? DeviceState.ON : DeviceState.OFF);
+        zone.temperatureSwitchedAtMillis = nowMillis;
+        zone.switchCount++;
+    }
+
+    void controlHumidity(ClimateZone zone, long nowMillis) {
+        if (!zone.hasHumidityReading || zone.humidityOverridden) {
+            return;
+        }
+        if (zone.humidityLoop == null) {
+            zone.humidityLoop = humidityStrategy.newControlLoop();
+        }
+
+        int currentDemand = zone.humidifierDehumidifierState == HumidifierDehumidifierState.HUMIDIFIER ? DEMAND_INCREASE
+                : zone.humidifierDehumidifierState == HumidifierDehumidifierState.DEHUMIDIFIER ? DEMAND_DECREASE
+                : DEMAND_NONE;
+        int demand = zone.humidityLoop.update(zone.latestHumidity, zone.targetHumidity, currentDemand, nowMillis);
+        if (demand == currentDemand || !canSwitch(currentDemand, zone.humiditySwitchedAtMillis, nowMillis)) {
+            return;
+        }
+
+        zone.setHumidifierDehumidifierState(demand == DEMAND_INCREASE ? HumidifierDehumidifierState.HUMIDIFIER
+                : demand == DEMAND_DECREASE ? HumidifierDehumidifierState.DEHUMIDIFIER
+                : HumidifierDehumidifierState.HUMIDIFIER_DEHUMIDIFIER_OFF);
+        zone.humiditySwitchedAtMillis = nowMillis;
+        zone.switchCount++;
+    }
+
+    private boolean canSwitch(int currentDemand, long switchedAtMillis, long nowMillis) {
+        if (switchedAtMillis == ClimateZone.NEVER_SWITCHED) {
+            return true;
+        }
+        long minMillis = currentDemand == DEMAND_NONE ? minOffMillis : minOnMillis;
+        return nowMillis - switchedAtMillis >= minMillis;
+    }
+}
@@ -1,47 +1,292 @@
 package smarthome.server.services.climate;
 
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import smarthome.generated.climate.*;
 import smarthome.generated.climate.ClimateServiceGrpc.ClimateServiceImplBase;
-import smarthome.generated.general.DeviceState;
+import smarthome.generated.general.ChangeType;
+import smarthome.generated.general.ChangesSinceRequest;
 import smarthome.generated.general.OperationResponse;
+import smarthome.generated.general.WatchRequest;
+import smarthome.server.services.ChangeFeed;
+import smarthome.server.services.WastedWork;
 
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class ClimateService extends ClimateServiceImplBase {
 
-    int targetTemperature = 21;
-    int targetHumidity = 50;
-    DeviceState heatingState = DeviceState.OFF;
-    DeviceState acState = DeviceState.OFF;
-    HumidifierDehumidifierState humidifierDehumidifierState = HumidifierDehumidifierState.HUMIDIFIER_DEHUMIDIFIER_OFF;
+    private static final Logger logger = LoggerFactory.getLogger(ClimateService.class);
 
-    List<TemperatureReading> temperatureReadings = new ArrayList<>();
-    List<HumidityReading> humidityReadings = new ArrayList<>();
+    // Interval of the control tick re-evaluating every zone
+    public static final long CONTROL_TICK_MILLIS = 1000;
+
+    // Zone used by clients that don't set a zoneId
+    public static final int DEFAULT_ZONE_ID = 0;
+
+    // Climate state of every zone, each zone is guarded by its own lock so zones never contend
+    final ConcurrentMap<Integer, ClimateZone> zones = new ConcurrentHashMap<>();
+
+    // The snapshot of the change feed holds the latest change of every zone
+    private static final ChangeFeed.EntryType<ClimateDevicesStateChange> SNAPSHOT_ENTRIES = new ChangeFeed.EntryType<ClimateDevicesStateChange>() {
+        @Override
+        public int keyOf(ClimateDevicesStateChange change) {
+            return change.getClimateDevicesState().getZoneId();
+        }
+
+        @Override
+        public ChangeType typeOf(ClimateDevicesStateChange change) {
+            return change.getChangeType();
+        }
+
+        @Override
+        public ClimateDevicesStateChange withVersion(ClimateDevicesStateChange change, long version) {
+            return change.getVersion() == version ? change : change.toBuilder().setVersion(version).build();
+        }
+
+        @Override
+        public ClimateDevicesStateChange reset(long version) {
+            return ClimateDevicesStateChange.newBuilder()
+                    .setVersion(version)
+                    .setChangeType(ChangeType.RESET)
+                    .build();
+        }
+    };
+
+    // Device state changes of all zones pushed to watching clients, only locked when a zone's devices change
+    final ChangeFeed<ClimateDevicesStateChange> changeFeed = new ChangeFeed<>(SNAPSHOT_ENTRIES);
+
+    // Decides the device states of every zone from its readings
+    final ClimateControlEngine controlEngine;
+
+    // Maximum number of zones, new zones beyond it are rejected
+    private volatile int maxZones = Integer.MAX_VALUE;
+
+    private final ScheduledExecutorService controlScheduler;
+    // Flushes the batches of slow ingestion streams, apart from the control tick so a slow flush doesn't delay it
+    private final ScheduledExecutorService flushScheduler;
+    private final boolean ownsSchedulers;
+    private final ScheduledFuture<?> controlTask;
+
+    public ClimateService() {
+        this(new ClimateControlEngine());
+    }
+
+    public ClimateService(ClimateControlEngine controlEngine) {
+        this(controlEngine, newDaemonScheduler("climate-control-tick", 1),
+                newDaemonScheduler("climate-ingest-flush", Runtime.getRuntime().availableProcessors()), true);
+    }
+
+    /**
+     * Create a service whose control tick and ingestion flushes run on schedulers shared with other services, e.g.
+     * the services of every home of a multi-home server, so the number of threads doesn't grow with the number of homes.
+     */
+    public ClimateService(ClimateControlEngine controlEngine, ScheduledExecutorService controlScheduler,
+                          ScheduledExecutorService flushScheduler) {
+        this(controlEngine, controlScheduler, flushScheduler, false);
+    }
+
+    private ClimateService(ClimateControlEngine controlEngine, ScheduledExecutorService controlScheduler,
+                           ScheduledExecutorService flushScheduler, boolean ownsSchedulers) {
+        this.controlEngine = controlEngine;
+        this.controlScheduler = controlScheduler;
+        this.flushScheduler = flushScheduler;
+        this.ownsSchedulers = ownsSchedulers;
+        getZone(DEFAULT_ZONE_ID);
+
+        // Periodic tick applying the device switches that were held back by the minimum on/off times
+        this.controlTask = controlScheduler.scheduleAtFixedRate(this::controlTick, CONTROL_TICK_MILLIS, CONTROL_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the control tick, e.g. when the server shuts down. Shared schedulers keep running.
+     */
+    public void shutdown() {
+        controlTask.cancel(false);
+        if (ownsSchedulers) {
+            controlScheduler.shutdownNow();
+            flushScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Create a scheduler of daemon threads with the given name, so an idle service doesn't keep the JVM alive.
+     */
+    public static ScheduledExecutorService newDaemonScheduler(String threadName, int threads) {
+        return Executors.newScheduledThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Limit the number of zones, requests for a new zone beyond it fail with RESOURCE_EXHAUSTED.
+     */
+    public void setMaxZones(int maxZones) {
+        this.maxZones = maxZones;
+    }
+
+    /**
+     * Whether the zone exists or can still be created within the zone limit.
+     */
+    boolean hasZoneCapacity(int zoneId) {
+        return zones.containsKey(zoneId) || zones.size() < maxZones;
+    }
+
+    /**
+     * Run the control loops of every zone and notify the watchers of the zones whose devices switched.
+     */
+    void controlTick() {
+        try {
+            long now = System.currentTimeMillis();
+            for (ClimateZone zone : zones.values()) {
+                synchronized (zone) {
+                    long switchCount = zone.switchCount;
+                    controlEngine.control(zone, now);
+                    if (zone.switchCount != switchCount) {
+                        publishIfChanged(zone, zone.getClimateDevicesState());
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep ticking, an exception would cancel the scheduled task
+            logger.error("Climate control tick failed", e);
+        }
+    }
+
+    /**
+     * Get the zone with the given id, creating it with the default settings on first use.
+     * A new zone is announced to the watchers, so caches and followers know every zone even before its devices change.
+     * Throws a RESOURCE_EXHAUSTED StatusRuntimeException when the zone limit is reached.
+     * Only writes, ingestion and replication create zones: read paths look the zone up in zones, so reading
+     * random zone ids never grows the zones, the control tick or the change feed.
+     */
+    ClimateZone getZone(int zoneId) {
+        ClimateZone zone = zones.get(zoneId);
+        if (zone != null) {
+            return zone;
+        }
+        if (zones.size() >= maxZones) {
+            throw Status.RESOURCE_EXHAUSTED
+                    .withDescription("No more than " + maxZones + " climate zones allowed")
+                    .asRuntimeException();
+        }
+
+        ClimateZone newZone = new ClimateZone(zoneId);
+        zone = zones.putIfAbsent(zoneId, newZone);
+        if (zone != null) {
+            return zone;
+        }
+
+        // Publish the state read under both locks, a change applied meanwhile by another request is never overwritten
+        synchronized (newZone) {
+            synchronized (changeFeed) {
+                changeFeed.publish(version -> buildUpsert(version, newZone));
+            }
+        }
+        return newZone;
+    }
+
+    /**
+     * Apply a climate devices state change replicated from the primary server, with the zone targets when the
+     * primary sends them.
+     * Zones are never removed, so a RESET only means the states of the following zones are sent again.
+     */
+    public void applyReplicatedChange(ClimateDevicesStateChange change) {
+        if (change.getChangeType() != ChangeType.UPSERT) {
+            return;
+        }
+
+        ClimateDevicesState climateDevicesState = change.getClimateDevicesState();
+        ClimateZone zone = getZone(climateDevicesState.getZoneId());
+        synchronized (zone) {
+            zone.setHeatingState(climateDevicesState.getHeatingState());
+            zone.setAcState(climateDevicesState.getAcState());
+            zone.setHumidifierDehumidifierState(climateDevicesState.getHumidityDeviceState());
+            if (change.hasTargetClimateSetting()) {
+                zone.targetTemperature = change.getTargetClimateSetting().getTargetTemperature();
+                zone.targetHumidity = change.getTargetClimateSetting().getTargetHumidity();
+                publishTargetsIfChanged(zone);
+            }
+            publishIfChanged(zone, zone.getClimateDevicesState());
+        }
+    }
+
+    /**
+     * Drop the readings history of a zone before the primary server sends it again.
+     */
+    public void clearReplicatedReadings(int zoneId) {
+        ClimateZone zone = getZone(zoneId);
+        synchronized (zone) {
+            zone.temperatureReadings.clear();
+            zone.humidityReadings.clear();
+        }
+    }
+
+    /**
+     * Add a reading replicated from the primary server to the history of its zone.
+     */
+    public void applyReplicatedReading(int zoneId, ClimateReading reading) {
+        ClimateZone zone = getZone(zoneId);
+        synchronized (zone) {
+            if (reading.hasTemperatureReading()) {
+                TemperatureReading temperatureReading = reading.getTemperatureReading();
+                long timestampMillis = Instant.parse(temperatureReading.getTime()).toEpochMilli();
+                zone.temperatureReadings.add(timestampMillis, temperatureReading.getTemperature());
+                publishTemperatureReading(zone, timestampMillis, temperatureReading.getTemperature());
+            } else if (reading.hasHumidityReading()) {
+                HumidityReading humidityReading = reading.getHumidityReading();
+                long timestampMillis = Instant.parse(humidityReading.getTime()).toEpochMilli();
+                zone.humidityReadings.add(timestampMillis, humidityReading.getHumidity());
+                publishHumidityReading(zone, timestampMillis, humidityReading.getHumidity());
+            }
+        }
+    }
 
     /**
      * Set the target temperature and humidity settings for the climate control system.
-     * This method is called by the client to set the desired temperature and humidity levels.
+     * This method is called by the client to set the desired temperature and humidity levels of a zone.
+     * It also ends the manual overrides of the zone devices, which the control loops drive again.
      */
     @Override
     public void setTargetClimateSettings(
             TargetClimateSetting request,
             StreamObserver<OperationResponse> responseObserver
     ) {
-        // Set the target temperature and humidity based on the request
-        targetTemperature = request.getTargetTemperature();
-        targetHumidity = request.getTargetHumidity();
-
-        // Create a response indicating success
-        OperationResponse operationResponse = OperationResponse.newBuilder()
-                .setMessage("Target Temperature and Humidity set successfully to '" + targetTemperature
-                        + "' degrees and '" + targetHumidity + "' percent")
-                .setIsSuccessful(true)
-                .setOperationName("setTargetClimateSettings")
-                .build();
+        ClimateZone zone = getZone(request.getZoneId());
+        OperationResponse operationResponse;
+
+        synchronized (zone) {
+            // Set the target temperature and humidity based on the request
+            zone.targetTemperature = request.getTargetTemperature();
+            zone.targetHumidity = request.getTargetHumidity();
+
+            // New targets hand the devices switched by hand back to the control loops
+            zone.temperatureOverridden = false;
+            zone.humidityOverridden = false;
+
+            // Notify the watchers, so followers and moved zones keep the targets
+            publishTargetsIfChanged(zone);
+
+            // Create a response indicating success
+            operationResponse = OperationResponse.newBuilder()
+                    .setMessage("Target Temperature and Humidity of zone '" + zone.zoneId + "' set successfully to '"
+                            + zone.targetTemperature + "' degrees and '" + zone.targetHumidity + "' percent")
+                    .setIsSuccessful(true)
+                    .setOperationName("setTargetClimateSettings")
+                    .build();
+        }
 
         // Send the response back to the client
         responseObserver.onNext(operationResponse);
@@ -57,30 +302,26 @@ public class ClimateService extends ClimateServiceImplBase {
             HumidityChangeEvent request,
             StreamObserver<ClimateDevicesState> responseObserver
     ) {
-        // Determine the needed state of the humidifier/dehumidifier based on the humidity reading
-        if (request.getHumidity() < targetHumidity) {
-            humidifierDehumidifierState = HumidifierDehumidifierState.HUMIDIFIER;
-        } else if (request.getHumidity() > targetHumidity) {
-            humidifierDehumidifierState = HumidifierDehumidifierState.DEHUMIDIFIER;
-        } else {
-            humidifierDehumidifierState = HumidifierDehumidifierState.HUMIDIFIER_DEHUMIDIFIER_OFF;
-        }
+        ClimateZone zone = getZone(request.getZoneId());
+        ClimateDevicesState climateDevicesState;
 
-        // Create a new HumidityReading object with the current time and humidity value
-        HumidityReading humidityReading = HumidityReading.newBuilder()
-                .setTime(Instant.now().toString())
-                .setHumidity(request.getHumidity())
-                .build();
+        synchronized (zone) {
+            // Let the control loop determine the needed state of the humidifier/dehumidifier based on the humidity reading
+            long now = System.currentTimeMillis();
+            zone.latestHumidity = request.getHumidity();
+            zone.hasHumidityReading = true;
+            controlEngine.controlHumidity(zone, now);
 
-        // Add the humidity reading to the list of readings
-        humidityReadings.add(humidityReading);
+            // Add the humidity reading to the history and push it to the clients following the zone
+            zone.humidityReadings.add(now, request.getHumidity());
+            publishHumidityReading(zone, now, request.getHumidity());
 
-        // Create a ClimateDevicesState object with the current states of the devices
-        ClimateDevicesState climateDevicesState = ClimateDevicesState.newBuilder()
-                .setAcState(acState)
-                .setHeatingState(heatingState)
-                .setHumidityDeviceState(humidifierDehumidifierState)
-                .build();
+            // Take the current state snapshot of the zone devices
+            climateDevicesState = zone.getClimateDevicesState();
+
+            // Notify the watchers if any device changed
+            publishIfChanged(zone, climateDevicesState);
+        }
 
         // Send the ClimateDevicesState object back to the client
         responseObserver.onNext(climateDevicesState);
@@ -96,33 +337,26 @@ public class ClimateService extends ClimateServiceImplBase {
             TemperatureChangeEvent request,
             StreamObserver<ClimateDevicesState> responseObserver
     ) {
-        // Determine the needed state of the heating and AC devices based on the temperature reading
-        if (request.getTemperature() < targetTemperature) {
-            heatingState = DeviceState.ON;
-            acState = DeviceState.OFF;
-        } else if (request.getTemperature() > targetTemperature) {
-            heatingState = DeviceState.OFF;
-            acState = DeviceState.ON;
-        } else {
-            heatingState = DeviceState.OFF;
-            acState = DeviceState.OFF;
-        }
+        ClimateZone zone = getZone(request.getZoneId());
+        ClimateDevicesState climateDevicesState;
 
-        // Create a new TemperatureReading object with the current time and temperature value
-        TemperatureReading temperatureReading = TemperatureReading.newBuilder()
-                .setTime(Instant.now().toString())
-                .setTemperature(request.getTemperature())
-                .build();
+        synchronized (zone) {
+            // Let the control loop determine the needed state of the heating and AC devices based on the temperature reading
+            long now = System.currentTimeMillis();
+            zone.latestTemperature = request.getTemperature();
+            zone.hasTemperatureReading = true;
+            controlEngine.controlTemperature(zone, now);
 
-        // Add the temperature reading to the list of readings
-        temperatureReadings.add(temperatureReading);
+            // Add the temperature reading to the history and push it to the clients following the zone
+            zone.temperatureReadings.add(now, request.getTemperature());
+            publishTemperatureReading(zone, now, request.getTemperature());
 
-        // Create a ClimateDevicesState object with the current states of the devices
-        ClimateDevicesState climateDevicesState = ClimateDevicesState.newBuilder()
-                .setAcState(acState)
-                .setHeatingState(heatingState)
-                .setHumidityDeviceState(humidifierDehumidifierState)
-                .build();
+            // Take the current state snapshot of the zone devices
+            climateDevicesState = zone.getClimateDevicesState();
+
+            // Notify the watchers if any device changed
+            publishIfChanged(zone, climateDevicesState);
+        }
 
         // Send the ClimateDevicesState object back to the client
         responseObserver.onNext(climateDevicesState);
@@ -131,23 +365,30 @@ public class ClimateService extends ClimateServiceImplBase {
 
     /**
      * Set the heating state of the climate control system.
-     * This method is called by the client to set the heating state of the system.
-     * It updates the heating state and sends the updated state of all climate devices back to the client.
+     * This method is called by the client to set the heating state of a zone.
+     * It updates the heating state and sends the updated state of all climate devices of the zone back to the client.
+     * The heating and AC stay as set by hand, the control loop leaves them alone until the targets are set again.
      */
     @Override
     public void setHeatingState(
             HeatingStateRequest request,
             StreamObserver<ClimateDevicesState> responseObserver
     ) {
-        // Set the heating state based on the request
-        heatingState = request.getHeatingState();
-
-        // Create a ClimateDevicesState object with the current states of the devices
-        ClimateDevicesState climateDevicesState = ClimateDevicesState.newBuilder()
-                .setAcState(acState)
-                .setHeatingState(heatingState)
-                .setHumidityDeviceState(humidifierDehumidifierState)
-                .build();
+        ClimateZone zone = getZone(request.getZoneId());
+        ClimateDevicesState climateDevicesState;
+
+        synchronized (zone) {
+            // Set the heating state based on the request
+            zone.setHeatingState(request.getHeatingState());
+            zone.temperatureSwitchedAtMillis = System.currentTimeMillis();
+            zone.temperatureOverridden = true;
+
+            // Take the current state snapshot of the zone devices
+            climateDevicesState = zone.getClimateDevicesState();
+
+            // Notify the watchers if any device changed
+            publishIfChanged(zone, climateDevicesState);
+        }
 
         // Send the ClimateDevicesState object back to the client
         responseObserver.onNext(climateDevicesState);
@@ -156,22 +397,29 @@ public class ClimateService extends ClimateServiceImplBase {
 
     /**
      * Set the Air conditioner state of the climate control system.
-     * This method is called by the client to set the Air conditioner state of the system.
+     * This method is called by the client to set the Air conditioner state of a zone.
+     * Like the heating state, it overrides the control loop until the targets are set again.
      */
     @Override
     public void setACState(
             ACStateRequest request,
             StreamObserver<ClimateDevicesState> responseObserver
     ) {
-        // Set the Air conditioner state based on the request
-        acState = request.getAcState();
-
-        // Create a ClimateDevicesState object with the current states of the devices
-        ClimateDevicesState climateDevicesState = ClimateDevicesState.newBuilder()
-                .setAcState(acState)
-                .setHeatingState(heatingState)
-                .setHumidityDeviceState(humidifierDehumidifierState)
-                .build();
+        ClimateZone zone = getZone(request.getZoneId());
+        ClimateDevicesState climateDevicesState;
+
+        synchronized (zone) {
+            // Set the Air conditioner state based on the request
+            zone.setAcState(request.getAcState());
+            zone.temperatureSwitchedAtMillis = System.currentTimeMillis();
+            zone.temperatureOverridden = true;
+
+            // Take the current state snapshot of the zone devices
+            climateDevicesState = zone.getClimateDevicesState();
+
+            // Notify the watchers if any device changed
+            publishIfChanged(zone, climateDevicesState);
+        }
 
         // Send the ClimateDevicesState object back to the client
         responseObserver.onNext(climateDevicesState);
@@ -180,22 +428,29 @@ public class ClimateService extends ClimateServiceImplBase {
 
     /**
      * Set the humidifier/dehumidifier state of the climate control system.
-     * This method is called by the client to set the humidifier/dehumidifier state of the system.
+     * This method is called by the client to set the humidifier/dehumidifier state of a zone.
+     * Like the heating state, it overrides the control loop until the targets are set again.
      */
     @Override
     public void setHumidifierDehumidifierState(
             HumidifierDehumidifierStateRequest request,
             StreamObserver<ClimateDevicesState> responseObserver
     ) {
-        // Set the humidifier/dehumidifier state based on the request
-        humidifierDehumidifierState = request.getState();
-
-        // Create a ClimateDevicesState object with the current states of the devices
-        ClimateDevicesState climateDevicesState = ClimateDevicesState.newBuilder()
-                .setAcState(acState)
-                .setHeatingState(heatingState)
-                .setHumidityDeviceState(humidifierDehumidifierState)
-                .build();
+        ClimateZone zone = getZone(request.getZoneId());
+        ClimateDevicesState climateDevicesState;
+
+        synchronized (zone) {
+            // Set the humidifier/dehumidifier state based on the request
+            zone.setHumidifierDehumidifierState(request.getState());
+            zone.humiditySwitchedAtMillis = System.currentTimeMillis();
+            zone.humidityOverridden = true;
+
+            // Take the current state snapshot of the zone devices
+            climateDevicesState = zone.getClimateDevicesState();
+
+            // Notify the watchers if any device changed
+            publishIfChanged(zone, climateDevicesState);
+        }
 
         // Send the ClimateDevicesState object back to the client
         responseObserver.onNext(climateDevicesState);
@@ -204,7 +459,7 @@ public class ClimateService extends ClimateServiceImplBase {
 
     /**
      * Get the current state of all climate devices.
-     * This method is called by the client to retrieve the current state of the climate devices.
+     * This method is called by the client to retrieve the current state of the climate devices of a zone.
      * It sends the current state of the heating, Air conditioner, and humidifier/dehumidifier devices back to the client.
      */
     @Override
@@ -212,12 +467,13 @@ public class ClimateService extends ClimateServiceImplBase {
             ClimateDevicesStateRequest request,
             StreamObserver<ClimateDevicesState> responseObserver
     ) {
-        // Create a ClimateDevicesState object with the current states of the devices
-        ClimateDevicesState climateDevicesState = ClimateDevicesState.newBuilder()
-                .setAcState(acState)
-                .setHeatingState(heatingState)
-                .setHumidityDeviceState(humidifierDehumidifierState)
-                .build();
+        ClimateZone zone = zones.get(request.getZoneId());
+
+        // Take the current state snapshot of the zone devices, it is immutable so no lock is needed.
+        // A zone nobody wrote to yet has all its devices off, reading it doesn't create it
+        ClimateDevicesState climateDevicesState = zone != null
+                ? zone.getClimateDevicesState()
+                : ClimateZone.defaultClimateDevicesState(request.getZoneId());
 
         // Send the ClimateDevicesState object back to the client
         responseObserver.onNext(climateDevicesState);
@@ -226,72 +482,482 @@ public class ClimateService extends ClimateServiceImplBase {
 
     /**
      * Get the temperature history.
-     * This method is called by the client to retrieve the history of temperature readings.
+     * This method is called by the client to retrieve the history of temperature readings of a zone.
      */
     @Override
     public void getTemperatureHistory(
             TemperatureHistoryRequest request,
             StreamObserver<TemperatureReading> responseObserver
     ) {
-        // Check if there are any temperature readings available
-        if (temperatureReadings.isEmpty()) {
+        ClimateZone zone = zones.get(request.getZoneId());
+
+        // Take a cursor over the requested readings, they are decoded while streaming without holding the zone lock
+        ReadingSeries.Cursor cursor = null;
+        if (zone != null) {
+            synchronized (zone) {
+                cursor = zone.temperatureReadings.first(request.getMaxNoOfReadings());
+            }
+        }
+
+        // Check if there are any temperature readings available, a zone that doesn't exist has none
+        if (cursor == null || !cursor.hasNext()) {
             // If no readings are available, send an error response
             responseObserver.onError(Status.NOT_FOUND
-                    .withDescription("No entries found for Temperature readings at the moment.")
+                    .withDescription("No entries found for Temperature readings of zone '" + request.getZoneId() + "' at the moment.")
                     .asRuntimeException()
             );
         } else {
-            // If there are readings available, send them back to the client
-            int numberOfHistoryEntries = temperatureReadings.size();
-
-            // Limit the number of readings to either the requested maximum or the available readings
-            if (request.getMaxNoOfReadings() > 0) {
-                numberOfHistoryEntries = Math.min(request.getMaxNoOfReadings(), temperatureReadings.size());
-            }
-
-            // Send the requested number of temperature readings to the client
-            for (int i = 0; i < numberOfHistoryEntries; i++) {
-                responseObserver.onNext(temperatureReadings.get(i));
-            }
-
-            // Complete the response
-            responseObserver.onCompleted();
+            // Send the requested number of temperature readings to the client as fast as it reads them
+            streamReadings(cursor, zone.zoneId, ClimateService::buildTemperatureReading, responseObserver);
         }
     }
 
     /**
      * Get the humidity history.
-     * This method is called by the client to retrieve the history of humidity readings.
+     * This method is called by the client to retrieve the history of humidity readings of a zone.
      */
     @Override
     public void getHumidityHistory(
             HumidityHistoryRequest request,
             StreamObserver<HumidityReading> responseObserver
     ) {
-        // Check if there are any humidity readings available
-        if (humidityReadings.isEmpty()) {
+        ClimateZone zone = zones.get(request.getZoneId());
+
+        // Take a cursor over the requested readings, they are decoded while streaming without holding the zone lock
+        ReadingSeries.Cursor cursor = null;
+        if (zone != null) {
+            synchronized (zone) {
+                cursor = zone.humidityReadings.first(request.getMaxNoOfReadings());
+            }
+        }
+
+        // Check if there are any humidity readings available, a zone that doesn't exist has none
+        if (cursor == null || !cursor.hasNext()) {
             // If no readings are available, send an error response
             responseObserver.onError(Status.NOT_FOUND
-                    .withDescription("No entries found for Humidity readings at the moment.")
+                    .withDescription("No entries found for Humidity readings of zone '" + request.getZoneId() + "' at the moment.")
                     .asRuntimeException()
             );
         } else {
-            // If there are readings available, send them back to the client
-            int numberOfHistoryEntries = humidityReadings.size();
+            // Send the requested number of humidity readings to the client as fast as it reads them
+            streamReadings(cursor, zone.zoneId, ClimateService::buildHumidityReading, responseObserver);
+        }
+    }
+
+    /**
+     * Watch the state changes of the climate devices.
+     * The server sends the current state of every zone first, then pushes each change as it is applied.
+     */
+    @Override
+    public void watchClimateDevicesState(
+            WatchRequest request,
+            StreamObserver<ClimateDevicesStateChange> responseObserver
+    ) {
+        // A resumed watch gets only the changes the client missed while they are still in the log, otherwise the snapshot
+        changeFeed.subscribe(responseObserver, request.getFromVersion());
+    }
 
-            // Limit the number of readings to either the requested maximum or the available readings
-            if (request.getMaxNoOfReadings() > 0) {
-                numberOfHistoryEntries = Math.min(request.getMaxNoOfReadings(), humidityReadings.size());
+    /**
+     * Get the changes after the given version.
+     * The server sends the logged changes after that version, or the current state of every zone when they are no longer logged.
+     */
+    @Override
+    public void getChangesSince(
+            ChangesSinceRequest request,
+            StreamObserver<ClimateDevicesStateChange> responseObserver
+    ) {
+        // Copy the changes from the log, they are streamed without holding the change feed lock
+        List<ClimateDevicesStateChange> changes = changeFeed.changesSince(request.getVersion());
+
+        // Send the changes to the client, stopping once it is gone
+        for (int i = 0; i < changes.size(); i++) {
+            if (WastedWork.isCancelled(responseObserver)) {
+                WastedWork.callCancelled(changes.size() - i);
+                return;
             }
+            responseObserver.onNext(changes.get(i));
+        }
 
-            // Send the requested number of humidity readings to the client
-            for (int i = 0; i < numberOfHistoryEntries; i++) {
-                responseObserver.onNext(humidityReadings.get(i));
+        // Complete the response
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Get the RESET marker followed by the state of every zone at one consistent version.
+     * The snapshot is immutable and shared by all readers until the next change.
+     */
+    public List<ClimateDevicesStateChange> getSnapshot() {
+        return changeFeed.snapshot();
+    }
+
+    /**
+     * Get the change feed, whose lock guards the state of the service.
+     */
+    public ChangeFeed<ClimateDevicesStateChange> getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Send a heartbeat with the current version to the watchers, so they can tell an idle feed from a dead one.
+     */
+    public void sendHeartbeat() {
+        changeFeed.heartbeat(version -> ClimateDevicesStateChange.newBuilder()
+                .setVersion(version)
+                .setChangeType(ChangeType.HEARTBEAT)
+                .build());
+    }
+
+    /**
+     * Watch the temperature and humidity readings of a zone.
+     * The server sends the latest past readings first, then pushes each new reading as it is received,
+     * so a client can follow the readings without fetching the whole history again.
+     */
+    @Override
+    public void watchReadings(
+            ReadingsWatchRequest request,
+            StreamObserver<ClimateReading> responseObserver
+    ) {
+        ClimateZone zone = zones.get(request.getZoneId());
+        if (zone == null) {
+            // Watching doesn't create the zone, its readings start once a client writes to it
+            responseObserver.onError(Status.NOT_FOUND
+                    .withDescription("No climate zone '" + request.getZoneId() + "' exists.")
+                    .asRuntimeException()
+            );
+            return;
+        }
+
+        // Hold the zone lock so no reading is added between the past readings and the subscription
+        synchronized (zone) {
+            zone.readingFeed.subscribe(responseObserver, version -> buildReadingsSnapshot(zone, request.getMaxNoOfHistoryReadings()));
+        }
+    }
+
+    /**
+     * Ingest a stream of sensor readings from the client.
+     * The readings are applied in batches and the server responds once the client completes the stream.
+     */
+    @Override
+    public StreamObserver<SensorReading> ingestReadings(StreamObserver<OperationResponse> responseObserver) {
+        ReadingIngestor ingestor = new ReadingIngestor(this, flushScheduler, responseObserver, null);
+
+        return new StreamObserver<SensorReading>() {
+            @Override
+            public void onNext(SensorReading sensorReading) {
+                if (!hasZoneCapacity(sensorReading.getZoneId())) {
+                    // Rejected through the ingestor, which applies the readings before this one first
+                    // and doesn't fail the call twice when a flush fails meanwhile
+                    ingestor.reject(Status.RESOURCE_EXHAUSTED
+                            .withDescription("No more than " + maxZones + " climate zones allowed"));
+                    return;
+                }
+                ingestor.add(sensorReading);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                // The client cancelled the stream or its deadline expired, the readings not applied yet are dropped
+                WastedWork.callCancelled(0);
+                WastedWork.requestsDiscarded(ingestor.discard());
+            }
+
+            @Override
+            public void onCompleted() {
+                // Apply the last batch and send a single response for the whole stream, unless the call failed
+                if (!ingestor.close()) {
+                    return;
+                }
+
+                responseObserver.onNext(OperationResponse.newBuilder()
+                        .setMessage("Received '" + ingestor.getAcceptedReadings() + "' readings for '"
+                                + ingestor.getZoneCount() + "' zones")
+                        .setIsSuccessful(true)
+                        .setOperationName("ingestReadings")
+                        .build());
+                responseObserver.onCompleted();
+            }
+        };
+    }
+
+    /**
+     * Ingest a stream of sensor readings from the client and stream back the state of the zones whose devices changed.
+     * The readings are applied in batches, a zone state is only sent when it differs from the last one sent on the stream.
+     */
+    @Override
+    public StreamObserver<SensorReading> streamReadings(StreamObserver<ClimateDevicesState> responseObserver) {
+        ReadingIngestor ingestor = new ReadingIngestor(this, flushScheduler, responseObserver, responseObserver);
+
+        return new StreamObserver<SensorReading>() {
+            @Override
+            public void onNext(SensorReading sensorReading) {
+                if (!hasZoneCapacity(sensorReading.getZoneId())) {
+                    // Rejected through the ingestor, which applies the readings before this one first
+                    // and doesn't fail the call twice when a flush fails meanwhile
+                    ingestor.reject(Status.RESOURCE_EXHAUSTED
+                            .withDescription("No more than " + maxZones + " climate zones allowed"));
+                    return;
+                }
+                ingestor.add(sensorReading);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                // The client cancelled the stream or its deadline expired, the readings not applied yet are dropped
+                WastedWork.callCancelled(0);
+                WastedWork.requestsDiscarded(ingestor.discard());
             }
 
-            // Complete the response
+            @Override
+            public void onCompleted() {
+                // Apply the last batch before completing the response stream, unless the call failed
+                if (ingestor.close()) {
+                    responseObserver.onCompleted();
+                }
+            }
+        };
+    }
+
+    /**
+     * Apply a batch of readings of one zone: the history is appended once and the control loops run once
+     * on the latest readings. Returns the resulting state of the zone devices.
+     */
+    ClimateDevicesState ingestReadings(int zoneId, List<SensorReading> sensorReadings) {
+        ClimateZone zone = getZone(zoneId);
+        long now = System.currentTimeMillis();
+
+        synchronized (zone) {
+            // Append the whole batch to the history and push it to the clients following the zone
+            boolean hasTemperature = false;
+            boolean hasHumidity = false;
+            for (SensorReading sensorReading : sensorReadings) {
+                long timestampMillis = sensorReading.getTimestampMillis() > 0 ? sensorReading.getTimestampMillis() : now;
+
+                if (sensorReading.getValueCase() == SensorReading.ValueCase.TEMPERATURE) {
+                    zone.temperatureReadings.add(timestampMillis, sensorReading.getTemperature());
+                    publishTemperatureReading(zone, timestampMillis, sensorReading.getTemperature());
+                    zone.latestTemperature = sensorReading.getTemperature();
+                    hasTemperature = true;
+                } else if (sensorReading.getValueCase() == SensorReading.ValueCase.HUMIDITY) {
+                    zone.humidityReadings.add(timestampMillis, sensorReading.getHumidity());
+                    publishHumidityReading(zone, timestampMillis, sensorReading.getHumidity());
+                    zone.latestHumidity = sensorReading.getHumidity();
+                    hasHumidity = true;
+                }
+            }
+
+            // Run the control loops once on the latest readings of the batch
+            if (hasTemperature) {
+                zone.hasTemperatureReading = true;
+                controlEngine.controlTemperature(zone, now);
+            }
+            if (hasHumidity) {
+                zone.hasHumidityReading = true;
+                controlEngine.controlHumidity(zone, now);
+            }
+
+            // Notify the watchers if any device changed
+            ClimateDevicesState climateDevicesState = zone.getClimateDevicesState();
+            publishIfChanged(zone, climateDevicesState);
+            return climateDevicesState;
+        }
+    }
+
+    /**
+     * Builds the message of a stored reading.
+     */
+    private interface ReadingMessageBuilder<T> {
+        T build(int zoneId, long timestampMillis, int value);
+    }
+
+    /**
+     * Stream the readings of the cursor and complete the call.
+     * Readings are only decoded while the transport is ready to send more, so a long history is decoded as fast as
+     * the client reads it instead of being queued whole in the transport buffers.
+     */
+    private static <T> void streamReadings(
+            ReadingSeries.Cursor cursor,
+            int zoneId,
+            ReadingMessageBuilder<T> messageBuilder,
+            StreamObserver<T> responseObserver
+    ) {
+        if (!(responseObserver instanceof ServerCallStreamObserver)) {
+            // Not called through a transport, there is nothing to wait for
+            while (cursor.hasNext()) {
+                cursor.next();
+                responseObserver.onNext(messageBuilder.build(zoneId, cursor.getTimestampMillis(), cursor.getValue()));
+            }
             responseObserver.onCompleted();
+            return;
+        }
+
+        ReadingStreamer<T> streamer = new ReadingStreamer<>(cursor, zoneId, messageBuilder, (ServerCallStreamObserver<T>) responseObserver);
+        streamer.responseObserver.setOnCancelHandler(streamer::cancelled);
+        streamer.responseObserver.setOnReadyHandler(streamer);
+        streamer.run();
+    }
+
+    /**
+     * Sends the readings of a cursor each time the transport is ready for more.
+     * Runs on the serializing executor of the call, so it never runs concurrently with itself or the cancel handler.
+     */
+    private static final class ReadingStreamer<T> implements Runnable {
+        private final ReadingSeries.Cursor cursor;
+        private final int zoneId;
+        private final ReadingMessageBuilder<T> messageBuilder;
+        private final ServerCallStreamObserver<T> responseObserver;
+        private boolean done;
+
+        ReadingStreamer(ReadingSeries.Cursor cursor, int zoneId, ReadingMessageBuilder<T> messageBuilder,
+                        ServerCallStreamObserver<T> responseObserver) {
+            this.cursor = cursor;
+            this.zoneId = zoneId;
+            this.messageBuilder = messageBuilder;
+            this.responseObserver = responseObserver;
+        }
+
+        @Override
+        public void run() {
+            if (done) {
+                return;
+            }
+            while (responseObserver.isReady() && cursor.hasNext()) {
+                // Stop decoding once the client is gone, e.g. its deadline expired during a long history
+                if (responseObserver.isCancelled()) {
+                    cancelled();
+                    return;
+                }
+                cursor.next();
+                responseObserver.onNext(messageBuilder.build(zoneId, cursor.getTimestampMillis(), cursor.getValue()));
+            }
+            if (!cursor.hasNext()) {
+                done = true;
+                responseObserver.onCompleted();
+            }
+        }
+
+        void cancelled() {
+            if (!done) {
+                done = true;
+                WastedWork.callCancelled(cursor.remaining());
+            }
+        }
+    }
+
+    /**
+     * Build the list of the latest temperature and humidity readings of a zone, all of them if maxNoOfReadings is not positive.
+     * Must be called while holding the zone lock.
+     */
+    private List<ClimateReading> buildReadingsSnapshot(ClimateZone zone, int maxNoOfReadings) {
+        List<ClimateReading> snapshot = new ArrayList<>();
+
+        ReadingSeries.Cursor temperatureCursor = zone.temperatureReadings.last(maxNoOfReadings);
+        while (temperatureCursor.hasNext()) {
+            temperatureCursor.next();
+            snapshot.add(ClimateReading.newBuilder()
+                    .setTemperatureReading(buildTemperatureReading(zone.zoneId, temperatureCursor.getTimestampMillis(), temperatureCursor.getValue()))
+                    .build());
+        }
+
+        ReadingSeries.Cursor humidityCursor = zone.humidityReadings.last(maxNoOfReadings);
+        while (humidityCursor.hasNext()) {
+            humidityCursor.next();
+            snapshot.add(ClimateReading.newBuilder()
+                    .setHumidityReading(buildHumidityReading(zone.zoneId, humidityCursor.getTimestampMillis(), humidityCursor.getValue()))
+                    .build());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Decode a stored temperature reading into its message.
+     */
+    private static TemperatureReading buildTemperatureReading(int zoneId, long timestampMillis, int temperature) {
+        return TemperatureReading.newBuilder()
+                .setTime(Instant.ofEpochMilli(timestampMillis).toString())
+                .setTemperature(temperature)
+                .setZoneId(zoneId)
+                .build();
+    }
+
+    /**
+     * Decode a stored humidity reading into its message.
+     */
+    private static HumidityReading buildHumidityReading(int zoneId, long timestampMillis, int humidity) {
+        return HumidityReading.newBuilder()
+                .setTime(Instant.ofEpochMilli(timestampMillis).toString())
+                .setHumidity(humidity)
+                .setZoneId(zoneId)
+                .build();
+    }
+
+    /**
+     * Build the UPSERT of the last published state and targets of a zone. Must be called while holding the change feed lock.
+     */
+    private static ClimateDevicesStateChange buildUpsert(long version, ClimateZone zone) {
+        return ClimateDevicesStateChange.newBuilder()
+                .setVersion(version)
+                .setChangeType(ChangeType.UPSERT)
+                .setClimateDevicesState(zone.publishedState)
+                .setTargetClimateSetting(zone.publishedTargets)
+                .build();
+    }
+
+    /**
+     * Push a temperature reading to the clients following the zone readings.
+     * Must be called while holding the zone lock.
+     */
+    private void publishTemperatureReading(ClimateZone zone, long timestampMillis, int temperature) {
+        // Skip building the message and the feed lock entirely while nobody follows the zone
+        if (zone.readingFeed.getSubscriberCount() > 0) {
+            ClimateReading reading = ClimateReading.newBuilder()
+                    .setTemperatureReading(buildTemperatureReading(zone.zoneId, timestampMillis, temperature))
+                    .build();
+            zone.readingFeed.publish(version -> reading);
+        }
+    }
+
+    /**
+     * Push a humidity reading to the clients following the zone readings.
+     * Must be called while holding the zone lock.
+     */
+    private void publishHumidityReading(ClimateZone zone, long timestampMillis, int humidity) {
+        // Skip building the message and the feed lock entirely while nobody follows the zone
+        if (zone.readingFeed.getSubscriberCount() > 0) {
+            ClimateReading reading = ClimateReading.newBuilder()
+                    .setHumidityReading(buildHumidityReading(zone.zoneId, timestampMillis, humidity))
+                    .build();
+            zone.readingFeed.publish(version -> reading);
+        }
+    }
+
+    /**
+     * Push the climate devices state of a zone to the watchers if it differs from the last pushed one.
+     * Must be called while holding the zone lock, the shared change feed lock is only taken when a device changed.
+     */
+    private void publishIfChanged(ClimateZone zone, ClimateDevicesState climateDevicesState) {
+        // Unchanged devices keep the same snapshot instance, so this is usually a reference comparison
+        if (climateDevicesState.equals(zone.publishedState)) {
+            return;
+        }
+        synchronized (changeFeed) {
+            zone.publishedState = climateDevicesState;
+            changeFeed.publish(version -> buildUpsert(version, zone));
+        }
+    }
+
+    /**
+     * Push the targets of a zone to the watchers if they differ from the last pushed ones, with the last pushed state.
+     * Must be called while holding the zone lock.
+     */
+    private void publishTargetsIfChanged(ClimateZone zone) {
+        TargetClimateSetting targets = zone.buildTargetClimateSetting();
+        if (targets.equals(zone.publishedTargets)) {
+            return;
+        }
+        synchronized (changeFeed) {
+            zone.publishedTargets = targets;
+            changeFeed.publish(version -> buildUpsert(version, zone));
         }
     }
-    
+
 }
@@ -0,0 +1,134 @@
+package smarthome.server.services.climate;
+
+import smarthome.generated.climate.*;
+import smarthome.generated.general.DeviceState;
+import smarthome.server.services.ChangeFeed;
+
+/**
+ * Climate state of a single zone: its targets, device states and readings history.
+ * Each zone is guarded by its own monitor, so requests for different zones never wait on each other.
+ */
+public class ClimateZone {
+
+    static final long NEVER_SWITCHED = Long.MIN_VALUE;
+
+    final int zoneId;
+
+    int targetTemperature = 21;
+    int targetHumidity = 50;
+
+    // Device states, only changed through the setters below so the state snapshot follows them
+    DeviceState heatingState = DeviceState.OFF;
+    DeviceState acState = DeviceState.OFF;
+    HumidifierDehumidifierState humidifierDehumidifierState = HumidifierDehumidifierState.HUMIDIFIER_DEHUMIDIFIER_OFF;
+
+    // Immutable snapshot of the device states, rebuilt only when one of them changes and shared by all readers
+    private volatile ClimateDevicesState state;
+
+    // Latest readings and control loop state used by the ClimateControlEngine
+    boolean hasTemperatureReading;
+    int latestTemperature;
+    boolean hasHumidityReading;
+    int latestHumidity;
+    ControlStrategy.ControlLoop temperatureLoop;
+    ControlStrategy.ControlLoop humidityLoop;
+    long temperatureSwitchedAtMillis = NEVER_SWITCHED;
+    long humiditySwitchedAtMillis = NEVER_SWITCHED;
+    long switchCount;
+    // Set when a client switched the devices by hand, the control loops leave them alone until the targets are set again
+    boolean temperatureOverridden;
+    boolean humidityOverridden;
+
+    // Readings history, compressed so the long histories of many zones stay small
+    final ReadingSeries temperatureReadings = new ReadingSeries();
+    final ReadingSeries humidityReadings = new ReadingSeries();
+
+    // Readings of this zone pushed to the clients following them live, published while holding the zone lock.
+    // Followers start from the readings history instead of catching up, so the feed keeps no log
+    final ChangeFeed<ClimateReading> readingFeed = new ChangeFeed<>(0);
+
+    // Last state and targets of this zone pushed to the watchers, written while holding both the zone and the change feed locks
+    ClimateDevicesState publishedState;
+    TargetClimateSetting publishedTargets;
+
+    ClimateZone(int zoneId) {
+        this.zoneId = zoneId;
+        this.state = buildClimateDevicesState();
+        this.publishedState = state;
+        this.publishedTargets = buildTargetClimateSetting();
+    }
+
+    /**
+     * Current state of the zone devices. Can be read without holding the zone lock.
+     */
+    ClimateDevicesState getClimateDevicesState() {
+        return state;
+    }
+
+    /**
+     * Set the heating state. Must be called while holding the zone lock, as must the setters below.
+     */
+    void setHeatingState(DeviceState heatingState) {
+        if (this.heatingState != heatingState) {
+            this.heatingState = heatingState;
+            state = buildClimateDevicesState();
+        }
+    }
+
+    void setAcState(DeviceState acState) {
+        if (this.acState != acState) {
+            this.acState = acState;
+            state = buildClimateDevicesState();
+        }
+    }
+
+    /**
+     * Set both temperature devices at once, the snapshot is rebuilt at most once.
+     */
+    void setTemperatureDeviceStates(DeviceState heatingState, DeviceState acState) {
+        if (this.heatingState != heatingState || this.acState != acState) {
+            this.heatingState = heatingState;
+            this.acState = acState;
+            state = buildClimateDevicesState();
+        }
+    }
+
+    void setHumidifierDehumidifierState(HumidifierDehumidifierState humidifierDehumidifierState) {
+        if (this.humidifierDehumidifierState != humidifierDehumidifierState) {
+            this.humidifierDehumidifierState = humidifierDehumidifierState;
+            state = buildClimateDevicesState();
+        }
+    }
+
+    /**
+     * State of the devices of a zone that doesn't exist, all of them off.
+     */
+    static ClimateDevicesState defaultClimateDevicesState(int zoneId) {
+        return ClimateDevicesState.newBuilder()
+                .setAcState(DeviceState.OFF)
+                .setHeatingState(DeviceState.OFF)
+                .setHumidityDeviceState(HumidifierDehumidifierState.HUMIDIFIER_DEHUMIDIFIER_OFF)
+                .setZoneId(zoneId)
+                .build();
+    }
+
+    /**
+     * Current targets of the zone. Must be called while holding the zone lock.
+     */
+    TargetClimateSetting buildTargetClimateSetting() {
+        return TargetClimateSetting.newBuilder()
+                .setTargetTemperature(targetTemperature)
+                .setTargetHumidity(targetHumidity)
+                .setZoneId(zoneId)
+                .build();
+    }
+
+    private ClimateDevicesState buildClimateDevicesState() {
+        return ClimateDevicesState.newBuilder()
+                .setAcState(acState)
+                .setHeatingState(heatingState)
+                .setHumidityDeviceState(humidifierDehumidifierState)
+                .setZoneId(zoneId)
+                .build();
+    }
+}
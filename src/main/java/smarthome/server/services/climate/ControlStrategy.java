@@ -0,0 +1,33 @@
+package smarthome.server.services.climate;
+
+/**
+ * Strategy deciding how a climate device pair (heating/AC or humidifier/dehumidifier) should react to readings.
+ * The strategy creates one stateful control loop per zone and quantity, so a loop can keep things like
+ * the PID integral between readings while each update stays O(1).
+ */
+public interface ControlStrategy {
+
+    // Demands returned by a control loop
+    int DEMAND_DECREASE = -1;
+    int DEMAND_NONE = 0;
+    int DEMAND_INCREASE = 1;
+
+    ControlLoop newControlLoop();
+
+    /**
+     * Control loop of one quantity in one zone. Only called while holding the zone lock.
+     */
+    interface ControlLoop {
+
+        /**
+         * Compute the wanted demand from the latest measured value.
+         *
+         * @param measured      latest reading
+         * @param target        target set for the zone
+         * @param currentDemand demand the devices are currently running with
+         * @param nowMillis     current time, used to integrate over the time between updates
+         * @return DEMAND_INCREASE (heat/humidify), DEMAND_DECREASE (cool/dehumidify) or DEMAND_NONE
+         */
+        int update(double measured, double target, int currentDemand, long nowMillis);
+    }
+}
@@ -0,0 +1,43 @@
+package smarthome.server.services.climate;
+
+/**
+ * Bang-bang control with a deadband around the target.
+ * Devices only start once the reading leaves the deadband and keep running until the target is reached,
+ * so a noisy reading close to the target no longer flips the devices on every reading.
+ */
+public class HysteresisControlStrategy implements ControlStrategy {
+
+    private final double deadband;
+
+    /**
+     * @param deadband distance from the target the reading must exceed before a device starts
+     */
+    public HysteresisControlStrategy(double deadband) {
+        if (deadband < 0) {
+            throw new IllegalArgumentException("deadband must not be negative");
+        }
+        this.deadband = deadband;
+    }
+
+    @Override
+    public ControlLoop newControlLoop() {
+        // The loop needs no state of its own, the current demand carries the hysteresis
+        return (measured, target, currentDemand, nowMillis) -> {
+            if (measured < target - deadband) {
+                return DEMAND_INCREASE;
+            }
+            if (measured > target + deadband) {
+                return DEMAND_DECREASE;
+            }
+
+            // Inside the deadband: keep running until the target is reached, then stop
+            if (currentDemand == DEMAND_INCREASE && measured >= target) {
+                return DEMAND_NONE;
+            }
+            if (currentDemand == DEMAND_DECREASE && measured <= target) {
+                return DEMAND_NONE;
+            }
+            return currentDemand;
+        };
+    }
+}
@@ -0,0 +1,67 @@
+package smarthome.server.services.climate;
+
+/**
+ * PID control of an on/off device pair.
+ * The PID output is computed from the error between target and reading, and a device runs while the output
+ * exceeds the activation threshold in its direction. The integral is clamped to avoid wind-up while the
+ * devices are held back, e.g. by the minimum on/off times.
+ */
+public class PidControlStrategy implements ControlStrategy {
+
+    private final double proportionalGain;
+    private final double integralGain;
+    private final double derivativeGain;
+    private final double activationThreshold;
+    private final double integralLimit;
+
+    /**
+     * @param proportionalGain    gain applied to the error
+     * @param integralGain        gain applied to the error integrated over seconds
+     * @param derivativeGain      gain applied to the change of the error per second
+     * @param activationThreshold output needed before a device starts
+     * @param integralLimit       maximum absolute value of the integrated error
+     */
+    public PidControlStrategy(double proportionalGain, double integralGain, double derivativeGain,
+                              double activationThreshold, double integralLimit) {
+        this.proportionalGain = proportionalGain;
+        this.integralGain = integralGain;
+        this.derivativeGain = derivativeGain;
+        this.activationThreshold = activationThreshold;
+        this.integralLimit = integralLimit;
+    }
+
+    @Override
+    public ControlLoop newControlLoop() {
+        return new PidControlLoop();
+    }
+
+    private class PidControlLoop implements ControlLoop {
+
+        private double integral;
+        private double previousError;
+        private long previousMillis = -1;
+
+        @Override
+        public int update(double measured, double target, int currentDemand, long nowMillis) {
+            double error = target - measured;
+
+            double derivative = 0;
+            if (previousMillis >= 0 && nowMillis > previousMillis) {
+                double elapsedSeconds = (nowMillis - previousMillis) / 1000.0;
+                integral = Math.max(-integralLimit, Math.min(integralLimit, integral + error * elapsedSeconds));
+                derivative = (error - previousError) / elapsedSeconds;
+            }
+            previousError = error;
+            previousMillis = nowMillis;
+
+            double output = proportionalGain * error + integralGain * integral + derivativeGain * derivative;
+            if (output > activationThreshold) {
+                return DEMAND_INCREASE;
+            }
+            if (output < -activationThreshold) {
+                return DEMAND_DECREASE;
+            }
+            return DEMAND_NONE;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package smarthome.server.services.climate;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import smarthome.common.FailedCommand;
+import smarthome.generated.climate.ClimateDevicesState;
+import smarthome.generated.climate.SensorReading;
+import smarthome.server.services.WastedWork;
+
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers the readings of one ingestion stream and applies them to the zones in batches.
+ * A batch is applied once it is full or its oldest reading has waited for the maximum delay, each zone of
+ * the batch is then locked once for all its readings. When a state observer is given (bidi stream),
+ * the state of a zone is only sent back when it differs from the last one sent on this stream.
+ * Batches flushed by the delay run on the flush scheduler, a batch that fails fails the call instead of
+ * being lost with the exception, with the index of the failing reading (see FailedCommand).
+ */
+class ReadingIngestor {
+
+    static final int MAX_BATCH_SIZE = 512;
+    static final long MAX_DELAY_MILLIS = 20;
+
+    private final ClimateService climateService;
+    private final ScheduledExecutorService scheduler;
+    // Response observer of the call, failed when a batch can't be applied
+    private final StreamObserver<?> responseObserver;
+    private final StreamObserver<ClimateDevicesState> stateObserver;
+
+    // Guarded by this
+    private List<SensorReading> buffer = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+    private final Map<Integer, ClimateDevicesState> lastSentStates = new HashMap<>();
+    private final Set<Integer> zoneIds = new HashSet<>();
+    private long acceptedReadings;
+    private boolean closed;
+
+    ReadingIngestor(ClimateService climateService, ScheduledExecutorService scheduler,
+                    StreamObserver<?> responseObserver, StreamObserver<ClimateDevicesState> stateObserver) {
+        this.climateService = climateService;
+        this.scheduler = scheduler;
+        this.responseObserver = responseObserver;
+        this.stateObserver = stateObserver;
+    }
+
+    synchronized void add(SensorReading reading) {
+        if (closed) {
+            return;
+        }
+        buffer.add(reading);
+
+        if (buffer.size() >= MAX_BATCH_SIZE) {
+            flush();
+        } else if (scheduledFlush == null) {
+            // Bound the time the first reading of the batch waits when the stream is slow
+            scheduledFlush = scheduler.schedule(this::flush, MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Apply the buffered readings, grouped by zone so each zone is locked once per batch.
+     */
+    synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (buffer.isEmpty() || closed) {
+            return;
+        }
+
+        List<SensorReading> batch = buffer;
+        buffer = new ArrayList<>();
+        try {
+            apply(batch);
+        } catch (RuntimeException e) {
+            // e.g. a state that can't be sent back on a cancelled call
+            fail(e instanceof StatusRuntimeException ? (StatusRuntimeException) e : Status.fromThrowable(e).asRuntimeException());
+        }
+    }
+
+    private void apply(List<SensorReading> batch) {
+        // Resolve the zones in stream order first: a zone that can't be created, e.g. beyond the limit because other
+        // streams created zones since its reading was accepted, stops the stream at its first reading
+        int applicable = batch.size();
+        StatusRuntimeException failure = null;
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                climateService.getZone(batch.get(i).getZoneId());
+            } catch (StatusRuntimeException e) {
+                applicable = i;
+                failure = e;
+                break;
+            }
+        }
+
+        Map<Integer, List<SensorReading>> readingsByZone = new HashMap<>();
+        for (SensorReading reading : batch.subList(0, applicable)) {
+            readingsByZone.computeIfAbsent(reading.getZoneId(), zoneId -> new ArrayList<>()).add(reading);
+        }
+
+        for (Map.Entry<Integer, List<SensorReading>> entry : readingsByZone.entrySet()) {
+            ClimateDevicesState climateDevicesState = climateService.ingestReadings(entry.getKey(), entry.getValue());
+            zoneIds.add(entry.getKey());
+
+            // Only send the state back when it changed since the last one sent on this stream
+            if (stateObserver != null && !climateDevicesState.equals(lastSentStates.get(entry.getKey()))) {
+                lastSentStates.put(entry.getKey(), climateDevicesState);
+                stateObserver.onNext(climateDevicesState);
+            }
+        }
+        acceptedReadings += applicable;
+
+        if (failure != null) {
+            // The readings before the failing one are applied, the ones after it are dropped
+            fail(FailedCommand.at(failure.getStatus(), acceptedReadings));
+        }
+    }
+
+    /**
+     * Apply the remaining readings and stop accepting new ones.
+     * Returns false if the call already failed, then it must not be completed.
+     */
+    synchronized boolean close() {
+        flush();
+        boolean completable = !closed;
+        closed = true;
+        return completable;
+    }
+
+    /**
+     * Apply the buffered readings, then fail the call at the next reading, e.g. a reading for a zone beyond the limit.
+     */
+    synchronized void reject(Status status) {
+        flush();
+        fail(FailedCommand.at(status, acceptedReadings));
+    }
+
+    /**
+     * Drop the buffered readings and fail the call, unless it is already closed.
+     */
+    private void fail(StatusRuntimeException error) {
+        if (closed) {
+            return;
+        }
+        discard();
+        // Nobody is left to tell when the client cancelled the call
+        if (!WastedWork.isCancelled(responseObserver)) {
+            responseObserver.onError(error);
+        }
+    }
+
+    /**
+     * Drop the buffered readings, e.g. when the client cancelled the stream. Returns the number of dropped readings.
+     */
+    synchronized int discard() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        int discarded = buffer.size();
+        buffer.clear();
+        closed = true;
+        return discarded;
+    }
+
+    synchronized long getAcceptedReadings() {
+        return acceptedReadings;
+    }
+
+    synchronized int getZoneCount() {
+        return zoneIds.size();
+    }
+}
@@ -0,0 +1,374 @@
+package smarthome.server.services.climate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Compressed history of (timestamp, value) readings, encoded Gorilla-style in fixed-size blocks.
+ * Timestamps are stored as the delta of their deltas in milliseconds and values as zigzag deltas, both with
+ * variable bit lengths, so readings at a regular interval with slowly changing values cost a few bits each
+ * instead of a protobuf object and a timestamp string.
+ * Full blocks are sealed and never change again, so a Cursor taken while holding the owner's lock can decode
+ * them lazily after the lock is released.
+ * Not thread-safe, guarded by the owning zone's lock.
+ */
+public class ReadingSeries {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final int blockSize;
+    private final List<Block> sealedBlocks = new ArrayList<>();
+    private BlockWriter activeBlock;
+    private int size;
+    private long sealedBytes;
+
+    public ReadingSeries() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    public ReadingSeries(int blockSize) {
+        this.blockSize = blockSize;
+        this.activeBlock = new BlockWriter();
+    }
+
+    public void add(long timestampMillis, int value) {
+        activeBlock.add(timestampMillis, value);
+        size++;
+
+        if (activeBlock.count == blockSize) {
+            Block block = activeBlock.toBlock();
+            sealedBlocks.add(block);
+            sealedBytes += block.data.length;
+            activeBlock = new BlockWriter();
+        }
+    }
+
+    /**
+     * Drop all readings. Cursors taken before keep seeing the readings as they were.
+     */
+    public void clear() {
+        sealedBlocks.clear();
+        sealedBytes = 0;
+        activeBlock = new BlockWriter();
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Number of bytes used by the encoded readings.
+     */
+    public long getEncodedBytes() {
+        return sealedBytes + activeBlock.out.byteLength();
+    }
+
+    /**
+     * Take a cursor over count readings starting at index from. Only the readings of the active block are copied,
+     * so the cursor can be consumed without holding the lock and keeps seeing the readings as they were.
+     */
+    public Cursor cursor(int from, int count) {
+        if (from < 0 || count < 0 || from + count > size) {
+            throw new IndexOutOfBoundsException("Readings " + from + " to " + (from + count) + " of " + size);
+        }
+
+        List<Block> blocks = new ArrayList<>(sealedBlocks.subList(from / blockSize, sealedBlocks.size()));
+        if (activeBlock.count > 0) {
+            blocks.add(activeBlock.toBlock());
+        }
+        return new Cursor(blocks, from % blockSize, count);
+    }
+
+    /**
+     * Cursor over the first readings, all of them if maxNoOfReadings is not positive.
+     */
+    public Cursor first(int maxNoOfReadings) {
+        int count = maxNoOfReadings > 0 ? Math.min(maxNoOfReadings, size) : size;
+        return cursor(0, count);
+    }
+
+    /**
+     * Cursor over the latest readings, all of them if maxNoOfReadings is not positive.
+     */
+    public Cursor last(int maxNoOfReadings) {
+        int count = maxNoOfReadings > 0 ? Math.min(maxNoOfReadings, size) : size;
+        return cursor(size - count, count);
+    }
+
+    /**
+     * Encoded block of readings.
+     */
+    private static final class Block {
+        final byte[] data;
+        final int count;
+
+        Block(byte[] data, int count) {
+            this.data = data;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Appends readings to the block being filled.
+     */
+    private static final class BlockWriter {
+        final BitOutput out = new BitOutput();
+        int count;
+        long previousTimestamp;
+        long previousDelta;
+        int previousValue;
+
+        void add(long timestampMillis, int value) {
+            if (count == 0) {
+                out.writeLong(timestampMillis);
+                out.writeBits(value, 32);
+            } else {
+                long delta = timestampMillis - previousTimestamp;
+                writeDeltaOfDelta(zigzag(delta - previousDelta));
+                writeValueDelta(zigzag((long) value - previousValue));
+                previousDelta = delta;
+            }
+            previousTimestamp = timestampMillis;
+            previousValue = value;
+            count++;
+        }
+
+        // '0' same interval, '10' + 7 bits, '110' + 9 bits, '1110' + 12 bits, '1111' + 64 bits
+        private void writeDeltaOfDelta(long zigzagDeltaOfDelta) {
+            if (zigzagDeltaOfDelta == 0) {
+                out.writeBits(0b0, 1);
+            } else if (zigzagDeltaOfDelta < (1 << 7)) {
+                out.writeBits(0b10, 2);
+                out.writeBits(zigzagDeltaOfDelta, 7);
+            } else if (zigzagDeltaOfDelta < (1 << 9)) {
+                out.writeBits(0b110, 3);
+                out.writeBits(zigzagDeltaOfDelta, 9);
+            } else if (zigzagDeltaOfDelta < (1 << 12)) {
+                out.writeBits(0b1110, 4);
+                out.writeBits(zigzagDeltaOfDelta, 12);
+            } else {
+                out.writeBits(0b1111, 4);
+                out.writeLong(zigzagDeltaOfDelta);
+            }
+        }
+
+        // '0' same value, '10' + 4 bits, '110' + 8 bits, '111' + 33 bits
+        private void writeValueDelta(long zigzagDelta) {
+            if (zigzagDelta == 0) {
+                out.writeBits(0b0, 1);
+            } else if (zigzagDelta < (1 << 4)) {
+                out.writeBits(0b10, 2);
+                out.writeBits(zigzagDelta, 4);
+            } else if (zigzagDelta < (1 << 8)) {
+                out.writeBits(0b110, 3);
+                out.writeBits(zigzagDelta, 8);
+            } else {
+                out.writeBits(0b111, 3);
+                out.writeBits(zigzagDelta >>> 32, 1);
+                out.writeBits(zigzagDelta, 32);
+            }
+        }
+
+        Block toBlock() {
+            return new Block(out.toByteArray(), count);
+        }
+    }
+
+    /**
+     * Decodes the readings of a list of blocks one at a time.
+     */
+    public static final class Cursor {
+        private final List<Block> blocks;
+        private int remaining;
+
+        private int blockIndex = -1;
+        private BitInput in;
+        private int remainingInBlock;
+        private int decodedInBlock;
+
+        private long timestampMillis;
+        private long delta;
+        private int value;
+
+        private Cursor(List<Block> blocks, int skip, int count) {
+            this.blocks = blocks;
+            this.remaining = count;
+
+            // Skip the readings before the start of the range inside the first block
+            for (int i = 0; i < skip; i++) {
+                decodeNext();
+            }
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        /**
+         * Number of readings not decoded yet.
+         */
+        public int remaining() {
+            return remaining;
+        }
+
+        /**
+         * Decode the next reading, read it with getTimestampMillis and getValue.
+         */
+        public void next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            decodeNext();
+            remaining--;
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        private void decodeNext() {
+            if (remainingInBlock == 0) {
+                blockIndex++;
+                Block block = blocks.get(blockIndex);
+                in = new BitInput(block.data);
+                remainingInBlock = block.count;
+                decodedInBlock = 0;
+            }
+
+            if (decodedInBlock == 0) {
+                timestampMillis = in.readLong();
+                value = (int) in.readBits(32);
+                delta = 0;
+            } else {
+                delta += unzigzag(readDeltaOfDelta());
+                timestampMillis += delta;
+                value += (int) unzigzag(readValueDelta());
+            }
+            decodedInBlock++;
+            remainingInBlock--;
+        }
+
+        private long readDeltaOfDelta() {
+            if (in.readBits(1) == 0) {
+                return 0;
+            }
+            if (in.readBits(1) == 0) {
+                return in.readBits(7);
+            }
+            if (in.readBits(1) == 0) {
+                return in.readBits(9);
+            }
+            if (in.readBits(1) == 0) {
+                return in.readBits(12);
+            }
+            return in.readLong();
+        }
+
+        private long readValueDelta() {
+            if (in.readBits(1) == 0) {
+                return 0;
+            }
+            if (in.readBits(1) == 0) {
+                return in.readBits(4);
+            }
+            if (in.readBits(1) == 0) {
+                return in.readBits(8);
+            }
+            long high = in.readBits(1);
+            return (high << 32) | in.readBits(32);
+        }
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /**
+     * Growable bit buffer, bits are written most significant first.
+     */
+    private static final class BitOutput {
+        private byte[] data = new byte[64];
+        private int length;
+        // Pending bits not yet written to data, always fewer than 8 between calls
+        private long pending;
+        private int pendingBits;
+
+        void writeBits(long bits, int count) {
+            pending = (pending << count) | (bits & ((1L << count) - 1));
+            pendingBits += count;
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                data[length++] = (byte) (pending >>> pendingBits);
+            }
+            pending &= (1L << pendingBits) - 1;
+        }
+
+        void writeLong(long bits) {
+            writeBits(bits >>> 32, 32);
+            writeBits(bits, 32);
+        }
+
+        int byteLength() {
+            return length + (pendingBits > 0 ? 1 : 0);
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = Arrays.copyOf(data, byteLength());
+            if (pendingBits > 0) {
+                bytes[length] = (byte) (pending << (8 - pendingBits));
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Reads the bits written by a BitOutput.
+     */
+    private static final class BitInput {
+        private final byte[] data;
+        private long bitPosition;
+
+        BitInput(byte[] data) {
+            this.data = data;
+        }
+
+        long readBits(int count) {
+            long bits = 0;
+            while (count > 0) {
+                int byteIndex = (int) (bitPosition >>> 3);
+                int bitOffset = (int) (bitPosition & 7);
+                int available = 8 - bitOffset;
+                int taken = Math.min(available, count);
+
+                int current = (data[byteIndex] & 0xFF) >>> (available - taken);
+                bits = (bits << taken) | (current & ((1 << taken) - 1));
+
+                bitPosition += taken;
+                count -= taken;
+            }
+            return bits;
+        }
+
+        long readLong() {
+            return (readBits(32) << 32) | readBits(32);
+        }
+    }
+}
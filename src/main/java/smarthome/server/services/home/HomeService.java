@@ -0,0 +1,97 @@
+package smarthome.server.services.home;
+
+import io.grpc.stub.StreamObserver;
+import smarthome.generated.climate.ClimateDevicesStateChange;
+import smarthome.generated.home.HomeServiceGrpc.HomeServiceImplBase;
+import smarthome.generated.home.HomeSnapshotEntry;
+import smarthome.generated.home.HomeSnapshotRequest;
+import smarthome.generated.lighting.LightingDeviceChange;
+import smarthome.generated.security.DoorStateChange;
+import smarthome.server.services.ChangeFeed;
+import smarthome.server.services.WastedWork;
+import smarthome.server.services.climate.ClimateService;
+import smarthome.server.services.lighting.LightingService;
+import smarthome.server.services.security.SecurityService;
+
+import java.util.List;
+
+public class HomeService extends HomeServiceImplBase {
+
+    private final LightingService lightingService;
+    private final ClimateService climateService;
+    private final SecurityService securityService;
+
+    public HomeService(LightingService lightingService, ClimateService climateService, SecurityService securityService) {
+        this.lightingService = lightingService;
+        this.climateService = climateService;
+        this.securityService = securityService;
+    }
+
+    /**
+     * Get the state of every device of the home, all services at one instant.
+     * The immutable snapshots of the services are taken while holding the three service locks at once, which only
+     * takes their references, and then streamed without any lock so slow clients never hold back the services.
+     */
+    @Override
+    public void getHomeSnapshot(
+            HomeSnapshotRequest request,
+            StreamObserver<HomeSnapshotEntry> responseObserver
+    ) {
+        // Take the snapshots of all services at once, always locking in the same order
+        ChangeFeed.Snapshot<LightingDeviceChange> lightingFeedSnapshot;
+        ChangeFeed.Snapshot<ClimateDevicesStateChange> climateFeedSnapshot;
+        ChangeFeed.Snapshot<DoorStateChange> securityFeedSnapshot;
+        synchronized (lightingService.getChangeFeed()) {
+            synchronized (climateService.getChangeFeed()) {
+                synchronized (securityService.getChangeFeed()) {
+                    lightingFeedSnapshot = lightingService.getChangeFeed().currentSnapshot();
+                    climateFeedSnapshot = climateService.getChangeFeed().currentSnapshot();
+                    securityFeedSnapshot = securityService.getChangeFeed().currentSnapshot();
+                }
+            }
+        }
+        List<LightingDeviceChange> lightingSnapshot = lightingFeedSnapshot.getChanges();
+        List<ClimateDevicesStateChange> climateSnapshot = climateFeedSnapshot.getChanges();
+        List<DoorStateChange> securitySnapshot = securityFeedSnapshot.getChanges();
+
+        // Send the snapshot of every service, each one starting with its RESET marker and version,
+        // and stop once the client is gone
+        int total = lightingSnapshot.size() + climateSnapshot.size() + securitySnapshot.size();
+        int sent = 0;
+        for (LightingDeviceChange lightingDeviceChange : lightingSnapshot) {
+            if (stopIfCancelled(responseObserver, total - sent)) {
+                return;
+            }
+            responseObserver.onNext(HomeSnapshotEntry.newBuilder().setLightingDeviceChange(lightingDeviceChange).build());
+            sent++;
+        }
+        for (ClimateDevicesStateChange climateDevicesStateChange : climateSnapshot) {
+            if (stopIfCancelled(responseObserver, total - sent)) {
+                return;
+            }
+            responseObserver.onNext(HomeSnapshotEntry.newBuilder().setClimateDevicesStateChange(climateDevicesStateChange).build());
+            sent++;
+        }
+        for (DoorStateChange doorStateChange : securitySnapshot) {
+            if (stopIfCancelled(responseObserver, total - sent)) {
+                return;
+            }
+            responseObserver.onNext(HomeSnapshotEntry.newBuilder().setDoorStateChange(doorStateChange).build());
+            sent++;
+        }
+
+        // Complete the response
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Check whether the client is gone, recording the entries left unsent if it is.
+     */
+    private static boolean stopIfCancelled(StreamObserver<HomeSnapshotEntry> responseObserver, int unsentEntries) {
+        if (WastedWork.isCancelled(responseObserver)) {
+            WastedWork.callCancelled(unsentEntries);
+            return true;
+        }
+        return false;
+    }
+}
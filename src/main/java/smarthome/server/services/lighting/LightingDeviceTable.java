@@ -0,0 +1,167 @@
+package smarthome.server.services.lighting;
+
+import smarthome.generated.lighting.LightingDevice;
+import smarthome.generated.lighting.LightingDeviceDetails;
+import smarthome.server.services.IntKeyTable;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Lighting devices of a LightingService, stored column by column: parallel arrays of room numbers, states and
+ * brightness, one row per slot of the open addressing table of IntKeyTable, keyed by device number.
+ * State and brightness changes are written in place without allocating, and a LightingDeviceDetails protobuf
+ * is only built when a device is sent to a client or to the change feed, with a builder reused for every device.
+ * The registration message of each device is kept to be shared by all the protobufs built for it.
+ * Not thread-safe: the service guards it with its change feed lock. The iteration order is unspecified.
+ */
+final class LightingDeviceTable extends IntKeyTable {
+
+    // Columns, a free slot has a null device
+    private LightingDevice[] devices;
+    private int[] roomNumbers;
+    private int[] states;
+    private float[] brightness;
+
+    private final LightingDeviceDetails.Builder builder = LightingDeviceDetails.newBuilder();
+
+    LightingDeviceTable() {
+        super(0);
+        allocate(capacity());
+    }
+
+    boolean contains(int deviceNumber) {
+        return slotOf(deviceNumber) >= 0;
+    }
+
+    /**
+     * Get the details of the device, or null if there is no such device.
+     */
+    LightingDeviceDetails get(int deviceNumber) {
+        int slot = slotOf(deviceNumber);
+        return slot >= 0 ? toDetails(slot) : null;
+    }
+
+    /**
+     * Add the device, or replace the one with the same number.
+     */
+    void put(LightingDevice device, int state, float deviceBrightness) {
+        int slot = addSlot(device.getDeviceNumber());
+        devices[slot] = device;
+        roomNumbers[slot] = device.getRoomNumber();
+        states[slot] = state;
+        brightness[slot] = deviceBrightness;
+    }
+
+    /**
+     * Set the state of the device, a DeviceState value. Returns false if there is no such device.
+     */
+    boolean setState(int deviceNumber, int state) {
+        int slot = slotOf(deviceNumber);
+        if (slot < 0) {
+            return false;
+        }
+        states[slot] = state;
+        return true;
+    }
+
+    /**
+     * Set the brightness of the device. Returns false if there is no such device.
+     */
+    boolean setBrightness(int deviceNumber, float deviceBrightness) {
+        int slot = slotOf(deviceNumber);
+        if (slot < 0) {
+            return false;
+        }
+        brightness[slot] = deviceBrightness;
+        return true;
+    }
+
+    /**
+     * Set the state of every device of the room, handing the details of each to the consumer.
+     */
+    void setStateInRoom(int roomNumber, int state, Consumer<LightingDeviceDetails> updated) {
+        for (int slot = 0; slot < devices.length; slot++) {
+            if (devices[slot] != null && roomNumbers[slot] == roomNumber) {
+                states[slot] = state;
+                updated.accept(toDetails(slot));
+            }
+        }
+    }
+
+    /**
+     * Remove the device, returns its last details or null if there is no such device.
+     */
+    LightingDeviceDetails remove(int deviceNumber) {
+        int slot = slotOf(deviceNumber);
+        if (slot < 0) {
+            return null;
+        }
+        LightingDeviceDetails removed = toDetails(slot);
+        removeSlot(slot);
+        return removed;
+    }
+
+    void clear() {
+        clearSlots();
+        Arrays.fill(devices, null);
+    }
+
+    /**
+     * Hand the details of every device to the consumer.
+     */
+    void forEach(Consumer<LightingDeviceDetails> consumer) {
+        for (int slot = 0; slot < devices.length; slot++) {
+            if (devices[slot] != null) {
+                consumer.accept(toDetails(slot));
+            }
+        }
+    }
+
+    private LightingDeviceDetails toDetails(int slot) {
+        return builder
+                .setLightingDevice(devices[slot])
+                .setLightingDeviceStateValue(states[slot])
+                .setBrightness(brightness[slot])
+                .build();
+    }
+
+    @Override
+    protected void moveRow(int from, int to) {
+        devices[to] = devices[from];
+        roomNumbers[to] = roomNumbers[from];
+        states[to] = states[from];
+        brightness[to] = brightness[from];
+    }
+
+    @Override
+    protected void clearRow(int slot) {
+        devices[slot] = null;
+    }
+
+    @Override
+    protected void resizeRows(int capacity, int[] newSlots) {
+        LightingDevice[] oldDevices = devices;
+        int[] oldRoomNumbers = roomNumbers;
+        int[] oldStates = states;
+        float[] oldBrightness = brightness;
+
+        allocate(capacity);
+        for (int oldSlot = 0; oldSlot < newSlots.length; oldSlot++) {
+            int slot = newSlots[oldSlot];
+            if (slot >= 0) {
+                devices[slot] = oldDevices[oldSlot];
+                roomNumbers[slot] = oldRoomNumbers[oldSlot];
+                states[slot] = oldStates[oldSlot];
+                brightness[slot] = oldBrightness[oldSlot];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        devices = new LightingDevice[capacity];
+        roomNumbers = new int[capacity];
+        states = new int[capacity];
+        brightness = new float[capacity];
+    }
+}
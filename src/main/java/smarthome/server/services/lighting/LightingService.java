@@ -2,21 +2,63 @@ package smarthome.server.services.lighting;
 
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
+import smarthome.common.FailedCommand;
+import smarthome.generated.general.ChangeType;
+import smarthome.generated.general.ChangesSinceRequest;
 import smarthome.generated.general.DeviceState;
 import smarthome.generated.general.OperationResponse;
+import smarthome.generated.general.WatchRequest;
 import smarthome.generated.lighting.*;
 import smarthome.generated.lighting.LightingServiceGrpc.LightingServiceImplBase;
+import smarthome.server.services.ChangeFeed;
+import smarthome.server.services.WastedWork;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class LightingService extends LightingServiceImplBase {
 
-    Map<Integer, LightingDeviceDetails> lightingDetails = new HashMap<>();
+    // Room, state and brightness of each device, the protobufs are only built for the responses and the change feed
+    LightingDeviceTable lightingDevices = new LightingDeviceTable();
 
-    List<Integer> turnedOffLights = new ArrayList<>();
+    // The snapshot of the change feed holds the latest change of every device
+    private static final ChangeFeed.EntryType<LightingDeviceChange> SNAPSHOT_ENTRIES = new ChangeFeed.EntryType<LightingDeviceChange>() {
+        @Override
+        public int keyOf(LightingDeviceChange change) {
+            return change.getLightingDeviceDetails().getLightingDevice().getDeviceNumber();
+        }
+
+        @Override
+        public ChangeType typeOf(LightingDeviceChange change) {
+            return change.getChangeType();
+        }
+
+        @Override
+        public LightingDeviceChange withVersion(LightingDeviceChange change, long version) {
+            return change.getVersion() == version ? change : change.toBuilder().setVersion(version).build();
+        }
+
+        @Override
+        public LightingDeviceChange reset(long version) {
+            return LightingDeviceChange.newBuilder()
+                    .setVersion(version)
+                    .setChangeType(ChangeType.RESET)
+                    .build();
+        }
+    };
+
+    // Changes pushed to watching clients, its lock also guards lightingDevices
+    final ChangeFeed<LightingDeviceChange> changeFeed = new ChangeFeed<>(SNAPSHOT_ENTRIES);
+
+    // Maximum number of registered lighting devices, registrations beyond it are rejected
+    private volatile int maxDevices = Integer.MAX_VALUE;
+
+    /**
+     * Limit the number of lighting devices, registrations beyond it fail with RESOURCE_EXHAUSTED.
+     */
+    public void setMaxDevices(int maxDevices) {
+        this.maxDevices = maxDevices;
+    }
 
     /**
      * Set the lighting state of a lighting device.
@@ -27,26 +69,21 @@ public class LightingService extends LightingServiceImplBase {
             LightingStateRequest request,
             StreamObserver<LightingDeviceDetails> responseObserver
     ) {
-        // Check if the lighting device exists
-        if (!lightingDetails.containsKey(request.getDeviceNumber())) {
-            // If not, return an error
-            responseObserver.onError(Status.NOT_FOUND.withDescription("No lighting device with the given number '"
-                    + request.getDeviceNumber() + "' exists.").asRuntimeException());
-        } else {
-            // If it exists, update the lighting state
-            LightingDeviceDetails oldLightingDeviceDetails = lightingDetails.get(request.getDeviceNumber());
-
-            // Create a new LightingDeviceDetails object with the updated state
-            LightingDeviceDetails lightingDeviceDetails = LightingDeviceDetails.newBuilder(oldLightingDeviceDetails)
-                    .setLightingDeviceState(request.getLightingState())
-                    .build();
-
-            // Update the lighting details map with the new state
-            lightingDetails.put(request.getDeviceNumber(), lightingDeviceDetails);
-
-            // Send the updated lighting device details back to the client
-            responseObserver.onNext(lightingDeviceDetails);
-            responseObserver.onCompleted();
+        synchronized (changeFeed) {
+            // Update the lighting state in place, if the lighting device exists
+            if (!lightingDevices.setState(request.getDeviceNumber(), request.getLightingStateValue())) {
+                // If not, return an error
+                responseObserver.onError(Status.NOT_FOUND.withDescription("No lighting device with the given number '"
+                        + request.getDeviceNumber() + "' exists.").asRuntimeException());
+            } else {
+                // Build the updated lighting device details once and notify the watchers
+                LightingDeviceDetails lightingDeviceDetails = lightingDevices.get(request.getDeviceNumber());
+                publishChange(ChangeType.UPSERT, lightingDeviceDetails);
+
+                // Send the updated lighting device details back to the client
+                responseObserver.onNext(lightingDeviceDetails);
+                responseObserver.onCompleted();
+            }
         }
     }
 
@@ -58,26 +95,21 @@ public class LightingService extends LightingServiceImplBase {
             LightingBrightnessRequest request,
             StreamObserver<LightingDeviceDetails> responseObserver
     ) {
-        // Check if the lighting device exists
-        if (!lightingDetails.containsKey(request.getDeviceNumber())) {
-            // If not, return an error
-            responseObserver.onError(Status.NOT_FOUND.withDescription("No lighting device with the given number '"
-                    + request.getDeviceNumber() + "' exists.").asRuntimeException());
-        } else {
-            // If it exists, update the brightness
-            LightingDeviceDetails oldLightingDeviceDetails = lightingDetails.get(request.getDeviceNumber());
-
-            // Create a new LightingDeviceDetails object with the updated brightness
-            LightingDeviceDetails lightingDeviceDetails = LightingDeviceDetails.newBuilder(oldLightingDeviceDetails)
-                    .setBrightness(request.getBrightness())
-                    .build();
-
-            // Update the lighting details map with the new brightness
-            lightingDetails.put(request.getDeviceNumber(), lightingDeviceDetails);
-
-            // Send the updated lighting device details back to the client
-            responseObserver.onNext(lightingDeviceDetails);
-            responseObserver.onCompleted();
+        synchronized (changeFeed) {
+            // Update the brightness in place, if the lighting device exists
+            if (!lightingDevices.setBrightness(request.getDeviceNumber(), request.getBrightness())) {
+                // If not, return an error
+                responseObserver.onError(Status.NOT_FOUND.withDescription("No lighting device with the given number '"
+                        + request.getDeviceNumber() + "' exists.").asRuntimeException());
+            } else {
+                // Build the updated lighting device details once and notify the watchers
+                LightingDeviceDetails lightingDeviceDetails = lightingDevices.get(request.getDeviceNumber());
+                publishChange(ChangeType.UPSERT, lightingDeviceDetails);
+
+                // Send the updated lighting device details back to the client
+                responseObserver.onNext(lightingDeviceDetails);
+                responseObserver.onCompleted();
+            }
         }
     }
 
@@ -93,43 +125,35 @@ public class LightingService extends LightingServiceImplBase {
         return new StreamObserver<MotionEvent>() {
             @Override
             public void onNext(MotionEvent motionEvent) {
+                // Motion events still queued when the client left are dropped
+                if (WastedWork.isCancelled(responseObserver)) {
+                    WastedWork.requestsDiscarded(1);
+                    return;
+                }
 
-                // Check if the lighting device exists
-                for (LightingDeviceDetails lightingDeviceDetails : lightingDetails.values()) {
+                // Lights of the room turn on with motion and off without it
+                DeviceState lightingState = motionEvent.getMotionState() ? DeviceState.ON : DeviceState.OFF;
 
-                    // Check if the lighting device is in the same room as the motion event
-                    if (lightingDeviceDetails.getLightingDevice().getRoomNumber() == motionEvent.getRoomNumber()) {
-                        LightingDeviceDetails newLightingDeviceDetails;
+                synchronized (changeFeed) {
+                    // Update the state of every lighting device in the same room as the motion event
+                    lightingDevices.setStateInRoom(motionEvent.getRoomNumber(), lightingState.getNumber(), lightingDeviceDetails -> {
+                        // Notify the watchers
+                        publishChange(ChangeType.UPSERT, lightingDeviceDetails);
 
-                        // Create a new LightingDeviceDetails object with the updated state
-                        if (motionEvent.getMotionState()) {
-                            newLightingDeviceDetails = LightingDeviceDetails
-                                    .newBuilder(lightingDeviceDetails)
-                                    .setLightingDeviceState(DeviceState.ON)
-                                    .build();
+                        // Send the updated lighting device details back to the client, unless it left meanwhile
+                        if (WastedWork.isCancelled(responseObserver)) {
+                            WastedWork.messagesSkipped(1);
                         } else {
-                            newLightingDeviceDetails = LightingDeviceDetails
-                                    .newBuilder(lightingDeviceDetails)
-                                    .setLightingDeviceState(DeviceState.OFF)
-                                    .build();
+                            responseObserver.onNext(lightingDeviceDetails);
                         }
-
-                        // Update the lighting details map with the new state
-                        lightingDetails.put(newLightingDeviceDetails.getLightingDevice().getDeviceNumber(), newLightingDeviceDetails);
-
-                        // Send the updated lighting device details back to the client
-                        responseObserver.onNext(newLightingDeviceDetails);
-                    }
+                    });
                 }
             }
 
             @Override
             public void onError(Throwable throwable) {
-                // Handle the case of any errors coming from the client
-                responseObserver.onError(Status.CANCELLED
-                        .withDescription("Server received Error from Client: " + throwable.getMessage())
-                        .asRuntimeException()
-                );
+                // The client cancelled the stream or its deadline expired, the call is already closed
+                WastedWork.callCancelled(0);
             }
 
             @Override
@@ -149,28 +173,32 @@ public class LightingService extends LightingServiceImplBase {
             LightingDevice request,
             StreamObserver<LightingDeviceDetails> responseObserver
     ) {
+        synchronized (changeFeed) {
+            // Check if the lighting device already exists
+            if (lightingDevices.contains(request.getDeviceNumber())) {
+                // If it does, return an error
+                responseObserver.onError(
+                        Status.ALREADY_EXISTS.withDescription("There's a lighting device with the same number '"
+                                + request.getDeviceNumber() + "' already exists.").asRuntimeException()
+                );
+            } else if (lightingDevices.size() >= maxDevices) {
+                // The home has all the lighting devices it is allowed
+                responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                        .withDescription("No more than " + maxDevices + " lighting devices allowed")
+                        .asRuntimeException()
+                );
+            } else {
+                // If it doesn't, add the new lighting device, turned off, to the table
+                lightingDevices.put(request, DeviceState.OFF.getNumber(), 0.0f);
 
-        // Check if the lighting device already exists
-        if (lightingDetails.containsKey(request.getDeviceNumber())) {
-            // If it does, return an error
-            responseObserver.onError(
-                    Status.ALREADY_EXISTS.withDescription("There's a lighting device with the same number '"
-                            + request.getDeviceNumber() + "' already exists.").asRuntimeException()
-            );
-        } else {
-            // If it doesn't, create a new LightingDeviceDetails object
-            LightingDeviceDetails lightingDeviceDetails = LightingDeviceDetails.newBuilder()
-                    .setLightingDevice(request)
-                    .setLightingDeviceState(DeviceState.OFF)
-                    .setBrightness(0.0f)
-                    .build();
-
-            // Add the new lighting device to the lighting details map
-            lightingDetails.put(request.getDeviceNumber(), lightingDeviceDetails);
+                // Build its lighting device details and notify the watchers
+                LightingDeviceDetails lightingDeviceDetails = lightingDevices.get(request.getDeviceNumber());
+                publishChange(ChangeType.UPSERT, lightingDeviceDetails);
 
-            // Send the new lighting device details back to the client
-            responseObserver.onNext(lightingDeviceDetails);
-            responseObserver.onCompleted();
+                // Send the new lighting device details back to the client
+                responseObserver.onNext(lightingDeviceDetails);
+                responseObserver.onCompleted();
+            }
         }
     }
 
@@ -183,18 +211,21 @@ public class LightingService extends LightingServiceImplBase {
             LightingDevice request,
             StreamObserver<LightingDeviceDetails> responseObserver
     ) {
-        // Check if the lighting device exists
-        if (!lightingDetails.containsKey(request.getDeviceNumber())) {
-            // If not, return an error
-            responseObserver.onError(Status.NOT_FOUND.withDescription("No lighting device with the given number '"
-                    + request.getDeviceNumber() + "' exists.").asRuntimeException());
-        } else {
-            // If it exists, remove it from the lighting details map
-            LightingDeviceDetails lightingDeviceDetails = lightingDetails.remove(request.getDeviceNumber());
-
-            // Send the removed lighting device details back to the client
-            responseObserver.onNext(lightingDeviceDetails);
-            responseObserver.onCompleted();
+        synchronized (changeFeed) {
+            // Remove the lighting device, if it exists
+            LightingDeviceDetails lightingDeviceDetails = lightingDevices.remove(request.getDeviceNumber());
+            if (lightingDeviceDetails == null) {
+                // If not, return an error
+                responseObserver.onError(Status.NOT_FOUND.withDescription("No lighting device with the given number '"
+                        + request.getDeviceNumber() + "' exists.").asRuntimeException());
+            } else {
+                // Notify the watchers with its last details
+                publishChange(ChangeType.REMOVE, lightingDeviceDetails);
+
+                // Send the removed lighting device details back to the client
+                responseObserver.onNext(lightingDeviceDetails);
+                responseObserver.onCompleted();
+            }
         }
     }
 
@@ -208,49 +239,46 @@ public class LightingService extends LightingServiceImplBase {
     ) {
         // The server sets up a new observer that can gather each client request when it sees onNext()
         return new StreamObserver<LightingDevice>() {
+            // Lights turned off on this stream, every stream has its own list
+            private final List<Integer> turnedOffLights = new ArrayList<>();
+            // Set once a light was not found, the lights sent after it are ignored
+            private boolean failed;
+
             @Override
             public void onNext(LightingDevice lightingDevice) {
-                // Check if the lighting device exists
-                if (!lightingDetails.containsKey(lightingDevice.getDeviceNumber())) {
-                    // If not, return an error
-                    responseObserver.onError(Status.NOT_FOUND
-                            .withDescription("No lighting device with the given number '"
-                                    + lightingDevice.getDeviceNumber() + "' exists.")
-                            .asRuntimeException()
-                    );
-                } else {
-                    // If it exists, turn off the light
-                    LightingDeviceDetails oldLightingDeviceDetails = lightingDetails.get(lightingDevice.getDeviceNumber());
-
-                    // Create a new LightingDeviceDetails object with the updated state
-                    LightingDeviceDetails lightingDeviceDetails = LightingDeviceDetails.newBuilder(oldLightingDeviceDetails)
-                            .setLightingDeviceState(DeviceState.OFF)
-                            .build();
-
-                    // Update the lighting details map with the new state
-                    lightingDetails.put(lightingDevice.getDeviceNumber(), lightingDeviceDetails);
-
-                    // Send the updated lighting device details back to the client
-                    turnedOffLights.add(lightingDevice.getDeviceNumber());
+                if (failed) {
+                    return;
+                }
+                synchronized (changeFeed) {
+                    // Turn off the light in place, if the lighting device exists
+                    if (!lightingDevices.setState(lightingDevice.getDeviceNumber(), DeviceState.OFF.getNumber())) {
+                        // If not, return an error telling the client which light of the stream failed
+                        failed = true;
+                        responseObserver.onError(FailedCommand.at(Status.NOT_FOUND
+                                .withDescription("No lighting device with the given number '"
+                                        + lightingDevice.getDeviceNumber() + "' exists."), turnedOffLights.size())
+                        );
+                    } else {
+                        // Notify the watchers with the updated lighting device details
+                        publishChange(ChangeType.UPSERT, lightingDevices.get(lightingDevice.getDeviceNumber()));
+
+                        // Send the updated lighting device details back to the client
+                        turnedOffLights.add(lightingDevice.getDeviceNumber());
+                    }
                 }
             }
 
             @Override
             public void onError(Throwable throwable) {
-                // Handle the case of any errors coming from the client
-                OperationResponse operationResponse = OperationResponse.newBuilder()
-                        .setIsSuccessful(false)
-                        .setOperationName("turnOffLights")
-                        .setMessage("Received Client Error: " + throwable.getMessage())
-                        .build();
-
-                // Send the error response back to the client
-                responseObserver.onNext(operationResponse);
-                responseObserver.onCompleted();
+                // The client cancelled the stream or its deadline expired, nobody reads a response anymore
+                WastedWork.callCancelled(1);
             }
 
             @Override
             public void onCompleted() {
+                if (failed) {
+                    return;
+                }
                 // Handle the case when the client has finished sending lighting devices
                 OperationResponse operationResponse = OperationResponse.newBuilder()
                         .setIsSuccessful(true)
@@ -260,11 +288,118 @@ public class LightingService extends LightingServiceImplBase {
 
                 responseObserver.onNext(operationResponse);
                 responseObserver.onCompleted();
-
-                // Clear the list of turned off lights after sending the response
-                turnedOffLights.clear();
             }
         };
     }
-    
+
+    /**
+     * Watch the state changes of all lighting devices.
+     * The server sends the current state of every device first, then pushes each change as it is applied.
+     */
+    @Override
+    public void watchLightingDevices(
+            WatchRequest request,
+            StreamObserver<LightingDeviceChange> responseObserver
+    ) {
+        // A resumed watch gets only the changes the client missed while they are still in the log, otherwise the snapshot
+        changeFeed.subscribe(responseObserver, request.getFromVersion());
+    }
+
+    /**
+     * Get the changes after the given version.
+     * The server sends the logged changes after that version, or the current state of every lighting device when they are no longer logged.
+     */
+    @Override
+    public void getChangesSince(
+            ChangesSinceRequest request,
+            StreamObserver<LightingDeviceChange> responseObserver
+    ) {
+        // Copy the changes from the log, they are streamed without holding the change feed lock
+        List<LightingDeviceChange> changes = changeFeed.changesSince(request.getVersion());
+
+        // Send the changes to the client, stopping once it is gone
+        for (int i = 0; i < changes.size(); i++) {
+            if (WastedWork.isCancelled(responseObserver)) {
+                WastedWork.callCancelled(changes.size() - i);
+                return;
+            }
+            responseObserver.onNext(changes.get(i));
+        }
+
+        // Complete the response
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Get the RESET marker followed by the state of every lighting device at one consistent version.
+     * The snapshot is immutable and shared by all readers until the next change.
+     */
+    public List<LightingDeviceChange> getSnapshot() {
+        return changeFeed.snapshot();
+    }
+
+    /**
+     * Get the change feed, whose lock guards the state of the service.
+     */
+    public ChangeFeed<LightingDeviceChange> getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Send a heartbeat with the current version to the watchers, so they can tell an idle feed from a dead one.
+     */
+    public void sendHeartbeat() {
+        changeFeed.heartbeat(version -> LightingDeviceChange.newBuilder()
+                .setVersion(version)
+                .setChangeType(ChangeType.HEARTBEAT)
+                .build());
+    }
+
+    /**
+     * Apply a lighting device change replicated from the primary server, and push it to the watchers of this server.
+     */
+    public void applyReplicatedChange(LightingDeviceChange change) {
+        synchronized (changeFeed) {
+            LightingDeviceDetails lightingDeviceDetails = change.getLightingDeviceDetails();
+            int deviceNumber = lightingDeviceDetails.getLightingDevice().getDeviceNumber();
+
+            switch (change.getChangeType()) {
+                case HEARTBEAT:
+                    // Nothing changed on the primary
+                    break;
+
+                case RESET:
+                    // The primary sends its full state next
+                    lightingDevices.clear();
+                    changeFeed.publish(version -> LightingDeviceChange.newBuilder()
+                            .setVersion(version)
+                            .setChangeType(ChangeType.RESET)
+                            .build());
+                    break;
+
+                case REMOVE:
+                    lightingDevices.remove(deviceNumber);
+                    publishChange(ChangeType.REMOVE, lightingDeviceDetails);
+                    break;
+
+                default:
+                    lightingDevices.put(lightingDeviceDetails.getLightingDevice(),
+                            lightingDeviceDetails.getLightingDeviceStateValue(), lightingDeviceDetails.getBrightness());
+                    publishChange(ChangeType.UPSERT, lightingDeviceDetails);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Push a lighting device change to the watchers. Must be called while holding the change feed lock.
+     */
+    private void publishChange(ChangeType changeType, LightingDeviceDetails lightingDeviceDetails) {
+        changeFeed.publish(version -> LightingDeviceChange.newBuilder()
+                .setVersion(version)
+                .setChangeType(changeType)
+                .setLightingDeviceDetails(lightingDeviceDetails)
+                .build());
+    }
+
 }
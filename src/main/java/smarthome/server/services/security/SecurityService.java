@@ -2,25 +2,73 @@ package smarthome.server.services.security;
 
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
+import smarthome.common.FailedCommand;
+import smarthome.generated.general.ChangeType;
+import smarthome.generated.general.ChangesSinceRequest;
 import smarthome.generated.general.OperationResponse;
+import smarthome.generated.general.WatchRequest;
 import smarthome.generated.security.*;
 import smarthome.generated.security.SecurityServiceGrpc.SecurityServiceImplBase;
+import smarthome.server.services.ChangeFeed;
+import smarthome.server.services.IntMap;
+import smarthome.server.services.WastedWork;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.function.IntFunction;
 
 public class SecurityService extends SecurityServiceImplBase {
 
     // Locked state of doors, True=locked, False=unlocked
-    Map<Integer, Boolean> doorLockedStates = new HashMap<>();
+    IntMap<Boolean> doorLockedStates = new IntMap<>();
 
     // Security devices registered with the system
-    Map<Integer, SecurityDevice> registeredDevices = new HashMap<>();
+    IntMap<SecurityDevice> registeredDevices = new IntMap<>();
 
-    List<Integer> requestedDoorNumbersLock = new ArrayList<>();
-    List<Integer> requestedDoorNumbersUnlock = new ArrayList<>();
+    // The snapshot of the change feed holds the latest change of every door
+    private static final ChangeFeed.EntryType<DoorStateChange> SNAPSHOT_ENTRIES = new ChangeFeed.EntryType<DoorStateChange>() {
+        @Override
+        public int keyOf(DoorStateChange change) {
+            return change.getDoorState().getDoorNumber();
+        }
+
+        @Override
+        public ChangeType typeOf(DoorStateChange change) {
+            return change.getChangeType();
+        }
+
+        @Override
+        public DoorStateChange withVersion(DoorStateChange change, long version) {
+            return change.getVersion() == version ? change : change.toBuilder().setVersion(version).build();
+        }
+
+        @Override
+        public DoorStateChange reset(long version) {
+            return DoorStateChange.newBuilder()
+                    .setVersion(version)
+                    .setChangeType(ChangeType.RESET)
+                    .build();
+        }
+    };
+
+    // Changes pushed to watching clients, its lock also guards the maps above
+    final ChangeFeed<DoorStateChange> changeFeed = new ChangeFeed<>(SNAPSHOT_ENTRIES);
+
+    // Responses of the unary operations per registered door or device, built once and reused, guarded by the change feed lock.
+    // They are dropped when the device is deregistered, so the caches never outgrow the registered devices
+    final IntMap<OperationResponse> lockedResponses = new IntMap<>();
+    final IntMap<OperationResponse> unlockedResponses = new IntMap<>();
+    final IntMap<OperationResponse> registeredResponses = new IntMap<>();
+
+    // Maximum number of registered security devices, registrations beyond it are rejected
+    private volatile int maxDevices = Integer.MAX_VALUE;
+
+    /**
+     * Limit the number of security devices, registrations beyond it fail with RESOURCE_EXHAUSTED.
+     */
+    public void setMaxDevices(int maxDevices) {
+        this.maxDevices = maxDevices;
+    }
 
     /**
      * Lock a door given its door number.
@@ -30,30 +78,30 @@ public class SecurityService extends SecurityServiceImplBase {
             LockDoorRequest request,
             StreamObserver<OperationResponse> responseObserver
     ) {
-        // Get the door number from the request
-        int doorNumber = request.getDoorNumber();
-
-        // Check if the door exists and return an error if it doesn't
-        if (!doorLockedStates.containsKey(doorNumber)) {
-            responseObserver.onError(Status.NOT_FOUND
-                    .withDescription("Door '" + doorNumber + "' does not exist.")
-                    .asRuntimeException()
-            );
-            return;
-        }
+        synchronized (changeFeed) {
+            // Get the door number from the request
+            int doorNumber = request.getDoorNumber();
+
+            // Check if the door exists and return an error if it doesn't
+            if (!doorLockedStates.containsKey(doorNumber)) {
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription("Door '" + doorNumber + "' does not exist.")
+                        .asRuntimeException()
+                );
+                return;
+            }
 
-        // Update the door's lock state
-        doorLockedStates.put(doorNumber, true);
+            // Update the door's lock state and notify the watchers
+            doorLockedStates.put(doorNumber, true);
+            publishChange(ChangeType.UPSERT, doorNumber, true);
 
-        // Create a response
-        OperationResponse response = OperationResponse.newBuilder()
-                .setIsSuccessful(true)
-                .setMessage("Door '" + doorNumber + "' is now locked.")
-                .build();
+            // Reuse the response built for this door
+            OperationResponse response = cachedResponse(lockedResponses, doorNumber, number -> "Door '" + number + "' is now locked.");
 
-        // Send the response back to the client
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+            // Send the response back to the client
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
     }
 
     /**
@@ -64,30 +112,30 @@ public class SecurityService extends SecurityServiceImplBase {
             UnlockDoorRequest request,
             StreamObserver<OperationResponse> responseObserver
     ) {
-        // Get the door number from the request
-        int doorNumber = request.getDoorNumber();
-
-        // Check if the door exists and return an error if it doesn't
-        if (!doorLockedStates.containsKey(doorNumber)) {
-            responseObserver.onError(Status.NOT_FOUND
-                    .withDescription("Door '" + doorNumber + "' does not exist.")
-                    .asRuntimeException()
-            );
-            return;
-        }
+        synchronized (changeFeed) {
+            // Get the door number from the request
+            int doorNumber = request.getDoorNumber();
+
+            // Check if the door exists and return an error if it doesn't
+            if (!doorLockedStates.containsKey(doorNumber)) {
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription("Door '" + doorNumber + "' does not exist.")
+                        .asRuntimeException()
+                );
+                return;
+            }
 
-        // Update the door's lock state
-        doorLockedStates.put(doorNumber, false);
+            // Update the door's lock state and notify the watchers
+            doorLockedStates.put(doorNumber, false);
+            publishChange(ChangeType.UPSERT, doorNumber, false);
 
-        // Create a response
-        OperationResponse response = OperationResponse.newBuilder()
-                .setIsSuccessful(true)
-                .setMessage("Door '" + doorNumber + "' is now unlocked.")
-                .build();
+            // Reuse the response built for this door
+            OperationResponse response = cachedResponse(unlockedResponses, doorNumber, number -> "Door '" + number + "' is now unlocked.");
 
-        // Send the response back to the client
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+            // Send the response back to the client
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
     }
 
     /**
@@ -98,35 +146,44 @@ public class SecurityService extends SecurityServiceImplBase {
             SecurityDevice request,
             StreamObserver<OperationResponse> responseObserver
     ) {
-        // Get the device number from the request
-        int deviceNumber = request.getDeviceNumber();
-
-        // Check if the device is already registered
-        if (registeredDevices.containsKey(deviceNumber)) {
-            responseObserver.onError(Status.ALREADY_EXISTS
-                    .withDescription("Device '" + deviceNumber + "' is already registered.")
-                    .asRuntimeException()
-            );
-            return;
-        }
+        synchronized (changeFeed) {
+            // Get the device number from the request
+            int deviceNumber = request.getDeviceNumber();
+
+            // Check if the device is already registered
+            if (registeredDevices.containsKey(deviceNumber)) {
+                responseObserver.onError(Status.ALREADY_EXISTS
+                        .withDescription("Device '" + deviceNumber + "' is already registered.")
+                        .asRuntimeException()
+                );
+                return;
+            }
 
-        // Register the device
-        registeredDevices.put(deviceNumber, request);
+            // Check the home has room for another device
+            if (registeredDevices.size() >= maxDevices) {
+                responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                        .withDescription("No more than " + maxDevices + " security devices allowed")
+                        .asRuntimeException()
+                );
+                return;
+            }
+
+            // Register the device
+            registeredDevices.put(deviceNumber, request);
         
-        // Update doorLockedStates if device is of type door
-        if (request.getDeviceType() == SecurityDeviceType.DOOR) {
-            doorLockedStates.put(deviceNumber, true); // Initialize door as locked
-        }
+            // Update doorLockedStates if device is of type door
+            if (request.getDeviceType() == SecurityDeviceType.DOOR) {
+                doorLockedStates.put(deviceNumber, true); // Initialize door as locked
+                publishChange(ChangeType.UPSERT, deviceNumber, true);
+            }
 
-        // Create a response
-        OperationResponse response = OperationResponse.newBuilder()
-                .setIsSuccessful(true)
-                .setMessage("Device '" + deviceNumber + "' has been registered.")
-                .build();
+            // Reuse the response built for this device
+            OperationResponse response = cachedResponse(registeredResponses, deviceNumber, number -> "Device '" + number + "' has been registered.");
 
-        // Send the response back to the client
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+            // Send the response back to the client
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
     }
 
     /**
@@ -137,35 +194,41 @@ public class SecurityService extends SecurityServiceImplBase {
             SecurityDevice request,
             StreamObserver<OperationResponse> responseObserver
     ) {
-        // Get the device number from the request
-        int deviceNumber = request.getDeviceNumber();
-
-        // Check if the device is registered
-        if (!registeredDevices.containsKey(deviceNumber)) {
-            responseObserver.onError(Status.NOT_FOUND
-                    .withDescription("Device '" + deviceNumber + "' is not registered.")
-                    .asRuntimeException()
-            );
-            return;
-        }
+        synchronized (changeFeed) {
+            // Get the device number from the request
+            int deviceNumber = request.getDeviceNumber();
+
+            // Check if the device is registered
+            if (!registeredDevices.containsKey(deviceNumber)) {
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription("Device '" + deviceNumber + "' is not registered.")
+                        .asRuntimeException()
+                );
+                return;
+            }
 
-        // Deregister the device
-        registeredDevices.remove(deviceNumber);
+            // Deregister the device and forget the responses built for it
+            registeredDevices.remove(deviceNumber);
+            lockedResponses.remove(deviceNumber);
+            unlockedResponses.remove(deviceNumber);
+            registeredResponses.remove(deviceNumber);
         
-        // Update doorLockedStates if device is of type door
-        if (request.getDeviceType() == SecurityDeviceType.DOOR) {
-            doorLockedStates.remove(deviceNumber); // Remove door from locked states
-        }
+            // Update doorLockedStates if device is of type door
+            if (request.getDeviceType() == SecurityDeviceType.DOOR) {
+                doorLockedStates.remove(deviceNumber); // Remove door from locked states
+                publishChange(ChangeType.REMOVE, deviceNumber, false);
+            }
 
-        // Create a response
-        OperationResponse response = OperationResponse.newBuilder()
-                .setIsSuccessful(true)
-                .setMessage("Device '" + deviceNumber + "' has been deregistered.")
-                .build();
+            // Build the response for this call, caching it would keep one entry per device ever deregistered
+            OperationResponse response = OperationResponse.newBuilder()
+                    .setIsSuccessful(true)
+                    .setMessage("Device '" + deviceNumber + "' has been deregistered.")
+                    .build();
 
-        // Send the response back to the client
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+            // Send the response back to the client
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
     }
 
     /**
@@ -242,45 +305,49 @@ public class SecurityService extends SecurityServiceImplBase {
             StreamObserver<OperationResponse> responseObserver
     ) {
         return new StreamObserver<LockDoorRequest>() {
+            // Doors locked on this stream, every stream has its own list
+            private final List<Integer> requestedDoorNumbersLock = new ArrayList<>();
+            // Set once a door was not found, the doors sent after it are ignored
+            private boolean failed;
+
             @Override
             public void onNext(LockDoorRequest request) {
-                // Get the door number from the request
-                int doorNumber = request.getDoorNumber();
-
-                // Check if the door exists and return an error if it doesn't
-                if (!doorLockedStates.containsKey(doorNumber)) {
-                    responseObserver.onError(Status.NOT_FOUND
-                            .withDescription("Door '" + doorNumber + "' does not exist.")
-                            .asRuntimeException()
-                    );
+                if (failed) {
                     return;
                 }
-
-                // Update the door's lock state
-                doorLockedStates.put(doorNumber, true);
-
-                // Add the door number to the list of requested doors
-                requestedDoorNumbersLock.add(doorNumber);
+                synchronized (changeFeed) {
+                    // Get the door number from the request
+                    int doorNumber = request.getDoorNumber();
+
+                    // Check if the door exists and return an error telling the client which door of the stream failed
+                    if (!doorLockedStates.containsKey(doorNumber)) {
+                        failed = true;
+                        responseObserver.onError(FailedCommand.at(Status.NOT_FOUND
+                                .withDescription("Door '" + doorNumber + "' does not exist."), requestedDoorNumbersLock.size())
+                        );
+                        return;
+                    }
+
+                    // Update the door's lock state and notify the watchers
+                    doorLockedStates.put(doorNumber, true);
+                    publishChange(ChangeType.UPSERT, doorNumber, true);
+
+                    // Add the door number to the list of requested doors
+                    requestedDoorNumbersLock.add(doorNumber);
+                }
             }
 
             @Override
             public void onError(Throwable t) {
-                // Handle the error and send a response
-                OperationResponse operationResponse = OperationResponse.newBuilder()
-                        .setIsSuccessful(false)
-                        .setOperationName("lockDoors")
-                        .setMessage("Received Client Error: " + t.getMessage())
-                        .build();
-
-                // Send the error response back to the client
-                responseObserver.onNext(operationResponse);
-                responseObserver.onCompleted();
-
-                requestedDoorNumbersLock.clear();
+                // The client cancelled the stream or its deadline expired, nobody reads a response anymore
+                WastedWork.callCancelled(1);
             }
 
             @Override
             public void onCompleted() {
+                if (failed) {
+                    return;
+                }
                 // Send a response indicating all requested doors have been locked
                 OperationResponse operationResponse = OperationResponse.newBuilder()
                         .setIsSuccessful(true)
@@ -291,9 +358,6 @@ public class SecurityService extends SecurityServiceImplBase {
                 // Send the response back to the client
                 responseObserver.onNext(operationResponse);
                 responseObserver.onCompleted();
-
-                // Clear the list of requested doors
-                requestedDoorNumbersLock.clear();
             }
         };
     }
@@ -306,46 +370,49 @@ public class SecurityService extends SecurityServiceImplBase {
             StreamObserver<OperationResponse> responseObserver
     ) {
         return new StreamObserver<UnlockDoorRequest>() {
+            // Doors unlocked on this stream, every stream has its own list
+            private final List<Integer> requestedDoorNumbersUnlock = new ArrayList<>();
+            // Set once a door was not found, the doors sent after it are ignored
+            private boolean failed;
+
             @Override
             public void onNext(UnlockDoorRequest request) {
-                // Get the door number from the request
-                int doorNumber = request.getDoorNumber();
-
-                // Check if the door exists and return an error if it doesn't
-                if (!doorLockedStates.containsKey(doorNumber)) {
-                    responseObserver.onError(Status.NOT_FOUND
-                            .withDescription("Door '" + doorNumber + "' does not exist.")
-                            .asRuntimeException()
-                    );
+                if (failed) {
                     return;
                 }
-
-                // Update the door's lock state
-                doorLockedStates.put(doorNumber, false);
-
-                // Add the door number to the list of requested doors
-                requestedDoorNumbersUnlock.add(doorNumber);
+                synchronized (changeFeed) {
+                    // Get the door number from the request
+                    int doorNumber = request.getDoorNumber();
+
+                    // Check if the door exists and return an error telling the client which door of the stream failed
+                    if (!doorLockedStates.containsKey(doorNumber)) {
+                        failed = true;
+                        responseObserver.onError(FailedCommand.at(Status.NOT_FOUND
+                                .withDescription("Door '" + doorNumber + "' does not exist."), requestedDoorNumbersUnlock.size())
+                        );
+                        return;
+                    }
+
+                    // Update the door's lock state and notify the watchers
+                    doorLockedStates.put(doorNumber, false);
+                    publishChange(ChangeType.UPSERT, doorNumber, false);
+
+                    // Add the door number to the list of requested doors
+                    requestedDoorNumbersUnlock.add(doorNumber);
+                }
             }
 
             @Override
             public void onError(Throwable t) {
-                // Handle the error and send a response
-                OperationResponse operationResponse = OperationResponse.newBuilder()
-                        .setIsSuccessful(false)
-                        .setOperationName("unlockDoors")
-                        .setMessage("Received Client Error: " + t.getMessage())
-                        .build();
-
-                // Send the error response back to the client
-                responseObserver.onNext(operationResponse);
-                responseObserver.onCompleted();
-
-                // Clear the list of requested doors
-                requestedDoorNumbersUnlock.clear();
+                // The client cancelled the stream or its deadline expired, nobody reads a response anymore
+                WastedWork.callCancelled(1);
             }
 
             @Override
             public void onCompleted() {
+                if (failed) {
+                    return;
+                }
                 // Send a response indicating all requested doors have been unlocked
                 OperationResponse operationResponse = OperationResponse.newBuilder()
                         .setIsSuccessful(true)
@@ -356,11 +423,145 @@ public class SecurityService extends SecurityServiceImplBase {
                 // Send the response back to the client
                 responseObserver.onNext(operationResponse);
                 responseObserver.onCompleted();
-
-                // Clear the list of requested doors
-                requestedDoorNumbersUnlock.clear();
             }
         };
     }
-    
+
+    /**
+     * Watch the locked state changes of all doors.
+     * The server sends the current state of every door first, then pushes each change as it is applied.
+     */
+    @Override
+    public void watchDoorStates(
+            WatchRequest request,
+            StreamObserver<DoorStateChange> responseObserver
+    ) {
+        // A resumed watch gets only the changes the client missed while they are still in the log, otherwise the snapshot
+        changeFeed.subscribe(responseObserver, request.getFromVersion());
+    }
+
+    /**
+     * Get the changes after the given version.
+     * The server sends the logged changes after that version, or the current state of every door when they are no longer logged.
+     */
+    @Override
+    public void getChangesSince(
+            ChangesSinceRequest request,
+            StreamObserver<DoorStateChange> responseObserver
+    ) {
+        // Copy the changes from the log, they are streamed without holding the change feed lock
+        List<DoorStateChange> changes = changeFeed.changesSince(request.getVersion());
+
+        // Send the changes to the client, stopping once it is gone
+        for (int i = 0; i < changes.size(); i++) {
+            if (WastedWork.isCancelled(responseObserver)) {
+                WastedWork.callCancelled(changes.size() - i);
+                return;
+            }
+            responseObserver.onNext(changes.get(i));
+        }
+
+        // Complete the response
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Get the RESET marker followed by the state of every door at one consistent version.
+     * The snapshot is immutable and shared by all readers until the next change.
+     */
+    public List<DoorStateChange> getSnapshot() {
+        return changeFeed.snapshot();
+    }
+
+    /**
+     * Get the change feed, whose lock guards the state of the service.
+     */
+    public ChangeFeed<DoorStateChange> getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Send a heartbeat with the current version to the watchers, so they can tell an idle feed from a dead one.
+     */
+    public void sendHeartbeat() {
+        changeFeed.heartbeat(version -> DoorStateChange.newBuilder()
+                .setVersion(version)
+                .setChangeType(ChangeType.HEARTBEAT)
+                .build());
+    }
+
+    /**
+     * Apply a door state change replicated from the primary server, and push it to the watchers of this server.
+     * Only doors are replicated, the other security devices stay on the primary.
+     */
+    public void applyReplicatedChange(DoorStateChange change) {
+        synchronized (changeFeed) {
+            int doorNumber = change.getDoorState().getDoorNumber();
+
+            switch (change.getChangeType()) {
+                case HEARTBEAT:
+                    // Nothing changed on the primary
+                    break;
+
+                case RESET:
+                    // The primary sends its full state next
+                    doorLockedStates.clear();
+                    registeredDevices.clear();
+                    changeFeed.publish(version -> DoorStateChange.newBuilder()
+                            .setVersion(version)
+                            .setChangeType(ChangeType.RESET)
+                            .build());
+                    break;
+
+                case REMOVE:
+                    doorLockedStates.remove(doorNumber);
+                    registeredDevices.remove(doorNumber);
+                    publishChange(ChangeType.REMOVE, doorNumber, false);
+                    break;
+
+                default:
+                    doorLockedStates.put(doorNumber, change.getDoorState().getLocked());
+                    registeredDevices.put(doorNumber, SecurityDevice.newBuilder()
+                            .setDeviceNumber(doorNumber)
+                            .setDeviceType(SecurityDeviceType.DOOR)
+                            .build());
+                    publishChange(ChangeType.UPSERT, doorNumber, change.getDoorState().getLocked());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Get the successful response of an operation on a door or device, building it on first use.
+     * Must be called while holding the change feed lock.
+     */
+    private static OperationResponse cachedResponse(
+            IntMap<OperationResponse> cache,
+            int number,
+            IntFunction<String> messageFactory
+    ) {
+        OperationResponse response = cache.get(number);
+        if (response == null) {
+            response = OperationResponse.newBuilder()
+                    .setIsSuccessful(true)
+                    .setMessage(messageFactory.apply(number))
+                    .build();
+            cache.put(number, response);
+        }
+        return response;
+    }
+
+    /**
+     * Push a door state change to the watchers. Must be called while holding the change feed lock.
+     */
+    private void publishChange(ChangeType changeType, int doorNumber, boolean locked) {
+        changeFeed.publish(version -> DoorStateChange.newBuilder()
+                .setVersion(version)
+                .setChangeType(changeType)
+                .setDoorState(DoorState.newBuilder()
+                        .setDoorNumber(doorNumber)
+                        .setLocked(locked))
+                .build());
+    }
+
 }
@@ -0,0 +1,84 @@
+package smarthome.bench;
+
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import smarthome.client.BearerToken;
+import smarthome.client.SmartHomeClient;
+import smarthome.server.AuthorizationServerInterceptor;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Heap, allocation and CPU counters shared by the benchmarks, read from the JVM management beans.
+ * Allocation is counted per thread by the HotSpot ThreadMXBean, the same counter JMH's gc profiler reads.
+ */
+public final class BenchSupport {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.OperatingSystemMXBean OPERATING_SYSTEM =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    private BenchSupport() {
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread.
+     */
+    public static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * CPU time used so far by the calling thread.
+     */
+    public static long threadCpuNanos() {
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * CPU time used so far by the whole JVM, e.g. by the transport threads of a server.
+     */
+    public static long processCpuNanos() {
+        return OPERATING_SYSTEM.getProcessCpuTime();
+    }
+
+    /**
+     * Credentials accepted by a SmartHomeServer, for the benchmarks calling the generated stubs directly.
+     */
+    public static BearerToken credentials() {
+        return new BearerToken(Jwts.builder()
+                .setSubject("SmartHomeBench")
+                .signWith(SignatureAlgorithm.HS256, SmartHomeClient.JWT_SIGNING_KEY)
+                .compact());
+    }
+
+    /**
+     * Credentials of a client of the given home, for the benchmarks of a multi-home server.
+     */
+    public static BearerToken credentials(String homeId) {
+        return new BearerToken(Jwts.builder()
+                .setSubject("SmartHomeBench")
+                .claim(AuthorizationServerInterceptor.HOME_ID_CLAIM, homeId)
+                .signWith(SignatureAlgorithm.HS256, SmartHomeClient.JWT_SIGNING_KEY)
+                .compact());
+    }
+
+    /**
+     * Heap in use once the garbage collector has run, so only reachable objects are counted.
+     */
+    public static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collect until the heap stops shrinking, a single System.gc() may leave finalizable objects behind
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
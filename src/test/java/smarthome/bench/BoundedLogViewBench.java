@@ -0,0 +1,95 @@
+package smarthome.bench;
+
+import smarthome.client.BoundedLogView;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes a million lines into a BoundedLogView from several threads, as long-running history and motion streams do,
+ * and checks that the view stays bounded: the line count stops at the capacity, the heap stays flat, and painting
+ * and filtering cost the same as for a short log. Runs headless.
+ * Run with:
+ * java -Djava.awt.headless=true -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.BoundedLogViewBench [lines] [producer threads]
+ */
+public class BoundedLogViewBench {
+
+    private static final int PAINT_ROUNDS = 100;
+
+    public static void main(String[] args) throws Exception {
+        int totalLines = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int producers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        long heapBefore = BenchSupport.usedHeapAfterGc();
+
+        BoundedLogView[] view = new BoundedLogView[1];
+        JScrollPane[] scrollPane = new JScrollPane[1];
+        SwingUtilities.invokeAndWait(() -> {
+            view[0] = new BoundedLogView();
+            scrollPane[0] = new JScrollPane(view[0]);
+            scrollPane[0].setSize(800, 600);
+            scrollPane[0].doLayout();
+        });
+        BoundedLogView logView = view[0];
+
+        // Producers append from their own threads, a timer applies the lines in batches on the event thread
+        // as the view's own timer does once the view is displayed
+        Timer flushTimer = new Timer(BoundedLogView.DEFAULT_FLUSH_INTERVAL_MILLIS, e -> logView.flush());
+        CountDownLatch appended = new CountDownLatch(producers);
+        long start = System.nanoTime();
+        flushTimer.start();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            new Thread(() -> {
+                for (int i = producer; i < totalLines; i += producers) {
+                    logView.append("Motion detected by device " + (i % 1000) + ", event " + i);
+                }
+                appended.countDown();
+            }).start();
+        }
+        appended.await();
+        flushTimer.stop();
+        SwingUtilities.invokeAndWait(logView::flush);
+        long elapsedNanos = System.nanoTime() - start;
+
+        long heapAfter = BenchSupport.usedHeapAfterGc();
+        System.out.printf("%d lines from %d threads in %d ms (%.0f lines/s)%n", totalLines, producers,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), totalLines / (elapsedNanos / 1e9));
+        System.out.printf("Lines kept: %d of capacity %d%n", logView.getLineCount(), BoundedLogView.DEFAULT_CAPACITY);
+        System.out.printf("Heap held by the view: %.1f MB%n", (heapAfter - heapBefore) / 1e6);
+
+        // Paint the viewport as a repaint would, only the visible rows are rendered
+        BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        long[] paintNanos = new long[1];
+        SwingUtilities.invokeAndWait(() -> {
+            Graphics2D graphics = image.createGraphics();
+            long paintStart = System.nanoTime();
+            for (int i = 0; i < PAINT_ROUNDS; i++) {
+                scrollPane[0].paint(graphics);
+            }
+            paintNanos[0] = System.nanoTime() - paintStart;
+            graphics.dispose();
+        });
+        System.out.printf("Paint: %.2f ms per repaint%n", paintNanos[0] / 1e6 / PAINT_ROUNDS);
+
+        long[] filterNanos = new long[2];
+        int[] matchingRows = new int[1];
+        SwingUtilities.invokeAndWait(() -> {
+            long filterStart = System.nanoTime();
+            logView.setFilter("device 1");
+            filterNanos[0] = System.nanoTime() - filterStart;
+            matchingRows[0] = logView.getModel().getSize();
+
+            filterStart = System.nanoTime();
+            logView.setFilter("");
+            filterNanos[1] = System.nanoTime() - filterStart;
+        });
+        System.out.printf("Filter: %.2f ms to filter to %d rows, %.2f ms to clear%n",
+                filterNanos[0] / 1e6, matchingRows[0], filterNanos[1] / 1e6);
+
+        System.exit(logView.getLineCount() == Math.min(totalLines, BoundedLogView.DEFAULT_CAPACITY) ? 0 : 1);
+    }
+}
@@ -0,0 +1,114 @@
+package smarthome.bench;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import smarthome.client.ChannelPool;
+import smarthome.generated.climate.ClimateDevicesState;
+import smarthome.generated.climate.ClimateDevicesStateRequest;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.server.services.climate.ClimateService;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of unary calls through a ChannelPool of 1, 2, 4 and 8 connections, with both pick strategies.
+ * A fixed number of calls is kept in flight for each run, so the runs only differ by the connections the calls
+ * are spread over. Without an address, or with "local", the calls go to a climate service started in this JVM.
+ * Give the address of a SmartHomeServer started with --rate-limit 0 --no-load-shedding to measure a separate process,
+ * which shows the connection cap better on a multi-core machine.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.ChannelPoolBench [host:port|local] [seconds] [calls in flight]
+ */
+public class ChannelPoolBench {
+
+    private static final int[] POOL_SIZES = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        String address = args.length > 0 && !args[0].equals("local") ? args[0] : null;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int callsInFlight = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        ClimateService climateService = null;
+        Server server = null;
+        if (address == null) {
+            climateService = new ClimateService();
+            server = ServerBuilder.forPort(0)
+                    .addService(climateService)
+                    .build()
+                    .start();
+            address = "localhost:" + server.getPort();
+        }
+        int separator = address.lastIndexOf(':');
+        String host = address.substring(0, separator);
+        int port = Integer.parseInt(address.substring(separator + 1));
+
+        // Warm up the JIT of both sides before the first run
+        ChannelPool warmUpPool = ChannelPool.newBuilder(host, port).build();
+        run(warmUpPool, callsInFlight, 5);
+        warmUpPool.shutdown(5, TimeUnit.SECONDS);
+
+        System.out.printf("getClimateDevicesState to %s, %d calls in flight, %d s per run%n", address, callsInFlight, seconds);
+        for (ChannelPool.PickStrategy pickStrategy : ChannelPool.PickStrategy.values()) {
+            for (int poolSize : POOL_SIZES) {
+                ChannelPool pool = ChannelPool.newBuilder(host, port)
+                        .poolSize(poolSize)
+                        .pickStrategy(pickStrategy)
+                        .build();
+                // Warm up the connections before measuring
+                run(pool, callsInFlight, 1);
+                long[] result = run(pool, callsInFlight, seconds);
+                System.out.printf("%-12s pool of %d: %8.0f calls/s, %d failed%n",
+                        pickStrategy, poolSize, result[0] / (double) seconds, result[1]);
+                pool.shutdown(5, TimeUnit.SECONDS);
+            }
+        }
+
+        if (server != null) {
+            server.shutdownNow();
+            climateService.shutdown();
+        }
+    }
+
+    /**
+     * Keep the given number of calls in flight for the given time. Returns the completed and failed calls.
+     */
+    private static long[] run(ChannelPool pool, int callsInFlight, int seconds) throws InterruptedException {
+        ClimateServiceGrpc.ClimateServiceStub stub = ClimateServiceGrpc.newStub(pool).withCallCredentials(BenchSupport.credentials());
+        ClimateDevicesStateRequest request = ClimateDevicesStateRequest.newBuilder().build();
+        Semaphore permits = new Semaphore(callsInFlight);
+        AtomicLong completed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            permits.acquire();
+            stub.withDeadlineAfter(5, TimeUnit.SECONDS).getClimateDevicesState(request, new StreamObserver<ClimateDevicesState>() {
+                @Override
+                public void onNext(ClimateDevicesState state) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    if (Status.fromThrowable(t).getCode() != Status.Code.CANCELLED) {
+                        failed.incrementAndGet();
+                    }
+                    permits.release();
+                }
+
+                @Override
+                public void onCompleted() {
+                    completed.incrementAndGet();
+                    permits.release();
+                }
+            });
+        }
+        // Wait for the calls still in flight, they are not counted
+        long counted = completed.get();
+        permits.acquire(callsInFlight);
+        return new long[]{counted, failed.get()};
+    }
+}
@@ -0,0 +1,105 @@
+package smarthome.bench;
+
+import io.grpc.stub.StreamObserver;
+import smarthome.generated.climate.ClimateDevicesState;
+import smarthome.generated.climate.HumidityChangeEvent;
+import smarthome.generated.climate.TargetClimateSetting;
+import smarthome.generated.climate.TemperatureChangeEvent;
+import smarthome.server.services.climate.ClimateService;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Readings of 10k climate zones reported concurrently to a ClimateService, called directly without a transport so
+ * only the service is measured. Every thread reports temperature and humidity readings of random zones; zones
+ * are locked one by one, so the throughput should grow with the threads. The same load on a single zone shows
+ * the throughput when every reading contends for one lock.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.ClimateZonesBench [zones] [threads] [seconds]
+ */
+public class ClimateZonesBench {
+
+    public static void main(String[] args) throws Exception {
+        int zones = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 2 * Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        long heapBefore = BenchSupport.usedHeapAfterGc();
+        ClimateService climateService = new ClimateService();
+        climateService.setMaxZones(zones + 1);
+        for (int zoneId = 1; zoneId <= zones; zoneId++) {
+            climateService.setTargetClimateSettings(TargetClimateSetting.newBuilder()
+                    .setZoneId(zoneId)
+                    .setTargetTemperature(21)
+                    .setTargetHumidity(50)
+                    .build(), ignore());
+        }
+        long heapAfter = BenchSupport.usedHeapAfterGc();
+        System.out.printf("%d zones created, %.0f bytes of heap per zone%n", zones, (heapAfter - heapBefore) / (double) zones);
+
+        // Warm up the JIT before measuring
+        report(climateService, zones, threads, 2);
+        double spread = report(climateService, zones, threads, seconds);
+        double contended = report(climateService, 1, threads, seconds);
+        System.out.printf("%d threads over %d zones: %.0f readings/s%n", threads, zones, spread);
+        System.out.printf("%d threads on 1 zone:    %.0f readings/s%n", threads, contended);
+
+        climateService.shutdown();
+    }
+
+    /**
+     * Report readings of zones 1 to zones from the given number of threads for the given time, returns readings/s.
+     */
+    private static double report(ClimateService climateService, int zones, int threads, int seconds) throws InterruptedException {
+        LongAdder readings = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                StreamObserver<ClimateDevicesState> observer = ignore();
+                long count = 0;
+                while (System.nanoTime() < end) {
+                    int zoneId = 1 + random.nextInt(zones);
+                    if ((count & 1) == 0) {
+                        climateService.respondToTemperatureReading(TemperatureChangeEvent.newBuilder()
+                                .setZoneId(zoneId)
+                                .setTemperature(15 + random.nextInt(13))
+                                .build(), observer);
+                    } else {
+                        climateService.respondToHumidityReading(HumidityChangeEvent.newBuilder()
+                                .setZoneId(zoneId)
+                                .setHumidity(30 + random.nextInt(40))
+                                .build(), observer);
+                    }
+                    count++;
+                }
+                readings.add(count);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return readings.sum() / (double) seconds;
+    }
+
+    private static <T> StreamObserver<T> ignore() {
+        return new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new IllegalStateException(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+}
@@ -0,0 +1,131 @@
+package smarthome.bench;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import smarthome.client.ChannelPool;
+import smarthome.generated.climate.ClimateDevicesStateRequest;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.climate.TargetClimateSetting;
+import smarthome.server.AuthorizationServerInterceptor;
+import smarthome.server.CancellationInterceptor;
+import smarthome.server.EmbeddedSmartHomeServer;
+import smarthome.server.services.climate.ClimateService;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call latency of blocking unary calls from one thread, over TCP to a server in this JVM, and through the
+ * in-process transport of an EmbeddedSmartHomeServer with serialized messages and with zero serialization.
+ * Every server authorizes the calls as SmartHomeServer does, so the runs only differ by the transport.
+ * The calls are a read, getClimateDevicesState, and a write, setTargetClimateSettings, of one zone. CPU is the CPU
+ * of the whole process per call, i.e. both the client and the server side.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.EmbeddedTransportBench [calls]
+ */
+public class EmbeddedTransportBench {
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        ClimateService climateService = new ClimateService();
+        Server tcpServer = ServerBuilder.forPort(0)
+                .addService(ServerInterceptors.intercept(climateService,
+                        new CancellationInterceptor(),
+                        new AuthorizationServerInterceptor()))
+                .build()
+                .start();
+        EmbeddedSmartHomeServer serializedServer = new EmbeddedSmartHomeServer("bench-serialized", false).start();
+        EmbeddedSmartHomeServer zeroCopyServer = new EmbeddedSmartHomeServer("bench-zero-serialization", true).start();
+
+        String[] names = {"TCP", "in-process serialized", "in-process zero serialization"};
+        ChannelPool[] pools = {
+                ChannelPool.newBuilder("localhost", tcpServer.getPort()).build(),
+                ChannelPool.newInProcessBuilder(serializedServer.getName()).build(),
+                ChannelPool.newInProcessBuilder(zeroCopyServer.getName()).build()
+        };
+
+        // Warm up the JIT of every transport before measuring
+        for (ChannelPool pool : pools) {
+            run(pool, calls / 4);
+        }
+
+        System.out.printf("%d blocking calls of each method per transport%n", calls);
+        for (int i = 0; i < pools.length; i++) {
+            Result result = run(pools[i], calls);
+            System.out.printf("%-30s read:  %6.1f us mean, %6.1f us p50, %6.1f us p99, %6.1f us CPU per call%n",
+                    names[i], result.readNanos[0] / 1e3, result.readNanos[1] / 1e3, result.readNanos[2] / 1e3, result.readCpuNanos / 1e3);
+            System.out.printf("%-30s write: %6.1f us mean, %6.1f us p50, %6.1f us p99, %6.1f us CPU per call%n",
+                    "", result.writeNanos[0] / 1e3, result.writeNanos[1] / 1e3, result.writeNanos[2] / 1e3, result.writeCpuNanos / 1e3);
+        }
+
+        for (ChannelPool pool : pools) {
+            pool.shutdown(5, TimeUnit.SECONDS);
+        }
+        tcpServer.shutdownNow();
+        climateService.shutdown();
+        serializedServer.shutdown(5, TimeUnit.SECONDS);
+        zeroCopyServer.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Make the given number of reads and then of writes one after the other, timing each call.
+     */
+    private static Result run(ChannelPool pool, int calls) {
+        ClimateServiceGrpc.ClimateServiceBlockingStub stub = ClimateServiceGrpc.newBlockingStub(pool)
+                .withCallCredentials(BenchSupport.credentials());
+        TargetClimateSetting write = TargetClimateSetting.newBuilder()
+                .setZoneId(1)
+                .setTargetTemperature(21)
+                .setTargetHumidity(50)
+                .build();
+        ClimateDevicesStateRequest read = ClimateDevicesStateRequest.newBuilder().setZoneId(1).build();
+        // Reads of a zone that doesn't exist fail, so write it first
+        stub.setTargetClimateSettings(write);
+
+        Result result = new Result();
+        long[] latencies = new long[calls];
+        long cpuStart = BenchSupport.processCpuNanos();
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            stub.getClimateDevicesState(read);
+            latencies[i] = System.nanoTime() - start;
+        }
+        result.readCpuNanos = (BenchSupport.processCpuNanos() - cpuStart) / (double) calls;
+        result.readNanos = summary(latencies);
+
+        cpuStart = BenchSupport.processCpuNanos();
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            stub.setTargetClimateSettings(write);
+            latencies[i] = System.nanoTime() - start;
+        }
+        result.writeCpuNanos = (BenchSupport.processCpuNanos() - cpuStart) / (double) calls;
+        result.writeNanos = summary(latencies);
+        return result;
+    }
+
+    /**
+     * Mean, median and 99th percentile of the latencies, which are sorted in place.
+     */
+    private static double[] summary(long[] latencies) {
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        Arrays.sort(latencies);
+        return new double[]{
+                total / (double) latencies.length,
+                latencies[latencies.length / 2],
+                latencies[(int) (latencies.length * 0.99)]
+        };
+    }
+
+    private static class Result {
+        double[] readNanos;
+        double[] writeNanos;
+        double readCpuNanos;
+        double writeCpuNanos;
+    }
+}
@@ -0,0 +1,140 @@
+package smarthome.bench;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import smarthome.generated.climate.ClimateDevicesState;
+import smarthome.generated.climate.ClimateDevicesStateRequest;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.climate.TargetClimateSetting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read throughput of getClimateDevicesState spread over a primary and its followers, started as separate processes:
+ * a primary with --rate-limit 0 --no-load-shedding, and followers with the same options and --follow on that primary.
+ * The zones are written on the primary, then the reads go to the primary alone, then to the primary and the first
+ * follower, and so on, with the same number of calls in flight. On a machine with a core per server, the throughput
+ * should grow with the servers.
+ * Reads a follower refuses, e.g. because it is too stale, are counted by status.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.FollowerReadBench primaryHost:port [followerHost:port...] [--seconds s] [--in-flight calls] [--zones zones]
+ */
+public class FollowerReadBench {
+
+    public static void main(String[] args) throws Exception {
+        List<String> addresses = new ArrayList<>();
+        int seconds = 5;
+        int callsInFlight = 256;
+        int zones = 100;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--seconds")) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--in-flight")) {
+                callsInFlight = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--zones")) {
+                zones = Integer.parseInt(args[++i]);
+            } else {
+                addresses.add(args[i]);
+            }
+        }
+        if (addresses.isEmpty()) {
+            System.out.println("Give the address of the primary, followed by the addresses of its followers");
+            return;
+        }
+
+        List<ManagedChannel> channels = new ArrayList<>();
+        for (String address : addresses) {
+            int separator = address.lastIndexOf(':');
+            channels.add(ManagedChannelBuilder
+                    .forAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)))
+                    .usePlaintext()
+                    .build());
+        }
+
+        // Write the zones on the primary and give the followers time to replicate them
+        ClimateServiceGrpc.ClimateServiceBlockingStub primary = ClimateServiceGrpc.newBlockingStub(channels.get(0))
+                .withCallCredentials(BenchSupport.credentials());
+        for (int zoneId = 1; zoneId <= zones; zoneId++) {
+            primary.setTargetClimateSettings(TargetClimateSetting.newBuilder()
+                    .setZoneId(zoneId)
+                    .setTargetTemperature(21)
+                    .setTargetHumidity(50)
+                    .build());
+        }
+        Thread.sleep(2000);
+
+        // Warm up the JIT of every server before the first run
+        run(channels, zones, callsInFlight, 5);
+
+        System.out.printf("getClimateDevicesState over %d zones, %d calls in flight, %d s per run%n", zones, callsInFlight, seconds);
+        for (int servers = 1; servers <= channels.size(); servers++) {
+            Result result = run(channels.subList(0, servers), zones, callsInFlight, seconds);
+            System.out.printf("%d server%s: %8.0f reads/s, failed %s%n", servers, servers == 1 ? " " : "s",
+                    result.completed / (double) seconds, result.failures);
+        }
+
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+            channel.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Keep the given number of reads in flight for the given time, spread round-robin over the servers.
+     */
+    private static Result run(List<ManagedChannel> channels, int zones, int callsInFlight, int seconds) throws InterruptedException {
+        List<ClimateServiceGrpc.ClimateServiceStub> stubs = new ArrayList<>();
+        for (ManagedChannel channel : channels) {
+            stubs.add(ClimateServiceGrpc.newStub(channel).withCallCredentials(BenchSupport.credentials()));
+        }
+        Semaphore permits = new Semaphore(callsInFlight);
+        AtomicLong completed = new AtomicLong();
+        Result result = new Result();
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long call = 0;
+        while (System.nanoTime() < end) {
+            permits.acquire();
+            ClimateDevicesStateRequest request = ClimateDevicesStateRequest.newBuilder()
+                    .setZoneId(1 + ThreadLocalRandom.current().nextInt(zones))
+                    .build();
+            stubs.get((int) (call++ % stubs.size()))
+                    .withDeadlineAfter(5, TimeUnit.SECONDS)
+                    .getClimateDevicesState(request, new StreamObserver<ClimateDevicesState>() {
+                        @Override
+                        public void onNext(ClimateDevicesState state) {
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            result.failures.merge(Status.fromThrowable(t).getCode(), 1, Integer::sum);
+                            permits.release();
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            completed.incrementAndGet();
+                            permits.release();
+                        }
+                    });
+        }
+        // Wait for the calls still in flight, they are not counted
+        result.completed = completed.get();
+        permits.acquire(callsInFlight);
+        return result;
+    }
+
+    private static class Result {
+        long completed;
+        final Map<Status.Code, Integer> failures = new ConcurrentSkipListMap<>();
+    }
+}
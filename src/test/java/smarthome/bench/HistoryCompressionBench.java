@@ -0,0 +1,144 @@
+package smarthome.bench;
+
+import io.grpc.*;
+import io.grpc.stub.StreamObserver;
+import smarthome.common.SnappyCodec;
+import smarthome.generated.climate.ClimateDevicesState;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.climate.TemperatureChangeEvent;
+import smarthome.generated.climate.TemperatureHistoryRequest;
+import smarthome.generated.climate.TemperatureReading;
+import smarthome.server.CompressionInterceptor;
+import smarthome.server.services.climate.ClimateService;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bandwidth against CPU of getTemperatureHistory streaming a zone of 1M readings, uncompressed, with gzip and with
+ * snappy. The server is set up as SmartHomeServer sets it up, with the CompressionInterceptor on the history method.
+ * gRPC compresses every message on its own and a history sends one small message per reading, so each encoding
+ * runs with every message compressed and with the default size threshold, which leaves the readings uncompressed.
+ * Wire bytes are the compressed bytes received by the client, CPU is the CPU of the whole process, i.e. both the
+ * server encoding and the client decoding.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.HistoryCompressionBench [readings]
+ */
+public class HistoryCompressionBench {
+
+    public static void main(String[] args) throws Exception {
+        int readings = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        ClimateService climateService = new ClimateService();
+        for (int i = 0; i < readings; i++) {
+            climateService.respondToTemperatureReading(TemperatureChangeEvent.newBuilder()
+                    .setZoneId(1)
+                    .setTemperature(18 + i / 1000 % 8)
+                    .build(), new StreamObserver<ClimateDevicesState>() {
+                @Override
+                public void onNext(ClimateDevicesState value) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    throw new IllegalStateException(t);
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+
+        String[] encodings = {"none", SnappyCodec.GZIP_MESSAGE_ENCODING, SnappyCodec.MESSAGE_ENCODING,
+                SnappyCodec.GZIP_MESSAGE_ENCODING, SnappyCodec.MESSAGE_ENCODING};
+        int[] minMessageSizes = {0, 0, 0, CompressionInterceptor.DEFAULT_MIN_MESSAGE_SIZE, CompressionInterceptor.DEFAULT_MIN_MESSAGE_SIZE};
+
+        // Warm up the JIT of both sides before measuring
+        for (int i = 0; i < encodings.length; i++) {
+            stream(climateService, encodings[i], minMessageSizes[i], Math.min(readings, 200_000));
+        }
+
+        System.out.printf("getTemperatureHistory of %d readings%n", readings);
+        for (int i = 0; i < encodings.length; i++) {
+            Result result = stream(climateService, encodings[i], minMessageSizes[i], readings);
+            System.out.printf("%-6s min size %3d: %6.2f wire bytes per reading (%5.1f MB), %6.0f ms, %6.0f ms CPU%n",
+                    encodings[i], minMessageSizes[i], result.wireBytes / (double) result.readings,
+                    result.wireBytes / 1e6, result.elapsedNanos / 1e6, result.cpuNanos / 1e6);
+        }
+
+        climateService.shutdown();
+    }
+
+    /**
+     * Stream the history from a server compressing it with the given encoding, "none" for no compression.
+     */
+    private static Result stream(ClimateService climateService, String encoding, int minMessageSize, int readings) throws Exception {
+        ServerBuilder<?> serverBuilder = ServerBuilder.forPort(0)
+                .addService(climateService)
+                .compressorRegistry(SnappyCodec.compressorRegistry())
+                .decompressorRegistry(SnappyCodec.decompressorRegistry());
+        if (!encoding.equals("none")) {
+            serverBuilder.intercept(CompressionInterceptor.newBuilder()
+                    .methodCompression(ClimateServiceGrpc.getGetTemperatureHistoryMethod(), encoding)
+                    .minMessageSize(minMessageSize)
+                    .build());
+        }
+        Server server = serverBuilder.build().start();
+
+        // Count the bytes as they arrive on the wire, before decompression
+        AtomicLong wireBytes = new AtomicLong();
+        ClientStreamTracer.Factory tracerFactory = new ClientStreamTracer.Factory() {
+            @Override
+            public ClientStreamTracer newClientStreamTracer(CallOptions callOptions, Metadata headers) {
+                return new ClientStreamTracer() {
+                    @Override
+                    public void inboundWireSize(long bytes) {
+                        wireBytes.addAndGet(bytes);
+                    }
+                };
+            }
+        };
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .decompressorRegistry(SnappyCodec.decompressorRegistry())
+                .build();
+        ClimateServiceGrpc.ClimateServiceBlockingStub stub = ClimateServiceGrpc.newBlockingStub(channel)
+                .withInterceptors(new ClientInterceptor() {
+                    @Override
+                    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+                            MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+                        return next.newCall(method, callOptions.withStreamTracerFactory(tracerFactory));
+                    }
+                });
+
+        Result result = new Result();
+        long cpuStart = BenchSupport.processCpuNanos();
+        long start = System.nanoTime();
+        Iterator<TemperatureReading> history = stub.getTemperatureHistory(TemperatureHistoryRequest.newBuilder()
+                .setZoneId(1)
+                .setMaxNoOfReadings(readings)
+                .build());
+        while (history.hasNext()) {
+            history.next();
+            result.readings++;
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.cpuNanos = BenchSupport.processCpuNanos() - cpuStart;
+        result.wireBytes = wireBytes.get();
+
+        channel.shutdown();
+        channel.awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdown();
+        server.awaitTermination(5, TimeUnit.SECONDS);
+        return result;
+    }
+
+    private static class Result {
+        long readings;
+        long wireBytes;
+        long elapsedNanos;
+        long cpuNanos;
+    }
+}
@@ -0,0 +1,127 @@
+package smarthome.bench;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import smarthome.client.BearerToken;
+import smarthome.generated.general.DeviceState;
+import smarthome.generated.lighting.LightingDevice;
+import smarthome.generated.lighting.LightingServiceGrpc;
+import smarthome.generated.lighting.LightingStateRequest;
+import smarthome.server.AuthorizationServerInterceptor;
+import smarthome.server.HomePartitions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls per second of a multi-home server holding 100k homes, driven from 1, 2, 4 and 8 threads.
+ * The homes are created by registering a lighting device in each, through the routing of HomePartitions and the
+ * authorization picking the home from the caller's token, as on a SmartHomeServer started with --multi-home.
+ * The server is reached through the in-process transport and runs the handlers on the calling threads, so the
+ * throughput shows the contention between homes rather than the cost of the network. Every call sets the state of
+ * the device of a random home. On a machine with a core per thread, the throughput should grow with the threads.
+ * The heap of the homes is reported too.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.HomePartitionsBench [homes] [seconds] [max threads]
+ */
+public class HomePartitionsBench {
+
+    public static void main(String[] args) throws Exception {
+        int homes = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        HomePartitions homePartitions = new HomePartitions(homes,
+                HomePartitions.DEFAULT_MAX_LIGHTING_DEVICES,
+                HomePartitions.DEFAULT_MAX_SECURITY_DEVICES,
+                HomePartitions.DEFAULT_MAX_CLIMATE_ZONES);
+        InProcessServerBuilder serverBuilder = InProcessServerBuilder.forName("bench-homes").directExecutor();
+        for (ServerServiceDefinition serviceDefinition : homePartitions.bindServices()) {
+            serverBuilder.addService(ServerInterceptors.intercept(serviceDefinition, new AuthorizationServerInterceptor()));
+        }
+        Server server = serverBuilder.build().start();
+        ManagedChannel channel = InProcessChannelBuilder.forName("bench-homes").directExecutor().build();
+        LightingServiceGrpc.LightingServiceBlockingStub stub = LightingServiceGrpc.newBlockingStub(channel);
+
+        BearerToken[] credentials = new BearerToken[homes];
+        for (int home = 0; home < homes; home++) {
+            credentials[home] = BenchSupport.credentials("home-" + home);
+        }
+
+        // Create every home with one lighting device
+        long heapBefore = BenchSupport.usedHeapAfterGc();
+        long start = System.nanoTime();
+        for (int home = 0; home < homes; home++) {
+            stub.withCallCredentials(credentials[home]).registerLightingDevice(LightingDevice.newBuilder()
+                    .setRoomNumber(1)
+                    .setDeviceNumber(1)
+                    .build());
+        }
+        long createNanos = System.nanoTime() - start;
+        long homesHeap = BenchSupport.usedHeapAfterGc() - heapBefore;
+        System.out.printf("%d homes created in %.1f s, %.1f MB heap (%.0f B per home)%n",
+                homePartitions.getHomeCount(), createNanos / 1e9, homesHeap / 1e6, homesHeap / (double) homes);
+
+        // Warm up the JIT before the first run
+        run(stub, credentials, 1, 2);
+
+        System.out.printf("setLightingState to random homes, %d s per run%n", seconds);
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Result result = run(stub, credentials, threads, seconds);
+            System.out.printf("%d thread%s: %9.0f calls/s, failed %s%n", threads, threads == 1 ? " " : "s",
+                    result.completed.get() / (double) seconds, result.failures);
+        }
+
+        channel.shutdownNow();
+        server.shutdownNow();
+        homePartitions.shutdown();
+    }
+
+    /**
+     * Make blocking calls from the given number of threads for the given time.
+     */
+    private static Result run(LightingServiceGrpc.LightingServiceBlockingStub stub, BearerToken[] credentials,
+                              int threads, int seconds) throws InterruptedException {
+        Result result = new Result();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] callers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            callers[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long completed = 0;
+                while (System.nanoTime() < end) {
+                    LightingStateRequest request = LightingStateRequest.newBuilder()
+                            .setDeviceNumber(1)
+                            .setLightingState(random.nextBoolean() ? DeviceState.ON : DeviceState.OFF)
+                            .build();
+                    try {
+                        stub.withCallCredentials(credentials[random.nextInt(credentials.length)]).setLightingState(request);
+                        completed++;
+                    } catch (StatusRuntimeException e) {
+                        result.failures.merge(e.getStatus().getCode(), 1, Integer::sum);
+                    }
+                }
+                result.completed.addAndGet(completed);
+            }, "bench-caller-" + i);
+            callers[i].start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        return result;
+    }
+
+    private static class Result {
+        final AtomicLong completed = new AtomicLong();
+        final Map<Status.Code, Integer> failures = new ConcurrentSkipListMap<>();
+    }
+}
@@ -0,0 +1,169 @@
+package smarthome.bench;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import smarthome.client.ChannelPool;
+import smarthome.generated.climate.ClimateDevicesState;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.climate.SensorReading;
+import smarthome.generated.general.OperationResponse;
+import smarthome.server.services.climate.ClimateService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readings per second ingested by ingestReadings, which responds once per stream, and streamReadings, which
+ * responds when a zone's devices change, over 1 and 4 concurrent streams. The target is 100k readings/s.
+ * Each stream sends its readings as fast as the transport takes them, spread over 100 zones, alternating
+ * temperature and humidity, and the time runs until the server completed every stream, i.e. applied every reading.
+ * Without an address, or with "local", the readings go to a climate service started in this JVM. Give the address
+ * of a SmartHomeServer started with --rate-limit 0 --no-load-shedding to measure a separate process.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.IngestionBench [host:port|local] [readings per stream]
+ */
+public class IngestionBench {
+
+    private static final int ZONES = 100;
+    private static final int[] STREAMS = {1, 4};
+    private static final double TARGET_READINGS_PER_SECOND = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        String address = args.length > 0 && !args[0].equals("local") ? args[0] : null;
+        int readings = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        ClimateService climateService = null;
+        Server server = null;
+        if (address == null) {
+            climateService = new ClimateService();
+            server = ServerBuilder.forPort(0)
+                    .addService(climateService)
+                    .build()
+                    .start();
+            address = "localhost:" + server.getPort();
+        }
+        int separator = address.lastIndexOf(':');
+        ChannelPool pool = ChannelPool.newBuilder(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1))).build();
+        ClimateServiceGrpc.ClimateServiceStub stub = ClimateServiceGrpc.newStub(pool).withCallCredentials(BenchSupport.credentials());
+
+        // Warm up the JIT of both sides before measuring
+        run(stub, false, 1, readings / 4);
+        run(stub, true, 1, readings / 4);
+
+        System.out.printf("%d readings per stream to %s, %d zones%n", readings, address, ZONES);
+        for (boolean bidi : new boolean[]{false, true}) {
+            for (int streams : STREAMS) {
+                long[] result = run(stub, bidi, streams, readings);
+                double readingsPerSecond = streams * (double) readings / (result[0] / 1e9);
+                System.out.printf("%-14s %d stream%s: %8.0f readings/s (%s the target), %d failed streams%n",
+                        bidi ? "streamReadings" : "ingestReadings", streams, streams == 1 ? " " : "s",
+                        readingsPerSecond, readingsPerSecond >= TARGET_READINGS_PER_SECOND ? "meets" : "misses", result[1]);
+            }
+        }
+
+        pool.shutdown(5, TimeUnit.SECONDS);
+        if (server != null) {
+            server.shutdownNow();
+            climateService.shutdown();
+        }
+    }
+
+    /**
+     * Send the readings over the given number of concurrent streams and wait until the server completed them all.
+     * Returns the elapsed nanoseconds and the number of failed streams.
+     */
+    private static long[] run(ClimateServiceGrpc.ClimateServiceStub stub, boolean bidi, int streams, int readings) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(streams);
+        List<ReadingSender<?>> senders = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < streams; i++) {
+            if (bidi) {
+                ReadingSender<ClimateDevicesState> sender = new ReadingSender<>(i, readings, done);
+                senders.add(sender);
+                stub.streamReadings(sender);
+            } else {
+                ReadingSender<OperationResponse> sender = new ReadingSender<>(i, readings, done);
+                senders.add(sender);
+                stub.ingestReadings(sender);
+            }
+        }
+        done.await();
+        long elapsedNanos = System.nanoTime() - start;
+
+        long failed = 0;
+        for (ReadingSender<?> sender : senders) {
+            if (sender.failure != null) {
+                failed++;
+                System.out.println("Stream failed: " + sender.failure);
+            }
+        }
+        return new long[]{elapsedNanos, failed};
+    }
+
+    /**
+     * Sends the readings of one stream each time the transport is ready for more, then completes it.
+     * Runs on the serializing executor of the call, so it never runs concurrently with itself.
+     */
+    private static final class ReadingSender<R> implements ClientResponseObserver<SensorReading, R> {
+        private final int stream;
+        private final int readings;
+        private final CountDownLatch done;
+        private ClientCallStreamObserver<SensorReading> requestStream;
+        private int sent;
+        private volatile Status failure;
+
+        ReadingSender(int stream, int readings, CountDownLatch done) {
+            this.stream = stream;
+            this.readings = readings;
+            this.done = done;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<SensorReading> requestStream) {
+            this.requestStream = requestStream;
+            requestStream.setOnReadyHandler(this::send);
+        }
+
+        private void send() {
+            if (sent == readings) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            while (requestStream.isReady() && sent < readings) {
+                SensorReading.Builder reading = SensorReading.newBuilder()
+                        .setZoneId(1 + (stream * 7 + sent) % ZONES)
+                        .setTimestampMillis(now);
+                if ((sent & 1) == 0) {
+                    reading.setTemperature(18 + sent / 1000 % 8);
+                } else {
+                    reading.setHumidity(40 + sent / 1000 % 20);
+                }
+                requestStream.onNext(reading.build());
+                sent++;
+            }
+            if (sent == readings) {
+                requestStream.onCompleted();
+            }
+        }
+
+        @Override
+        public void onNext(R response) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            failure = Status.fromThrowable(t);
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+    }
+}
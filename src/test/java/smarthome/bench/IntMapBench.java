@@ -0,0 +1,114 @@
+package smarthome.bench;
+
+import smarthome.server.services.IntMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Heap use and lookup latency of the IntMap the services keep their devices in, against a HashMap with boxed keys,
+ * at 1M devices. Every entry maps to the same value, so the heap counts the map alone. Lookups use device numbers
+ * in random order, both of devices that exist and of devices that don't.
+ * The allocation counter is the one JMH's gc profiler reads.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.IntMapBench [devices] [lookups]
+ */
+public class IntMapBench {
+
+    private static final Object DEVICE = new Object();
+
+    static volatile Object lastValue;
+
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20_000_000;
+
+        // Distinct device numbers spread over the int range, and the same number of devices that don't exist
+        Random random = new Random(42);
+        int[] deviceNumbers = new int[devices];
+        int[] missingNumbers = new int[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceNumbers[i] = 2 * (i * 40_503 + 1);
+            missingNumbers[i] = deviceNumbers[i] + 1;
+        }
+        int[] hitOrder = shuffled(deviceNumbers, random);
+        int[] missOrder = shuffled(missingNumbers, random);
+
+        long heapBefore = BenchSupport.usedHeapAfterGc();
+        IntMap<Object> intMap = new IntMap<>();
+        for (int deviceNumber : deviceNumbers) {
+            intMap.put(deviceNumber, DEVICE);
+        }
+        long intMapHeap = BenchSupport.usedHeapAfterGc() - heapBefore;
+
+        heapBefore = BenchSupport.usedHeapAfterGc();
+        Map<Integer, Object> hashMap = new HashMap<>();
+        for (int deviceNumber : deviceNumbers) {
+            hashMap.put(deviceNumber, DEVICE);
+        }
+        long hashMapHeap = BenchSupport.usedHeapAfterGc() - heapBefore;
+
+        System.out.printf("%d devices, %d lookups per run%n", devices, lookups);
+        System.out.printf("Heap:    IntMap %6.1f MB (%5.1f B/entry), HashMap<Integer, V> %6.1f MB (%5.1f B/entry)%n",
+                intMapHeap / 1e6, intMapHeap / (double) devices, hashMapHeap / 1e6, hashMapHeap / (double) devices);
+
+        // The first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            double[] intMapHits = lookUp(intMap, hitOrder, lookups);
+            double[] hashMapHits = lookUp(hashMap, hitOrder, lookups);
+            double[] intMapMisses = lookUp(intMap, missOrder, lookups);
+            double[] hashMapMisses = lookUp(hashMap, missOrder, lookups);
+            if (round == 1) {
+                System.out.printf("Hits:    IntMap %5.1f ns %5.1f B per lookup, HashMap<Integer, V> %5.1f ns %5.1f B per lookup%n",
+                        intMapHits[0], intMapHits[1], hashMapHits[0], hashMapHits[1]);
+                System.out.printf("Misses:  IntMap %5.1f ns %5.1f B per lookup, HashMap<Integer, V> %5.1f ns %5.1f B per lookup%n",
+                        intMapMisses[0], intMapMisses[1], hashMapMisses[0], hashMapMisses[1]);
+            }
+        }
+    }
+
+    /**
+     * Look the keys up in turn, returns the nanoseconds and the bytes allocated per lookup.
+     */
+    private static double[] lookUp(IntMap<Object> map, int[] keys, int lookups) {
+        long allocatedBefore = BenchSupport.allocatedBytes();
+        long start = System.nanoTime();
+        Object value = null;
+        for (int i = 0, k = 0; i < lookups; i++) {
+            value = map.get(keys[k]);
+            if (++k == keys.length) {
+                k = 0;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        lastValue = value;
+        return new double[]{elapsedNanos / (double) lookups, (BenchSupport.allocatedBytes() - allocatedBefore) / (double) lookups};
+    }
+
+    private static double[] lookUp(Map<Integer, Object> map, int[] keys, int lookups) {
+        long allocatedBefore = BenchSupport.allocatedBytes();
+        long start = System.nanoTime();
+        Object value = null;
+        for (int i = 0, k = 0; i < lookups; i++) {
+            value = map.get(keys[k]);
+            if (++k == keys.length) {
+                k = 0;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        lastValue = value;
+        return new double[]{elapsedNanos / (double) lookups, (BenchSupport.allocatedBytes() - allocatedBefore) / (double) lookups};
+    }
+
+    private static int[] shuffled(int[] values, Random random) {
+        int[] shuffled = values.clone();
+        for (int i = shuffled.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = swap;
+        }
+        return shuffled;
+    }
+}
@@ -0,0 +1,220 @@
+package smarthome.bench;
+
+import com.google.common.io.ByteStreams;
+import io.grpc.*;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import smarthome.server.LoadSheddingInterceptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Goodput of an overloaded server with and without the adaptive concurrency limit of LoadSheddingInterceptor.
+ * The server is set up as SmartHomeServer sets it up, a bounded handler pool and, in the second run, the limiter.
+ * Its handler waits for a backend for a fixed time, so the handler pool is the bottleneck and a client on the
+ * same machine can offer more calls than it serves.
+ * The capacity of the server is measured first with enough callers to keep every handler busy, then both runs
+ * offer an open-loop load of a multiple of that capacity, every call with a deadline. Goodput counts the calls
+ * that completed OK within their deadline, the other calls are counted by status.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.LoadSheddingBench [overload factor] [seconds] [handler millis]
+ */
+public class LoadSheddingBench {
+
+    private static final long DEADLINE_MILLIS = 200;
+
+    private static final MethodDescriptor.Marshaller<byte[]> BYTES = new MethodDescriptor.Marshaller<byte[]>() {
+        @Override
+        public InputStream stream(byte[] value) {
+            return new ByteArrayInputStream(value);
+        }
+
+        @Override
+        public byte[] parse(InputStream stream) {
+            try {
+                return ByteStreams.toByteArray(stream);
+            } catch (IOException e) {
+                throw Status.INTERNAL.withCause(e).asRuntimeException();
+            }
+        }
+    };
+
+    private static final MethodDescriptor<byte[], byte[]> WORK_METHOD = MethodDescriptor.<byte[], byte[]>newBuilder()
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .setFullMethodName(MethodDescriptor.generateFullMethodName("smarthome.bench.Overload", "work"))
+            .setRequestMarshaller(BYTES)
+            .setResponseMarshaller(BYTES)
+            .build();
+
+    // Kept so the level isn't lost when the logger is collected: the transport logs every call cancelled by its deadline
+    private static final java.util.logging.Logger grpcLogger = java.util.logging.Logger.getLogger("io.grpc");
+
+    public static void main(String[] args) throws Exception {
+        double overloadFactor = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long handlerMillis = args.length > 2 ? Long.parseLong(args[2]) : 10;
+        grpcLogger.setLevel(Level.OFF);
+
+        double capacity = measureCapacity(handlerMillis);
+        double offeredCallsPerSecond = capacity * overloadFactor;
+        System.out.printf("Capacity %.0f calls/s, offering %.0f calls/s for %d s with a %d ms deadline%n",
+                capacity, offeredCallsPerSecond, seconds, DEADLINE_MILLIS);
+
+        for (boolean loadShedding : new boolean[]{false, true}) {
+            Result result = runOverload(loadShedding, handlerMillis, offeredCallsPerSecond, seconds);
+            System.out.printf("Load shedding %-3s: goodput %.0f calls/s, p50 %d ms, p99 %d ms of the OK calls, failed %s%n",
+                    loadShedding ? "on" : "off", result.okCalls / (double) seconds,
+                    result.percentileMillis(0.5), result.percentileMillis(0.99), result.failures);
+        }
+    }
+
+    /**
+     * Calls per second the server completes with every handler busy and no limiter.
+     */
+    private static double measureCapacity(long handlerMillis) throws Exception {
+        try (BenchServer server = new BenchServer(false, handlerMillis)) {
+            int callers = 2 * server.handlerThreads;
+            AtomicLong calls = new AtomicLong();
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+            ExecutorService executor = Executors.newFixedThreadPool(callers);
+            for (int i = 0; i < callers; i++) {
+                executor.execute(() -> {
+                    while (System.nanoTime() < end) {
+                        ClientCalls.blockingUnaryCall(server.channel, WORK_METHOD, CallOptions.DEFAULT, new byte[16]);
+                        calls.incrementAndGet();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            return calls.get() / 3.0;
+        }
+    }
+
+    private static Result runOverload(boolean loadShedding, long handlerMillis, double callsPerSecond, int seconds) throws Exception {
+        try (BenchServer server = new BenchServer(loadShedding, handlerMillis)) {
+            int totalCalls = (int) (callsPerSecond * seconds);
+            Result result = new Result(totalCalls);
+            CountDownLatch done = new CountDownLatch(totalCalls);
+            AtomicLong started = new AtomicLong();
+
+            // Open loop: the calls of each millisecond are started on schedule whether the earlier ones completed or not
+            long startNanos = System.nanoTime();
+            ScheduledExecutorService generator = Executors.newSingleThreadScheduledExecutor();
+            generator.scheduleAtFixedRate(() -> {
+                long due = Math.min(totalCalls, (long) ((System.nanoTime() - startNanos) / 1e9 * callsPerSecond));
+                while (started.get() < due) {
+                    started.incrementAndGet();
+                    long start = System.nanoTime();
+                    CallOptions callOptions = CallOptions.DEFAULT.withDeadlineAfter(DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+                    ClientCalls.asyncUnaryCall(server.channel.newCall(WORK_METHOD, callOptions), new byte[16], new StreamObserver<byte[]>() {
+                        @Override
+                        public void onNext(byte[] response) {
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            result.failed(Status.fromThrowable(t).getCode());
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            result.completed(System.nanoTime() - start);
+                            done.countDown();
+                        }
+                    });
+                }
+            }, 0, 1, TimeUnit.MILLISECONDS);
+
+            done.await(seconds + 60, TimeUnit.SECONDS);
+            generator.shutdownNow();
+            return result;
+        }
+    }
+
+    /**
+     * A server on a free local port whose handlers run on a bounded pool, as in SmartHomeServer.
+     */
+    private static class BenchServer implements AutoCloseable {
+
+        private final int handlerThreads = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+        private final ThreadPoolExecutor handlerExecutor;
+        private final Server server;
+        private final ManagedChannel channel;
+
+        BenchServer(boolean loadShedding, long handlerMillis) throws IOException {
+            handlerExecutor = new ThreadPoolExecutor(handlerThreads, handlerThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            ServerServiceDefinition service = ServerServiceDefinition.builder(MethodDescriptor.extractFullServiceName(WORK_METHOD.getFullMethodName()))
+                    .addMethod(WORK_METHOD, ServerCalls.asyncUnaryCall((request, responseObserver) -> {
+                        // Wait for the backend
+                        try {
+                            Thread.sleep(handlerMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        responseObserver.onNext(request);
+                        responseObserver.onCompleted();
+                    }))
+                    .build();
+
+            ServerBuilder<?> builder = ServerBuilder.forPort(0)
+                    .executor(handlerExecutor)
+                    .addService(service);
+            if (loadShedding) {
+                builder.intercept(new LoadSheddingInterceptor(100, 8, 1000, handlerExecutor, 4 * handlerThreads));
+            }
+            server = builder.build().start();
+            channel = ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            // Every call has completed by now, let the transports close before their executor stops
+            channel.shutdown();
+            channel.awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdown();
+            server.awaitTermination(5, TimeUnit.SECONDS);
+            handlerExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Latencies of the OK calls and counts of the failed ones by status.
+     */
+    private static class Result {
+
+        private final long[] latencies;
+        private int okCalls;
+        private final Map<Status.Code, Integer> failures = new ConcurrentSkipListMap<>();
+
+        Result(int totalCalls) {
+            latencies = new long[totalCalls];
+        }
+
+        synchronized void completed(long latencyNanos) {
+            latencies[okCalls++] = latencyNanos;
+        }
+
+        void failed(Status.Code code) {
+            failures.merge(code, 1, Integer::sum);
+        }
+
+        synchronized long percentileMillis(double percentile) {
+            if (okCalls == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, okCalls);
+            Arrays.sort(sorted);
+            return TimeUnit.NANOSECONDS.toMillis(sorted[(int) Math.min(okCalls - 1, okCalls * percentile)]);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package smarthome.bench;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import smarthome.common.HotPathMarshaller;
+import smarthome.generated.climate.ClimateServiceGrpc;
+import smarthome.generated.climate.SensorReading;
+import smarthome.generated.general.DeviceState;
+import smarthome.generated.general.OperationResponse;
+import smarthome.generated.lighting.LightingDevice;
+import smarthome.generated.lighting.LightingDeviceDetails;
+import smarthome.generated.lighting.LightingServiceGrpc;
+import smarthome.generated.lighting.LightingStateRequest;
+import smarthome.generated.security.LockDoorRequest;
+import smarthome.generated.security.SecurityServiceGrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Allocation and time per message of HotPathMarshaller against the generated protobuf marshaller, for the
+ * messages of the hot calls. Encoding drains the marshaller's stream into a reused buffer, as the transport drains
+ * it into its own, and parsing reads a stream of known length, as the transport hands over a received message.
+ * The lockDoor response is the instance the security service reuses, so the hot marshaller encodes it only once.
+ * The counter is the one JMH's gc profiler reads.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.MarshallerBench [messages]
+ */
+public class MarshallerBench {
+
+    static volatile Object lastMessage;
+
+    public static void main(String[] args) throws IOException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        LightingStateRequest lightingStateRequest = LightingStateRequest.newBuilder()
+                .setDeviceNumber(12)
+                .setLightingState(DeviceState.ON)
+                .build();
+        LightingDeviceDetails lightingDeviceDetails = LightingDeviceDetails.newBuilder()
+                .setLightingDevice(LightingDevice.newBuilder().setRoomNumber(3).setDeviceNumber(12))
+                .setLightingDeviceState(DeviceState.ON)
+                .setBrightness(0.8f)
+                .build();
+        LockDoorRequest lockDoorRequest = LockDoorRequest.newBuilder().setDoorNumber(4).build();
+        OperationResponse lockDoorResponse = OperationResponse.newBuilder()
+                .setIsSuccessful(true)
+                .setMessage("Door '4' is now locked.")
+                .build();
+        SensorReading sensorReading = SensorReading.newBuilder()
+                .setZoneId(7)
+                .setTemperature(21)
+                .setTimestampMillis(System.currentTimeMillis())
+                .build();
+
+        MethodDescriptor<LightingStateRequest, LightingDeviceDetails> setLightingState = LightingServiceGrpc.getSetLightingStateMethod();
+        MethodDescriptor<LockDoorRequest, OperationResponse> lockDoor = SecurityServiceGrpc.getLockDoorMethod();
+        MethodDescriptor<SensorReading, OperationResponse> ingestReadings = ClimateServiceGrpc.getIngestReadingsMethod();
+
+        System.out.printf("%d messages each%n", messages);
+        for (boolean measured : new boolean[]{false, true}) {
+            // The first round warms up the JIT
+            int count = measured ? messages : messages / 4;
+            compare("LightingStateRequest", setLightingState.getRequestMarshaller(),
+                    HotPathMarshaller.withHotPathMarshallers(setLightingState).getRequestMarshaller(), lightingStateRequest, count, measured);
+            compare("LightingDeviceDetails", setLightingState.getResponseMarshaller(),
+                    HotPathMarshaller.withHotPathMarshallers(setLightingState).getResponseMarshaller(), lightingDeviceDetails, count, measured);
+            compare("LockDoorRequest", lockDoor.getRequestMarshaller(),
+                    HotPathMarshaller.withHotPathMarshallers(lockDoor).getRequestMarshaller(), lockDoorRequest, count, measured);
+            compare("OperationResponse (reused)", lockDoor.getResponseMarshaller(),
+                    HotPathMarshaller.withHotPathMarshallers(lockDoor).getResponseMarshaller(), lockDoorResponse, count, measured);
+            compare("SensorReading", ingestReadings.getRequestMarshaller(),
+                    HotPathMarshaller.withHotPathMarshallers(ingestReadings).getRequestMarshaller(), sensorReading, count, measured);
+        }
+    }
+
+    private static <T> void compare(String name, MethodDescriptor.Marshaller<T> generated, MethodDescriptor.Marshaller<T> hot,
+                                    T message, int count, boolean print) throws IOException {
+        double[] generatedEncode = encode(generated, message, count);
+        double[] hotEncode = encode(hot, message, count);
+        double[] generatedParse = parse(generated, message, count);
+        double[] hotParse = parse(hot, message, count);
+        if (print) {
+            System.out.printf("%-26s encode: generated %5.0f B/op %4.0f ns/op, hot path %5.0f B/op %4.0f ns/op%n",
+                    name, generatedEncode[0], generatedEncode[1], hotEncode[0], hotEncode[1]);
+            System.out.printf("%-26s parse:  generated %5.0f B/op %4.0f ns/op, hot path %5.0f B/op %4.0f ns/op%n",
+                    "", generatedParse[0], generatedParse[1], hotParse[0], hotParse[1]);
+        }
+    }
+
+    /**
+     * Drain the encoded message into a reused buffer, returns the bytes allocated and the nanoseconds per message.
+     */
+    private static <T> double[] encode(MethodDescriptor.Marshaller<T> marshaller, T message, int count) throws IOException {
+        TransportBuffer buffer = new TransportBuffer();
+        long allocatedBefore = BenchSupport.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            buffer.size = 0;
+            ((Drainable) marshaller.stream(message)).drainTo(buffer);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        return new double[]{(BenchSupport.allocatedBytes() - allocatedBefore) / (double) count, elapsedNanos / (double) count};
+    }
+
+    /**
+     * Parse the encoded message from a stream of known length, returns the bytes allocated and the nanoseconds per message.
+     */
+    private static <T> double[] parse(MethodDescriptor.Marshaller<T> marshaller, T message, int count) throws IOException {
+        TransportBuffer buffer = new TransportBuffer();
+        ((Drainable) marshaller.stream(message)).drainTo(buffer);
+        ReceivedMessage received = new ReceivedMessage(buffer.bytes, buffer.size);
+        long allocatedBefore = BenchSupport.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            received.reset();
+            lastMessage = marshaller.parse(received);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        return new double[]{(BenchSupport.allocatedBytes() - allocatedBefore) / (double) count, elapsedNanos / (double) count};
+    }
+
+    /**
+     * Reused buffer the encoded messages are written into, as the transport's buffer.
+     */
+    private static final class TransportBuffer extends OutputStream {
+        final byte[] bytes = new byte[4096];
+        int size;
+
+        @Override
+        public void write(int b) {
+            bytes[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+    }
+
+    /**
+     * Received message of known length, as the transport hands it to the marshaller.
+     */
+    private static final class ReceivedMessage extends ByteArrayInputStream implements KnownLength {
+        ReceivedMessage(byte[] bytes, int size) {
+            super(bytes, 0, size);
+        }
+    }
+}
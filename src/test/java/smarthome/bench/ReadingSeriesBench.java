@@ -0,0 +1,124 @@
+package smarthome.bench;
+
+import smarthome.generated.climate.TemperatureReading;
+import smarthome.server.services.climate.ReadingSeries;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Size and decode throughput of readings stored in a ReadingSeries, compared with the TemperatureReading messages
+ * with a timestamp string that used to be stored.
+ * The readings look like a sensor's: one every 5 s with some jitter, and a value that changes slowly.
+ * Decoding is measured for a whole-history cursor, a cursor over the latest readings and for decoding into the
+ * messages streamed by getTemperatureHistory.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.ReadingSeriesBench [readings] [decode rounds]
+ */
+public class ReadingSeriesBench {
+
+    public static void main(String[] args) {
+        int readings = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        long[] timestamps = new long[readings];
+        int[] values = new int[readings];
+        Random random = new Random(42);
+        long timestamp = System.currentTimeMillis();
+        int value = 21;
+        for (int i = 0; i < readings; i++) {
+            timestamp += 5000 + random.nextInt(21) - 10;
+            if (random.nextInt(10) == 0) {
+                value += random.nextBoolean() ? 1 : -1;
+            }
+            timestamps[i] = timestamp;
+            values[i] = value;
+        }
+
+        long heapBefore = BenchSupport.usedHeapAfterGc();
+        ReadingSeries series = new ReadingSeries();
+        for (int i = 0; i < readings; i++) {
+            series.add(timestamps[i], values[i]);
+        }
+        long seriesHeap = BenchSupport.usedHeapAfterGc() - heapBefore;
+
+        heapBefore = BenchSupport.usedHeapAfterGc();
+        List<TemperatureReading> messages = new ArrayList<>(readings);
+        for (int i = 0; i < readings; i++) {
+            messages.add(buildTemperatureReading(timestamps[i], values[i]));
+        }
+        long messagesHeap = BenchSupport.usedHeapAfterGc() - heapBefore;
+        long serializedBytes = 0;
+        for (TemperatureReading message : messages) {
+            serializedBytes += message.getSerializedSize();
+        }
+
+        System.out.printf("%d readings%n", readings);
+        System.out.printf("ReadingSeries: %.2f encoded bytes per reading, %.2f bytes of heap per reading%n",
+                series.getEncodedBytes() / (double) readings, seriesHeap / (double) readings);
+        System.out.printf("Messages:      %.2f serialized bytes per reading, %.2f bytes of heap per reading%n",
+                serializedBytes / (double) readings, messagesHeap / (double) readings);
+        messages = null;
+
+        // Warm up the JIT before measuring
+        decode(series, readings, rounds);
+        decodeMessages(series, readings, 1);
+
+        long start = System.nanoTime();
+        long checksum = decode(series, readings, rounds);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Decode all:    %.1f M readings/s%n", readings * (double) rounds / seconds / 1e6);
+
+        int latest = Math.min(readings, 1000);
+        int latestRounds = Math.max(1, rounds * readings / latest / 10);
+        start = System.nanoTime();
+        checksum += decode(series, latest, latestRounds);
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Decode last %d: %.1f M readings/s%n", latest, latest * (double) latestRounds / seconds / 1e6);
+
+        long allocatedBefore = BenchSupport.allocatedBytes();
+        start = System.nanoTime();
+        checksum += decodeMessages(series, readings, 1);
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Decode into messages: %.1f M readings/s, %.0f bytes allocated per reading%n",
+                readings / seconds / 1e6, (BenchSupport.allocatedBytes() - allocatedBefore) / (double) readings);
+        System.out.println("Checksum " + checksum);
+    }
+
+    /**
+     * Decode the latest count readings the given number of times, returns a checksum so nothing is optimized away.
+     */
+    private static long decode(ReadingSeries series, int count, int rounds) {
+        long checksum = 0;
+        for (int round = 0; round < rounds; round++) {
+            ReadingSeries.Cursor cursor = series.last(count);
+            while (cursor.hasNext()) {
+                cursor.next();
+                checksum += cursor.getTimestampMillis() + cursor.getValue();
+            }
+        }
+        return checksum;
+    }
+
+    private static long decodeMessages(ReadingSeries series, int count, int rounds) {
+        long checksum = 0;
+        for (int round = 0; round < rounds; round++) {
+            ReadingSeries.Cursor cursor = series.last(count);
+            while (cursor.hasNext()) {
+                cursor.next();
+                checksum += buildTemperatureReading(cursor.getTimestampMillis(), cursor.getValue()).getTemperature();
+            }
+        }
+        return checksum;
+    }
+
+    private static TemperatureReading buildTemperatureReading(long timestampMillis, int temperature) {
+        return TemperatureReading.newBuilder()
+                .setTime(Instant.ofEpochMilli(timestampMillis).toString())
+                .setTemperature(temperature)
+                .setZoneId(1)
+                .build();
+    }
+}
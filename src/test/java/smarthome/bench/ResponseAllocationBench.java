@@ -0,0 +1,125 @@
+package smarthome.bench;
+
+import io.grpc.stub.StreamObserver;
+import smarthome.generated.climate.ClimateDevicesState;
+import smarthome.generated.climate.ClimateDevicesStateRequest;
+import smarthome.generated.climate.HumidifierDehumidifierState;
+import smarthome.generated.climate.TemperatureChangeEvent;
+import smarthome.generated.general.DeviceState;
+import smarthome.generated.general.OperationResponse;
+import smarthome.generated.security.LockDoorRequest;
+import smarthome.generated.security.SecurityDevice;
+import smarthome.generated.security.SecurityDeviceType;
+import smarthome.server.services.climate.ClimateService;
+import smarthome.server.services.security.SecurityService;
+
+/**
+ * Bytes allocated per call by the climate and security services, which reuse their state snapshots and responses,
+ * compared with the same calls plus the response built per call as the services used to do.
+ * The services are called directly without a transport, so only the allocation of the service is counted.
+ * The counter is the one JMH's gc profiler reads.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.bench.ResponseAllocationBench [calls]
+ */
+public class ResponseAllocationBench {
+
+    static volatile Object lastResponse;
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        ClimateService climateService = new ClimateService();
+        SecurityService securityService = new SecurityService();
+        securityService.registerSecurityDevice(SecurityDevice.newBuilder()
+                .setDeviceNumber(1)
+                .setDeviceType(SecurityDeviceType.DOOR)
+                .build(), keepLast());
+
+        ClimateDevicesStateRequest stateRequest = ClimateDevicesStateRequest.newBuilder().setZoneId(1).build();
+        TemperatureChangeEvent temperatureEvent = TemperatureChangeEvent.newBuilder().setZoneId(1).setTemperature(21).build();
+        LockDoorRequest lockRequest = LockDoorRequest.newBuilder().setDoorNumber(1).build();
+        StreamObserver<ClimateDevicesState> stateObserver = keepLast();
+        StreamObserver<OperationResponse> responseObserver = keepLast();
+        // The zone exists before measuring, as it does for every zone but the first call
+        climateService.respondToTemperatureReading(temperatureEvent, stateObserver);
+
+        Runnable getState = () -> climateService.getClimateDevicesState(stateRequest, stateObserver);
+        Runnable getStateRebuilt = () -> {
+            climateService.getClimateDevicesState(stateRequest, stateObserver);
+            stateObserver.onNext(rebuild(stateRequest.getZoneId()));
+        };
+        Runnable temperatureReading = () -> climateService.respondToTemperatureReading(temperatureEvent, stateObserver);
+        Runnable temperatureReadingRebuilt = () -> {
+            climateService.respondToTemperatureReading(temperatureEvent, stateObserver);
+            stateObserver.onNext(rebuild(temperatureEvent.getZoneId()));
+        };
+        Runnable lockDoor = () -> securityService.lockDoor(lockRequest, responseObserver);
+        Runnable lockDoorRebuilt = () -> {
+            securityService.lockDoor(lockRequest, responseObserver);
+            responseObserver.onNext(OperationResponse.newBuilder()
+                    .setIsSuccessful(true)
+                    .setMessage("Door '" + lockRequest.getDoorNumber() + "' is now locked.")
+                    .build());
+        };
+
+        System.out.printf("%d calls each%n", calls);
+        measure("getClimateDevicesState", getState, getStateRebuilt, calls);
+        measure("respondToTemperatureReading", temperatureReading, temperatureReadingRebuilt, calls);
+        measure("lockDoor", lockDoor, lockDoorRebuilt, calls);
+
+        climateService.shutdown();
+    }
+
+    private static void measure(String name, Runnable reused, Runnable rebuilt, int calls) {
+        // Warm up the JIT so escape analysis has run before counting
+        run(reused, calls);
+        run(rebuilt, calls);
+        System.out.printf("%-28s reused: %6.1f B/op, rebuilt per call: %6.1f B/op%n",
+                name, run(reused, calls), run(rebuilt, calls));
+    }
+
+    /**
+     * Call the operation the given number of times, returns the bytes allocated per call.
+     */
+    private static double run(Runnable operation, int calls) {
+        long before = BenchSupport.allocatedBytes();
+        for (int i = 0; i < calls; i++) {
+            operation.run();
+        }
+        return (BenchSupport.allocatedBytes() - before) / (double) calls;
+    }
+
+    /**
+     * Build the state of a zone as the climate service used to on every call.
+     */
+    private static ClimateDevicesState rebuild(int zoneId) {
+        return ClimateDevicesState.newBuilder()
+                .setAcState(DeviceState.OFF)
+                .setHeatingState(DeviceState.OFF)
+                .setHumidityDeviceState(HumidifierDehumidifierState.HUMIDIFIER_DEHUMIDIFIER_OFF)
+                .setZoneId(zoneId)
+                .build();
+    }
+
+    /**
+     * Observer keeping the last response where other threads could see it, as the transport does, so the
+     * responses built per call escape and can't be scalar replaced by the JIT.
+     */
+    private static <T> StreamObserver<T> keepLast() {
+        return new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+                lastResponse = value;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new IllegalStateException(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+}
@@ -0,0 +1,150 @@
+package smarthome.server.services.climate;
+
+import smarthome.bench.BenchSupport;
+import smarthome.generated.climate.HumidifierDehumidifierState;
+import smarthome.generated.general.DeviceState;
+
+import java.util.Random;
+
+import static smarthome.server.services.climate.ControlStrategy.*;
+
+/**
+ * Simulates zones with noisy sensors driven by ClimateControlEngine and counts how often their devices switch.
+ * Every zone has a simple thermal model: it drifts towards the outside climate and its running devices push it
+ * back. Sensors report a noisy reading every few seconds and the control tick runs every second, as in
+ * ClimateService. The same simulation runs with direct comparison against the target (the former behaviour),
+ * hysteresis and PID, and reports the switches per zone and hour and the CPU of the control steps per 1000 zones.
+ * Unlike the other benches it can't live in smarthome.bench: it runs the control steps of ClimateControlEngine and
+ * reads the device states of ClimateZone, which are package-private to the climate package, on a simulated clock
+ * that ClimateService, reading the system clock, can't be driven by.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.server.services.climate.ControlLoopBench [zones] [simulated hours] [reading interval seconds]
+ */
+public class ControlLoopBench {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final double OUTSIDE_TEMPERATURE = 10;
+    private static final double OUTSIDE_HUMIDITY = 75;
+    // Per second: share of the difference with the outside lost, and change caused by a running device
+    private static final double LEAK_RATE = 0.0005;
+    private static final double TEMPERATURE_DEVICE_RATE = 0.02;
+    private static final double HUMIDITY_DEVICE_RATE = 0.05;
+    private static final double TEMPERATURE_NOISE = 0.8;
+    private static final double HUMIDITY_NOISE = 3;
+
+    public static void main(String[] args) {
+        int zones = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int hours = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int readingIntervalSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        ClimateControlEngine direct = new ClimateControlEngine(directStrategy(), directStrategy(), 0, 0);
+        ClimateControlEngine hysteresis = new ClimateControlEngine();
+        ClimateControlEngine pid = new ClimateControlEngine(
+                new PidControlStrategy(1, 0.005, 0, 1, 200),
+                new PidControlStrategy(0.5, 0.002, 0, 2, 1000),
+                ClimateControlEngine.DEFAULT_MIN_ON_MILLIS,
+                ClimateControlEngine.DEFAULT_MIN_OFF_MILLIS);
+
+        // Warm up the JIT before measuring
+        for (ClimateControlEngine engine : new ClimateControlEngine[]{direct, hysteresis, pid}) {
+            simulate(engine, zones, 1, readingIntervalSeconds);
+        }
+
+        System.out.printf("%d zones, %d simulated hours, a reading every %d s per quantity%n", zones, hours, readingIntervalSeconds);
+        report("direct", simulate(direct, zones, hours, readingIntervalSeconds), zones, hours);
+        report("hysteresis", simulate(hysteresis, zones, hours, readingIntervalSeconds), zones, hours);
+        report("PID", simulate(pid, zones, hours, readingIntervalSeconds), zones, hours);
+    }
+
+    private static void report(String name, Result result, int zones, int hours) {
+        System.out.printf("%-10s: %6.1f switches per zone and hour, %.3f ms CPU per control tick per 1000 zones, "
+                        + "mean temperature error %.2f, mean humidity error %.2f%n",
+                name, result.switches / (double) zones / hours,
+                result.controlNanos / 1e6 / result.ticks * 1000 / zones,
+                result.temperatureError, result.humidityError);
+    }
+
+    /**
+     * Run the zones for the given simulated hours, readings are spread evenly over the reading interval.
+     */
+    private static Result simulate(ClimateControlEngine engine, int zones, int hours, int readingIntervalSeconds) {
+        Random random = new Random(42);
+        ClimateZone[] zone = new ClimateZone[zones];
+        double[] temperature = new double[zones];
+        double[] humidity = new double[zones];
+        for (int i = 0; i < zones; i++) {
+            zone[i] = new ClimateZone(i + 1);
+            temperature[i] = 15 + 10 * random.nextDouble();
+            humidity[i] = 30 + 40 * random.nextDouble();
+        }
+
+        Result result = new Result();
+        double temperatureError = 0;
+        double humidityError = 0;
+        long ticks = hours * 3600 * 1000 / TICK_MILLIS;
+        for (long tick = 0; tick < ticks; tick++) {
+            long now = tick * TICK_MILLIS;
+            double seconds = TICK_MILLIS / 1000.0;
+
+            // Move the simulated climate by the devices that are running
+            for (int i = 0; i < zones; i++) {
+                ClimateZone z = zone[i];
+                temperature[i] += seconds * ((OUTSIDE_TEMPERATURE - temperature[i]) * LEAK_RATE
+                        + (z.heatingState == DeviceState.ON ? TEMPERATURE_DEVICE_RATE : 0)
+                        - (z.acState == DeviceState.ON ? TEMPERATURE_DEVICE_RATE : 0));
+                humidity[i] += seconds * ((OUTSIDE_HUMIDITY - humidity[i]) * LEAK_RATE
+                        + (z.humidifierDehumidifierState == HumidifierDehumidifierState.HUMIDIFIER ? HUMIDITY_DEVICE_RATE : 0)
+                        - (z.humidifierDehumidifierState == HumidifierDehumidifierState.DEHUMIDIFIER ? HUMIDITY_DEVICE_RATE : 0));
+                temperatureError += Math.abs(temperature[i] - z.targetTemperature);
+                humidityError += Math.abs(humidity[i] - z.targetHumidity);
+            }
+
+            // Readings due in this tick, then the control tick over all zones, both measured
+            long cpuStart = BenchSupport.threadCpuNanos();
+            for (int i = 0; i < zones; i++) {
+                if ((tick + i) % readingIntervalSeconds != 0) {
+                    continue;
+                }
+                ClimateZone z = zone[i];
+                synchronized (z) {
+                    z.latestTemperature = (int) Math.round(temperature[i] + random.nextGaussian() * TEMPERATURE_NOISE);
+                    z.hasTemperatureReading = true;
+                    engine.controlTemperature(z, now);
+                    z.latestHumidity = (int) Math.round(humidity[i] + random.nextGaussian() * HUMIDITY_NOISE);
+                    z.hasHumidityReading = true;
+                    engine.controlHumidity(z, now);
+                }
+            }
+            for (ClimateZone z : zone) {
+                synchronized (z) {
+                    engine.control(z, now);
+                }
+            }
+            result.controlNanos += BenchSupport.threadCpuNanos() - cpuStart;
+        }
+
+        for (ClimateZone z : zone) {
+            result.switches += z.switchCount;
+        }
+        result.ticks = ticks;
+        result.temperatureError = temperatureError / ticks / zones;
+        result.humidityError = humidityError / ticks / zones;
+        return result;
+    }
+
+    /**
+     * The behaviour before the engine: the devices follow every reading's comparison with the target.
+     */
+    private static ControlStrategy directStrategy() {
+        return () -> (measured, target, currentDemand, nowMillis) ->
+                measured < target ? DEMAND_INCREASE : measured > target ? DEMAND_DECREASE : DEMAND_NONE;
+    }
+
+    private static class Result {
+        long switches;
+        long controlNanos;
+        long ticks;
+        double temperatureError;
+        double humidityError;
+    }
+}
@@ -0,0 +1,175 @@
+package smarthome.server.services.lighting;
+
+import io.grpc.stub.StreamObserver;
+import smarthome.bench.BenchSupport;
+import smarthome.generated.general.DeviceState;
+import smarthome.generated.lighting.LightingBrightnessRequest;
+import smarthome.generated.lighting.LightingDevice;
+import smarthome.generated.lighting.LightingDeviceDetails;
+import smarthome.server.services.IntMap;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Updates per second, allocation and collections of the LightingDeviceTable, against the IntMap of immutable
+ * LightingDeviceDetails rebuilt on every change that it replaced, with 1M devices. Every update sets the state or
+ * the brightness of a random device. The heap of both stores at 1M devices is reported too, and the allocation of
+ * setLightingBrightness through the service, which also builds the response and the change feed entry.
+ * Unlike the other benches it can't live in smarthome.bench: LightingDeviceTable and its methods are package-private
+ * to the lighting package, and only the raw table shows the updates without the service's response and feed entry.
+ * Run with:
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; smarthome.server.services.lighting.LightingTableBench [devices] [updates]
+ */
+public class LightingTableBench {
+
+    static volatile Object lastResponse;
+
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 20_000_000;
+
+        long heapBefore = BenchSupport.usedHeapAfterGc();
+        LightingDeviceTable table = new LightingDeviceTable();
+        for (int deviceNumber = 1; deviceNumber <= devices; deviceNumber++) {
+            table.put(device(deviceNumber), DeviceState.OFF.getNumber(), 0.0f);
+        }
+        long tableHeap = BenchSupport.usedHeapAfterGc() - heapBefore;
+
+        heapBefore = BenchSupport.usedHeapAfterGc();
+        IntMap<LightingDeviceDetails> messages = new IntMap<>();
+        for (int deviceNumber = 1; deviceNumber <= devices; deviceNumber++) {
+            messages.put(deviceNumber, LightingDeviceDetails.newBuilder()
+                    .setLightingDevice(device(deviceNumber))
+                    .setLightingDeviceState(DeviceState.OFF)
+                    .setBrightness(0.0f)
+                    .build());
+        }
+        long messagesHeap = BenchSupport.usedHeapAfterGc() - heapBefore;
+
+        System.out.printf("%d devices, %d updates per run%n", devices, updates);
+        System.out.printf("Heap:     table %6.1f MB, rebuilt messages %6.1f MB%n", tableHeap / 1e6, messagesHeap / 1e6);
+
+        int[] deviceNumbers = new int[1 << 16];
+        Random random = new Random(42);
+        for (int i = 0; i < deviceNumbers.length; i++) {
+            deviceNumbers[i] = 1 + random.nextInt(devices);
+        }
+
+        // The first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            double[] inPlace = updateTable(table, deviceNumbers, updates);
+            double[] rebuilt = updateMessages(messages, deviceNumbers, updates);
+            if (round == 1) {
+                System.out.printf("Updates:  table %5.1f M/s %5.1f B/update %3.0f young GCs, "
+                                + "rebuilt messages %5.1f M/s %5.1f B/update %3.0f young GCs%n",
+                        inPlace[0] / 1e6, inPlace[1], inPlace[2], rebuilt[0] / 1e6, rebuilt[1], rebuilt[2]);
+            }
+        }
+
+        // Through the service, with the response and the change feed entry
+        LightingService lightingService = new LightingService();
+        StreamObserver<LightingDeviceDetails> responseObserver = new StreamObserver<LightingDeviceDetails>() {
+            @Override
+            public void onNext(LightingDeviceDetails value) {
+                lastResponse = value;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new IllegalStateException(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+        int serviceDevices = Math.min(devices, 10_000);
+        for (int deviceNumber = 1; deviceNumber <= serviceDevices; deviceNumber++) {
+            lightingService.registerLightingDevice(device(deviceNumber), responseObserver);
+        }
+        LightingBrightnessRequest[] requests = new LightingBrightnessRequest[deviceNumbers.length];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = LightingBrightnessRequest.newBuilder()
+                    .setDeviceNumber(1 + deviceNumbers[i] % serviceDevices)
+                    .setBrightness(i % 100 / 100f)
+                    .build();
+        }
+        int serviceUpdates = updates / 10;
+        for (int round = 0; round < 2; round++) {
+            long allocatedBefore = BenchSupport.allocatedBytes();
+            for (int i = 0; i < serviceUpdates; i++) {
+                lightingService.setLightingBrightness(requests[i & (requests.length - 1)], responseObserver);
+            }
+            if (round == 1) {
+                System.out.printf("Service:  setLightingBrightness %5.1f B/update%n",
+                        (BenchSupport.allocatedBytes() - allocatedBefore) / (double) serviceUpdates);
+            }
+        }
+    }
+
+    private static double[] updateTable(LightingDeviceTable table, int[] deviceNumbers, int updates) {
+        long collectionsBefore = youngCollections();
+        long allocatedBefore = BenchSupport.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            int deviceNumber = deviceNumbers[i & (deviceNumbers.length - 1)];
+            if ((i & 1) == 0) {
+                table.setState(deviceNumber, (i & 2) == 0 ? DeviceState.ON.getNumber() : DeviceState.OFF.getNumber());
+            } else {
+                table.setBrightness(deviceNumber, i % 100 / 100f);
+            }
+        }
+        return result(updates, System.nanoTime() - start, allocatedBefore, collectionsBefore);
+    }
+
+    private static double[] updateMessages(IntMap<LightingDeviceDetails> messages, int[] deviceNumbers, int updates) {
+        long collectionsBefore = youngCollections();
+        long allocatedBefore = BenchSupport.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            int deviceNumber = deviceNumbers[i & (deviceNumbers.length - 1)];
+            LightingDeviceDetails.Builder builder = messages.get(deviceNumber).toBuilder();
+            if ((i & 1) == 0) {
+                builder.setLightingDeviceState((i & 2) == 0 ? DeviceState.ON : DeviceState.OFF);
+            } else {
+                builder.setBrightness(i % 100 / 100f);
+            }
+            messages.put(deviceNumber, builder.build());
+        }
+        return result(updates, System.nanoTime() - start, allocatedBefore, collectionsBefore);
+    }
+
+    /**
+     * Updates per second, bytes allocated per update and collections during the run.
+     */
+    private static double[] result(int updates, long elapsedNanos, long allocatedBefore, long collectionsBefore) {
+        return new double[]{
+                updates / (elapsedNanos / 1e9),
+                (BenchSupport.allocatedBytes() - allocatedBefore) / (double) updates,
+                youngCollections() - collectionsBefore
+        };
+    }
+
+    /**
+     * Collections of the young generation so far, counted by the collectors that don't collect the whole heap.
+     */
+    private static long youngCollections() {
+        long collections = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = collector.getName();
+            if (!name.contains("Old") && !name.contains("MarkSweep") && !name.contains("Full")) {
+                collections += collector.getCollectionCount();
+            }
+        }
+        return collections;
+    }
+
+    private static LightingDevice device(int deviceNumber) {
+        return LightingDevice.newBuilder()
+                .setRoomNumber(deviceNumber % 500)
+                .setDeviceNumber(deviceNumber)
+                .build();
+    }
+}